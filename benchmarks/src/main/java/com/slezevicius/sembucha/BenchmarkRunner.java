@@ -0,0 +1,38 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The main class of benchmarks.jar. Takes the same arguments as the JMH
+ * command line, but unless -rf or -rff are given the results are written
+ * as JSON to results/jmh-<version>.json, where the version is the value of
+ * the sembucha.version system property or "snapshot", so the results of
+ * different releases can be kept side by side and compared.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            //Listing and help are only handled by the JMH main
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            File results = new File("results", "jmh-" + System.getProperty("sembucha.version", "snapshot") + ".json");
+            results.getParentFile().mkdirs();
+            options.result(results.getPath());
+        }
+        new Runner(options.build()).run();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,118 @@
+package com.slezevicius.sembucha;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+
+/**
+ * A torrent of identical pieces that hands the file and peer managers the
+ * shared services a benchmark gives it instead of those of a running
+ * client. Without a piece there are no valid hashes, which is enough for
+ * benchmarks that never verify a piece.
+ */
+class BenchmarkTorrent extends Torrent {
+    private final int pieceCount;
+    private final int pieceLength;
+    private final DiskIo diskIo;
+    private final PieceCache pieceCache;
+    private final byte[] hashes;
+    private final PeerPool peerPool = new PeerPool();
+    private final ConnectionBudget connectionBudget = new ConnectionBudget(200, 200);
+
+    /**
+     * @param pieceCount
+     * @param pieceLength
+     * @param piece: the data of every piece, may be null.
+     * @param diskIo: may be null if no file manager is created.
+     * @param pieceCache: may be null if no file manager is created.
+     * @throws NoSuchAlgorithmException
+     */
+    BenchmarkTorrent(int pieceCount, int pieceLength, byte[] piece, DiskIo diskIo, PieceCache pieceCache)
+            throws NoSuchAlgorithmException {
+        this.pieceCount = pieceCount;
+        this.pieceLength = pieceLength;
+        this.diskIo = diskIo;
+        this.pieceCache = pieceCache;
+        hashes = new byte[pieceCount*20];
+        if (piece != null) {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(piece);
+            for (int i = 0; i < pieceCount; i++) {
+                System.arraycopy(hash, 0, hashes, i*20, 20);
+            }
+        }
+    }
+
+    @Override
+    public DiskIo getDiskIo() {
+        return diskIo;
+    }
+
+    @Override
+    public PieceCache getPieceCache() {
+        return pieceCache;
+    }
+
+    @Override
+    public PeerPool getPeerPool() {
+        return peerPool;
+    }
+
+    @Override
+    public ConnectionBudget getConnectionBudget() {
+        return connectionBudget;
+    }
+
+    @Override
+    public Dht getDht() {
+        return null;
+    }
+
+    @Override
+    public boolean isDiskBacklogged() {
+        return diskIo != null && diskIo.isBacklogged();
+    }
+
+    @Override
+    public boolean isPieceBufferFull() {
+        return diskIo != null && diskIo.isBufferFull(pieceLength);
+    }
+
+    @Override
+    public long getPieceLength() {
+        return pieceLength;
+    }
+
+    @Override
+    public long getLength() {
+        return (long) pieceCount*pieceLength;
+    }
+
+    @Override
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    @Override
+    public int getBitfieldLength() {
+        return (pieceCount + 7)/8;
+    }
+
+    @Override
+    public PieceHashes getPieceHashes() {
+        try {
+            return PieceHashes.wrap(hashes);
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getTorrentFileName() {
+        return "benchmark.torrent";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,126 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the old ArrayList<Byte> encoder with BencodeEncoder on an info
+ * dictionary of a given piece count. The digest variants mirror how the
+ * info hash is computed. The decoding side reads a whole torrent file
+ * with that info dictionary: as a tree, token by token with BencodeParser
+ * and through Metainfo, the way the client loads a torrent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BencodingBenchmark {
+    @Param({"1000", "50000"})
+    public int pieceCount;
+    private LinkedHashMap<String, Object> infoDict;
+    private MessageDigest md;
+    private byte[] torrent;
+    private File torrentFile;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException, DataFormatException, IOException {
+        byte[] pieces = new byte[pieceCount*20];
+        new Random(42).nextBytes(pieces);
+        infoDict = new LinkedHashMap<>();
+        infoDict.put("length", (long) pieceCount*262144);
+        infoDict.put("name", "benchmark.bin".getBytes());
+        infoDict.put("piece length", 262144L);
+        infoDict.put("pieces", pieces);
+        md = MessageDigest.getInstance("SHA-1");
+        LinkedHashMap<String, Object> torrentDict = new LinkedHashMap<>();
+        torrentDict.put("announce", "http://tracker.example.com:6969/announce".getBytes());
+        torrentDict.put("created by", "sembucha".getBytes());
+        torrentDict.put("creation date", 1600000000L);
+        torrentDict.put("info", infoDict);
+        torrent = BencodeEncoder.encode(torrentDict);
+        torrentFile = File.createTempFile("benchmark", ".torrent");
+        Files.write(torrentFile.toPath(), torrent);
+    }
+
+    @TearDown
+    public void tearDown() {
+        torrentFile.delete();
+    }
+
+    @Benchmark
+    public byte[] legacyEncode() throws DataFormatException {
+        ArrayList<Byte> ByteList = LegacyBencoding.encode(infoDict);
+        byte[] byteArray = new byte[ByteList.size()];
+        for (int i = 0; i < byteArray.length; i++) {
+            byteArray[i] = ByteList.get(i);
+        }
+        return byteArray;
+    }
+
+    @Benchmark
+    public byte[] encoderEncode() throws DataFormatException {
+        return BencodeEncoder.encode(infoDict);
+    }
+
+    @Benchmark
+    public byte[] legacyDigest() throws DataFormatException {
+        return md.digest(legacyEncode());
+    }
+
+    @Benchmark
+    public byte[] encoderDigest() throws DataFormatException {
+        return BencodeEncoder.digest(infoDict, md);
+    }
+
+    @Benchmark
+    public Object treeDecode() throws DataFormatException {
+        return new Bencoding(torrent).decode();
+    }
+
+    @Benchmark
+    public int parserScan() throws DataFormatException {
+        BencodeParser parser = new BencodeParser(ByteBuffer.wrap(torrent));
+        int tokens = 0;
+        BencodeParser.Token token;
+        int depth = 0;
+        do {
+            token = parser.next();
+            tokens += 1;
+            if (token == BencodeParser.Token.DICT || token == BencodeParser.Token.LIST) {
+                depth += 1;
+            } else if (token == BencodeParser.Token.END) {
+                depth -= 1;
+            }
+        } while (depth > 0);
+        return tokens;
+    }
+
+    @Benchmark
+    public Metainfo metainfoLoad() throws DataFormatException, IOException {
+        return new Metainfo(torrentFile);
+    }
+}
\ No newline at end of file
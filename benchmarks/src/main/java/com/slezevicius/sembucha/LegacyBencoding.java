@@ -0,0 +1,65 @@
+package com.slezevicius.sembucha;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+/**
+ * The ArrayList<Byte> encoder that Bencoding used before BencodeEncoder.
+ * Kept verbatim as the baseline for BencodingBenchmark.
+ */
+public class LegacyBencoding {
+    public static ArrayList<Byte> encode(Object obj) throws DataFormatException {
+        ArrayList<Byte> out = new ArrayList<Byte>();
+        if (obj instanceof LinkedHashMap) {
+            //Dictionary
+            out.add((byte) 'd');
+            for (Map.Entry<String, Object> pair : ((LinkedHashMap<String, Object>) obj).entrySet()) {
+                out.addAll(encode(pair.getKey()));
+                out.addAll(encode(pair.getValue()));
+            }
+            out.add((byte) 'e');
+            return out;
+        } else if (obj instanceof ArrayList) {
+            out.add((byte) 'l');
+            for (Object el : (ArrayList<Object>)obj) {
+                out.addAll(encode(el));
+            }
+            out.add((byte) 'e');
+            return out;
+        } else if (obj instanceof String) {
+            String str = (String) obj;
+            String len = String.valueOf(str.length());
+            for (int i = 0; i < len.length(); i++) {
+                out.add((byte) len.charAt(i));
+            }
+            out.add((byte) ':');
+            for (int i = 0; i < str.length(); i++) {
+                out.add((byte) str.charAt(i));
+            }
+            return out;
+        } else if (obj instanceof byte[]) {
+            byte[] str = (byte[]) obj;
+            String len = String.valueOf(str.length);
+            for (int i = 0; i < len.length(); i++) {
+                out.add((byte) len.charAt(i));
+            }
+            out.add((byte) ':');
+            for (int i = 0; i < str.length; i++) {
+                out.add(str[i]);
+            }
+            return out;
+        } else if (obj instanceof Long) {
+            out.add((byte) 'i');
+            String num = String.valueOf((Long) obj);
+            for (int i = 0; i < num.length(); i++) {
+                out.add((byte) num.charAt(i));
+            }
+            out.add((byte) 'e');
+            return out;
+        } else {
+            throw new DataFormatException("The supplied object cannot be encoded. Invalid structure.");
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,147 @@
+package com.slezevicius.sembucha;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how Peer encodes and decodes the messages of the hot path: the
+ * request and piece messages it sends and the request and piece messages
+ * it receives. The peer is not connected; its output stream discards what
+ * is written and its input stream repeats the payload of one message
+ * forever, the way the receiving methods read it after the message id.
+ * The message methods are private, so they are called through reflection
+ * like in the unit tests, which costs the same for every variant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerMessageBenchmark {
+    private static final int BLOCK = 16384;
+    private Peer peer;
+    private Method request;
+    private Method piece;
+    private Method receiveRequest;
+    private Method receivePiece;
+    private ArrayList<Object> requestArgs;
+    private ArrayList<Object> pieceArgs;
+    private BufferedInputStream requests;
+    private BufferedInputStream pieces;
+    private Field in;
+
+    /**
+     * An input stream that returns the same bytes over and over.
+     */
+    private static class RepeatingInputStream extends InputStream {
+        private final byte[] data;
+        private int position = 0;
+
+        RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            int b = data[position] & 0xff;
+            position = (position + 1)%data.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            int n = Math.min(len, data.length - position);
+            System.arraycopy(data, position, buf, off, n);
+            position = (position + n)%data.length;
+            return n;
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        peer = new Peer();
+        Field out = Peer.class.getDeclaredField("out");
+        out.setAccessible(true);
+        out.set(peer, new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) {
+            }
+        }));
+        in = Peer.class.getDeclaredField("in");
+        in.setAccessible(true);
+        request = method("request", ArrayList.class);
+        piece = method("piece", ArrayList.class);
+        receiveRequest = method("receiveRequest");
+        receivePiece = method("receivePiece", int.class);
+
+        requestArgs = new ArrayList<>();
+        requestArgs.add(1234);
+        requestArgs.add(5*BLOCK);
+        requestArgs.add(BLOCK);
+        byte[] block = new byte[BLOCK];
+        new Random(42).nextBytes(block);
+        pieceArgs = new ArrayList<>();
+        pieceArgs.add(new Request(1234, 5*BLOCK, block));
+
+        //The payloads after the length and id: <index><begin><length> and <index><begin><block>
+        byte[] requestPayload = {0, 0, 4, (byte) 210, 0, 1, 64, 0, 0, 0, 64, 0};
+        byte[] piecePayload = new byte[8 + BLOCK];
+        System.arraycopy(requestPayload, 0, piecePayload, 0, 8);
+        System.arraycopy(block, 0, piecePayload, 8, BLOCK);
+        requests = new BufferedInputStream(new RepeatingInputStream(requestPayload));
+        pieces = new BufferedInputStream(new RepeatingInputStream(piecePayload));
+    }
+
+    private static Method method(String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+        Method method = Peer.class.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return method;
+    }
+
+    @Benchmark
+    public void encodeRequest() throws Exception {
+        request.invoke(peer, requestArgs);
+    }
+
+    @Benchmark
+    public void encodePiece() throws Exception {
+        piece.invoke(peer, pieceArgs);
+    }
+
+    @Benchmark
+    public Request decodeRequest() throws Exception {
+        in.set(peer, requests);
+        receiveRequest.invoke(peer);
+        return peer.getRequest();
+    }
+
+    @Benchmark
+    public Request decodePiece() throws Exception {
+        in.set(peer, pieces);
+        receivePiece.invoke(peer, 8 + BLOCK);
+        return peer.getNewPiece();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,97 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time from the last block of a piece arriving at the file
+ * manager until the piece is announced through the haves, that is hashed
+ * and written. Every iteration downloads a new piece with all but one of
+ * its blocks fed beforehand. With inOrder the missing block is the last
+ * one, so the piece is hashed as it arrives; otherwise the first block
+ * comes last and the whole piece is hashed on completion, as it was before
+ * the hashing was incremental.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class PieceCompletionBenchmark {
+    private static final int BLOCK = 16384;
+    private static final int PIECES = 26;
+    @Param({"262144", "4194304", "16777216"})
+    public int pieceLength;
+    @Param({"true", "false"})
+    public boolean inOrder;
+    private byte[] piece;
+    private DiskIo diskIo;
+    private File saveFile;
+    private FileManager fileManager;
+    private int index;
+    private Request last;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        piece = new byte[pieceLength];
+        new Random(42).nextBytes(piece);
+        diskIo = new DiskIo(1, Long.MAX_VALUE, Long.MAX_VALUE);
+        saveFile = File.createTempFile("benchmark", ".part");
+        saveFile.delete();
+        fileManager = new FileManager(new BenchmarkTorrent(PIECES, pieceLength, piece, diskIo, new PieceCache(0)), saveFile);
+        index = 0;
+    }
+
+    /**
+     * Feeds all blocks of the next piece but the one measured.
+     */
+    @Setup(Level.Iteration)
+    public void feed() {
+        int missing = inOrder ? pieceLength - BLOCK : 0;
+        for (int begin = 0; begin < pieceLength; begin += BLOCK) {
+            Request req = new Request(index, begin, Arrays.copyOfRange(piece, begin, begin + BLOCK));
+            if (begin == missing) {
+                last = req;
+            } else {
+                fileManager.receivedPiece(req);
+            }
+        }
+        index += 1;
+    }
+
+    @Benchmark
+    public int completePiece() {
+        fileManager.receivedPiece(last);
+        int[] haves;
+        while ((haves = fileManager.getHaves()).length == 0) {
+            Thread.yield();
+        }
+        return haves[0];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        fileManager.shutdown();
+        diskIo.shutdown(FileManager.SHUTDOWN_TIMEOUT);
+        saveFile.delete();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,101 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of FileManager.receivedPiece: every invocation
+ * feeds the blocks of a whole TOTAL byte torrent, in order, to a new file
+ * manager and waits until every piece is hashed and written. Dividing
+ * TOTAL by the time gives the bytes per second one peer manager can hand
+ * to the disk. With a bufferBytes of 0 no piece fits the memory budget, so
+ * every block is written to the file as it arrives and the pieces are
+ * checked from there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PieceDownloadBenchmark {
+    private static final int BLOCK = 16384;
+    private static final int TOTAL = 64*1024*1024;
+    @Param({"262144", "4194304"})
+    public int pieceLength;
+    @Param({"134217728", "0"})
+    public long bufferBytes;
+    private byte[] piece;
+    private Request[] blocks;
+    private DiskIo diskIo;
+    private File saveFile;
+    private FileManager fileManager;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        piece = new byte[pieceLength];
+        new Random(42).nextBytes(piece);
+        diskIo = new DiskIo(DiskIo.DEFAULT_THREADS, Long.MAX_VALUE, bufferBytes);
+        blocks = new Request[TOTAL/BLOCK];
+    }
+
+    /**
+     * Creates the file manager of an empty file and the blocks to feed it,
+     * which the file manager may keep.
+     */
+    @Setup(Level.Invocation)
+    public void start() throws IOException, NoSuchAlgorithmException {
+        saveFile = File.createTempFile("benchmark", ".part");
+        saveFile.delete();
+        fileManager = new FileManager(new BenchmarkTorrent(TOTAL/pieceLength, pieceLength, piece, diskIo,
+            new PieceCache(0)), saveFile);
+        for (int i = 0; i < blocks.length; i++) {
+            int begin = i*BLOCK%pieceLength;
+            blocks[i] = new Request(i*BLOCK/pieceLength, begin, Arrays.copyOfRange(piece, begin, begin + BLOCK));
+        }
+    }
+
+    @Benchmark
+    public boolean download() throws InterruptedException {
+        for (Request block : blocks) {
+            fileManager.receivedPiece(block);
+        }
+        //Waits for the bytes on disk rather than isComplete, which reads the bitfield as signed bytes
+        while (fileManager.getDownloaded() < TOTAL) {
+            if (fileManager.getFailedPieces().length > 0) {
+                throw new IllegalStateException("a piece failed the hash check");
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    @TearDown(Level.Invocation)
+    public void stop() throws InterruptedException {
+        fileManager.shutdown();
+        saveFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        diskIo.shutdown(FileManager.SHUTDOWN_TIMEOUT);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+package com.slezevicius.sembucha;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long the peer manager takes to pick the next piece to
+ * request from a peer in a swarm of the given size. Every peer has each
+ * piece with probability 1/2, so the pieces spread over many rareness
+ * levels. The seed has every piece and gets the first piece of the rarest
+ * level; the sparse peer has only 1% of the pieces, so most of the levels
+ * are searched before one of its pieces is found. Picking does not change
+ * the state of the manager, so every invocation sees the same swarm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PiecePickerBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int pieceCount;
+    @Param({"50"})
+    public int peerCount;
+    private PeerManager peerManager;
+    private Method pick;
+    private BenchmarkPeer seed;
+    private BenchmarkPeer sparse;
+
+    /**
+     * An unconnected, unchoking peer with a fixed bitfield. Having no
+     * address, it is only equal to itself.
+     */
+    private static class BenchmarkPeer extends Peer {
+        private final byte[] bitfield;
+        private final Set<Integer> empty = Collections.emptySet();
+
+        BenchmarkPeer(byte[] bitfield) {
+            this.bitfield = bitfield;
+        }
+
+        @Override
+        public synchronized byte[] getPeerBitfield() {
+            return bitfield;
+        }
+
+        @Override
+        public synchronized boolean getPeerChocking() {
+            return false;
+        }
+
+        @Override
+        public Set<Integer> getAllowedFast() {
+            return empty;
+        }
+
+        @Override
+        public Set<Integer> getSuggested() {
+            return new HashSet<>();
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+    }
+
+    private byte[] bitfield(Random rand, double share) {
+        byte[] bitfield = new byte[(pieceCount + 7)/8];
+        for (int i = 0; i < pieceCount; i++) {
+            if (rand.nextDouble() < share) {
+                bitfield[i/8] |= 128 >> (i%8);
+            }
+        }
+        return bitfield;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        peerManager = new PeerManager(new BenchmarkTorrent(pieceCount, 262144, null, null, null));
+        Method addRarenessLevel = PeerManager.class.getDeclaredMethod("addRarenessLevel");
+        addRarenessLevel.setAccessible(true);
+        Method updateBitfield = PeerManager.class.getDeclaredMethod("updateBitfield", Peer.class);
+        updateBitfield.setAccessible(true);
+        pick = PeerManager.class.getDeclaredMethod("getRandomRequestIndex", Peer.class);
+        pick.setAccessible(true);
+
+        Random rand = new Random(42);
+        List<BenchmarkPeer> swarm = new ArrayList<>();
+        for (int i = 0; i < peerCount; i++) {
+            swarm.add(new BenchmarkPeer(bitfield(rand, 0.5)));
+        }
+        seed = new BenchmarkPeer(bitfield(rand, 1));
+        sparse = new BenchmarkPeer(bitfield(rand, 0.01));
+        swarm.add(seed);
+        swarm.add(sparse);
+        for (BenchmarkPeer peer : swarm) {
+            addRarenessLevel.invoke(peerManager);
+            updateBitfield.invoke(peerManager, peer);
+        }
+    }
+
+    @Benchmark
+    public Object pickFromSeed() throws Exception {
+        return pick.invoke(peerManager, seed);
+    }
+
+    @Benchmark
+    public Object pickFromSparsePeer() throws Exception {
+        return pick.invoke(peerManager, sparse);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of FileManager.fillOutPiece serving 16 KiB
+ * blocks of a complete TOTAL byte torrent, walking through the pieces block
+ * by block the way a peer downloading them in order asks for them. With a
+ * cacheBytes of 0 every block is read from the file; otherwise the second
+ * block of a piece reads the whole piece ahead into the cache. The file
+ * fits the page cache, so this is the cost of the reads and copies rather
+ * than of the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PieceUploadBenchmark {
+    private static final int BLOCK = 16384;
+    private static final int TOTAL = 64*1024*1024;
+    @Param({"262144", "4194304"})
+    public int pieceLength;
+    @Param({"0", "33554432"})
+    public long cacheBytes;
+    private DiskIo diskIo;
+    private File saveFile;
+    private FileManager fileManager;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, NoSuchAlgorithmException {
+        byte[] piece = new byte[pieceLength];
+        new Random(42).nextBytes(piece);
+        saveFile = File.createTempFile("benchmark", ".part");
+        try (FileOutputStream out = new FileOutputStream(saveFile)) {
+            for (int i = 0; i < TOTAL/pieceLength; i++) {
+                out.write(piece);
+            }
+        }
+        diskIo = new DiskIo(DiskIo.DEFAULT_THREADS, Long.MAX_VALUE);
+        fileManager = new FileManager(new BenchmarkTorrent(TOTAL/pieceLength, pieceLength, piece, diskIo,
+            new PieceCache(cacheBytes)), saveFile);
+        if (fileManager.getDownloaded() != TOTAL) {
+            throw new IllegalStateException("The file manager did not recognize the pieces of the file");
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public byte[] fillOutBlock() {
+        Request req = new Request(next/pieceLength, next%pieceLength, BLOCK);
+        next = (next + BLOCK)%TOTAL;
+        fileManager.fillOutPiece(req);
+        return req.block;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        fileManager.shutdown();
+        diskIo.shutdown(FileManager.SHUTDOWN_TIMEOUT);
+        saveFile.delete();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,143 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares platform and virtual thread mode on many idle-ish blocking
+ * connections, the way peers use them. Every accepted loopback socket gets a
+ * worker thread that blocks on read and echoes what it receives; the main
+ * thread then pings every connection a number of times. Afterwards the
+ * resident memory, the number of OS threads and the context switches summed
+ * over all threads are read from /proc, so this only reports them on Linux.
+ *
+ * Run one JVM per mode so the numbers do not mix, for example
+ * java -cp target/benchmarks.jar com.slezevicius.sembucha.ThreadModeBenchmark virtual 10000 20
+ * The open file limit has to allow two descriptors per connection.
+ */
+public class ThreadModeBenchmark {
+    public static void main(String[] args) throws Exception {
+        Worker.Mode requested = args.length > 0 && args[0].equalsIgnoreCase("virtual")
+            ? Worker.Mode.VIRTUAL : Worker.Mode.PLATFORM;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        Worker.Mode mode = Worker.setMode(requested);
+        if (mode != requested) {
+            System.out.println("Virtual threads are not available on this JVM, using platform threads");
+        }
+
+        long[] before = contextSwitches();
+        ServerSocket server = new ServerSocket(0, connections, InetAddress.getLoopbackAddress());
+        List<Socket> clients = new ArrayList<>(connections);
+        List<Socket> accepted = new ArrayList<>(connections);
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            clients.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            final Socket sock = server.accept();
+            accepted.add(sock);
+            Worker.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    echo(sock);
+                }
+            }, "echo-" + i).start();
+        }
+        long connected = System.nanoTime();
+        byte[] ping = new byte[1];
+        for (int round = 0; round < rounds; round++) {
+            ping[0] = (byte) round;
+            for (Socket client : clients) {
+                client.getOutputStream().write(ping);
+            }
+            for (Socket client : clients) {
+                if (client.getInputStream().read() != (round & 0xFF)) {
+                    throw new IOException("Echo mismatch");
+                }
+            }
+        }
+        long finished = System.nanoTime();
+        long[] after = contextSwitches();
+        String status = readStatus(new File("/proc/self/status"));
+
+        System.out.printf("mode=%s connections=%d rounds=%d%n", mode, connections, rounds);
+        System.out.printf("connect: %.1f ms, ping rounds: %.1f ms%n",
+            (connected - start)/1e6, (finished - connected)/1e6);
+        System.out.printf("rss: %s, os threads: %s%n", field(status, "VmRSS"), field(status, "Threads"));
+        System.out.printf("voluntary ctxt switches: %d, nonvoluntary ctxt switches: %d%n",
+            after[0] - before[0], after[1] - before[1]);
+
+        for (Socket client : clients) {
+            client.close();
+        }
+        for (Socket sock : accepted) {
+            sock.close();
+        }
+        server.close();
+    }
+
+    private static void echo(Socket sock) {
+        try {
+            InputStream in = sock.getInputStream();
+            OutputStream out = sock.getOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        } catch (IOException e) {
+            //The socket was closed at the end of the run
+        }
+    }
+
+    /**
+     * Sums the context switches of every thread of this process.
+     * @return {voluntary, nonvoluntary}
+     */
+    private static long[] contextSwitches() {
+        long[] out = new long[2];
+        File[] tasks = new File("/proc/self/task").listFiles();
+        if (tasks == null) {
+            return out;
+        }
+        for (File task : tasks) {
+            String status = readStatus(new File(task, "status"));
+            out[0] += parseLong(field(status, "voluntary_ctxt_switches"));
+            out[1] += parseLong(field(status, "nonvoluntary_ctxt_switches"));
+        }
+        return out;
+    }
+
+    private static String readStatus(File file) {
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            //Threads may exit while they are listed and /proc is Linux only
+            return "";
+        }
+    }
+
+    private static String field(String status, String name) {
+        for (String line : status.split("\n")) {
+            if (line.startsWith(name + ":")) {
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return "n/a";
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
\ No newline at end of file
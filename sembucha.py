@@ -4,6 +4,10 @@ from shutil import copyfile
 import os
 import subprocess
 import argparse
+import json
+import urllib.error
+import urllib.parse
+import urllib.request
 
 sembucha_dir = Path(os.environ["HOME"])/Path(".local/share/Sembucha")
 
@@ -13,7 +17,51 @@ def run_client():
     except KeyboardInterrupt:
         pass
 
+def control_port():
+    port = 6880
+    settings = sembucha_dir/"sembucha.properties"
+    if settings.exists():
+        with open(settings, "r") as f:
+            for line in f:
+                key, _, value = line.partition("=")
+                if key.strip() == "control.port":
+                    port = int(value.strip())
+    return port
+
+def control(method, path, **query):
+    """Sends a request to the control endpoint of the running client.
+    Returns the decoded response or None if the client is not running."""
+    url = f"http://127.0.0.1:{control_port()}{path}"
+    if query:
+        url += "?" + urllib.parse.urlencode(query)
+    try:
+        token = (sembucha_dir/"control.token").read_text().strip()
+    except OSError:
+        return None
+    request = urllib.request.Request(url, method=method, headers={"X-Sembucha-Token": token})
+    try:
+        with urllib.request.urlopen(request, timeout=5) as response:
+            return json.load(response)
+    except urllib.error.HTTPError as e:
+        return json.load(e)
+    except urllib.error.URLError:
+        return None
+
+def quoted(name):
+    return urllib.parse.quote(name, safe="")
+
 def status():
+    response = control("GET", "/torrents")
+    if response is not None:
+        for tor in response["torrents"]:
+            length = tor["length"]
+            done = f"{100*tor['downloaded']/length:.1f}%" if length else "fetching metadata"
+            metrics = tor["metrics"]
+            print(f"{tor['file']} state={tor['state']} running={tor['running']} done={done} "
+                    f"peers={len(metrics.get('children', {}))} pieces={metrics['pieces_written']} "
+                    f"in={metrics['bytes_in']} out={metrics['bytes_out']}")
+        return
+    #The client is not running, fall back to counting the written pieces in the log
     with open(sembucha_dir/"torrents.properties", "r") as f:
         data = f.read().strip().split("\n")
     for prop in data:
@@ -47,10 +95,20 @@ def add_torrents(tors):
                 print(f"{tor} is already in the downloads list; ignoring")
                 continue
             downloads = Path(os.environ["HOME"])/"Downloads"
+            response = control("POST", f"/torrents/{quoted(tor)}", path=str(downloads))
+            if response is not None:
+                if "error" in response:
+                    print(f"{tor}: {response['error']}")
+                continue
             s = f"{tor}=run,{downloads}\n"
             f.write(s)
 
 def remove_torrents(tors):
+    if all(control("DELETE", f"/torrents/{quoted(tor)}") is not None for tor in tors):
+        for tor in tors:
+            p = sembucha_dir/f"Torrents/{tor}"
+            p.unlink()
+        return
     with open(sembucha_dir/"torrents.properties", "r") as f:
         data = f.read().strip().split("\n")
     with open(sembucha_dir/"torrents.properties", "w") as f:
@@ -65,6 +123,8 @@ def remove_torrents(tors):
         p.unlink()
 
 def start_torrents(tors):
+    if all(control("POST", f"/torrents/{quoted(tor)}/resume") is not None for tor in tors):
+        return
     with open(sembucha_dir/"torrents.properties", "r") as f:
         data = f.read().strip().split("\n")
     with open(sembucha_dir/"torrents.properties", "w") as f:
@@ -79,6 +139,8 @@ def start_torrents(tors):
                 f.write(f"{row}\n")
 
 def stop_torrents(tors):
+    if all(control("POST", f"/torrents/{quoted(tor)}/pause") is not None for tor in tors):
+        return
     with open(sembucha_dir/"torrents.properties", "r") as f:
         data = f.read().strip().split("\n")
     with open(sembucha_dir/"torrents.properties", "w") as f:
@@ -92,6 +154,13 @@ def stop_torrents(tors):
             else:
                 f.write(f"{row}\n")
 
+def prioritize_pieces(tor, ranges):
+    response = control("POST", f"/torrents/{quoted(tor)}/priority", ranges=ranges)
+    if response is None:
+        print("The client is not running")
+    elif "error" in response:
+        print(f"{tor}: {response['error']}")
+
 if __name__ == "__main__":
     parser = argparse.ArgumentParser()
     parser.add_argument("--run-client", help="Start running the client",
@@ -104,6 +173,8 @@ if __name__ == "__main__":
     parser.add_argument("-r", "--remove-torrents", nargs="*", metavar="torrent")
     parser.add_argument("-s", "--start-torrents", nargs="*", metavar="torrent")
     parser.add_argument("-p", "--stop-torrents", nargs="*", metavar="torrent")
+    parser.add_argument("--piece-priority", nargs=2, metavar=("torrent", "ranges"),
+            help="Sets the piece priorities of a running torrent, e.g. high=0-9:skip=500-599")
     args = parser.parse_args()
     arg_count = len([arg_name for arg_name, val in vars(args).items() if isinstance(val, list) or val is True])
     if arg_count == 1:
@@ -128,6 +199,8 @@ if __name__ == "__main__":
                 start_torrents(args.start_torrents)
             else:
                 print("The number of given torrent files should be more than 0")
+        elif args.piece_priority is not None:
+            prioritize_pieces(*args.piece_priority)
         elif args.stop_torrents is not None:
             if len(args.stop_torrents) > 0:
                 stop_torrents(args.stop_torrents)
@@ -1,5 +1,6 @@
 package com.slezevicius.sembucha;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.FileSystems;
@@ -9,10 +10,7 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Properties;
-import java.util.Set;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -46,10 +44,22 @@ public class App
         String torrentPath = sembuchaDir + "/Torrents";
         int port = 6881;
         String peerId = "-XX0100-000000000000";
+        Settings settings;
+        try {
+            settings = Settings.load(new File(sembuchaDir + "/sembucha.properties"));
+        } catch (IOException e) {
+            log.error("IOException while reading sembucha.properties", e);
+            return;
+        }
+        Worker.Mode threadMode = Worker.setMode(settings.getThreadMode());
+        if (threadMode != settings.getThreadMode()) {
+            log.warn("Virtual threads require Java 21, using platform threads");
+        }
+        log.info("Running peers on %s threads", threadMode.toString().toLowerCase());
         TorrentManager torrentManager;
         try {
             log.trace("Starting the torrent manager");
-            torrentManager = new TorrentManager(torrentPath, port, peerId);
+            torrentManager = new TorrentManager(torrentPath, port, peerId, settings);
         } catch (IOException e) {
             log.error("IOException while initializing torrent manager", e);
             return;
@@ -75,34 +85,26 @@ public class App
             log.error(e.getMessage(), e);
             keepRunning = false;
         }
-        Set<String> torrentFiles = new HashSet<>();
-        for (String file : torrentProperties.stringPropertyNames()) {
-            log.trace("App is updating file %s", file);
-            torrentFiles.add(file);
-            torrentManager.updateFile(file, torrentProperties.getProperty(file));
-        }
+        torrentManager.updateFiles(torrentProperties);
         while (keepRunning) {
             try {
                 watchKey = watchService.take();
+                boolean changed = false;
                 for (WatchEvent<?> event : watchKey.pollEvents()) {
-                }
-                torrentProperties = new Properties();
-                fis = new FileInputStream(sembuchaDir + "/torrents.properties");
-                torrentProperties.load(fis);
-                for (String file : torrentProperties.stringPropertyNames()) {
-                    log.trace("App is updating file %s", file);
-                    torrentManager.updateFile(file, torrentProperties.getProperty(file));
-                }
-                Iterator<String> it = torrentFiles.iterator();
-                while (it.hasNext()) {
-                    String file = it.next();
-                    if (!torrentProperties.stringPropertyNames().contains(file)) {
-                        log.trace("App is removing file %s", file);
-                        it.remove();
-                        torrentManager.removeFile(file);
+                    if (event.context() instanceof Path && ((Path) event.context()).toString().equals("torrents.properties")) {
+                        changed = true;
                     }
                 }
                 watchKey.reset();
+                if (!changed) {
+                    continue;
+                }
+                //Only the entries that differ from the applied ones are applied again
+                torrentProperties = new Properties();
+                try (FileInputStream in = new FileInputStream(sembuchaDir + "/torrents.properties")) {
+                    torrentProperties.load(in);
+                }
+                torrentManager.updateFiles(torrentProperties);
             } catch (InterruptedException | IOException e) {
                 log.error(e.getMessage(), e);
             }
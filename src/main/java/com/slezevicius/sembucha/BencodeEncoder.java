@@ -0,0 +1,191 @@
+package com.slezevicius.sembucha;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+/**
+ * Encodes a tree of maps, lists, strings and integers straight into an
+ * OutputStream. Nothing is boxed per byte and nested values are never
+ * encoded into intermediate buffers. Dictionary keys are always written in
+ * the canonical order, sorted as raw byte strings.
+ *
+ * Supported values: Map with String or byte[] keys, List, String (UTF-8),
+ * byte[], ByteBuffer (its remaining bytes) and integral Numbers.
+ */
+public class BencodeEncoder {
+    private static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int length = Math.min(a.length, b.length);
+            for (int i = 0; i < length; i++) {
+                int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+    private final OutputStream out;
+    private final byte[] digits = new byte[20];
+
+    BencodeEncoder(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Encodes obj into a new byte array.
+     * @param obj
+     * @return byte[]
+     * @throws DataFormatException: If the object cannot be encoded.
+     */
+    public static byte[] encode(Object obj) throws DataFormatException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            new BencodeEncoder(buffer).write(obj);
+        } catch (IOException e) {
+            //ByteArrayOutputStream never throws
+            throw new RuntimeException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Feeds the encoding of obj into the digest without materializing it.
+     * @param obj
+     * @param md
+     * @return the digest of the encoded object.
+     * @throws DataFormatException: If the object cannot be encoded.
+     */
+    public static byte[] digest(Object obj, final MessageDigest md) throws DataFormatException {
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+                md.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                md.update(b, off, len);
+            }
+        };
+        try {
+            new BencodeEncoder(sink).write(obj);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return md.digest();
+    }
+
+    /**
+     * Writes the encoding of obj to the underlying stream.
+     * @param obj
+     * @throws DataFormatException: If the object cannot be encoded.
+     * @throws IOException
+     */
+    public void write(Object obj) throws DataFormatException, IOException {
+        if (obj instanceof Map) {
+            writeDict((Map<?, ?>) obj);
+        } else if (obj instanceof List) {
+            out.write('l');
+            for (Object el : (List<?>) obj) {
+                write(el);
+            }
+            out.write('e');
+        } else if (obj instanceof byte[]) {
+            byte[] str = (byte[]) obj;
+            writeNumber(str.length);
+            out.write(':');
+            out.write(str);
+        } else if (obj instanceof String) {
+            write(((String) obj).getBytes(StandardCharsets.UTF_8));
+        } else if (obj instanceof ByteBuffer) {
+            ByteBuffer str = ((ByteBuffer) obj).duplicate();
+            writeNumber(str.remaining());
+            out.write(':');
+            if (str.hasArray()) {
+                out.write(str.array(), str.arrayOffset() + str.position(), str.remaining());
+            } else {
+                byte[] chunk = new byte[Math.min(8192, str.remaining())];
+                while (str.hasRemaining()) {
+                    int length = Math.min(chunk.length, str.remaining());
+                    str.get(chunk, 0, length);
+                    out.write(chunk, 0, length);
+                }
+            }
+        } else if (obj instanceof Long || obj instanceof Integer || obj instanceof Short || obj instanceof Byte) {
+            out.write('i');
+            writeNumber(((Number) obj).longValue());
+            out.write('e');
+        } else {
+            throw new DataFormatException("The supplied object cannot be encoded. Invalid structure.");
+        }
+    }
+
+    /**
+     * Writes a dictionary with its keys sorted as raw byte strings.
+     * @param map
+     * @throws DataFormatException
+     * @throws IOException
+     */
+    private void writeDict(Map<?, ?> map) throws DataFormatException, IOException {
+        List<Pair<byte[], Object>> entries = new ArrayList<>(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object key = entry.getKey();
+            if (key instanceof String) {
+                entries.add(new Pair<byte[], Object>(((String) key).getBytes(StandardCharsets.UTF_8), entry.getValue()));
+            } else if (key instanceof byte[]) {
+                entries.add(new Pair<byte[], Object>((byte[]) key, entry.getValue()));
+            } else {
+                throw new DataFormatException("Dictionary keys must be strings");
+            }
+        }
+        Collections.sort(entries, new Comparator<Pair<byte[], Object>>() {
+            @Override
+            public int compare(Pair<byte[], Object> a, Pair<byte[], Object> b) {
+                return KEY_ORDER.compare(a.getLeft(), b.getLeft());
+            }
+        });
+        out.write('d');
+        for (Pair<byte[], Object> entry : entries) {
+            write(entry.getLeft());
+            write(entry.getRight());
+        }
+        out.write('e');
+    }
+
+    /**
+     * Writes the decimal representation of num without allocating.
+     * @param num
+     * @throws IOException
+     */
+    private void writeNumber(long num) throws IOException {
+        if (num == 0) {
+            out.write('0');
+            return;
+        }
+        boolean negative = num < 0;
+        int i = digits.length;
+        //Works on negative values so that Long.MIN_VALUE does not overflow
+        long rest = negative ? num : -num;
+        while (rest != 0) {
+            i -= 1;
+            digits[i] = (byte) ('0' - (rest % 10));
+            rest /= 10;
+        }
+        if (negative) {
+            out.write('-');
+        }
+        out.write(digits, i, digits.length - i);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,332 @@
+package com.slezevicius.sembucha;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+/**
+ * A streaming pull parser for bencoded data. Instead of building a tree of
+ * maps and lists, the caller asks for one token at a time. Byte strings are
+ * exposed as slices of the underlying buffer and integers are parsed in place,
+ * so walking a document does not copy any of its content. The parser also
+ * remembers the exact byte range of the value stored under the top level
+ * "info" key, which is what the info hash of a metainfo file is computed over.
+ */
+public class BencodeParser {
+    public enum Token {
+        DICT,
+        LIST,
+        END,
+        INTEGER,
+        STRING,
+        EOF
+    }
+
+    public static final int MAX_DEPTH = 64;
+    private static final byte[] INFO_KEY = {'i', 'n', 'f', 'o'};
+    private final ByteBuffer buf;
+    private final int limit;
+    private int pos;
+    private int depth = 0;
+
+    /**
+     * dictStack[d] is true if the container at depth d is a dictionary and
+     * keyStack[d] is true if that dictionary expects a key next.
+     */
+    private final boolean[] dictStack = new boolean[MAX_DEPTH + 1];
+    private final boolean[] keyStack = new boolean[MAX_DEPTH + 1];
+    private int tokenStart;
+    private long longValue;
+    private int stringStart;
+    private int stringLength;
+    private boolean lastWasKey;
+    private boolean infoPending = false;
+    private int infoStart = -1;
+    private int infoEnd = -1;
+
+    /**
+     * Parses the remaining bytes of the buffer, from its position to its limit.
+     * The buffer's own position is never modified.
+     * @param buf
+     */
+    BencodeParser(ByteBuffer buf) {
+        this.buf = buf;
+        this.pos = buf.position();
+        this.limit = buf.limit();
+    }
+
+    /**
+     * Reads the next token.
+     * @return the type of the token that was read.
+     * @throws DataFormatException: If the input is not properly bencoded.
+     */
+    public Token next() throws DataFormatException {
+        if (pos >= limit) {
+            if (depth > 0) {
+                throw new DataFormatException("The bencoded input ended inside a container");
+            }
+            return Token.EOF;
+        }
+        tokenStart = pos;
+        byte c = buf.get(pos);
+        boolean isKey = depth > 0 && dictStack[depth] && keyStack[depth];
+        lastWasKey = false;
+        if (c == 'e') {
+            if (depth == 0) {
+                throw new DataFormatException("Unexpected end of container at " + pos);
+            }
+            if (!isKey && dictStack[depth]) {
+                throw new DataFormatException("Dictionary key without a value at " + pos);
+            }
+            pos += 1;
+            depth -= 1;
+            valueFinished();
+            return Token.END;
+        }
+        if (isKey && !(c >= '0' && c <= '9')) {
+            throw new DataFormatException("Dictionary keys must be byte strings at " + pos);
+        }
+        if (!isKey) {
+            valueStarted();
+        }
+        if (c == 'i') {
+            pos += 1;
+            longValue = parseLong('e');
+            valueFinished();
+            return Token.INTEGER;
+        } else if (c >= '0' && c <= '9') {
+            long length = parseLong(':');
+            if (length < 0 || length > limit - pos) {
+                throw new DataFormatException("Invalid byte string length " + length + " at " + tokenStart);
+            }
+            stringStart = pos;
+            stringLength = (int) length;
+            pos += stringLength;
+            if (isKey) {
+                lastWasKey = true;
+                keyStack[depth] = false;
+                if (depth == 1) {
+                    infoPending = stringEquals(INFO_KEY);
+                }
+            } else {
+                valueFinished();
+            }
+            return Token.STRING;
+        } else if (c == 'l' || c == 'd') {
+            if (depth == MAX_DEPTH) {
+                throw new DataFormatException("The bencoded input is nested deeper than " + MAX_DEPTH);
+            }
+            pos += 1;
+            depth += 1;
+            dictStack[depth] = c == 'd';
+            keyStack[depth] = true;
+            return c == 'd' ? Token.DICT : Token.LIST;
+        } else {
+            throw new DataFormatException("The bencoded string is not formatted properly at " + pos);
+        }
+    }
+
+    /**
+     * Looks at the type of the next token without reading it. Malformed
+     * input is only reported by next().
+     * @return Token
+     */
+    public Token peek() {
+        if (pos >= limit) {
+            return Token.EOF;
+        }
+        byte c = buf.get(pos);
+        if (c == 'e') {
+            return Token.END;
+        } else if (c == 'i') {
+            return Token.INTEGER;
+        } else if (c == 'l') {
+            return Token.LIST;
+        } else if (c == 'd') {
+            return Token.DICT;
+        }
+        return Token.STRING;
+    }
+
+    /**
+     * Skips the next value completely, including everything nested in it.
+     * @throws DataFormatException
+     */
+    public void skipValue() throws DataFormatException {
+        Token token = next();
+        if (token == Token.DICT || token == Token.LIST) {
+            int target = depth - 1;
+            while (depth > target) {
+                if (next() == Token.EOF) {
+                    throw new DataFormatException("The bencoded input ended inside a container");
+                }
+            }
+        } else if (token == Token.END || token == Token.EOF) {
+            throw new DataFormatException("Expected a value at " + tokenStart);
+        }
+    }
+
+    /**
+     * Called before a value at the current depth starts.
+     */
+    private void valueStarted() {
+        if (depth == 1 && infoPending) {
+            infoStart = tokenStart;
+        }
+    }
+
+    /**
+     * Called after a complete value at the current depth has been read.
+     */
+    private void valueFinished() {
+        if (depth == 1 && infoPending) {
+            infoEnd = pos;
+            infoPending = false;
+        }
+        if (depth > 0 && dictStack[depth]) {
+            keyStack[depth] = true;
+        }
+    }
+
+    /**
+     * Parses an optionally signed decimal number up to the terminator and
+     * consumes the terminator.
+     * @param terminator
+     * @return long
+     * @throws DataFormatException
+     */
+    private long parseLong(char terminator) throws DataFormatException {
+        boolean negative = false;
+        if (pos < limit && buf.get(pos) == '-') {
+            negative = true;
+            pos += 1;
+        }
+        int digits = 0;
+        long value = 0;
+        while (true) {
+            if (pos >= limit) {
+                throw new DataFormatException("The bencoded input ended inside a number");
+            }
+            byte c = buf.get(pos);
+            pos += 1;
+            if (c == terminator) {
+                break;
+            }
+            if (c < '0' || c > '9') {
+                throw new DataFormatException("Invalid digit in bencoded number at " + (pos - 1));
+            }
+            if (value > (Long.MAX_VALUE - (c - '0'))/10) {
+                throw new DataFormatException("Bencoded number overflows a long at " + tokenStart);
+            }
+            value = value*10 + (c - '0');
+            digits += 1;
+        }
+        if (digits == 0) {
+            throw new DataFormatException("Empty bencoded number at " + tokenStart);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the value of the last INTEGER token.
+     */
+    public long getLong() {
+        return longValue;
+    }
+
+    /**
+     * @return a read-only slice over the last STRING token. No bytes are copied.
+     */
+    public ByteBuffer getString() {
+        ByteBuffer slice = buf.duplicate();
+        slice.limit(stringStart + stringLength);
+        slice.position(stringStart);
+        return slice.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a copy of the last STRING token.
+     */
+    public byte[] getBytes() {
+        byte[] out = new byte[stringLength];
+        for (int i = 0; i < stringLength; i++) {
+            out[i] = buf.get(stringStart + i);
+        }
+        return out;
+    }
+
+    /**
+     * @return the last STRING token decoded as UTF-8.
+     */
+    public String getStringValue() {
+        return new String(getBytes(), StandardCharsets.UTF_8);
+    }
+
+    public int getStringLength() {
+        return stringLength;
+    }
+
+    /**
+     * @return the absolute offset of the last STRING token's content.
+     */
+    public int getStringStart() {
+        return stringStart;
+    }
+
+    /**
+     * Compares the last STRING token with the given bytes without copying it.
+     * @param other
+     * @return boolean
+     */
+    public boolean stringEquals(byte[] other) {
+        if (other.length != stringLength) {
+            return false;
+        }
+        for (int i = 0; i < stringLength; i++) {
+            if (buf.get(stringStart + i) != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return boolean indicating whether the last STRING token was a dictionary key.
+     */
+    public boolean isKey() {
+        return lastWasKey;
+    }
+
+    /**
+     * @return the absolute offset of the next unread byte.
+     */
+    public int position() {
+        return pos;
+    }
+
+    /**
+     * @return the absolute offset at which the last token started.
+     */
+    public int tokenStart() {
+        return tokenStart;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the absolute offset where the top level info value starts or -1.
+     */
+    public int getInfoStart() {
+        return infoStart;
+    }
+
+    /**
+     * @return the absolute offset just after the top level info value or -1
+     * if the value has not been read completely.
+     */
+    public int getInfoEnd() {
+        return infoEnd;
+    }
+}
\ No newline at end of file
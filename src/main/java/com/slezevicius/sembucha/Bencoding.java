@@ -1,11 +1,10 @@
 package com.slezevicius.sembucha;
 
 import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.zip.DataFormatException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 public class Bencoding {
     private int idx;
@@ -29,103 +28,65 @@ public class Bencoding {
         this.idx = 0;
     }
 
+    /**
+     * @return the offset right after the last decoded value.
+     */
+    public int position() {
+        return idx;
+    }
+
+    /**
+     * Decodes the next value of the input into a tree of LinkedHashMap,
+     * ArrayList, byte[] and Long objects. Prefer BencodeParser when the
+     * whole tree is not needed.
+     * @return Object
+     * @throws DataFormatException
+     */
     public Object decode() throws DataFormatException {
-        if (input[idx] == 'i') {
-            //Bencoded integers
-            idx += 1;
-            int a = idx;
-            while (input[idx] != 'e') {
-                idx += 1;
-            }
-            int b = idx;
-            idx += 1;
-            return Long.parseLong(new String(input, a, b - a, StandardCharsets.UTF_8));
-        } else if (Character.isDigit(input[idx])) {
-            //Bencoded byte strings
-            int a = idx;
-            while (input[idx] != ':') {
-                idx += 1;
-            }
-            int b = idx;
-            idx += 1;
-            int length = Integer.parseInt(new String(input, a, b - a, StandardCharsets.UTF_8));
-            byte[] str = Arrays.copyOfRange(input, idx, idx + length);
-            idx += length;
-            return str;
-        } else if (input[idx] == 'l') {
-            //Bencoded list
-            ArrayList<Object> list = new ArrayList<Object>();
-            idx += 1;
-            while (input[idx] != 'e') {
-                list.add(decode());
-            }
-            idx += 1;
-            return list;
-        } else if (input[idx] == 'd') {
-            //Bencoded dictionary
-            LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
-            idx += 1;
-            while (input[idx] != 'e') {
-                Object key = decode();
-                Object value = decode();
-                map.put(new String((byte[]) key), value);
-            }
-            return map;
-        } else {
-            throw new DataFormatException("The bencoded string is not formatted properly");
-        }
+        BencodeParser parser = new BencodeParser(ByteBuffer.wrap(input, idx, input.length - idx));
+        Object out = build(parser, parser.next());
+        idx = parser.position();
+        return out;
     }
 
-    public static ArrayList<Byte> encode(Object obj) throws DataFormatException {
-        ArrayList<Byte> out = new ArrayList<Byte>();
-        if (obj instanceof LinkedHashMap) {
-            //Dictionary
-            out.add((byte) 'd');
-            for (Map.Entry<String, Object> pair : ((LinkedHashMap<String, Object>) obj).entrySet()) {
-                out.addAll(encode(pair.getKey()));
-                out.addAll(encode(pair.getValue()));
-            }
-            out.add((byte) 'e');
-            return out;
-        } else if (obj instanceof ArrayList) {
-            out.add((byte) 'l');
-            for (Object el : (ArrayList<Object>)obj) {
-                out.addAll(encode(el));
-            }
-            out.add((byte) 'e');
-            return out;
-        } else if (obj instanceof String) {
-            String str = (String) obj;
-            String len = String.valueOf(str.length());
-            for (int i = 0; i < len.length(); i++) {
-                out.add((byte) len.charAt(i));
-            }
-            out.add((byte) ':');
-            for (int i = 0; i < str.length(); i++) {
-                out.add((byte) str.charAt(i));
-            }
-            return out;
-        } else if (obj instanceof byte[]) {
-            byte[] str = (byte[]) obj;
-            String len = String.valueOf(str.length);
-            for (int i = 0; i < len.length(); i++) {
-                out.add((byte) len.charAt(i));
-            }
-            out.add((byte) ':');
-            for (int i = 0; i < str.length; i++) {
-                out.add(str[i]);
-            }
-            return out;
-        } else if (obj instanceof Long) {
-            out.add((byte) 'i');
-            String num = String.valueOf((Long) obj);
-            for (int i = 0; i < num.length(); i++) {
-                out.add((byte) num.charAt(i));
-            }
-            out.add((byte) 'e');
-            return out;
-        } else {
-            throw new DataFormatException("The supplied object cannot be encoded. Invalid structure.");
+    /**
+     * Builds the tree of the value which starts with the given token.
+     * @param parser
+     * @param token
+     * @return Object
+     * @throws DataFormatException
+     */
+    private static Object build(BencodeParser parser, BencodeParser.Token token) throws DataFormatException {
+        switch (token) {
+            case INTEGER:
+                return parser.getLong();
+            case STRING:
+                return parser.getBytes();
+            case LIST:
+                ArrayList<Object> list = new ArrayList<Object>();
+                for (token = parser.next(); token != BencodeParser.Token.END; token = parser.next()) {
+                    list.add(build(parser, token));
+                }
+                return list;
+            case DICT:
+                LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+                while (parser.next() != BencodeParser.Token.END) {
+                    String key = new String(parser.getBytes());
+                    map.put(key, build(parser, parser.next()));
+                }
+                return map;
+            default:
+                throw new DataFormatException("The bencoded string is not formatted properly");
         }
     }
+
+    /**
+     * Encodes a tree of objects into its bencoded form.
+     * @param obj
+     * @return byte[]
+     * @throws DataFormatException: If the object cannot be encoded.
+     */
+    public static byte[] encode(Object obj) throws DataFormatException {
+        return BencodeEncoder.encode(obj);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,235 @@
+package com.slezevicius.sembucha;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The process wide budget of peer connections shared by all running
+ * torrents. Every member (a peer manager) reports a weight describing how
+ * much it needs connections and how many connections it could use at all.
+ * The slots are divided with the D'Hondt method: slots are handed out one by
+ * one to the member with the highest weight/(quota + 1) that can still use
+ * one, so the quotas are proportional to the weights while members that
+ * cannot use their share leave it to the others.
+ *
+ * Quotas are soft. A member may borrow free slots beyond its quota as long as
+ * they are not needed to fill the quota of another member. Members above
+ * their quota are asked to give connections back through getExcess once
+ * another member has unmet demand.
+ */
+public class ConnectionBudget {
+    /**
+     * A user of connection slots. Both methods are called with the budget
+     * locked, so they must not block or take locks of their own.
+     */
+    public interface Member {
+        /**
+         * @return how much the member needs connections, larger is more. Must be positive.
+         */
+        double getWeight();
+
+        /**
+         * @return the number of connections the member could use right now.
+         */
+        int getWanted();
+    }
+
+    private static class Share {
+        private int quota = 0;
+        private int used = 0;
+    }
+
+    static final long REBALANCE_INTERVAL = 5000;
+    private final int maxConnections;
+    private final int maxPerMember;
+    private final Map<Member, Share> shares = new HashMap<>();
+    private int used = 0;
+    private long lastRebalance = 0;
+    private Logger log;
+
+    /**
+     * @param maxConnections: the number of connections across all members.
+     * @param maxPerMember: the number of connections of a single member.
+     */
+    ConnectionBudget(int maxConnections, int maxPerMember) {
+        log = LogManager.getFormatterLogger(ConnectionBudget.class);
+        this.maxConnections = maxConnections;
+        this.maxPerMember = maxPerMember;
+    }
+
+    /**
+     * @param settings: connections.max and connections.perTorrent.
+     */
+    ConnectionBudget(Settings settings) {
+        this(settings.getInt("connections.max", 200), settings.getInt("connections.perTorrent", 50));
+    }
+
+    public synchronized void register(Member member) {
+        if (!shares.containsKey(member)) {
+            shares.put(member, new Share());
+            rebalance();
+        }
+    }
+
+    /**
+     * Removes the member and frees all of its slots.
+     * @param member
+     */
+    public synchronized void unregister(Member member) {
+        Share share = shares.remove(member);
+        if (share != null) {
+            used -= share.used;
+            rebalance();
+        }
+    }
+
+    /**
+     * Takes a slot for a new connection of the member.
+     * @param member
+     * @return boolean indicating whether the member may open the connection.
+     */
+    public synchronized boolean tryAcquire(Member member) {
+        Share share = shares.get(member);
+        if (share == null || used >= maxConnections || share.used >= maxPerMember) {
+            return false;
+        }
+        if (System.currentTimeMillis() - lastRebalance >= REBALANCE_INTERVAL) {
+            rebalance();
+        }
+        if (share.used >= share.quota && maxConnections - used <= reserved(member)) {
+            return false;
+        }
+        share.used += 1;
+        used += 1;
+        return true;
+    }
+
+    /**
+     * Gives back the slot of a closed connection.
+     * @param member
+     */
+    public synchronized void release(Member member) {
+        Share share = shares.get(member);
+        if (share != null && share.used > 0) {
+            share.used -= 1;
+            used -= 1;
+        }
+    }
+
+    /**
+     * @param member
+     * @return the number of connections the member should close to make
+     * room for members with unmet demand, 0 if none.
+     */
+    public synchronized int getExcess(Member member) {
+        if (System.currentTimeMillis() - lastRebalance >= REBALANCE_INTERVAL) {
+            rebalance();
+        }
+        Share share = shares.get(member);
+        if (share == null || share.used <= share.quota) {
+            return 0;
+        }
+        int free = maxConnections - used;
+        int unmet = reserved(member) - free;
+        if (unmet <= 0) {
+            return 0;
+        }
+        return Math.min(unmet, share.used - share.quota);
+    }
+
+    /**
+     * @param member
+     * @return the number of slots of the other members which they are
+     * entitled to and still want but have not taken yet.
+     */
+    private int reserved(Member member) {
+        int reserved = 0;
+        for (Map.Entry<Member, Share> entry : shares.entrySet()) {
+            if (entry.getKey() == member) {
+                continue;
+            }
+            Share share = entry.getValue();
+            int want = Math.min(share.quota, Math.max(entry.getKey().getWanted(), share.used));
+            reserved += Math.max(0, want - share.used);
+        }
+        return reserved;
+    }
+
+    /**
+     * Recomputes the quotas of all members from their weights.
+     */
+    synchronized void rebalance() {
+        lastRebalance = System.currentTimeMillis();
+        List<Member> members = new ArrayList<>(shares.keySet());
+        double[] weights = new double[members.size()];
+        int[] caps = new int[members.size()];
+        int[] quotas = new int[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            Member member = members.get(i);
+            weights[i] = Math.max(member.getWeight(), Double.MIN_VALUE);
+            caps[i] = Math.min(maxPerMember, Math.max(member.getWanted(), shares.get(member).used));
+        }
+        for (int slot = 0; slot < maxConnections; slot++) {
+            int best = -1;
+            double bestScore = 0;
+            for (int i = 0; i < quotas.length; i++) {
+                if (quotas[i] >= caps[i]) {
+                    continue;
+                }
+                double score = weights[i]/(quotas[i] + 1);
+                if (best == -1 || score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            if (best == -1) {
+                break;
+            }
+            quotas[best] += 1;
+        }
+        for (int i = 0; i < members.size(); i++) {
+            shares.get(members.get(i)).quota = quotas[i];
+        }
+        log.trace("%s rebalanced", toString());
+    }
+
+    /**
+     * @param member
+     * @return the current quota of the member.
+     */
+    public synchronized int getQuota(Member member) {
+        Share share = shares.get(member);
+        return share == null ? 0 : share.quota;
+    }
+
+    /**
+     * @param member
+     * @return the number of slots the member holds.
+     */
+    public synchronized int getUsed(Member member) {
+        Share share = shares.get(member);
+        return share == null ? 0 : share.used;
+    }
+
+    public synchronized int getUsed() {
+        return used;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxPerMember() {
+        return maxPerMember;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ConnectionBudget[used=%d, max=%d, members=%d]", used, maxConnections, shares.size());
+    }
+}
\ No newline at end of file
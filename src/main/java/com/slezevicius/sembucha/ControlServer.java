@@ -0,0 +1,438 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A local HTTP/JSON endpoint for inspecting and controlling the client.
+ * It only listens on the loopback address and handles one request at a
+ * time.
+ *
+ * GET /torrents lists the status of every torrent, GET /torrents/{name}
+ * the status of one and GET /metrics the metrics of the whole client.
+ * POST /torrents/{name}?path={dir} adds a torrent file that is already in
+ * the torrents directory, POST /torrents/{name}/pause and
+ * POST /torrents/{name}/resume stop and start it,
+ * POST /torrents/{name}/priority?ranges={ranges} replaces its piece
+ * priorities, written like in torrents.properties, e.g. high=0-9:skip=50,
+ * and DELETE /torrents/{name} removes it.
+ *
+ * Every response is a JSON object; errors have an "error" key.
+ *
+ * Every request has to carry the token of the client in the
+ * X-Sembucha-Token header. The token is written to a file only the user
+ * can read, so other users and web pages cannot send commands; a browser
+ * does not send such a header cross-origin without a preflight, which is
+ * never answered. Requests with an Origin header or a Host that is not a
+ * loopback address are refused as well, against DNS rebinding.
+ */
+public class ControlServer {
+    static final int DEFAULT_PORT = 6880;
+    static final String TOKEN_HEADER = "X-Sembucha-Token";
+
+    /**
+     * Carries out the commands on behalf of the server.
+     */
+    public interface Control {
+        List<Map<String, Object>> getStatus();
+        Map<String, Object> getMetrics();
+
+        /**
+         * @return boolean indicating whether the torrent was added, false if it already exists.
+         */
+        boolean add(String fileName, String downloadPath);
+
+        /**
+         * @return boolean indicating whether the torrent exists.
+         */
+        boolean setRunning(String fileName, boolean run);
+
+        /**
+         * @param ranges: the piece ranges, empty to clear them.
+         * @return boolean indicating whether the torrent exists.
+         */
+        boolean setPriorities(String fileName, String ranges);
+
+        /**
+         * @return boolean indicating whether the torrent existed.
+         */
+        boolean remove(String fileName);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Control control;
+    private final byte[] token;
+    private Logger log;
+
+    /**
+     * @param control
+     * @param port: the loopback port to listen on, 0 for any free one.
+     * @param token: the value requests have to carry in the X-Sembucha-Token header.
+     * @throws IOException: if the port cannot be bound.
+     */
+    ControlServer(Control control, int port, String token) throws IOException {
+        log = LogManager.getFormatterLogger(ControlServer.class);
+        this.control = control;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                return Worker.newThread(task, "ControlServer");
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        log.trace("%s initialized", toString());
+    }
+
+    public void start() {
+        server.start();
+        log.info("Control endpoint listening on http://%s:%d/", getAddress().getHostAddress(), getPort());
+    }
+
+    public void shutdown() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public InetAddress getAddress() {
+        return server.getAddress().getAddress();
+    }
+
+    /**
+     * Routes a request and writes the response.
+     * @param exchange
+     * @throws IOException
+     */
+    private void respond(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        Map<String, Object> body = new LinkedHashMap<>();
+        int code = 200;
+        try {
+            if ((code = check(exchange, body)) != 200) {
+                log.warn("%s refused %s %s: %s", toString(), method, exchange.getRequestURI().getPath(), body.get("error"));
+            } else if (path.length == 1 && path[0].equals("metrics") && method.equals("GET")) {
+                body = control.getMetrics();
+            } else if (path.length == 1 && path[0].equals("torrents") && method.equals("GET")) {
+                body.put("torrents", control.getStatus());
+            } else if (path.length == 2 && path[0].equals("torrents")) {
+                code = torrent(method, path[1], query, body);
+            } else if (path.length == 3 && path[0].equals("torrents") && method.equals("POST")) {
+                code = command(path[1], path[2], query, body);
+            } else {
+                code = 404;
+                body.put("error", "unknown endpoint");
+            }
+        } catch (IllegalArgumentException e) {
+            code = 400;
+            body.clear();
+            body.put("error", e.getMessage());
+        } catch (RuntimeException e) {
+            log.error(e.getMessage(), e);
+            code = 500;
+            body.clear();
+            body.put("error", String.valueOf(e.getMessage()));
+        }
+        log.debug("%s %s %s -> %d", toString(), method, exchange.getRequestURI().toString(), code);
+        byte[] response = toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    /**
+     * Checks that a request comes from a local client with the token.
+     * @return the status code, 200 if the request may be handled.
+     */
+    private int check(HttpExchange exchange, Map<String, Object> body) {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            body.put("error", "cross-origin requests are not allowed");
+            return 403;
+        }
+        if (!isLoopbackHost(exchange.getRequestHeaders().getFirst("Host"))) {
+            body.put("error", "the host is not a loopback address");
+            return 403;
+        }
+        String given = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        if (given == null || !MessageDigest.isEqual(token, given.getBytes(StandardCharsets.UTF_8))) {
+            body.put("error", "missing or wrong token");
+            return 401;
+        }
+        return 200;
+    }
+
+    /**
+     * Names are not resolved, so a name that rebinds to the loopback
+     * address does not pass.
+     * @param host: the value of a Host header, may be null.
+     * @return boolean indicating whether the host is localhost or a loopback address.
+     */
+    static boolean isLoopbackHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        String name = host.trim().toLowerCase();
+        if (name.startsWith("[")) {
+            int end = name.indexOf(']');
+            return end != -1 && name.substring(1, end).equals("::1");
+        }
+        int colon = name.indexOf(':');
+        if (colon != -1) {
+            name = name.substring(0, colon);
+        }
+        return name.equals("localhost") || name.matches("127(\\.\\d{1,3}){3}");
+    }
+
+    /**
+     * Writes a new random token to the file, replacing it in one move. Where
+     * the filesystem supports it, the file is only readable by the user.
+     * @param file
+     * @return the token.
+     * @throws IOException
+     */
+    static String writeToken(File file) throws IOException {
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : random) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        String token = sb.toString();
+        File temp = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(temp.toPath());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(temp.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(temp.toPath());
+            temp.setReadable(false, false);
+            temp.setReadable(true, true);
+        }
+        Files.write(temp.toPath(), token.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return token;
+    }
+
+    /**
+     * Handles GET, POST and DELETE on /torrents/{name}.
+     * @return the status code.
+     */
+    private int torrent(String method, String name, Map<String, String> query, Map<String, Object> body) {
+        switch (method) {
+            case "GET":
+                for (Map<String, Object> status : control.getStatus()) {
+                    if (name.equals(status.get("file"))) {
+                        body.putAll(status);
+                        return 200;
+                    }
+                }
+                break;
+            case "POST":
+                String path = query.get("path");
+                if (path == null || path.isEmpty()) {
+                    throw new IllegalArgumentException("the download path is missing");
+                }
+                if (!control.add(name, path)) {
+                    body.put("error", name + " already exists");
+                    return 409;
+                }
+                body.put("ok", true);
+                return 200;
+            case "DELETE":
+                if (control.remove(name)) {
+                    body.put("ok", true);
+                    return 200;
+                }
+                break;
+            default:
+                body.put("error", "method not allowed");
+                return 405;
+        }
+        body.put("error", "unknown torrent " + name);
+        return 404;
+    }
+
+    /**
+     * Handles POST /torrents/{name}/{command}.
+     * @return the status code.
+     */
+    private int command(String name, String command, Map<String, String> query, Map<String, Object> body) {
+        boolean found;
+        switch (command) {
+            case "pause":
+                found = control.setRunning(name, false);
+                break;
+            case "resume":
+                found = control.setRunning(name, true);
+                break;
+            case "priority":
+                String ranges = query.get("ranges");
+                found = control.setPriorities(name, ranges == null ? "" : ranges);
+                break;
+            default:
+                body.put("error", "unknown command " + command);
+                return 404;
+        }
+        if (!found) {
+            body.put("error", "unknown torrent " + name);
+            return 404;
+        }
+        body.put("ok", true);
+        return 200;
+    }
+
+    /**
+     * @param rawQuery: the query string of a request, may be null.
+     * @return the decoded parameters.
+     */
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        try {
+            for (String pair : rawQuery.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int eq = pair.indexOf('=');
+                if (eq == -1) {
+                    query.put(URLDecoder.decode(pair, "UTF-8"), "");
+                } else {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return query;
+    }
+
+    /**
+     * Serializes maps, lists, strings, numbers, booleans and null.
+     * @param value
+     * @return the JSON text of the value.
+     */
+    static String toJson(Object value) {
+        StringBuilder sb = new StringBuilder();
+        appendJson(sb, value);
+        return sb.toString();
+    }
+
+    private static void appendJson(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendString(sb, String.valueOf(entry.getKey()));
+                sb.append(':');
+                appendJson(sb, entry.getValue());
+            }
+            sb.append('}');
+        } else if (value instanceof Iterable) {
+            sb.append('[');
+            boolean first = true;
+            for (Object element : (Iterable<?>) value) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendJson(sb, element);
+            }
+            sb.append(']');
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            sb.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.valueOf(d));
+        } else if (value instanceof Number || value instanceof Boolean) {
+            sb.append(value.toString());
+        } else {
+            appendString(sb, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ControlServer[port=%d]", getPort());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,723 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Our node in the mainline DHT (BEP 5), a Kademlia network in which every
+ * node stores the peers of the torrents whose info hashes are close to its
+ * id. It answers the queries of other nodes and runs iterative lookups:
+ * the ALPHA closest nodes not yet asked are queried in parallel and every
+ * response brings closer nodes, until the K closest nodes have all
+ * answered. A get_peers lookup hands the peers it finds to a listener and
+ * then announces us to the closest nodes.
+ *
+ * Everything happens on the worker's own thread, so the routing table
+ * aside no state is shared. Other threads only enqueue tasks.
+ */
+public class Dht extends Worker {
+    /**
+     * Receives the peers found by a get_peers lookup, possibly in several calls.
+     */
+    public interface Listener {
+        void foundPeers(long[] peers);
+    }
+
+    static final int ALPHA = 3;
+    static final long QUERY_TIMEOUT = 5000;
+    static final long REFRESH_INTERVAL = 15*60*1000;
+
+    /**
+     * Tokens are derived from a secret that changes every TOKEN_INTERVAL
+     * milliseconds. Tokens of the current and the previous secret are accepted.
+     */
+    static final long TOKEN_INTERVAL = 5*60*1000;
+    static final long PEER_TTL = 30*60*1000;
+    static final int MAX_VALUES = 50;
+    private static final int MAX_TORRENTS = 2000;
+    private static final int MAX_PEERS_PER_TORRENT = 200;
+    private static final int MAX_PACKET = 4096;
+    private static final int TICK = 50;
+    private final DatagramSocket socket;
+    private final RoutingTable table;
+    private final byte[] id;
+    private final File stateFile;
+    private final List<String> routers;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, Query> pending = new HashMap<>();
+
+    /**
+     * Peers announced to us, info hash to {packed address to expiry time}.
+     */
+    private final Map<InfoHash, Map<Long, Long>> storage = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private byte[] secret = new byte[16];
+    private byte[] previousSecret = new byte[16];
+    private long secretChanged;
+    private long lastRefresh;
+    private int nextTransaction;
+    private volatile boolean keepRunning = true;
+    private Logger log;
+
+    /**
+     * A query waiting for its response.
+     */
+    private static class Query {
+        final String method;
+        final InetSocketAddress address;
+        final Lookup lookup;
+        final long sent;
+
+        Query(String method, InetSocketAddress address, Lookup lookup, long sent) {
+            this.method = method;
+            this.address = address;
+            this.lookup = lookup;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * An iterative find_node or get_peers lookup.
+     */
+    private class Lookup {
+        final byte[] target;
+        final boolean getPeers;
+        final int announcePort;
+        final Listener listener;
+        final List<RoutingTable.Node> nodes = new ArrayList<>();
+        final Set<InetSocketAddress> known = new HashSet<>();
+        final Set<InetSocketAddress> asked = new HashSet<>();
+        final Set<InetSocketAddress> failed = new HashSet<>();
+        final Map<InetSocketAddress, byte[]> tokens = new HashMap<>();
+        final Set<Long> found = new HashSet<>();
+        int inFlight = 0;
+        boolean finished = false;
+
+        Lookup(byte[] target, boolean getPeers, int announcePort, Listener listener) {
+            this.target = target;
+            this.getPeers = getPeers;
+            this.announcePort = announcePort;
+            this.listener = listener;
+        }
+
+        void add(RoutingTable.Node node) {
+            if (Arrays.equals(node.getId(), id) || !known.add(node.getAddress())) {
+                return;
+            }
+            nodes.add(node);
+            Collections.sort(nodes, new Comparator<RoutingTable.Node>() {
+                @Override
+                public int compare(RoutingTable.Node a, RoutingTable.Node b) {
+                    return RoutingTable.compareDistance(a.getId(), b.getId(), target);
+                }
+            });
+        }
+
+        /**
+         * Queries the closest nodes not asked yet, at most ALPHA at a time.
+         * Finishes once the K closest responsive nodes have all answered.
+         */
+        void step(long now) {
+            if (finished) {
+                return;
+            }
+            int considered = 0;
+            for (RoutingTable.Node node : nodes) {
+                if (considered == RoutingTable.K) {
+                    break;
+                }
+                InetSocketAddress address = node.getAddress();
+                if (failed.contains(address)) {
+                    continue;
+                }
+                considered += 1;
+                if (!asked.contains(address) && inFlight < ALPHA) {
+                    asked.add(address);
+                    inFlight += 1;
+                    sendQuery(getPeers ? Krpc.GET_PEERS : Krpc.FIND_NODE, address, target, this, now);
+                }
+            }
+            //Every unasked node among the K closest would have been queried
+            if (inFlight == 0) {
+                finish();
+            }
+        }
+
+        void finish() {
+            finished = true;
+            if (!getPeers || announcePort <= 0) {
+                return;
+            }
+            int announced = 0;
+            for (RoutingTable.Node node : nodes) {
+                if (announced == RoutingTable.K) {
+                    break;
+                }
+                byte[] token = tokens.get(node.getAddress());
+                if (token != null) {
+                    announced += 1;
+                    sendAnnounce(node.getAddress(), target, announcePort, token);
+                }
+            }
+            log.debug("%s announced %s to %d nodes", Dht.this.toString(), Metainfo.bytesToHex(target), announced);
+        }
+    }
+
+    /**
+     * @param bind: the local address of the UDP socket.
+     * @param table: the routing table, usually loaded from stateFile.
+     * @param stateFile: where the routing table is saved, may be null.
+     * @param routers: "host:port" of the nodes to bootstrap from when the table is empty.
+     * @throws SocketException: If the socket cannot be bound.
+     */
+    Dht(InetSocketAddress bind, RoutingTable table, File stateFile, List<String> routers) throws SocketException {
+        log = LogManager.getFormatterLogger(Dht.class);
+        this.socket = new DatagramSocket(bind);
+        this.table = table;
+        this.id = table.getId();
+        this.stateFile = stateFile;
+        this.routers = routers;
+        random.nextBytes(secret);
+        random.nextBytes(previousSecret);
+        nextTransaction = random.nextInt(0x10000);
+        log.trace("%s initialized", toString());
+    }
+
+    /**
+     * Opens the node with the routing table saved in stateFile, or with a
+     * new random id if there is none.
+     * @param port
+     * @param stateFile
+     * @param routers
+     * @return Dht
+     * @throws SocketException: If the socket cannot be bound.
+     */
+    public static Dht open(int port, File stateFile, List<String> routers) throws SocketException {
+        Logger log = LogManager.getFormatterLogger(Dht.class);
+        RoutingTable table = null;
+        if (stateFile.isFile()) {
+            try {
+                table = RoutingTable.load(stateFile, System.currentTimeMillis());
+                log.info("Loaded %d DHT nodes from %s", table.size(), stateFile.getPath());
+            } catch (IOException | DataFormatException e) {
+                log.warn("Could not load the DHT routing table: %s", e.getMessage());
+            }
+        }
+        if (table == null) {
+            table = RoutingTable.random();
+        }
+        return new Dht(new InetSocketAddress(port), table, stateFile, routers);
+    }
+
+    /**
+     * The main loop: runs the enqueued tasks, handles incoming packets and
+     * does the periodic maintenance.
+     */
+    @Override
+    public void run() {
+        log.trace("%s in the main loop", toString());
+        byte[] buf = new byte[MAX_PACKET];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        try {
+            socket.setSoTimeout(TICK);
+        } catch (SocketException e) {
+            log.error(e.getMessage(), e);
+            return;
+        }
+        secretChanged = System.currentTimeMillis();
+        lastRefresh = secretChanged;
+        if (table.size() < RoutingTable.K) {
+            bootstrap(secretChanged);
+        } else {
+            lookup(id, false, 0, null, secretChanged);
+        }
+        while (keepRunning) {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+                handlePacket(packet, System.currentTimeMillis());
+            } catch (SocketTimeoutException e) {
+                //Nothing received during this tick
+            } catch (IOException e) {
+                if (keepRunning) {
+                    log.error(e.getMessage(), e);
+                }
+                break;
+            }
+            maintain(System.currentTimeMillis());
+        }
+        save();
+        socket.close();
+        log.trace("%s shut down", toString());
+    }
+
+    /**
+     * Starts a get_peers lookup for the info hash. Found peers are passed to
+     * the listener on the DHT thread. If port is positive, we are announced
+     * as a peer on that port at the end of the lookup.
+     * @param infoHash
+     * @param port
+     * @param listener
+     */
+    public void getPeers(final byte[] infoHash, final int port, final Listener listener) {
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                lookup(infoHash, true, port, listener, System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Pings a node, for example one announced through a port message. It is
+     * added to the routing table if it responds.
+     * @param address
+     */
+    public void addNode(final InetSocketAddress address) {
+        tasks.add(new Runnable() {
+            @Override
+            public void run() {
+                sendQuery(Krpc.PING, address, null, null, System.currentTimeMillis());
+            }
+        });
+    }
+
+    /**
+     * Stops the node. The routing table is saved by the DHT thread.
+     */
+    public void shutdown() {
+        keepRunning = false;
+    }
+
+    /**
+     * @return the UDP port of the node.
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public RoutingTable getRoutingTable() {
+        return table;
+    }
+
+    private void lookup(byte[] target, boolean getPeers, int announcePort, Listener listener, long now) {
+        Lookup lookup = new Lookup(target, getPeers, announcePort, listener);
+        for (RoutingTable.Node node : table.closest(target, RoutingTable.K*2)) {
+            lookup.add(node);
+        }
+        lookup.step(now);
+    }
+
+    /**
+     * Runs a lookup of our own id which fills the routing table. The routers
+     * are queried as part of it, their answers seed the lookup.
+     * @param now
+     */
+    private void bootstrap(long now) {
+        Lookup lookup = new Lookup(id, false, 0, null);
+        for (RoutingTable.Node node : table.closest(id, RoutingTable.K)) {
+            lookup.add(node);
+        }
+        for (String router : routers) {
+            int colon = router.lastIndexOf(':');
+            if (colon == -1) {
+                log.warn("Invalid DHT router %s, expected host:port", router);
+                continue;
+            }
+            try {
+                int port = Integer.parseInt(router.substring(colon + 1).trim());
+                InetSocketAddress address = new InetSocketAddress(router.substring(0, colon).trim(), port);
+                if (address.isUnresolved()) {
+                    log.warn("Could not resolve the DHT router %s", router);
+                    continue;
+                }
+                lookup.asked.add(address);
+                lookup.inFlight += 1;
+                sendQuery(Krpc.FIND_NODE, address, id, lookup, now);
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid DHT router %s", router);
+            }
+        }
+        lookup.step(now);
+    }
+
+    /**
+     * Expires unanswered queries and announced peers, changes the token
+     * secret and periodically refreshes and saves the routing table.
+     * @param now
+     */
+    private void maintain(long now) {
+        List<Query> expired = new ArrayList<>();
+        for (Iterator<Query> it = pending.values().iterator(); it.hasNext();) {
+            Query query = it.next();
+            if (now - query.sent > QUERY_TIMEOUT) {
+                it.remove();
+                expired.add(query);
+            }
+        }
+        for (Query query : expired) {
+            log.debug("%s %s query to %s timed out", toString(), query.method, query.address.toString());
+            table.failed(query.address);
+            if (query.lookup != null) {
+                query.lookup.inFlight -= 1;
+                query.lookup.failed.add(query.address);
+                query.lookup.step(now);
+            }
+        }
+        if (now - secretChanged > TOKEN_INTERVAL) {
+            previousSecret = secret;
+            secret = new byte[16];
+            random.nextBytes(secret);
+            secretChanged = now;
+            expirePeers(now);
+        }
+        if (now - lastRefresh > REFRESH_INTERVAL) {
+            lastRefresh = now;
+            for (RoutingTable.Node node : table.getQuestionable(now)) {
+                sendQuery(Krpc.PING, node.getAddress(), null, null, now);
+            }
+            if (table.size() < RoutingTable.K) {
+                bootstrap(now);
+            } else {
+                lookup(id, false, 0, null, now);
+            }
+            save();
+        }
+    }
+
+    private void expirePeers(long now) {
+        for (Iterator<Map<Long, Long>> it = storage.values().iterator(); it.hasNext();) {
+            Map<Long, Long> peers = it.next();
+            for (Iterator<Long> expiries = peers.values().iterator(); expiries.hasNext();) {
+                if (expiries.next() < now) {
+                    expiries.remove();
+                }
+            }
+            if (peers.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    private void save() {
+        if (stateFile == null) {
+            return;
+        }
+        try {
+            table.save(stateFile);
+        } catch (IOException e) {
+            log.warn("Could not save the DHT routing table: %s", e.getMessage());
+        }
+    }
+
+    private void handlePacket(DatagramPacket packet, long now) {
+        InetSocketAddress address = (InetSocketAddress) packet.getSocketAddress();
+        Map<String, Object> message;
+        try {
+            message = Krpc.decode(packet.getData(), packet.getLength());
+        } catch (DataFormatException e) {
+            log.debug("%s received a malformed packet from %s", toString(), address.toString());
+            return;
+        }
+        try {
+            String type = Krpc.getString(message, "y");
+            if (type.equals("q")) {
+                handleQuery(message, address, now);
+            } else if (type.equals("r") || type.equals("e")) {
+                handleResponse(message, type.equals("r"), address, now);
+            }
+        } catch (DataFormatException e) {
+            log.debug("%s received an invalid message from %s: %s", toString(), address.toString(), e.getMessage());
+        }
+    }
+
+    private void handleQuery(Map<String, Object> message, InetSocketAddress address, long now) throws DataFormatException {
+        byte[] transaction = Krpc.getBytes(message, "t");
+        String method = Krpc.getString(message, "q");
+        Map<String, Object> args;
+        byte[] sender;
+        try {
+            args = Krpc.getDict(message, "a");
+            sender = Krpc.getId(args, "id");
+        } catch (DataFormatException e) {
+            send(Krpc.error(transaction, Krpc.ERROR_PROTOCOL, e.getMessage()), address);
+            return;
+        }
+        table.seen(sender, address, now);
+        LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+        values.put("id", id);
+        try {
+            switch (method) {
+                case Krpc.PING:
+                    break;
+                case Krpc.FIND_NODE:
+                    values.put("nodes", Krpc.encodeNodes(table.closest(Krpc.getId(args, "target"), RoutingTable.K)));
+                    break;
+                case Krpc.GET_PEERS:
+                    byte[] infoHash = Krpc.getId(args, "info_hash");
+                    values.put("token", token(address, secret));
+                    values.put("nodes", Krpc.encodeNodes(table.closest(infoHash, RoutingTable.K)));
+                    List<byte[]> peers = storedPeers(new InfoHash(infoHash), now);
+                    if (!peers.isEmpty()) {
+                        values.put("values", peers);
+                    }
+                    break;
+                case Krpc.ANNOUNCE_PEER:
+                    if (!announced(args, address, now)) {
+                        send(Krpc.error(transaction, Krpc.ERROR_PROTOCOL, "Bad token"), address);
+                        return;
+                    }
+                    break;
+                default:
+                    send(Krpc.error(transaction, Krpc.ERROR_METHOD, "Method Unknown"), address);
+                    return;
+            }
+        } catch (DataFormatException e) {
+            send(Krpc.error(transaction, Krpc.ERROR_PROTOCOL, e.getMessage()), address);
+            return;
+        }
+        send(Krpc.response(transaction, values), address);
+    }
+
+    /**
+     * Stores the announced peer if the token is valid.
+     * @param args
+     * @param address
+     * @param now
+     * @return boolean indicating whether the token was valid.
+     * @throws DataFormatException
+     */
+    private boolean announced(Map<String, Object> args, InetSocketAddress address, long now) throws DataFormatException {
+        byte[] infoHash = Krpc.getId(args, "info_hash");
+        byte[] token = Krpc.getBytes(args, "token");
+        if (!Arrays.equals(token, token(address, secret)) && !Arrays.equals(token, token(address, previousSecret))) {
+            return false;
+        }
+        int port = address.getPort();
+        Object implied = args.get("implied_port");
+        if (!(implied instanceof Long) || (Long) implied == 0) {
+            Object announcedPort = args.get("port");
+            if (!(announcedPort instanceof Long) || (Long) announcedPort <= 0 || (Long) announcedPort > 65535) {
+                throw new DataFormatException("Invalid port");
+            }
+            port = (int) (long) (Long) announcedPort;
+        }
+        long key = PeerPool.pack(address.getAddress(), port);
+        if (key == -1) {
+            return true;
+        }
+        InfoHash hash = new InfoHash(infoHash);
+        Map<Long, Long> peers = storage.get(hash);
+        if (peers == null) {
+            if (storage.size() >= MAX_TORRENTS) {
+                return true;
+            }
+            peers = new LinkedHashMap<>();
+            storage.put(hash, peers);
+        }
+        if (peers.size() >= MAX_PEERS_PER_TORRENT && !peers.containsKey(key)) {
+            return true;
+        }
+        peers.put(key, now + PEER_TTL);
+        return true;
+    }
+
+    private List<byte[]> storedPeers(InfoHash infoHash, long now) {
+        List<byte[]> values = new ArrayList<>();
+        Map<Long, Long> peers = storage.get(infoHash);
+        if (peers == null) {
+            return values;
+        }
+        List<Long> keys = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : peers.entrySet()) {
+            if (entry.getValue() >= now) {
+                keys.add(entry.getKey());
+            }
+        }
+        Collections.shuffle(keys, random);
+        for (Long key : keys.subList(0, Math.min(MAX_VALUES, keys.size()))) {
+            values.add(PeerPool.encodeCompact(Collections.singletonList(key)));
+        }
+        return values;
+    }
+
+    private void handleResponse(Map<String, Object> message, boolean success, InetSocketAddress address, long now) throws DataFormatException {
+        byte[] transaction = Krpc.getBytes(message, "t");
+        if (transaction.length != 2) {
+            return;
+        }
+        int key = (transaction[0] & 0xFF) << 8 | (transaction[1] & 0xFF);
+        Query query = pending.get(key);
+        if (query == null || !query.address.equals(address)) {
+            return;
+        }
+        pending.remove(key);
+        Lookup lookup = query.lookup;
+        if (lookup != null) {
+            lookup.inFlight -= 1;
+        }
+        Map<String, Object> values = null;
+        byte[] sender = null;
+        List<RoutingTable.Node> nodes = new ArrayList<>();
+        if (success) {
+            try {
+                values = Krpc.getDict(message, "r");
+                sender = Krpc.getId(values, "id");
+                //A malformed node list fails the query, so that the lookup still moves on
+                if (values.get("nodes") instanceof byte[]) {
+                    nodes = Krpc.decodeNodes((byte[]) values.get("nodes"), now);
+                }
+            } catch (DataFormatException e) {
+                success = false;
+            }
+        }
+        if (!success) {
+            table.failed(address);
+            if (lookup != null) {
+                lookup.failed.add(address);
+                lookup.step(now);
+            }
+            return;
+        }
+        table.seen(sender, address, now);
+        if (lookup == null) {
+            return;
+        }
+        for (RoutingTable.Node node : nodes) {
+            lookup.add(node);
+        }
+        if (lookup.getPeers) {
+            if (values.get("token") instanceof byte[]) {
+                lookup.tokens.put(address, (byte[]) values.get("token"));
+            }
+            foundPeers(lookup, values.get("values"));
+        }
+        lookup.step(now);
+    }
+
+    private void foundPeers(Lookup lookup, Object values) {
+        if (!(values instanceof List) || lookup.listener == null) {
+            return;
+        }
+        List<Long> peers = new ArrayList<>();
+        for (Object value : (List<?>) values) {
+            if (value instanceof byte[] && ((byte[]) value).length == 6) {
+                try {
+                    long peer = PeerPool.decodeCompact((byte[]) value)[0];
+                    if (lookup.found.add(peer)) {
+                        peers.add(peer);
+                    }
+                } catch (DataFormatException e) {
+                    //The length was checked
+                }
+            }
+        }
+        if (peers.isEmpty()) {
+            return;
+        }
+        long[] out = new long[peers.size()];
+        for (int i = 0; i < out.length; i++) {
+            out[i] = peers.get(i);
+        }
+        lookup.listener.foundPeers(out);
+    }
+
+    private void sendQuery(String method, InetSocketAddress address, byte[] target, Lookup lookup, long now) {
+        LinkedHashMap<String, Object> args = new LinkedHashMap<>();
+        args.put("id", id);
+        if (method.equals(Krpc.FIND_NODE)) {
+            args.put("target", target);
+        } else if (method.equals(Krpc.GET_PEERS)) {
+            args.put("info_hash", target);
+        }
+        int key = nextTransaction();
+        byte[] transaction = {(byte) (key >> 8), (byte) key};
+        try {
+            send(Krpc.query(transaction, method, args), address);
+            pending.put(key, new Query(method, address, lookup, now));
+        } catch (DataFormatException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private void sendAnnounce(InetSocketAddress address, byte[] infoHash, int port, byte[] token) {
+        LinkedHashMap<String, Object> args = new LinkedHashMap<>();
+        args.put("id", id);
+        args.put("info_hash", infoHash);
+        args.put("port", (long) port);
+        args.put("token", token);
+        int key = nextTransaction();
+        byte[] transaction = {(byte) (key >> 8), (byte) key};
+        try {
+            send(Krpc.query(transaction, Krpc.ANNOUNCE_PEER, args), address);
+            pending.put(key, new Query(Krpc.ANNOUNCE_PEER, address, null, System.currentTimeMillis()));
+        } catch (DataFormatException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    private int nextTransaction() {
+        do {
+            nextTransaction = (nextTransaction + 1) & 0xFFFF;
+        } while (pending.containsKey(nextTransaction));
+        return nextTransaction;
+    }
+
+    private void send(byte[] message, InetSocketAddress address) {
+        try {
+            socket.send(new DatagramPacket(message, message.length, address));
+        } catch (IOException e) {
+            log.debug("%s could not send to %s: %s", toString(), address.toString(), e.getMessage());
+        }
+    }
+
+    /**
+     * @param address
+     * @param key
+     * @return the token for announcing to us from address.
+     */
+    private byte[] token(InetSocketAddress address, byte[] key) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(key);
+            md.update(address.getAddress().getAddress());
+            return Arrays.copyOf(md.digest(), 8);
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform supports SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Dht[port=%d]", socket.getLocalPort());
+    }
+}
\ No newline at end of file
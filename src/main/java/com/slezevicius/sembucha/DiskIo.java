@@ -0,0 +1,196 @@
+package com.slezevicius.sembucha;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The disk subsystem shared by all torrents. Complete pieces are hashed and
+ * written by a pool of workers instead of on the threads of the peer
+ * managers, so a slow disk does not hold up requesting from peers. The
+ * submitted work is bounded in bytes rather than in tasks: once more than
+ * maxQueuedBytes of pieces wait for the disk, it is backlogged and the peer
+ * managers stop issuing requests until the workers catch up. Submitting
+ * itself never blocks.
+ *
+ * The pieces still being downloaded share a memory budget as well. A piece
+ * that starts once maxBufferedBytes of pieces are held in memory is not
+ * buffered, its blocks are written to the file as they arrive.
+ *
+ * The allocation mode decides how the file of a torrent is created when
+ * the torrent starts: left to grow with the pieces written at random
+ * offsets, set to its full length as a sparse file, or fully written with
+ * zeros so the filesystem can lay it out contiguously up front.
+ */
+public class DiskIo {
+    public enum Allocation {
+        NONE,
+        SPARSE,
+        FULL
+    }
+
+    static final int DEFAULT_THREADS = 2;
+    static final long DEFAULT_QUEUE_BYTES = 64*1024*1024;
+    static final long DEFAULT_BUFFER_BYTES = 128*1024*1024;
+    private final ThreadPoolExecutor workers;
+    private final long maxQueuedBytes;
+    private final long maxBufferedBytes;
+    private final Allocation allocation;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private Logger log;
+
+    /**
+     * @param threads: the number of disk workers.
+     * @param maxQueuedBytes: the amount of queued piece data above which the disk is backlogged.
+     */
+    DiskIo(int threads, long maxQueuedBytes) {
+        this(threads, maxQueuedBytes, DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * @param threads: the number of disk workers.
+     * @param maxQueuedBytes: the amount of queued piece data above which the disk is backlogged.
+     * @param maxBufferedBytes: the memory budget of the pieces being downloaded.
+     */
+    DiskIo(int threads, long maxQueuedBytes, long maxBufferedBytes) {
+        this(threads, maxQueuedBytes, maxBufferedBytes, Allocation.SPARSE);
+    }
+
+    /**
+     * @param threads: the number of disk workers.
+     * @param maxQueuedBytes: the amount of queued piece data above which the disk is backlogged.
+     * @param maxBufferedBytes: the memory budget of the pieces being downloaded.
+     * @param allocation: how the files of the torrents are created.
+     */
+    DiskIo(int threads, long maxQueuedBytes, long maxBufferedBytes, Allocation allocation) {
+        log = LogManager.getFormatterLogger(DiskIo.class);
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.allocation = allocation;
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                return Worker.newThread(task, "DiskIo-" + count.incrementAndGet());
+            }
+        };
+        workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), factory);
+        workers.allowCoreThreadTimeOut(true);
+        log.trace("%s initialized", toString());
+    }
+
+    /**
+     * Reads disk.threads, disk.queueBytes, disk.bufferBytes and disk.allocation from the settings.
+     * @param settings
+     */
+    DiskIo(Settings settings) {
+        this(Math.max(1, settings.getInt("disk.threads", DEFAULT_THREADS)),
+            Math.max(1, settings.getLong("disk.queueBytes", DEFAULT_QUEUE_BYTES)),
+            Math.max(0, settings.getLong("disk.bufferBytes", DEFAULT_BUFFER_BYTES)),
+            settings.getAllocation());
+    }
+
+    /**
+     * Queues a task for the disk workers.
+     * @param task
+     */
+    public void submit(Runnable task) {
+        workers.execute(task);
+    }
+
+    /**
+     * Accounts for piece data that was handed to the disk workers.
+     * @param bytes
+     */
+    public void queued(long bytes) {
+        queuedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Accounts for piece data that was written or discarded.
+     * @param bytes
+     */
+    public void done(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * @return boolean indicating whether no new requests should be issued until the disk catches up.
+     */
+    public boolean isBacklogged() {
+        return queuedBytes.get() >= maxQueuedBytes;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Takes memory for a piece being downloaded out of the budget.
+     * @param bytes
+     * @return boolean indicating whether the budget allowed it.
+     */
+    public boolean reserve(long bytes) {
+        while (true) {
+            long buffered = bufferedBytes.get();
+            if (buffered + bytes > maxBufferedBytes) {
+                return false;
+            }
+            if (bufferedBytes.compareAndSet(buffered, buffered + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives memory that was reserved back to the budget.
+     * @param bytes
+     */
+    public void release(long bytes) {
+        bufferedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * @param pieceSize
+     * @return boolean indicating whether less than pieceSize is left in the budget.
+     */
+    public boolean isBufferFull(long pieceSize) {
+        return bufferedBytes.get() + pieceSize > maxBufferedBytes;
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    public Allocation getAllocation() {
+        return allocation;
+    }
+
+    /**
+     * Lets the queued tasks finish and stops the workers.
+     * @param millis: how long to wait for the queued tasks.
+     * @throws InterruptedException
+     */
+    public void shutdown(long millis) throws InterruptedException {
+        workers.shutdown();
+        if (!workers.awaitTermination(millis, TimeUnit.MILLISECONDS)) {
+            log.warn("%s did not finish %d queued tasks", toString(), workers.getQueue().size());
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DiskIo[queuedBytes=%d, maxQueuedBytes=%d, bufferedBytes=%d, maxBufferedBytes=%d, allocation=%s]",
+            queuedBytes.get(), maxQueuedBytes, bufferedBytes.get(), maxBufferedBytes, allocation);
+    }
+}
\ No newline at end of file
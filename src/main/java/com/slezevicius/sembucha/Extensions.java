@@ -0,0 +1,230 @@
+package com.slezevicius.sembucha;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+/**
+ * Encoding and decoding of BEP 10 extension protocol messages. Every
+ * extension message is sent as message id 20 followed by an extended
+ * message id: 0 is the extension handshake, which tells the other side
+ * under which ids we want to receive the extensions we support, the other
+ * ids are the ones the receiver announced in its handshake.
+ */
+public class Extensions {
+    public static final byte MESSAGE_ID = 20;
+    public static final byte HANDSHAKE = 0;
+
+    /**
+     * The extended message ids under which we receive the supported extensions.
+     */
+    public static final byte UT_PEX = 1;
+    public static final String UT_PEX_NAME = "ut_pex";
+    public static final byte UT_METADATA = 2;
+    public static final String UT_METADATA_NAME = "ut_metadata";
+    public static final String VERSION = "Sembucha 0.1";
+
+    /**
+     * BEP 11 limits the peers in a single ut_pex message to 50 added and 50 dropped.
+     */
+    public static final int MAX_PEX_PEERS = 50;
+
+    /**
+     * The msg_type values of ut_metadata (BEP 9) messages.
+     */
+    public static final int METADATA_REQUEST = 0;
+    public static final int METADATA_DATA = 1;
+    public static final int METADATA_REJECT = 2;
+
+    /**
+     * The info dictionary is exchanged in pieces of METADATA_PIECE_LENGTH
+     * bytes, only the last one may be shorter. Announced sizes above
+     * MAX_METADATA_SIZE are not believed.
+     */
+    public static final int METADATA_PIECE_LENGTH = 16*1024;
+    public static final int MAX_METADATA_SIZE = 16*1024*1024;
+
+    /**
+     * The longest extension message, counting its message id, that is read
+     * into memory: a metadata piece plus its dictionary.
+     */
+    public static final int MAX_MESSAGE_LENGTH = METADATA_PIECE_LENGTH + 1024;
+
+    private Extensions() {
+    }
+
+    /**
+     * @param listenPort: our listening port or -1 if it should not be sent.
+     * @param extra: additional top level entries of the handshake such as
+     *               metadata_size, may be null.
+     * @return the payload of our extension handshake.
+     * @throws DataFormatException
+     */
+    public static byte[] encodeHandshake(int listenPort, Map<String, Object> extra) throws DataFormatException {
+        LinkedHashMap<String, Object> m = new LinkedHashMap<>();
+        m.put(UT_PEX_NAME, (long) UT_PEX);
+        m.put(UT_METADATA_NAME, (long) UT_METADATA);
+        LinkedHashMap<String, Object> dict = new LinkedHashMap<>();
+        dict.put("m", m);
+        if (listenPort > 0) {
+            dict.put("p", (long) listenPort);
+        }
+        dict.put("v", VERSION);
+        if (extra != null) {
+            dict.putAll(extra);
+        }
+        return Bencoding.encode(dict);
+    }
+
+    /**
+     * Decodes the dictionary payload of an extension message.
+     * @param payload
+     * @return the decoded dictionary.
+     * @throws DataFormatException: If the payload is not a bencoded dictionary.
+     */
+    @SuppressWarnings("unchecked")
+    public static LinkedHashMap<String, Object> decodeDict(byte[] payload) throws DataFormatException {
+        Object obj = new Bencoding(payload).decode();
+        if (!(obj instanceof LinkedHashMap)) {
+            throw new DataFormatException("The extension message is not a dictionary");
+        }
+        return (LinkedHashMap<String, Object>) obj;
+    }
+
+    /**
+     * @param handshake: a decoded extension handshake.
+     * @return the extended message ids the other side wants to receive
+     * extensions under. Disabled extensions (id 0) are left out.
+     */
+    public static Map<String, Integer> readExtensionIds(Map<String, Object> handshake) {
+        Map<String, Integer> ids = new HashMap<>();
+        Object m = handshake.get("m");
+        if (!(m instanceof Map)) {
+            return ids;
+        }
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) m).entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                long id = (Long) entry.getValue();
+                if (id > 0 && id < 256) {
+                    ids.put(entry.getKey().toString(), (int) id);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param handshake: a decoded extension handshake.
+     * @return the listening port the other side announced or -1.
+     */
+    public static int readListenPort(Map<String, Object> handshake) {
+        Object p = handshake.get("p");
+        if (p instanceof Long && (Long) p > 0 && (Long) p < 65536) {
+            return (int) (long) (Long) p;
+        }
+        return -1;
+    }
+
+    /**
+     * @param added: packed keys of the peers connected since the last message.
+     * @param dropped: packed keys of the peers disconnected since the last message.
+     * @return the payload of a ut_pex message.
+     * @throws DataFormatException
+     */
+    public static byte[] encodePex(Collection<Long> added, Collection<Long> dropped) throws DataFormatException {
+        LinkedHashMap<String, Object> dict = new LinkedHashMap<>();
+        dict.put("added", PeerPool.encodeCompact(added));
+        dict.put("added.f", new byte[added.size()]);
+        dict.put("dropped", PeerPool.encodeCompact(dropped));
+        return Bencoding.encode(dict);
+    }
+
+    /**
+     * @param message: a decoded ut_pex message.
+     * @return the packed keys of the added peers, at most MAX_PEX_PEERS.
+     * @throws DataFormatException: If the compact list is malformed.
+     */
+    public static long[] readPexAdded(Map<String, Object> message) throws DataFormatException {
+        Object added = message.get("added");
+        if (!(added instanceof byte[])) {
+            return new long[0];
+        }
+        long[] keys = PeerPool.decodeCompact((byte[]) added);
+        if (keys.length > MAX_PEX_PEERS) {
+            long[] limited = new long[MAX_PEX_PEERS];
+            System.arraycopy(keys, 0, limited, 0, MAX_PEX_PEERS);
+            return limited;
+        }
+        return keys;
+    }
+
+    /**
+     * @param handshake: a decoded extension handshake.
+     * @return the size of the info dictionary the other side announced or -1.
+     */
+    public static int readMetadataSize(Map<String, Object> handshake) {
+        Object size = handshake.get("metadata_size");
+        if (size instanceof Long && (Long) size > 0 && (Long) size <= MAX_METADATA_SIZE) {
+            return (int) (long) (Long) size;
+        }
+        return -1;
+    }
+
+    /**
+     * @param size: the size of the info dictionary.
+     * @return the number of ut_metadata pieces the dictionary is split into.
+     */
+    public static int metadataPieceCount(int size) {
+        return (size + METADATA_PIECE_LENGTH - 1)/METADATA_PIECE_LENGTH;
+    }
+
+    /**
+     * Encodes a ut_metadata message. Data messages carry the piece right
+     * after the bencoded dictionary.
+     * @param type: METADATA_REQUEST, METADATA_DATA or METADATA_REJECT.
+     * @param piece
+     * @param totalSize: the size of the info dictionary, only sent with data.
+     * @param data: the piece for data messages, otherwise null.
+     * @return the payload of a ut_metadata message.
+     * @throws DataFormatException
+     */
+    public static byte[] encodeMetadata(int type, int piece, int totalSize, byte[] data) throws DataFormatException {
+        LinkedHashMap<String, Object> dict = new LinkedHashMap<>();
+        dict.put("msg_type", (long) type);
+        dict.put("piece", (long) piece);
+        if (data == null) {
+            return Bencoding.encode(dict);
+        }
+        dict.put("total_size", (long) totalSize);
+        byte[] encoded = Bencoding.encode(dict);
+        byte[] payload = new byte[encoded.length + data.length];
+        System.arraycopy(encoded, 0, payload, 0, encoded.length);
+        System.arraycopy(data, 0, payload, encoded.length, data.length);
+        return payload;
+    }
+
+    /**
+     * Decodes a ut_metadata message.
+     * @param payload
+     * @return the dictionary with msg_type and piece as Long values and
+     * the bytes following it, which are only non-empty for data messages.
+     * @throws DataFormatException: If the dictionary is malformed or lacks msg_type or piece.
+     */
+    @SuppressWarnings("unchecked")
+    public static Pair<Map<String, Object>, byte[]> decodeMetadata(byte[] payload) throws DataFormatException {
+        Bencoding decoder = new Bencoding(payload);
+        Object obj = decoder.decode();
+        if (!(obj instanceof LinkedHashMap)) {
+            throw new DataFormatException("The ut_metadata message is not a dictionary");
+        }
+        Map<String, Object> dict = (Map<String, Object>) obj;
+        if (!(dict.get("msg_type") instanceof Long) || !(dict.get("piece") instanceof Long)) {
+            throw new DataFormatException("The ut_metadata message lacks msg_type or piece");
+        }
+        byte[] data = new byte[payload.length - decoder.position()];
+        System.arraycopy(payload, decoder.position(), data, 0, data.length);
+        return new Pair<>(dict, data);
+    }
+}
\ No newline at end of file
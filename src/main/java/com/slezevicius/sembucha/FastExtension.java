@@ -0,0 +1,78 @@
+package com.slezevicius.sembucha;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message ids and the allowed fast set of the Fast Extension (BEP 6). It
+ * is negotiated with bit 0x04 of the last reserved byte. Once both sides
+ * support it, a choke no longer silently drops the outstanding requests:
+ * every request is answered with either the block or an explicit REJECT.
+ * HAVE_ALL and HAVE_NONE replace the bitfield of seeds and empty peers,
+ * ALLOWED_FAST lists pieces that may be requested while choked and SUGGEST
+ * hints at pieces that are cheap to serve.
+ */
+public class FastExtension {
+    public static final byte SUGGEST = 13;
+    public static final byte HAVE_ALL = 14;
+    public static final byte HAVE_NONE = 15;
+    public static final byte REJECT = 16;
+    public static final byte ALLOWED_FAST = 17;
+
+    /**
+     * The number of pieces we allow a peer to request while choked.
+     */
+    public static final int ALLOWED_FAST_COUNT = 10;
+
+    /**
+     * At most MAX_PIECES suggested and allowed fast pieces are kept per peer.
+     */
+    public static final int MAX_PIECES = 64;
+
+    private FastExtension() {
+    }
+
+    /**
+     * Generates the canonical allowed fast set of a peer, which depends only
+     * on the peer's /24 network, so reconnecting does not yield a new set.
+     * @param infoHash
+     * @param ip: the address of the peer.
+     * @param pieceCount
+     * @param k: the size of the set, limited by pieceCount.
+     * @return the piece indices of the set, empty for IPv6 peers.
+     */
+    public static List<Integer> allowedFastSet(byte[] infoHash, InetAddress ip, int pieceCount, int k) {
+        List<Integer> set = new ArrayList<>();
+        if (!(ip instanceof Inet4Address) || pieceCount <= 0) {
+            return set;
+        }
+        k = Math.min(k, pieceCount);
+        byte[] x = new byte[4 + infoHash.length];
+        byte[] addr = ip.getAddress();
+        System.arraycopy(addr, 0, x, 0, 3);
+        System.arraycopy(infoHash, 0, x, 4, infoHash.length);
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform supports SHA-1
+            throw new IllegalStateException(e);
+        }
+        while (set.size() < k) {
+            x = md.digest(x);
+            for (int i = 0; i < 5 && set.size() < k; i++) {
+                int j = i*4;
+                long y = (x[j] & 0xFFL) << 24 | (x[j + 1] & 0xFF) << 16 | (x[j + 2] & 0xFF) << 8 | (x[j + 3] & 0xFF);
+                int index = (int) (y % pieceCount);
+                if (!set.contains(index)) {
+                    set.add(index);
+                }
+            }
+        }
+        return set;
+    }
+}
\ No newline at end of file
@@ -4,65 +4,244 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * A class for managing the reading and writing of downloading torrented
- * files.
+ * files. Blocks are assembled into pieces on the caller's thread, complete
+ * pieces are hashed and written behind by the shared disk workers. A piece
+ * is only announced through the haves once it is on disk. Pieces started
+ * while the memory budget of the disk subsystem is used up are not
+ * assembled in memory: their blocks are written to the file by the disk
+ * workers and the piece is hashed from the file once all of them are there.
  */
 public class FileManager {
+    /**
+     * How long shutdown waits for the pieces still queued for the disk.
+     */
+    static final long SHUTDOWN_TIMEOUT = 10000;
+    private static final int READ_ENDS = 64;
+    private static final int HASH_CHUNK = 64*1024;
+    private static final int ALLOCATION_CHUNK = 1024*1024;
+
+    /**
+     * How long a stream waits for a piece before checking whether the
+     * file manager was shut down.
+     */
+    private static final long STREAM_WAIT = 1000;
     private Torrent tor;
     private RandomAccessFile accessFile;
+    private FileChannel channel;
+    private DiskIo diskIo;
     private File saveFile;
     private byte[] bitfield;
     private Stack<Integer> haves;
-    private Map<Integer, byte[]> incompletePieces;
-    private Map<Integer, Integer> receivedBlockBytes;
+
+    /**
+     * Pieces that failed the hash check or could not be written, drained by
+     * the peer manager to request them again.
+     */
+    private Stack<Integer> failedPieces;
+
+    /**
+     * Complete pieces handed to the disk workers that are not written yet,
+     * and the verified ones among them waiting for the next flush. Only one
+     * flush runs at a time, so adjacent pieces that pile up behind it are
+     * written together.
+     */
+    private Map<Integer, PartialPiece> pendingPieces;
+    private TreeMap<Integer, byte[]> verifiedPieces;
+    private boolean flushScheduled;
+    private PieceCache pieceCache;
+    private Metrics metrics;
+
+    /**
+     * The end of the last block read from each recently read piece, which
+     * tells sequential reads apart. Guarded by its own monitor.
+     */
+    private final Map<Integer, Integer> readEnds = new LinkedHashMap<Integer, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+            return size() > READ_ENDS;
+        }
+    };
+    private final AtomicLong diskReads = new AtomicLong();
+    private Map<Integer, PartialPiece> incompletePieces;
     private long lastPieceSize;
+    private int pieceCount;
+    private PieceHashes pieceHashes;
     private boolean complete;
+    private boolean closed = false;
     private int downloaded;
     private int uploaded;
     private Logger log;
 
+    /**
+     * A piece being downloaded. The data is null if the piece did not fit
+     * the memory budget and goes to the file block by block instead.
+     *
+     * The digest is fed with the blocks as soon as they extend the hashed
+     * prefix of the piece, so only what arrived out of order is hashed once
+     * the piece is complete. Blocks received ahead of the prefix are kept in
+     * ahead, by begin and end, to be hashed when the gap is filled. That is
+     * only possible while the data is in memory; for a piece written to the
+     * file, the rest after a gap is hashed from the file.
+     */
+    private static class PartialPiece {
+        final int size;
+        final byte[] data;
+        final MessageDigest digest = newDigest();
+        final TreeMap<Integer, Integer> ahead = new TreeMap<>();
+        final long startedAt = System.nanoTime();
+        long completedAt;
+        int hashed = 0;
+        int received = 0;
+        int written = 0;
+        boolean writeFailed = false;
+
+        PartialPiece(int size, byte[] data) {
+            this.size = size;
+            this.data = data;
+        }
+
+        /**
+         * Hashes a block if it continues the hashed prefix.
+         * @param begin
+         * @param block: the block data, from offset.
+         * @param offset
+         * @param length
+         */
+        void hash(int begin, byte[] block, int offset, int length) {
+            if (begin != hashed) {
+                if (data != null && begin > hashed) {
+                    ahead.put(begin, begin + length);
+                }
+                return;
+            }
+            digest.update(block, offset, length);
+            hashed += length;
+            Integer end;
+            while (data != null && (end = ahead.remove(hashed)) != null) {
+                digest.update(data, hashed, end - hashed);
+                hashed = end;
+            }
+        }
+    }
+
     FileManager(Torrent tor, File saveFile) {
+        this(tor, saveFile, null);
+    }
+
+    /**
+     * @param tor
+     * @param saveFile
+     * @param verified: the bitfield the file had when it was last closed, to be
+     *                  trusted instead of checking the pieces again, or null.
+     */
+    FileManager(Torrent tor, File saveFile, byte[] verified) {
         //The file manager is responsible for informing when the torrent was downloadec completely.
         //Also take care of storing the needed metadata of the downloaded file.
         log = LogManager.getFormatterLogger(FileManager.class);
         this.tor = tor;
         this.saveFile = saveFile;
-        receivedBlockBytes = new HashMap<>();
         incompletePieces = new HashMap<>();
         bitfield = new byte[tor.getBitfieldLength()];
         haves = new Stack<>();
+        failedPieces = new Stack<>();
+        pendingPieces = new HashMap<>();
+        verifiedPieces = new TreeMap<>();
+        flushScheduled = false;
+        diskIo = tor.getDiskIo();
+        pieceCache = tor.getPieceCache();
+        metrics = tor.getMetrics();
         downloaded = 0;
         uploaded = 0;
         complete = false;
+        pieceCount = tor.getPieceCount();
+        pieceHashes = tor.getPieceHashes();
         lastPieceSize = tor.getLength()%tor.getPieceLength();
         if (lastPieceSize == 0) {
             lastPieceSize = tor.getPieceLength();
         }
-        if (filePreviouslyDownloaded()) {
+        if (verified != null && filePreviouslyDownloaded()) {
+            restoreBitfield(verified);
+            log.debug("%s reopened a checked file with %d correct pieces", toString(), haves.size());
+            checkIfComplete();
+        } else if (filePreviouslyDownloaded()) {
             updateBitfield();
             log.debug("%s read a previously downloaded file with %d correct pieces", toString(), haves.size());
             checkIfComplete();
         }
         try {
             accessFile = new RandomAccessFile(saveFile, "rw");
+            channel = accessFile.getChannel();
         } catch (FileNotFoundException e) {
             throw new RuntimeException("Could not find the file for a newly opened file");
         }
+        allocate(diskIo.getAllocation());
         log.trace("%s initialized", toString());
     }
 
+    /**
+     * Extends the file to the length of the torrent according to the
+     * allocation mode. A sparse file only gets its length set, a full
+     * allocation writes zeros past the current end of the file, which is
+     * the portable equivalent of fallocate. Skipped pieces are left as holes.
+     * Data already in the file is left as it is.
+     * @param allocation
+     */
+    private void allocate(DiskIo.Allocation allocation) {
+        try {
+            long start = channel.size();
+            long length = tor.getLength();
+            if (allocation == DiskIo.Allocation.NONE || start >= length) {
+                return;
+            }
+            long begin = System.currentTimeMillis();
+            if (allocation == DiskIo.Allocation.SPARSE) {
+                accessFile.setLength(length);
+            } else {
+                ByteBuffer zeros = ByteBuffer.allocate(ALLOCATION_CHUNK);
+                Torrent.Priority[] priorities = tor.getPriorities(pieceCount);
+                for (long position = start; position < length;) {
+                    int index = (int) (position/tor.getPieceLength());
+                    long pieceEnd = Math.min(length, (index + 1)*tor.getPieceLength());
+                    if (priorities[index] == Torrent.Priority.SKIP) {
+                        position = pieceEnd;
+                        continue;
+                    }
+                    zeros.clear();
+                    zeros.limit((int) Math.min(ALLOCATION_CHUNK, pieceEnd - position));
+                    position += channel.write(zeros, position);
+                }
+                accessFile.setLength(length);
+                channel.force(false);
+            }
+            log.debug("%s allocated %d bytes (%s) in %d ms", toString(), length - start,
+                allocation.toString().toLowerCase(), System.currentTimeMillis() - begin);
+        } catch (IOException e) {
+            log.error("%s cannot allocate the file", toString());
+            log.error(e.getMessage(), e);
+        }
+    }
+
     /**
      * Checks whether the torrent file has been downloaded before
      * (either partially or fully) and returns a boolean indicating
@@ -80,7 +259,6 @@ public class FileManager {
     private void updateBitfield() {
         try {
             FileInputStream inFile = new FileInputStream(saveFile);
-            int pieceCount = tor.getPieces().length/20;
             for (int i = 0; i < pieceCount; i++) {
                 byte[] piece;
                 if (i + 1 == pieceCount) {
@@ -106,25 +284,67 @@ public class FileManager {
 
     }
 
+    /**
+     * Takes over the pieces of a bitfield that was verified before.
+     * @param verified: the bitfield recorded when the files were last closed
+     */
+    private void restoreBitfield(byte[] verified) {
+        for (int i = 0; i < pieceCount; i++) {
+            if ((verified[i/8] & (128 >> (i%8))) != 0) {
+                bitfield[i/8] |= 128 >> (i%8);
+                downloaded += pieceSize(i);
+                haves.push(i);
+            }
+        }
+    }
+
+    public File getSaveFile() {
+        return saveFile;
+    }
+
     public synchronized byte[] getBitfield() {
         return bitfield;
     }
 
-    public synchronized void fillOutPiece(Request req) {
-        int bytesAfterFirstPiece = (int) (req.block.length - (tor.getPieceLength() - req.begin));
-        int numberOfPieces = 1 + (int) Math.ceil(((double) bytesAfterFirstPiece)/tor.getPieceLength());
-        for (int i = 0; i < numberOfPieces; i++) {
-            int bitfieldIndex = (req.index + i)/8;
-            int bitIndex = (req.index + i)%8;
-            if ((bitfield[bitfieldIndex] & (128 >> bitIndex)) == 0) {
-                log.debug("%s does not have the requested piece at index %d", toString(), req.index);
-                req.block = null;
-                return;
+    /**
+     * Fills the block of an upload request from the file. Blocks within a
+     * single piece go through the piece cache: a piece that is not cached
+     * is read whole and cached once a second consecutive block of it is
+     * requested, so the rest of the piece and other peers asking for the
+     * same piece are served from memory.
+     * @param req: Request object of the peer request.
+     */
+    public void fillOutPiece(Request req) {
+        synchronized(this) {
+            int bytesAfterFirstPiece = (int) (req.block.length - (tor.getPieceLength() - req.begin));
+            int numberOfPieces = 1 + (int) Math.ceil(((double) bytesAfterFirstPiece)/tor.getPieceLength());
+            for (int i = 0; i < numberOfPieces; i++) {
+                int bitfieldIndex = (req.index + i)/8;
+                int bitIndex = (req.index + i)%8;
+                if ((bitfield[bitfieldIndex] & (128 >> bitIndex)) == 0) {
+                    log.debug("%s does not have the requested piece at index %d", toString(), req.index);
+                    req.block = null;
+                    return;
+                }
             }
         }
+        long pieceStart = req.index*tor.getPieceLength();
         try {
-            accessFile.seek(req.index*tor.getPieceLength());
-            accessFile.read(req.block);
+            if (req.begin + req.block.length > pieceSize(req.index)) {
+                read(pieceStart + req.begin, req.block);
+                return;
+            }
+            byte[] piece = pieceCache.get(this, req.index);
+            if (piece == null && isSequential(req)) {
+                piece = new byte[pieceSize(req.index)];
+                read(pieceStart, piece);
+                pieceCache.put(this, req.index, piece);
+            }
+            if (piece != null) {
+                System.arraycopy(piece, req.begin, req.block, 0, req.block.length);
+            } else {
+                read(pieceStart + req.begin, req.block);
+            }
         } catch (IOException e) {
             req.block = null;
             log.error("%s received an IOException", toString());
@@ -132,156 +352,498 @@ public class FileManager {
         }
     }
 
+    /**
+     * Remembers where the block of the request ends.
+     * @param req
+     * @return boolean indicating whether the block follows the last block read from the same piece.
+     */
+    private boolean isSequential(Request req) {
+        synchronized(readEnds) {
+            Integer previous = readEnds.put(req.index, req.begin + req.block.length);
+            return previous != null && previous == req.begin;
+        }
+    }
+
+    /**
+     * Reads from the file. Positional reads leave the channel position to
+     * the disk workers.
+     * @param position
+     * @param out
+     * @throws IOException
+     */
+    private void read(long position, byte[] out) throws IOException {
+        readFully(position, ByteBuffer.wrap(out));
+        diskReads.incrementAndGet();
+    }
+
+    /**
+     * Fills the buffer from the file.
+     * @param position
+     * @param buf
+     * @throws IOException
+     */
+    private void readFully(long position, ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position() - start) == -1) {
+                throw new IOException("Reached the end of " + saveFile.getName());
+            }
+        }
+    }
+
+    /**
+     * @param index
+     * @return the size of the piece in bytes.
+     */
+    private int pieceSize(int index) {
+        return index + 1 == pieceCount ? (int) lastPieceSize : (int) tor.getPieceLength();
+    }
+
+    /**
+     * Reads verified data of the torrent, at most up to the end of the
+     * piece at the position.
+     * @param position
+     * @param buf
+     * @param offset
+     * @param length
+     * @return the number of bytes read, 0 if the piece at the position is not verified yet or -1 at the end.
+     * @throws IOException
+     */
+    public int readVerified(long position, byte[] buf, int offset, int length) throws IOException {
+        int index = (int) (position/tor.getPieceLength());
+        synchronized(this) {
+            if (closed) {
+                throw new IOException(toString() + " is shut down");
+            }
+            if (position >= tor.getLength()) {
+                return -1;
+            }
+            if ((bitfield[index/8] & (128 >> (index%8))) == 0) {
+                return 0;
+            }
+        }
+        long pieceEnd = index*tor.getPieceLength() + pieceSize(index);
+        int n = (int) Math.min(length, pieceEnd - position);
+        readFully(position, ByteBuffer.wrap(buf, offset, n));
+        return n;
+    }
+
+    /**
+     * @param position: where in the torrent's data to start.
+     * @return a stream that waits for the pieces it reads to be verified.
+     */
+    public InputStream openStream(long position) {
+        return new PieceStream(position);
+    }
+
+    /**
+     * Reads the torrent's data in order, for playing media while it
+     * downloads. Every read moves the torrent's stream cursor to the piece
+     * it waits for.
+     */
+    private class PieceStream extends InputStream {
+        private long position;
+
+        PieceStream(long position) {
+            this.position = position;
+            tor.setStreamCursor((int) Math.min(pieceCount - 1, position/tor.getPieceLength()));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (true) {
+                tor.setStreamCursor((int) Math.min(pieceCount - 1, position/tor.getPieceLength()));
+                int n = readVerified(position, buf, offset, length);
+                if (n != 0) {
+                    if (n > 0) {
+                        position += n;
+                    }
+                    return n;
+                }
+                synchronized(FileManager.this) {
+                    int index = (int) (position/tor.getPieceLength());
+                    if (closed || (bitfield[index/8] & (128 >> (index%8))) != 0) {
+                        continue;
+                    }
+                    try {
+                        FileManager.this.wait(STREAM_WAIT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for a piece");
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            synchronized(FileManager.this) {
+                int index = (int) (position/tor.getPieceLength());
+                if (position >= tor.getLength() || (bitfield[index/8] & (128 >> (index%8))) == 0) {
+                    return 0;
+                }
+                return (int) (index*tor.getPieceLength() + pieceSize(index) - position);
+            }
+        }
+    }
+
+    /**
+     * @return the number of reads from the file made for uploading.
+     */
+    public long getDiskReads() {
+        return diskReads.get();
+    }
+
     /**
      * Takes in a newly received block from the peer manager. If that block belongs to a piece
-     * that has already been fully downloaded, the file manager simply ignores the block. If that block
-     * belongs to a piece that has not been yet downloaded, it writes it to memory. If the the piece
-     * gets filled out completely, the file manager confirms it against the SHA-1 hash provided in the
-     * torrent file, and, assuming it passes the test, it writes it to file. If it does not pass the test,
-     * then the peer manager is ordered to download that piece again.
+     * that has already been fully downloaded or is queued for the disk, the file manager simply ignores
+     * the block. If that block belongs to a piece that has not been yet downloaded, it writes it to memory,
+     * or to the file if the piece did not fit the memory budget.
+     * If the the piece gets filled out completely, it is handed to the disk workers, which confirm it
+     * against the SHA-1 hash provided in the torrent file and, assuming it passes the test, write it to
+     * file. If it does not pass the test, the piece is reported through getFailedPieces so that the peer
+     * manager downloads it again.
      * 
-     * If the piece is successfully written to file, it updates the downloaded field and also updates
-     * its HAVEs list.
+     * Once the piece is written to file, the downloaded field and the HAVEs list are updated.
      * 
      * @param req: the Request object representing the downloaded block.
      */
     public synchronized void receivedPiece(Request req) {
-        Integer index = req.index;
-        Integer begin = req.begin;
+        int index = req.index;
+        int begin = req.begin;
+        int offset = 0;
         int length = req.block.length;
         log.debug("%s received a piece with index %d, begin %d, length %d",
-            toString(), index.intValue(), begin.intValue(), length);
-        while (true) {
-            int bitfieldIndex = index/8;
-            int bitIndex = index%8;
-            boolean gotPiece = (bitfield[bitfieldIndex] & (128 >> bitIndex)) != 0;
-            byte[] piece = null;
-            int totalBytesSoFar = 0;
-            boolean lastPiece = index + 1 == tor.getPieces().length/20;
-            if (!gotPiece) {
-                if (!incompletePieces.containsKey(index)) {
-                    if (!lastPiece) {
-                        incompletePieces.put(index, new byte[(int) tor.getPieceLength()]);
-                    } else {
-                        incompletePieces.put(index, new byte[(int) lastPieceSize]);
-                    }
-                    receivedBlockBytes.put(index, 0);
-                }
-                piece = incompletePieces.get(index);
-                totalBytesSoFar = receivedBlockBytes.get(index);
-            } else {
-                log.warn("%s got a piece at index %d that has already been written", toString(), index);
+            toString(), index, begin, length);
+        //A block may run over into the following pieces
+        while (length > 0 && index < pieceCount) {
+            int size = pieceSize(index);
+            int part = Math.min(length, size - begin);
+            if (part <= 0) {
+                log.warn("%s got a block beginning at %d outside of the piece at index %d", toString(), begin, index);
+                return;
             }
-            if (gotPiece || begin + length >= piece.length) {
-                if (!gotPiece) {
-                    receivedBlockBytes.put(index, totalBytesSoFar + piece.length - begin);
-                    for (int i = begin; i < piece.length; i++) {
-                        piece[i] = req.block[i - begin];
-                    }
-                    if (pieceIsFull(index) && pieceIsCorrect(index)) {
-                        try {
-                            log.info("%s writing piece at index %d", tor.getTorrentFileName(), index.intValue());
-                            writeToFile(index);
-                            bitfield[bitfieldIndex] |= 128 >> bitIndex;
-                            incompletePieces.remove(index);
-                            receivedBlockBytes.remove(index);
-                            downloaded += piece.length;
-                            haves.push(index);
-                        } catch (IOException e) {
-                            log.error("%s cannot write to file at inded %d", toString(), index);
-                            log.error(e.getMessage(), e);
-                            //Should I reomove the objects here too?
-                        }
-                        
-                    } else if (pieceIsFull(index)) {
-                        //Should I remove the pieces here?
-                        log.debug("%s piece at index %d is invalid; repeating the piece", toString(), index.intValue());
-                        repeatPiece(index);
-                    }
-                }
-                req.block = Arrays.copyOfRange(req.block, piece.length - begin, req.block.length);
-                length -= (piece.length - begin);
-                index += 1;
-                begin = 0;
-                if (length == 0 || index + 1 == tor.getPieces().length) {
-                    return;
-                } else if (length < 0) {
-                    log.fatal("%s the length is < 0. Request index %d, begin %d, length %d",
-                        toString(), index.intValue(), begin.intValue(), length);
-                    return;
-                }
+            boolean gotPiece = (bitfield[index/8] & (128 >> (index%8))) != 0 || pendingPieces.containsKey(index);
+            if (gotPiece) {
+                log.warn("%s got a piece at index %d that has already been written", toString(), index);
             } else {
-                receivedBlockBytes.put(index, totalBytesSoFar + length);
-                for (int i = 0; i < length; i++) {
-                    piece[i + begin] = req.block[i];
+                PartialPiece piece = incompletePieces.get(index);
+                if (piece == null) {
+                    piece = startPiece(index);
                 }
+                //Assuming that the peer manager makes sure there are no duplicates or overlaps
+                piece.received += part;
+                if (piece.data != null) {
+                    System.arraycopy(req.block, offset, piece.data, begin, part);
+                    piece.hash(begin, req.block, offset, part);
+                    if (piece.received >= piece.size) {
+                        submitPiece(index);
+                    }
+                } else {
+                    piece.hash(begin, req.block, offset, part);
+                    spillBlock(index, piece, begin, Arrays.copyOfRange(req.block, offset, offset + part));
+                }
+            }
+            offset += part;
+            length -= part;
+            index += 1;
+            begin = 0;
+        }
+    }
+
+    /**
+     * Buffers a new piece in memory if the budget allows it.
+     * @param index
+     * @return the new PartialPiece.
+     */
+    private PartialPiece startPiece(int index) {
+        int size = pieceSize(index);
+        PartialPiece piece;
+        if (diskIo.reserve(size)) {
+            piece = new PartialPiece(size, new byte[size]);
+        } else {
+            log.debug("%s no memory left for the piece at index %d; writing its blocks to file", toString(), index);
+            piece = new PartialPiece(size, null);
+        }
+        incompletePieces.put(index, piece);
+        return piece;
+    }
+
+    /**
+     * @return boolean indicating whether a new piece would not fit the memory budget.
+     */
+    public boolean isBufferFull() {
+        return diskIo.isBufferFull(tor.getPieceLength());
+    }
+
+    /**
+     * Hands a complete piece to the disk workers for hashing and writing.
+     * @param index
+     */
+    private void submitPiece(final int index) {
+        final PartialPiece partial = incompletePieces.remove(index);
+        final byte[] piece = partial.data;
+        partial.completedAt = System.nanoTime();
+        pendingPieces.put(index, partial);
+        diskIo.release(piece.length);
+        diskIo.queued(piece.length);
+        metrics.record(Metrics.Timer.DISK_QUEUE_BYTES, diskIo.getQueuedBytes());
+        diskIo.submit(new Runnable() {
+            @Override
+            public void run() {
+                verifyPiece(index, piece, partial.digest, partial.hashed);
+            }
+        });
+    }
+
+    /**
+     * Runs on a disk worker. Finishes the hash of a complete piece and
+     * queues it for the next flush, which is scheduled unless one is pending.
+     * @param index
+     * @param piece
+     * @param digest: the digest of the first hashed bytes of the piece.
+     * @param hashed
+     */
+    private void verifyPiece(int index, byte[] piece, MessageDigest digest, int hashed) {
+        digest.update(piece, hashed, piece.length - hashed);
+        boolean correct = pieceHashes.matches(index, digest.digest());
+        synchronized(this) {
+            if (!correct) {
+                log.debug("%s piece at index %d is invalid; repeating the piece", toString(), index);
+                metrics.increment(Metrics.Counter.HASH_FAILS);
+                diskIo.done(piece.length);
+                pieceDropped(index);
+                return;
+            }
+            verifiedPieces.put(index, piece);
+            if (flushScheduled) {
                 return;
             }
+            flushScheduled = true;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        diskIo.submit(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Runs on a disk worker. Writes the verified pieces, each run of
+     * adjacent pieces with a single gathering write. Pieces verified
+     * meanwhile are written by another flush.
+     */
+    private void flush() {
+        TreeMap<Integer, byte[]> batch;
+        synchronized(this) {
+            batch = verifiedPieces;
+            verifiedPieces = new TreeMap<>();
+        }
+        List<Integer> run = new ArrayList<>();
+        List<Integer> written = new ArrayList<>();
+        List<Integer> failed = new ArrayList<>();
+        for (Integer index : batch.keySet()) {
+            if (!run.isEmpty() && run.get(run.size() - 1) + 1 != index) {
+                writeRun(run, batch, written, failed);
+                run.clear();
+            }
+            run.add(index);
+        }
+        if (!run.isEmpty()) {
+            writeRun(run, batch, written, failed);
+        }
+        synchronized(this) {
+            for (Integer index : written) {
+                diskIo.done(batch.get(index).length);
+                pieceWritten(index);
+            }
+            for (Integer index : failed) {
+                diskIo.done(batch.get(index).length);
+                pieceDropped(index);
+            }
+            if (verifiedPieces.isEmpty()) {
+                flushScheduled = false;
+                return;
+            }
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * Writes a run of adjacent pieces to the file.
+     * @param run: the ascending, consecutive piece indices.
+     * @param batch: the data of the pieces.
+     * @param written: receives the indices if the write succeeded.
+     * @param failed: receives the indices if the write failed.
+     */
+    private void writeRun(List<Integer> run, Map<Integer, byte[]> batch, List<Integer> written, List<Integer> failed) {
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        long remaining = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(run.get(i)));
+            remaining += buffers[i].remaining();
+        }
+        try {
+            channel.position(run.get(0)*tor.getPieceLength());
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            written.addAll(run);
+        } catch (IOException e) {
+            log.error("%s cannot write to file at index %d", toString(), run.get(0));
+            log.error(e.getMessage(), e);
+            failed.addAll(run);
         }
     }
 
     /**
-     * Checks if the sum of downloaded block lengths adds up to the piece length for
-     * the piece with given index.
+     * Queues a block of a piece that is not kept in memory to be written
+     * to its place in the file. Once the piece has been received completely
+     * it counts as pending, and the write of its last block checks it.
      * @param index
-     * @return boolean
+     * @param piece
+     * @param begin
+     * @param block
      */
-    private boolean pieceIsFull(Integer index) {
-        //Assuming that the peer manager makes sure there are no duplicates or overlaps
-        if (receivedBlockBytes.get(index) >= incompletePieces.get(index).length) {
-            return true;
+    private void spillBlock(final int index, final PartialPiece piece, final int begin, final byte[] block) {
+        if (piece.received >= piece.size) {
+            piece.completedAt = System.nanoTime();
+            incompletePieces.remove(index);
+            pendingPieces.put(index, piece);
         }
-        return false;
+        diskIo.queued(block.length);
+        diskIo.submit(new Runnable() {
+            @Override
+            public void run() {
+                writeBlock(index, piece, begin, block);
+            }
+        });
     }
 
     /**
-     * Checks if the piece at given index has the same SHA-1 hash as the one provided in
-     * the torrent file.
+     * Runs on a disk worker. Writes a block of a piece that is not kept in
+     * memory and verifies the piece from the file after its last block.
+     * The blocks of a piece that timed out are written but never verified.
      * @param index
-     * @return boolean
+     * @param piece
+     * @param begin
+     * @param block
      */
-    private boolean pieceIsCorrect(Integer index) {
+    private void writeBlock(int index, PartialPiece piece, int begin, byte[] block) {
+        boolean ok = true;
         try {
-            byte[] piece = incompletePieces.get(index);
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] pieceHash = md.digest(piece);
-            byte[] infoHash = Arrays.copyOfRange(tor.getPieces(), index*20, (index+1)*20);
-            return Arrays.equals(pieceHash, infoHash);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("SHA-1 algorithm was not found");
+            ByteBuffer buf = ByteBuffer.wrap(block);
+            long position = index*tor.getPieceLength() + begin;
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + buf.position());
+            }
+        } catch (IOException e) {
+            log.error("%s cannot write to file at index %d", toString(), index);
+            log.error(e.getMessage(), e);
+            ok = false;
+        }
+        synchronized(this) {
+            diskIo.done(block.length);
+            piece.writeFailed |= !ok;
+            piece.written += block.length;
+            if (piece.written < piece.size) {
+                return;
+            }
+        }
+        boolean correct = !piece.writeFailed && pieceOnDiskIsCorrect(index, piece);
+        synchronized(this) {
+            if (correct) {
+                pieceWritten(index);
+            } else {
+                log.debug("%s piece at index %d is invalid; repeating the piece", toString(), index);
+                if (!piece.writeFailed) {
+                    metrics.increment(Metrics.Counter.HASH_FAILS);
+                }
+                pieceDropped(index);
+            }
         }
-            
     }
 
-    private boolean pieceIsCorrect(byte[] piece, int index) {
+    /**
+     * Marks a piece that is on disk as downloaded and announces it.
+     * @param index
+     */
+    private void pieceWritten(int index) {
+        log.info("%s writing piece at index %d", tor.getTorrentFileName(), index);
+        bitfield[index/8] |= 128 >> (index%8);
+        downloaded += pieceSize(index);
+        haves.push(index);
+        PartialPiece piece = pendingPieces.remove(index);
+        if (piece != null) {
+            long now = System.nanoTime();
+            metrics.increment(Metrics.Counter.PIECES_WRITTEN);
+            metrics.record(Metrics.Timer.PIECE_COMPLETION_MICROS, (now - piece.completedAt)/1000);
+            metrics.record(Metrics.Timer.PIECE_DOWNLOAD_MILLIS, (now - piece.startedAt)/1000000);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Forgets a piece that failed the hash check or could not be written
+     * and reports it to the peer manager.
+     * @param index
+     */
+    private void pieceDropped(int index) {
+        pendingPieces.remove(index);
+        failedPieces.push(index);
+        notifyAll();
+    }
+
+    private static MessageDigest newDigest() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] pieceHash = md.digest(piece);
-            byte[] infoHash = Arrays.copyOfRange(tor.getPieces(), index*20, (index+1)*20);
-            return Arrays.equals(pieceHash, infoHash);
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("SHA-1 algorithm was not found");
         }
-            
     }
 
-    /**
-     * Writes a piece to the file.
-     */
-    private void writeToFile(int index) throws IOException {
-        accessFile.seek(index*tor.getPieceLength());
-        accessFile.write(incompletePieces.get(index));
+    private boolean pieceIsCorrect(byte[] piece, int index) {
+        return pieceHashes.matches(index, newDigest().digest(piece));
     }
 
     /**
-     * Order the peer manager to download the piece at given index again and
-     * remove their incompletePieces and receivedBlockBytes entries.
+     * Finishes the hash of a piece written to the file, reading what
+     * follows the hashed prefix in chunks of HASH_CHUNK bytes.
      * @param index
+     * @param piece
+     * @return boolean indicating whether the piece matches its hash.
      */
-    private void repeatPiece(Integer index) {
-        incompletePieces.remove(index);
-        receivedBlockBytes.remove(index);
-        tor.redownloadPiece(index);
+    private boolean pieceOnDiskIsCorrect(int index, PartialPiece piece) {
+        MessageDigest md = piece.digest;
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(Math.max(1, Math.min(HASH_CHUNK, piece.size - piece.hashed)));
+            long position = index*tor.getPieceLength();
+            for (int done = piece.hashed; done < piece.size; done += buf.limit()) {
+                buf.clear();
+                buf.limit(Math.min(buf.capacity(), piece.size - done));
+                readFully(position + done, buf);
+                md.update(buf.array(), 0, buf.limit());
+            }
+            return pieceHashes.matches(index, md.digest());
+        } catch (IOException e) {
+            log.error("%s cannot read the piece at index %d", toString(), index);
+            log.error(e.getMessage(), e);
+            return false;
+        }
     }
 
     /**
@@ -290,34 +852,47 @@ public class FileManager {
      * downloaded, otherwise leaves it false.
      */
     private void checkIfComplete() {
-        for (int i = 0; i < bitfield.length - 1; i++) {
-            if ((bitfield[i] & 0xff) != 255) {
+        for (int i = 0; i < pieceCount; i++) {
+            if ((bitfield[i/8] & (128 >> (i%8))) == 0) {
                 return;
             }
         }
-        //The last byte b is usally not used up fully and there are n = 8 - pieceLegnth % 8 unusued bytes.
-        //Since the bitfield is written from the most significant bit (from the left),
-        //that means the right n bits are not used. 2^n - 1 is the value of the n bits are set to high.
-        //Therefore, if the pieces in the last byte are fully downloaded, then b + 2^n - 1 = 255.
-        int lastPiece = bitfield[bitfield.length - 1] + (1 <<  (8 - (tor.getPieces().length/20)%8)) - 1;
-        if (lastPiece == 255) {
-            complete = true;
-        }
+        complete = true;
     }
 
-    public synchronized boolean isComplete() {
-        if (complete) {
+    /**
+     * The download is complete once every piece that is not skipped has
+     * been verified, so a torrent with skipped pieces can start seeding.
+     * A skipped piece that is wanted again makes it incomplete again.
+     * @return boolean indicating whether the wanted pieces are downloaded.
+     */
+    public boolean isComplete() {
+        synchronized(this) {
+            if (!complete) {
+                checkIfComplete();
+            }
+            if (complete) {
+                return true;
+            }
+        }
+        //Read without the monitor so the torrent's monitor is never taken while holding it
+        Torrent.Priority[] priorities = tor.getPriorities(pieceCount);
+        synchronized(this) {
+            for (int i = 0; i < pieceCount; i++) {
+                if (priorities[i] != Torrent.Priority.SKIP && (bitfield[i/8] & (128 >> (i%8))) == 0) {
+                    return false;
+                }
+            }
             return true;
-        } else {
-            checkIfComplete();
-            return complete;
         }
     }
 
-    public void timedOutPiece(Integer index) {
+    public synchronized void timedOutPiece(Integer index) {
         log.debug("%s got a timed out piece at index %d", toString(), index);
-        incompletePieces.remove(index);
-        receivedBlockBytes.remove(index);
+        PartialPiece piece = incompletePieces.remove(index);
+        if (piece != null && piece.data != null) {
+            diskIo.release(piece.size);
+        }
     }
 
     public synchronized int getDownloaded() {
@@ -337,7 +912,43 @@ public class FileManager {
         return haveArr;
     }
 
+    /**
+     * @return the pieces to download again since the last call.
+     */
+    public synchronized int[] getFailedPieces() {
+        int size = failedPieces.size();
+        int[] failed = new int[size];
+        for (int i = 0; i < size; i++) {
+            failed[i] = failedPieces.pop();
+        }
+        return failed;
+    }
+
+    /**
+     * Waits up to SHUTDOWN_TIMEOUT for the pieces queued for the disk and
+     * closes the file.
+     */
     public synchronized void shutdown() {
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        try {
+            while (!pendingPieces.isEmpty() && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!pendingPieces.isEmpty()) {
+            log.warn("%s closing with %d pieces not written", toString(), pendingPieces.size());
+        }
+        for (PartialPiece piece : incompletePieces.values()) {
+            if (piece.data != null) {
+                diskIo.release(piece.size);
+            }
+        }
+        incompletePieces.clear();
+        pieceCache.invalidate(this);
+        closed = true;
+        notifyAll();
         try {
             accessFile.close();
             log.trace("%s shut down", toString());
@@ -0,0 +1,113 @@
+package com.slezevicius.sembucha;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative values in the style of an HDR
+ * histogram. Values below 2^SUB_BITS get a bucket each; above that, every
+ * power of two is split into 2^SUB_BITS linear buckets, so a recorded value
+ * is off by at most 1/2^SUB_BITS of itself. Values are capped at
+ * 2^MAX_BITS - 1. Recording is a few atomic additions and reading does not
+ * block writers, so a snapshot may miss records made while it is taken.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private final AtomicLongArray buckets = new AtomicLongArray((MAX_BITS - SUB_BITS + 1)*SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param value
+     * @return the index of the bucket the value falls in.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1)*SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket
+     * @return the smallest value that falls in the bucket.
+     */
+    static long lowest(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket/SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + bucket%SUB_BUCKETS) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * @param value: negative values count as 0.
+     */
+    public void record(long value) {
+        value = Math.min(MAX_VALUE, Math.max(0, value));
+        buckets.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return count, mean, min, max and the 50th, 90th and 99th percentiles,
+     * the latter three the lowest values of their buckets.
+     */
+    public Map<String, Object> snapshot() {
+        long[] copy = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = buckets.get(i);
+            total += copy[i];
+        }
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("count", total);
+        if (total == 0) {
+            return out;
+        }
+        out.put("mean", (double) sum.sum()/count.sum());
+        int min = 0;
+        while (copy[min] == 0) {
+            min++;
+        }
+        int max = copy.length - 1;
+        while (copy[max] == 0) {
+            max--;
+        }
+        out.put("min", lowest(min));
+        out.put("max", lowest(max));
+        out.put("p50", percentile(copy, total, 0.5));
+        out.put("p90", percentile(copy, total, 0.9));
+        out.put("p99", percentile(copy, total, 0.99));
+        return out;
+    }
+
+    private static long percentile(long[] copy, long total, double fraction) {
+        long rank = (long) Math.ceil(total*fraction);
+        long seen = 0;
+        for (int i = 0; i < copy.length; i++) {
+            seen += copy[i];
+            if (seen >= rank) {
+                return lowest(i);
+            }
+        }
+        return lowest(copy.length - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Histogram%s", snapshot().toString());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,55 @@
+package com.slezevicius.sembucha;
+
+import java.util.Arrays;
+
+/**
+ * An immutable 20 byte info hash usable as a hash map key. The bytes of a
+ * SHA-1 digest are uniformly distributed, so the hash code is simply taken
+ * from the first four bytes instead of hashing the whole array.
+ */
+public final class InfoHash {
+    public static final int LENGTH = 20;
+    private final byte[] hash;
+    private final int hashCode;
+
+    /**
+     * @param hash: the 20 byte info hash, it is copied.
+     * @throws IllegalArgumentException: If hash is not 20 bytes long.
+     */
+    public InfoHash(byte[] hash) {
+        if (hash == null || hash.length != LENGTH) {
+            throw new IllegalArgumentException("An info hash must be " + LENGTH + " bytes long");
+        }
+        this.hash = hash.clone();
+        this.hashCode = (hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16 | (hash[2] & 0xFF) << 8 | (hash[3] & 0xFF);
+    }
+
+    /**
+     * @return a copy of the info hash bytes.
+     */
+    public byte[] getBytes() {
+        return hash.clone();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof InfoHash)) {
+            return false;
+        }
+        InfoHash that = (InfoHash) other;
+        return hashCode == that.hashCode && Arrays.equals(hash, that.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InfoHash[hash=%s]", Metainfo.bytesToHex(hash));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+package com.slezevicius.sembucha;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+/**
+ * Encoding and decoding of the KRPC messages of the DHT protocol (BEP 5).
+ * Every message is a bencoded dictionary sent in a single UDP packet. "t"
+ * holds the transaction id which a response echoes, "y" is "q" for
+ * queries, "r" for responses and "e" for errors.
+ */
+public class Krpc {
+    public static final String PING = "ping";
+    public static final String FIND_NODE = "find_node";
+    public static final String GET_PEERS = "get_peers";
+    public static final String ANNOUNCE_PEER = "announce_peer";
+    public static final int ERROR_GENERIC = 201;
+    public static final int ERROR_PROTOCOL = 203;
+    public static final int ERROR_METHOD = 204;
+
+    /**
+     * The compact node info is the 20 byte id followed by the compact address.
+     */
+    public static final int NODE_LENGTH = 26;
+
+    private Krpc() {
+    }
+
+    /**
+     * @param transaction
+     * @param method
+     * @param args: the arguments of the query, including our id.
+     * @return the encoded query.
+     * @throws DataFormatException
+     */
+    public static byte[] query(byte[] transaction, String method, Map<String, Object> args) throws DataFormatException {
+        LinkedHashMap<String, Object> dict = new LinkedHashMap<>();
+        dict.put("t", transaction);
+        dict.put("y", "q");
+        dict.put("q", method);
+        dict.put("a", args);
+        return Bencoding.encode(dict);
+    }
+
+    /**
+     * @param transaction: the transaction id of the query.
+     * @param values: the return values, including our id.
+     * @return the encoded response.
+     * @throws DataFormatException
+     */
+    public static byte[] response(byte[] transaction, Map<String, Object> values) throws DataFormatException {
+        LinkedHashMap<String, Object> dict = new LinkedHashMap<>();
+        dict.put("t", transaction);
+        dict.put("y", "r");
+        dict.put("r", values);
+        return Bencoding.encode(dict);
+    }
+
+    /**
+     * @param transaction: the transaction id of the query.
+     * @param code
+     * @param message
+     * @return the encoded error.
+     * @throws DataFormatException
+     */
+    public static byte[] error(byte[] transaction, int code, String message) throws DataFormatException {
+        List<Object> error = new ArrayList<>();
+        error.add((long) code);
+        error.add(message);
+        LinkedHashMap<String, Object> dict = new LinkedHashMap<>();
+        dict.put("t", transaction);
+        dict.put("y", "e");
+        dict.put("e", error);
+        return Bencoding.encode(dict);
+    }
+
+    /**
+     * Decodes a received packet.
+     * @param packet
+     * @param length
+     * @return the message dictionary.
+     * @throws DataFormatException: If it is not a dictionary with a transaction id and a type.
+     */
+    public static LinkedHashMap<String, Object> decode(byte[] packet, int length) throws DataFormatException {
+        LinkedHashMap<String, Object> dict = Extensions.decodeDict(Arrays.copyOf(packet, length));
+        getBytes(dict, "t");
+        getString(dict, "y");
+        return dict;
+    }
+
+    /**
+     * @param dict
+     * @param key
+     * @return the byte string stored under key.
+     * @throws DataFormatException: If it is missing or not a byte string.
+     */
+    public static byte[] getBytes(Map<String, Object> dict, String key) throws DataFormatException {
+        Object value = dict.get(key);
+        if (!(value instanceof byte[])) {
+            throw new DataFormatException("Missing byte string " + key);
+        }
+        return (byte[]) value;
+    }
+
+    /**
+     * @param dict
+     * @param key
+     * @return the string stored under key.
+     * @throws DataFormatException: If it is missing or not a byte string.
+     */
+    public static String getString(Map<String, Object> dict, String key) throws DataFormatException {
+        return new String(getBytes(dict, key));
+    }
+
+    /**
+     * @param dict
+     * @param key
+     * @return the 20 byte id stored under key.
+     * @throws DataFormatException: If it is missing or has the wrong length.
+     */
+    public static byte[] getId(Map<String, Object> dict, String key) throws DataFormatException {
+        byte[] id = getBytes(dict, key);
+        if (id.length != RoutingTable.ID_LENGTH) {
+            throw new DataFormatException("Invalid length of " + key + ": " + id.length);
+        }
+        return id;
+    }
+
+    /**
+     * @param dict
+     * @param key
+     * @return the dictionary stored under key.
+     * @throws DataFormatException: If it is missing or not a dictionary.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getDict(Map<String, Object> dict, String key) throws DataFormatException {
+        Object value = dict.get(key);
+        if (!(value instanceof Map)) {
+            throw new DataFormatException("Missing dictionary " + key);
+        }
+        return (Map<String, Object>) value;
+    }
+
+    /**
+     * Encodes nodes in the compact node info format. Nodes without an IPv4
+     * address are left out.
+     * @param nodes
+     * @return byte[]
+     */
+    public static byte[] encodeNodes(Collection<RoutingTable.Node> nodes) {
+        List<byte[]> infos = new ArrayList<>();
+        for (RoutingTable.Node node : nodes) {
+            InetAddress ip = node.getAddress().getAddress();
+            if (ip instanceof Inet4Address) {
+                byte[] info = new byte[NODE_LENGTH];
+                System.arraycopy(node.getId(), 0, info, 0, RoutingTable.ID_LENGTH);
+                System.arraycopy(ip.getAddress(), 0, info, RoutingTable.ID_LENGTH, 4);
+                int port = node.getAddress().getPort();
+                info[24] = (byte) (port >> 8);
+                info[25] = (byte) port;
+                infos.add(info);
+            }
+        }
+        byte[] out = new byte[infos.size()*NODE_LENGTH];
+        for (int i = 0; i < infos.size(); i++) {
+            System.arraycopy(infos.get(i), 0, out, i*NODE_LENGTH, NODE_LENGTH);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes the compact node info format.
+     * @param compact
+     * @param now: the time the nodes are marked as seen.
+     * @return the nodes.
+     * @throws DataFormatException: If the length is not a multiple of 26.
+     */
+    public static List<RoutingTable.Node> decodeNodes(byte[] compact, long now) throws DataFormatException {
+        if (compact.length % NODE_LENGTH != 0) {
+            throw new DataFormatException("Invalid length of compact nodes " + compact.length);
+        }
+        List<RoutingTable.Node> nodes = new ArrayList<>();
+        for (int i = 0; i < compact.length; i += NODE_LENGTH) {
+            byte[] id = Arrays.copyOfRange(compact, i, i + RoutingTable.ID_LENGTH);
+            byte[] ip = Arrays.copyOfRange(compact, i + 20, i + 24);
+            int port = (compact[i + 24] & 0xFF) << 8 | (compact[i + 25] & 0xFF);
+            if (port == 0) {
+                continue;
+            }
+            try {
+                nodes.add(new RoutingTable.Node(id, new InetSocketAddress(InetAddress.getByAddress(ip), port), now));
+            } catch (UnknownHostException e) {
+                //Never thrown for a four byte address
+                throw new IllegalArgumentException(e);
+            }
+        }
+        return nodes;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.slezevicius.sembucha;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * A parsed magnet URI (BEP 9). Only the info hash is required, given as
+ * xt=urn:btih: followed by 40 hex or 32 base32 characters. The optional
+ * dn parameter is the display name and every tr parameter is a tracker.
+ */
+public class MagnetLink {
+    private static final String PREFIX = "magnet:?";
+    private static final String BTIH = "urn:btih:";
+    private static final String BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+    private final byte[] infoHash;
+    private final String name;
+    private final List<String> trackers;
+
+    private MagnetLink(byte[] infoHash, String name, List<String> trackers) {
+        this.infoHash = infoHash;
+        this.name = name;
+        this.trackers = Collections.unmodifiableList(trackers);
+    }
+
+    /**
+     * @param uri
+     * @return the parsed magnet link.
+     * @throws DataFormatException: If the uri is not a magnet link with a valid bittorrent info hash.
+     */
+    public static MagnetLink parse(String uri) throws DataFormatException {
+        uri = uri.trim();
+        if (!uri.regionMatches(true, 0, PREFIX, 0, PREFIX.length())) {
+            throw new DataFormatException("Not a magnet link: " + uri);
+        }
+        byte[] infoHash = null;
+        String name = null;
+        List<String> trackers = new ArrayList<>();
+        for (String param : uri.substring(PREFIX.length()).split("&")) {
+            int eq = param.indexOf('=');
+            if (eq == -1) {
+                continue;
+            }
+            String key = param.substring(0, eq);
+            String value = decode(param.substring(eq + 1));
+            if (key.equals("xt") && value.regionMatches(true, 0, BTIH, 0, BTIH.length())) {
+                infoHash = decodeHash(value.substring(BTIH.length()));
+            } else if (key.equals("dn")) {
+                name = value;
+            } else if (key.equals("tr") || key.startsWith("tr.")) {
+                if (!trackers.contains(value)) {
+                    trackers.add(value);
+                }
+            }
+        }
+        if (infoHash == null) {
+            throw new DataFormatException("The magnet link has no bittorrent info hash");
+        }
+        return new MagnetLink(infoHash, name, trackers);
+    }
+
+    /**
+     * @param hash: 40 hex or 32 base32 characters.
+     * @return the 20 byte info hash.
+     * @throws DataFormatException
+     */
+    private static byte[] decodeHash(String hash) throws DataFormatException {
+        byte[] out = new byte[InfoHash.LENGTH];
+        if (hash.length() == 40) {
+            for (int i = 0; i < out.length; i++) {
+                int high = Character.digit(hash.charAt(2*i), 16);
+                int low = Character.digit(hash.charAt(2*i + 1), 16);
+                if (high == -1 || low == -1) {
+                    throw new DataFormatException("Invalid hex info hash " + hash);
+                }
+                out[i] = (byte) (high << 4 | low);
+            }
+        } else if (hash.length() == 32) {
+            long buffer = 0;
+            int bits = 0;
+            int index = 0;
+            for (char c : hash.toUpperCase().toCharArray()) {
+                int value = BASE32.indexOf(c);
+                if (value == -1) {
+                    throw new DataFormatException("Invalid base32 info hash " + hash);
+                }
+                buffer = buffer << 5 | value;
+                bits += 5;
+                if (bits >= 8) {
+                    bits -= 8;
+                    out[index++] = (byte) (buffer >> bits);
+                }
+            }
+        } else {
+            throw new DataFormatException("Invalid info hash length " + hash.length());
+        }
+        return out;
+    }
+
+    /**
+     * Percent-decodes a parameter value, a plus stands for a space.
+     * @param value
+     * @return String
+     * @throws DataFormatException
+     */
+    private static String decode(String value) throws DataFormatException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= value.length()) {
+                    throw new DataFormatException("Truncated percent encoding in " + value);
+                }
+                int high = Character.digit(value.charAt(i + 1), 16);
+                int low = Character.digit(value.charAt(i + 2), 16);
+                if (high == -1 || low == -1) {
+                    throw new DataFormatException("Invalid percent encoding in " + value);
+                }
+                out.write(high << 4 | low);
+                i += 2;
+            } else if (c == '+') {
+                out.write(' ');
+            } else {
+                byte[] bytes = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a copy of the info hash.
+     */
+    public byte[] getInfoHash() {
+        return infoHash.clone();
+    }
+
+    /**
+     * @return the display name or null if the link has none.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the tracker urls in the order of the link.
+     */
+    public List<String> getTrackers() {
+        return trackers;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MagnetLink[infoHash=%s, name=%s, trackers=%d]",
+            Metainfo.bytesToHex(infoHash), name, trackers.size());
+    }
+}
\ No newline at end of file
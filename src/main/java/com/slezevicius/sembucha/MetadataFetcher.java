@@ -0,0 +1,499 @@
+package com.slezevicius.sembucha;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fetches the info dictionary of a magnet link through ut_metadata (BEP 9).
+ * Candidates are taken from the torrent's peer pool, which the trackers of
+ * the link and the DHT fill. Up to MAX_CONNECTIONS peers are connected at
+ * once and each of them is asked for a piece no other peer has been asked
+ * for, so the pieces arrive in parallel. Once every piece is in, the
+ * dictionary is checked against the info hash. On a mismatch the pieces are
+ * discarded and the peers that sent them are disconnected. A peer that sent
+ * every piece of a bad dictionary is banned, when several peers took part
+ * the liar cannot be told apart from the others.
+ */
+public class MetadataFetcher extends Worker {
+    /**
+     * Receives the verified info dictionary on the fetcher's thread.
+     */
+    public interface Listener {
+        void metadataFetched(byte[] info);
+    }
+
+    static final int MAX_CONNECTIONS = 5;
+
+    /**
+     * How long a connection may stay silent in milliseconds.
+     */
+    static final int READ_TIMEOUT = 30000;
+    static final long DHT_INTERVAL = 5*60*1000;
+
+    private final byte[] infoHash;
+    private final String peerId;
+    private final int port;
+    private final PeerPool peerPool;
+    private final Dht dht;
+    private final Listener listener;
+
+    /**
+     * The fields below are guarded by the fetcher's monitor. The size is -1
+     * until a peer announces it, agreed holds the open connections that
+     * announced the same size, requested and senders hold the connection
+     * each piece was asked from and received from.
+     */
+    private final Set<Connection> connections = new HashSet<>();
+    private final Set<Connection> agreed = new HashSet<>();
+    private int size = -1;
+    private byte[][] pieces;
+    private Connection[] requested;
+    private Connection[] senders;
+    private byte[] result;
+    private volatile boolean keepRunning = true;
+    private Logger log;
+
+    /**
+     * @param infoHash: the info hash of the magnet link.
+     * @param peerId: our peer id.
+     * @param port: our listening port.
+     * @param peerPool: the pool candidates are taken from.
+     * @param dht: the DHT node to search for peers or null.
+     * @param listener: called once with the verified info dictionary.
+     */
+    MetadataFetcher(byte[] infoHash, String peerId, int port, PeerPool peerPool, Dht dht, Listener listener) {
+        log = LogManager.getFormatterLogger(MetadataFetcher.class);
+        this.infoHash = infoHash.clone();
+        this.peerId = peerId;
+        this.port = port;
+        this.peerPool = peerPool;
+        this.dht = dht;
+        this.listener = listener;
+    }
+
+    /**
+     * Main loop of the fetcher. Searches the DHT periodically and keeps
+     * MAX_CONNECTIONS connections open until the dictionary is complete.
+     */
+    @Override
+    public void run() {
+        log.trace("%s in the main loop", toString());
+        long lastDht = 0;
+        try {
+            while (keepRunning) {
+                synchronized(this) {
+                    if (result != null) {
+                        break;
+                    }
+                }
+                if (dht != null && System.currentTimeMillis() - lastDht >= DHT_INTERVAL) {
+                    lastDht = System.currentTimeMillis();
+                    searchDht();
+                }
+                connect();
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            if (keepRunning) {
+                log.error("%s interrupted", toString());
+            }
+        }
+        List<Connection> open;
+        byte[] info;
+        synchronized(this) {
+            open = new ArrayList<>(connections);
+            info = result;
+        }
+        for (Connection conn : open) {
+            conn.close();
+        }
+        if (info != null && keepRunning) {
+            log.info("%s fetched the %d byte info dictionary", toString(), info.length);
+            listener.metadataFetched(info);
+        }
+        log.trace("%s finished its main loop", toString());
+    }
+
+    private void searchDht() {
+        log.debug("%s searching the DHT for peers", toString());
+        dht.getPeers(infoHash, port, new Dht.Listener() {
+            @Override
+            public void foundPeers(long[] found) {
+                for (long key : found) {
+                    Pair<InetAddress, Integer> addr = PeerPool.unpack(key);
+                    peerPool.add(addr.getLeft(), addr.getRight(), PeerPool.Source.DHT);
+                }
+            }
+        });
+    }
+
+    /**
+     * Connects to candidates from the pool until MAX_CONNECTIONS are open.
+     */
+    private void connect() {
+        int free;
+        synchronized(this) {
+            free = MAX_CONNECTIONS - connections.size();
+        }
+        if (free <= 0) {
+            return;
+        }
+        for (PeerPool.Candidate candidate : peerPool.takeConnectable(free)) {
+            Connection conn = new Connection(candidate);
+            synchronized(this) {
+                connections.add(conn);
+            }
+            conn.start();
+        }
+    }
+
+    /**
+     * Records the size a peer announced. The first announcement fixes the
+     * size for as long as a connection that announced it is open, peers
+     * announcing another one are not used meanwhile.
+     * @param conn
+     * @param announced
+     * @return boolean indicating whether the peer agrees with the size.
+     */
+    synchronized boolean setSize(Connection conn, int announced) {
+        if (size == -1) {
+            size = announced;
+            int count = Extensions.metadataPieceCount(size);
+            pieces = new byte[count][];
+            requested = new Connection[count];
+            senders = new Connection[count];
+        } else if (size != announced) {
+            return false;
+        }
+        agreed.add(conn);
+        return true;
+    }
+
+    /**
+     * Forgets the size and the pieces received for it, so that the next
+     * peer's announcement is taken.
+     */
+    private void resetSize() {
+        size = -1;
+        pieces = null;
+        requested = null;
+        senders = null;
+        agreed.clear();
+    }
+
+    /**
+     * Picks the piece to ask a connection for. Pieces nobody was asked for
+     * come first. When all missing pieces are out, another connection's
+     * piece is asked for again so that a slow peer does not hold up the end.
+     * @param conn
+     * @return the piece index or -1 if nothing is missing.
+     */
+    synchronized int nextPiece(Connection conn) {
+        if (pieces == null || result != null) {
+            return -1;
+        }
+        int duplicate = -1;
+        for (int i = 0; i < pieces.length; i++) {
+            if (pieces[i] != null) {
+                continue;
+            }
+            if (requested[i] == null) {
+                requested[i] = conn;
+                return i;
+            } else if (duplicate == -1 && requested[i] != conn) {
+                duplicate = i;
+            }
+        }
+        if (duplicate != -1) {
+            requested[duplicate] = conn;
+        }
+        return duplicate;
+    }
+
+    /**
+     * Stores a received piece and verifies the dictionary once it is
+     * complete.
+     * @param conn
+     * @param piece
+     * @param data
+     * @return false if the piece has a wrong index or length.
+     */
+    synchronized boolean received(Connection conn, int piece, byte[] data) {
+        if (pieces == null || piece < 0 || piece >= pieces.length) {
+            return false;
+        }
+        int expected = piece == pieces.length - 1
+            ? size - (pieces.length - 1)*Extensions.METADATA_PIECE_LENGTH
+            : Extensions.METADATA_PIECE_LENGTH;
+        if (data.length != expected) {
+            return false;
+        }
+        if (pieces[piece] == null) {
+            pieces[piece] = data;
+            senders[piece] = conn;
+        }
+        for (byte[] p : pieces) {
+            if (p == null) {
+                return true;
+            }
+        }
+        byte[] info = new byte[size];
+        for (int i = 0; i < pieces.length; i++) {
+            System.arraycopy(pieces[i], 0, info, i*Extensions.METADATA_PIECE_LENGTH, pieces[i].length);
+        }
+        if (Arrays.equals(infoHash, sha1(info))) {
+            result = info;
+            return true;
+        }
+        log.warn("%s received an info dictionary that does not match the info hash", toString());
+        Set<Connection> suspects = new HashSet<>(Arrays.asList(senders));
+        for (Connection suspect : suspects) {
+            if (suspects.size() == 1) {
+                peerPool.ban(suspect.candidate.getIp(), suspect.candidate.getPort());
+            }
+            suspect.close();
+        }
+        //The size may have been a lie as well
+        resetSize();
+        return false;
+    }
+
+    /**
+     * Forgets the pieces a connection was asked for, so that others are asked.
+     * Once no open connection agrees with the size, it may have been a lie
+     * and is forgotten too, otherwise peers announcing the real size would
+     * keep being turned away.
+     * @param conn
+     */
+    synchronized void release(Connection conn) {
+        connections.remove(conn);
+        agreed.remove(conn);
+        if (requested == null) {
+            return;
+        }
+        if (agreed.isEmpty() && result == null) {
+            log.debug("%s forgets the metadata size %d, no peer announcing it is left", toString(), size);
+            resetSize();
+            return;
+        }
+        for (int i = 0; i < requested.length; i++) {
+            if (requested[i] == conn) {
+                requested[i] = null;
+            }
+        }
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform supports SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of open connections.
+     */
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Stops the fetcher and closes its connections.
+     */
+    public void shutdown() {
+        log.trace("Shutting down %s", toString());
+        keepRunning = false;
+        interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MetadataFetcher[infoHash=%s]", Metainfo.bytesToHex(infoHash));
+    }
+
+    /**
+     * A connection to a single peer which only speaks enough of the
+     * protocol to exchange ut_metadata messages. Everything else the peer
+     * sends is skipped.
+     */
+    class Connection extends Worker {
+        private final PeerPool.Candidate candidate;
+        private volatile Socket sock;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private int metadataId = 0;
+
+        Connection(PeerPool.Candidate candidate) {
+            this.candidate = candidate;
+        }
+
+        @Override
+        public void run() {
+            boolean connected = false;
+            try {
+                sock = new Socket();
+                sock.connect(new InetSocketAddress(candidate.getIp(), candidate.getPort()), Peer.HANDSHAKE_TIMEOUT);
+                connected = true;
+                sock.setSoTimeout(Peer.HANDSHAKE_TIMEOUT);
+                in = new DataInputStream(sock.getInputStream());
+                out = new DataOutputStream(sock.getOutputStream());
+                sendHandshake();
+                readHandshake();
+                sock.setSoTimeout(READ_TIMEOUT);
+                sendExtended(Extensions.HANDSHAKE, Extensions.encodeHandshake(port, null));
+                boolean needed = true;
+                while (keepRunning && needed) {
+                    needed = receive();
+                }
+            } catch (IOException | DataFormatException e) {
+                log.debug("%s lost %s: %s", MetadataFetcher.this.toString(), candidate.toString(), e.getMessage());
+            } finally {
+                release(this);
+                close();
+                if (connected) {
+                    peerPool.disconnected(candidate.getIp(), candidate.getPort());
+                } else {
+                    peerPool.connectFailed(candidate);
+                }
+            }
+        }
+
+        private void sendHandshake() throws IOException {
+            byte[] message = new byte[68];
+            message[0] = 19;
+            byte[] pstr = "BitTorrent protocol".getBytes();
+            System.arraycopy(pstr, 0, message, 1, pstr.length);
+            //Extension protocol (BEP 10)
+            message[1 + pstr.length + 5] |= 0x10;
+            System.arraycopy(infoHash, 0, message, 28, infoHash.length);
+            byte[] id = peerId.getBytes();
+            System.arraycopy(id, 0, message, 48, Math.min(id.length, 20));
+            out.write(message);
+            out.flush();
+        }
+
+        private void readHandshake() throws IOException, DataFormatException {
+            byte[] message = new byte[68];
+            in.readFully(message);
+            if (message[0] != 19 || !new String(message, 1, 19).equals("BitTorrent protocol")) {
+                throw new DataFormatException("Not a bittorrent handshake");
+            } else if ((message[25] & 0x10) == 0) {
+                throw new DataFormatException("The peer does not support the extension protocol");
+            } else if (!Arrays.equals(infoHash, Arrays.copyOfRange(message, 28, 48))) {
+                throw new DataFormatException("InfoHash not matching");
+            }
+        }
+
+        /**
+         * Reads and handles one message.
+         * @return false once the connection has nothing more to do.
+         * @throws IOException
+         * @throws DataFormatException
+         */
+        private boolean receive() throws IOException, DataFormatException {
+            int length = in.readInt();
+            if (length == 0) {
+                return true;
+            } else if (length < 0) {
+                throw new DataFormatException("Negative message length");
+            }
+            int id = in.readUnsignedByte();
+            if (id != Extensions.MESSAGE_ID || length > Extensions.MAX_MESSAGE_LENGTH || length < 2) {
+                skip(length - 1);
+                return true;
+            }
+            int extendedId = in.readUnsignedByte();
+            byte[] payload = new byte[length - 2];
+            in.readFully(payload);
+            if (extendedId == Extensions.HANDSHAKE) {
+                Map<String, Object> handshake = Extensions.decodeDict(payload);
+                Integer utMetadataId = Extensions.readExtensionIds(handshake).get(Extensions.UT_METADATA_NAME);
+                int announced = Extensions.readMetadataSize(handshake);
+                if (utMetadataId == null || announced == -1 || !setSize(this, announced)) {
+                    return false;
+                }
+                metadataId = utMetadataId;
+                return request();
+            } else if (extendedId == Extensions.UT_METADATA) {
+                Pair<Map<String, Object>, byte[]> message = Extensions.decodeMetadata(payload);
+                long type = (Long) message.getLeft().get("msg_type");
+                long piece = (Long) message.getLeft().get("piece");
+                if (type == Extensions.METADATA_DATA) {
+                    return received(this, (int) piece, message.getRight()) && request();
+                } else if (type == Extensions.METADATA_REJECT) {
+                    return false;
+                } else if (type == Extensions.METADATA_REQUEST && metadataId != 0) {
+                    //We have nothing to give yet
+                    sendExtended((byte) metadataId, Extensions.encodeMetadata(Extensions.METADATA_REJECT, (int) piece, 0, null));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Asks the peer for the next missing piece.
+         * @return false if no piece is missing.
+         * @throws IOException
+         * @throws DataFormatException
+         */
+        private boolean request() throws IOException, DataFormatException {
+            int piece = nextPiece(this);
+            if (piece == -1) {
+                return false;
+            }
+            sendExtended((byte) metadataId, Extensions.encodeMetadata(Extensions.METADATA_REQUEST, piece, 0, null));
+            return true;
+        }
+
+        private void sendExtended(byte extendedId, byte[] payload) throws IOException {
+            out.writeInt(2 + payload.length);
+            out.writeByte(Extensions.MESSAGE_ID);
+            out.writeByte(extendedId);
+            out.write(payload);
+            out.flush();
+        }
+
+        private void skip(int count) throws IOException {
+            while (count > 0) {
+                int skipped = in.skipBytes(count);
+                if (skipped <= 0) {
+                    in.readByte();
+                    skipped = 1;
+                }
+                count -= skipped;
+            }
+        }
+
+        /**
+         * Closes the socket, which ends the connection's thread.
+         */
+        void close() {
+            Socket s = sock;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    log.debug("%s could not close the socket of %s", MetadataFetcher.this.toString(), candidate.toString());
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
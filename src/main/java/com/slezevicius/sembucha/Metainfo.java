@@ -4,11 +4,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.zip.DataFormatException;
 
 /**
@@ -16,8 +21,14 @@ import java.util.zip.DataFormatException;
  */
 public class Metainfo {
     private static final byte[] HEX_ARRAY = "0123456789ABCDEF".getBytes();
+
+    /**
+     * Metainfo files at least this large are memory-mapped instead of being
+     * read onto the heap. The piece hashes then stay in the mapping.
+     */
+    private static final long MAP_THRESHOLD = 4*1024*1024;
     private long pieceLength;
-    private byte[] pieces;
+    private PieceHashes pieces;
     private String name;
     private long length;
     private String announce;
@@ -28,276 +39,380 @@ public class Metainfo {
     private String encoding;
     private byte[] infoHash;
 
+    /**
+     * The raw bytes of the info dictionary, served to peers through
+     * ut_metadata. Null while the info dictionary of a magnet link has not
+     * been fetched.
+     */
+    private ByteBuffer info;
+
     Metainfo(File file) throws DataFormatException, IOException {
-        Bencoding b = new Bencoding(readFile(file));
-        updateFields(b.decode());
+        parse(loadFile(file));
     }
 
-    private byte[] readFile(File file) throws IOException {
-        InputStream stream = new FileInputStream(file);
-        byte[] output = stream.readAllBytes();
-        stream.close();
-        return output;
+    /**
+     * Creates the metainfo of a magnet link whose info dictionary is not
+     * known yet. Only the identity and the trackers are available, the name
+     * is the display name of the link or the hex info hash.
+     * @param magnet
+     */
+    Metainfo(MagnetLink magnet) {
+        infoHash = magnet.getInfoHash();
+        name = magnet.getName() != null ? magnet.getName() : bytesToHex(infoHash);
+        updateTrackers(magnet);
     }
-    
-    /** 
-     * Updates the fields of the class based on the decoded object.
-     * @param data: a decoded bencoding object.
-     * @throws DataFormatException: If the object did not meet the metainfo file requirements.
+
+    /**
+     * Creates the metainfo of a magnet link from the info dictionary that
+     * was fetched from peers.
+     * @param magnet
+     * @param info: the bencoded info dictionary.
+     * @throws DataFormatException: If the dictionary is malformed or does not match the info hash.
      */
-    private void updateFields(Object data) throws DataFormatException {
-        if (data instanceof LinkedHashMap) {
-            //The data linkedhashmap is guaranteed to be of type signature <String, Object> by Bencoding
-            LinkedHashMap<String, Object> metaDict = (LinkedHashMap<String, Object>) data;
-            updateInfo(metaDict);
-            updateAnnounce(metaDict);
-            updateAnnounceList(metaDict);
-            updateCreationDate(metaDict);
-            updateComment(metaDict);
-            updateCreatedBy(metaDict);
-            updateEncoding(metaDict);
-        } else {
-            throw new DataFormatException("Metainfo file should be a bencoded dictionary");
+    Metainfo(MagnetLink magnet, byte[] info) throws DataFormatException {
+        infoHash = magnet.getInfoHash();
+        ByteBuffer content = ByteBuffer.wrap(info);
+        if (!Arrays.equals(infoHash, digestSpan(content, 0, info.length))) {
+            throw new DataFormatException("The info dictionary does not match the info hash");
+        }
+        BencodeParser parser = new BencodeParser(content);
+        updateInfo(parser);
+        if (parser.position() != info.length) {
+            throw new DataFormatException("Trailing data after the info dictionary");
         }
+        this.info = content;
+        updateTrackers(magnet);
     }
-    
-    /** 
-     * Updates the fields contained in the info dictionary.
-     * @param metaDict
-     * @throws DataFormatException
+
+    /**
+     * Uses the first tracker of the magnet link as the announce url. If
+     * there are more, each gets a tier of its own in the announce list.
+     * @param magnet
      */
-    private void updateInfo(LinkedHashMap<String, Object> metaDict) throws DataFormatException {
-        String keyName = "info";
-        if (metaDict.containsKey(keyName)) {
-            //The infoDict is guaranteed to be of type signature <String, Object> by Bencoding
-            LinkedHashMap<String, Object> infoDict = (LinkedHashMap<String, Object>) metaDict.get(keyName);
-            updateInfoHash(infoDict);
-            updatePieceLength(infoDict);
-            updatePieces(infoDict);
-            //Supports only single file mode
-            updateName(infoDict);
-            updateLength(infoDict);
-        } else {
-            throw new DataFormatException("Metainfo dict must contain the " + keyName + " key");
+    private void updateTrackers(MagnetLink magnet) {
+        List<String> trackers = magnet.getTrackers();
+        if (trackers.isEmpty()) {
+            return;
+        }
+        announce = trackers.get(0);
+        if (trackers.size() > 1) {
+            announceList = new ArrayList<ArrayList<String>>();
+            for (String tracker : trackers) {
+                announceList.add(new ArrayList<String>(Collections.singletonList(tracker)));
+            }
         }
     }
-    
+
     /** 
-     * Updates the infoHash field based on the infoDict.
-     * @param infoDict
-     * @throws DataFormatException
+     * Loads the metainfo file. Large files are memory-mapped read-only,
+     * small ones are read onto the heap.
+     * @param file
+     * @return ByteBuffer with the content of the file.
+     * @throws IOException
      */
-    private void updateInfoHash(LinkedHashMap<String, Object> infoDict) throws DataFormatException {
-        ArrayList<Byte> ByteList = Bencoding.encode(infoDict);
-        Byte[] ByteArray = new Byte[ByteList.size()];
-        ByteArray = ByteList.toArray(ByteArray);
-        byte[] byteArray = new byte[ByteArray.length];
-        for (int i = 0; i < ByteArray.length; i++) {
-            byteArray[i] = ByteArray[i].byteValue();
+    private static ByteBuffer loadFile(File file) throws IOException {
+        if (file.length() < MAP_THRESHOLD) {
+            return ByteBuffer.wrap(readFile(file));
         }
-        MessageDigest md;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
         try {
-            md = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            //The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
         }
-        infoHash = md.digest(byteArray);
     }
-    
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream stream = new FileInputStream(file);
+        byte[] output = stream.readAllBytes();
+        stream.close();
+        return output;
+    }
+
     /** 
-     * Updates the pieceLength field based on the infoDict.
-     * @param infoDict
-     * @throws DataFormatException
+     * Walks the bencoded metainfo with a streaming parser and updates the
+     * fields of the class. Unknown keys are skipped without being decoded.
+     * @param content: the bencoded metainfo file.
+     * @throws DataFormatException: If the content did not meet the metainfo file requirements.
      */
-    private void updatePieceLength(LinkedHashMap<String, Object> infoDict) throws DataFormatException {
-        String keyName = "piece length";
-        if (infoDict.containsKey(keyName)) {
-            if (infoDict.get(keyName) instanceof Long) {
-                pieceLength = (long) infoDict.get(keyName);
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type int.");
+    private void parse(ByteBuffer content) throws DataFormatException {
+        BencodeParser parser = new BencodeParser(content);
+        if (parser.next() != BencodeParser.Token.DICT) {
+            throw new DataFormatException("Metainfo file should be a bencoded dictionary");
+        }
+        boolean foundInfo = false;
+        while (parser.next() != BencodeParser.Token.END) {
+            String keyName = parser.getStringValue();
+            switch (keyName) {
+                case "info":
+                    updateInfo(parser);
+                    updateInfoHash(content, parser.getInfoStart(), parser.getInfoEnd());
+                    info = slice(content, parser.getInfoStart(), parser.getInfoEnd());
+                    foundInfo = true;
+                    break;
+                case "announce":
+                    announce = readString(parser, keyName);
+                    break;
+                case "announce-list":
+                    updateAnnounceList(parser);
+                    break;
+                case "creation date":
+                    creationDate = readLong(parser, keyName);
+                    break;
+                case "comment":
+                    comment = readString(parser, keyName);
+                    break;
+                case "created by":
+                    createdBy = readString(parser, keyName);
+                    break;
+                case "encoding":
+                    encoding = readString(parser, keyName);
+                    break;
+                default:
+                    parser.skipValue();
             }
-        } else {
-            throw new DataFormatException("Metainfo dict must contain the " + keyName + " key");
+        }
+        if (!foundInfo) {
+            throw new DataFormatException("Metainfo dict must contain the info key");
+        }
+        if (announce == null) {
+            throw new DataFormatException("Metainfo dict must contain the announce key");
         }
     }
     
     /** 
-     * Updates the Pieces field based on the infoDict.
-     * @param infoDict
+     * Updates the fields contained in the info dictionary.
+     * @param parser: a parser positioned right after the info key.
      * @throws DataFormatException
      */
-    private void updatePieces(LinkedHashMap<String, Object> infoDict) throws DataFormatException {
-        String keyName = "pieces";
-        if (infoDict.containsKey(keyName)) {
-            if (infoDict.get(keyName) instanceof byte[]) {
-                pieces = (byte[]) infoDict.get(keyName);
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
+    private void updateInfo(BencodeParser parser) throws DataFormatException {
+        if (parser.next() != BencodeParser.Token.DICT) {
+            throw new DataFormatException("The value of key info must be of type dict.");
+        }
+        boolean foundPieceLength = false;
+        boolean foundLength = false;
+        while (parser.next() != BencodeParser.Token.END) {
+            String keyName = parser.getStringValue();
+            switch (keyName) {
+                case "piece length":
+                    pieceLength = readLong(parser, keyName);
+                    foundPieceLength = true;
+                    break;
+                case "pieces":
+                    if (parser.next() != BencodeParser.Token.STRING) {
+                        throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
+                    }
+                    pieces = new PieceHashes(parser.getString());
+                    break;
+                case "name":
+                    //Supports only single file mode
+                    name = readString(parser, keyName);
+                    break;
+                case "length":
+                    length = readLong(parser, keyName);
+                    foundLength = true;
+                    break;
+                default:
+                    parser.skipValue();
             }
-        } else {
-            throw new DataFormatException("Metainfo dict must contain the " + keyName + " key");
+        }
+        if (!foundPieceLength) {
+            throw new DataFormatException("Metainfo dict must contain the piece length key");
+        } else if (pieces == null) {
+            throw new DataFormatException("Metainfo dict must contain the pieces key");
+        } else if (name == null) {
+            throw new DataFormatException("Metainfo dict must contain the name key");
+        } else if (!foundLength) {
+            throw new DataFormatException("Metainfo dict must contain the length key");
         }
     }
     
     /** 
-     * Updates the name field based on the infoDict.
-     * @param infoDict
-     * @throws DataFormatException
+     * Updates the infoHash field with a single digest pass over the original
+     * bytes of the info dictionary, so the hash is correct even for
+     * dictionaries that would not survive a decode and re-encode unchanged.
+     * @param content: the whole metainfo file.
+     * @param start: offset of the info dictionary.
+     * @param end: offset right after the info dictionary.
      */
-    private void updateName(LinkedHashMap<String, Object> infoDict) throws DataFormatException {
-        String keyName = "name";
-        if (infoDict.containsKey(keyName)) {
-            if (infoDict.get(keyName) instanceof byte[]) {
-                name = new String((byte[]) infoDict.get(keyName));
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
-            }
-        } else {
-            throw new DataFormatException("Metainfo dict must contain the " + keyName + " key");
-        }
+    private void updateInfoHash(ByteBuffer content, int start, int end) {
+        infoHash = digestSpan(content, start, end);
     }
-    
+
     /** 
-     * Updates the length field based on the infoDict.
-     * @param infoDict
-     * @throws DataFormatException
+     * @param content
+     * @param start
+     * @param end
+     * @return the SHA-1 digest of content[start, end).
      */
-    private void updateLength(LinkedHashMap<String, Object> infoDict) throws DataFormatException {
-        String keyName = "length";
-        if (infoDict.containsKey(keyName)) {
-            if (infoDict.get(keyName) instanceof Long) {
-                length = (long) infoDict.get(keyName);
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
-            }
-        } else {
-            throw new DataFormatException("Metainfo dict must contain the " + keyName + " key");
+    private static byte[] digestSpan(ByteBuffer content, int start, int end) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
+        ByteBuffer span = content.duplicate();
+        span.limit(end);
+        span.position(start);
+        md.update(span);
+        return md.digest();
     }
-    
+
     /** 
-     * Updates the announce url based on the metaDict.
-     * @param metaDict
+     * @param content
+     * @param start
+     * @param end
+     * @return a buffer sharing content[start, end).
+     */
+    private static ByteBuffer slice(ByteBuffer content, int start, int end) {
+        ByteBuffer span = content.duplicate();
+        span.limit(end);
+        span.position(start);
+        return span.slice();
+    }
+
+    /** 
+     * Fast path for when only the identity of a torrent is needed. Reads the
+     * info hash and the number of pieces without decoding any strings, in
+     * particular without copying the pieces array.
+     * @param file: the metainfo file.
+     * @return Pair of the info hash and the piece count.
      * @throws DataFormatException
+     * @throws IOException
      */
-    private void updateAnnounce(LinkedHashMap<String, Object> metaDict) throws DataFormatException {
-        String keyName = "announce";
-        if (metaDict.containsKey(keyName)) {
-            if (metaDict.get(keyName) instanceof byte[]) {
-                announce = new String((byte[]) metaDict.get(keyName));
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
+    public static Pair<byte[], Integer> readInfoHashAndPieceCount(File file) throws DataFormatException, IOException {
+        ByteBuffer content = loadFile(file);
+        BencodeParser parser = new BencodeParser(content);
+        if (parser.next() != BencodeParser.Token.DICT) {
+            throw new DataFormatException("Metainfo file should be a bencoded dictionary");
+        }
+        byte[] infoKey = "info".getBytes();
+        byte[] piecesKey = "pieces".getBytes();
+        int pieceCount = -1;
+        while (parser.next() != BencodeParser.Token.END) {
+            if (!parser.stringEquals(infoKey)) {
+                parser.skipValue();
+                continue;
             }
-        } else {
-            throw new DataFormatException("Metainfo dict must contain the " + keyName + " key");
+            if (parser.next() != BencodeParser.Token.DICT) {
+                throw new DataFormatException("The value of key info must be of type dict.");
+            }
+            while (parser.next() != BencodeParser.Token.END) {
+                if (parser.stringEquals(piecesKey)) {
+                    if (parser.next() != BencodeParser.Token.STRING) {
+                        throw new DataFormatException("The value of key pieces must be of type byte string.");
+                    }
+                    pieceCount = parser.getStringLength()/20;
+                } else {
+                    parser.skipValue();
+                }
+            }
+            break;
+        }
+        if (parser.getInfoEnd() == -1) {
+            throw new DataFormatException("Metainfo dict must contain the info key");
+        } else if (pieceCount == -1) {
+            throw new DataFormatException("Metainfo dict must contain the pieces key");
         }
+        return new Pair<>(digestSpan(content, parser.getInfoStart(), parser.getInfoEnd()), pieceCount);
     }
     
     /** 
-     * Updates the announce urls list based on the metaDict.
-     * @param metaDict
+     * Updates the announce urls list.
+     * @param parser: a parser positioned right after the announce-list key.
      * @throws DataFormatException
      */
-    private void updateAnnounceList(LinkedHashMap<String, Object> metaDict) throws DataFormatException {
+    private void updateAnnounceList(BencodeParser parser) throws DataFormatException {
         String keyName = "announce-list";
-        if (metaDict.containsKey(keyName)) {
-            announceList = new ArrayList<ArrayList<String>>();
-            if (metaDict.get(keyName) instanceof ArrayList) {
-                //The announce-list list is guaranteed to be of type signature ArrayList<Object> by Bencoding
-                for (Object tracker_list : (ArrayList<Object>) metaDict.get(keyName)) {
-                    if (tracker_list instanceof ArrayList) {
-                        announceList.add(new ArrayList<String>());
-                        //The tracker_list is guaranteed to be of type signature ArrayList<Object> by Bencoding
-                        for (Object el : (ArrayList<Object>) tracker_list) {
-                            if (el instanceof byte[]) {
-                                announceList.get(announceList.size() - 1).add(new String((byte[]) el));
-                            } else {
-                                throw new DataFormatException("All elements must be strings within the inner lists of key " + keyName);
-                            }
-                        }
-                    } else {
-                        throw new DataFormatException("The list of key " + keyName + " must contain only lists");
-                    }
+        announceList = new ArrayList<ArrayList<String>>();
+        if (parser.next() != BencodeParser.Token.LIST) {
+            throw new DataFormatException("The value of key " + keyName + " must be of type list.");
+        }
+        for (BencodeParser.Token tier = parser.next(); tier != BencodeParser.Token.END; tier = parser.next()) {
+            if (tier != BencodeParser.Token.LIST) {
+                throw new DataFormatException("The list of key " + keyName + " must contain only lists");
+            }
+            ArrayList<String> trackers = new ArrayList<String>();
+            for (BencodeParser.Token el = parser.next(); el != BencodeParser.Token.END; el = parser.next()) {
+                if (el != BencodeParser.Token.STRING) {
+                    throw new DataFormatException("All elements must be strings within the inner lists of key " + keyName);
                 }
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type list.");
+                trackers.add(parser.getStringValue());
             }
+            announceList.add(trackers);
         }
     }
 
     /** 
-     * Updates the cration date based on the metaDict.
-     * @param metaDict
+     * Reads the next value which must be a byte string.
+     * @param parser
+     * @param keyName: the key of the value for error messages.
+     * @return String
      * @throws DataFormatException
      */
-    private void updateCreationDate(LinkedHashMap<String, Object> metaDict) throws DataFormatException {
-        String keyName = "creation date";
-        if (metaDict.containsKey(keyName)) {
-            if (metaDict.get(keyName) instanceof Long) {
-                creationDate = (long) metaDict.get(keyName);
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type int.");
-            }
+    private static String readString(BencodeParser parser, String keyName) throws DataFormatException {
+        if (parser.next() != BencodeParser.Token.STRING) {
+            throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
         }
+        return parser.getStringValue();
     }
-    
+
     /** 
-     * Updates the comment based on the metaDict.
-     * @param metaDict
+     * Reads the next value which must be an integer.
+     * @param parser
+     * @param keyName: the key of the value for error messages.
+     * @return long
      * @throws DataFormatException
      */
-    private void updateComment(LinkedHashMap<String, Object> metaDict) throws DataFormatException {
-        String keyName = "comment";
-        if (metaDict.containsKey(keyName)) {
-            if (metaDict.get(keyName) instanceof byte[]) {
-                comment = new String((byte[]) metaDict.get(keyName));
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
-            }
+    private static long readLong(BencodeParser parser, String keyName) throws DataFormatException {
+        if (parser.next() != BencodeParser.Token.INTEGER) {
+            throw new DataFormatException("The value of key " + keyName + " must be of type int.");
         }
+        return parser.getLong();
     }
-    
-    /** 
-     * Updates created by based on the metaDict.
-     * @param metaDict
-     * @throws DataFormatException
+
+    /**
+     * @return boolean indicating whether the info dictionary is known.
      */
-    private void updateCreatedBy(LinkedHashMap<String, Object> metaDict) throws DataFormatException {
-        String keyName = "created by";
-        if (metaDict.containsKey(keyName)) {
-            if (metaDict.get(keyName) instanceof byte[]) {
-                createdBy = new String((byte[]) metaDict.get(keyName));
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
-            }
-        }
+    public boolean hasInfo() {
+        return info != null;
     }
 
-    /** 
-     * Updates the encoding based on the metaDict.
-     * @param metaDict
-     * @throws DataFormatException
+    /**
+     * @return the size of the bencoded info dictionary in bytes.
      */
-    private void updateEncoding(LinkedHashMap<String, Object> metaDict) throws DataFormatException {
-        String keyName = "encoding";
-        if (metaDict.containsKey(keyName)) {
-            if (metaDict.get(keyName) instanceof byte[]) {
-                encoding = new String((byte[]) metaDict.get(keyName));
-            } else {
-                throw new DataFormatException("The value of key " + keyName + " must be of type byte string.");
-            }
-        }
+    public int getInfoSize() {
+        return info.capacity();
+    }
+
+    /**
+     * Copies a part of the bencoded info dictionary.
+     * @param offset
+     * @param length
+     * @return byte[]
+     */
+    public byte[] readInfo(int offset, int length) {
+        byte[] out = new byte[length];
+        ByteBuffer span = info.duplicate();
+        span.position(offset);
+        span.get(out);
+        return out;
     }
 
     public long getPieceLength() {
         return pieceLength;
     }
 
-    public byte[] getPieces() {
+    public PieceHashes getPieceHashes() {
         return pieces;
     }
 
+    public int getPieceCount() {
+        return pieces.count();
+    }
+
     public String getName() {
         return name;
     }
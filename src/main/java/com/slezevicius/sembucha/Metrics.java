@@ -0,0 +1,169 @@
+package com.slezevicius.sembucha;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the hot paths, one registry each for the
+ * client, every torrent and every peer. The registries form a tree: a count
+ * added to a peer's registry is added to its torrent's and the client's as
+ * well, so every level holds its own totals. Histograms are only kept where
+ * they are recorded. Everything is lock-free, so a snapshot can be taken at
+ * any time without stopping the peers, at the price of not being an atomic
+ * view of all values.
+ */
+public class Metrics {
+    public enum Counter {
+        BYTES_IN,
+        BYTES_OUT,
+        BLOCKS_REQUESTED,
+        BLOCKS_RECEIVED,
+        BLOCKS_REJECTED,
+        BLOCKS_SENT,
+        PIECES_TIMED_OUT,
+        PIECES_WRITTEN,
+        HASH_FAILS,
+        ANNOUNCES,
+        ANNOUNCE_FAILURES
+    }
+
+    public enum Timer {
+        /**
+         * Milliseconds from requesting a block to receiving it.
+         */
+        REQUEST_RTT_MILLIS,
+
+        /**
+         * Microseconds from the last block of a piece arriving to the piece being on disk.
+         */
+        PIECE_COMPLETION_MICROS,
+
+        /**
+         * Milliseconds from the first block of a piece arriving to the piece being on disk.
+         */
+        PIECE_DOWNLOAD_MILLIS,
+
+        /**
+         * Bytes waiting for the disk workers, sampled whenever a piece is handed to them.
+         */
+        DISK_QUEUE_BYTES,
+        ANNOUNCE_MILLIS
+    }
+
+    /**
+     * A value read when a snapshot is taken.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    private final String name;
+    private final Metrics parent;
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final AtomicReferenceArray<Histogram> histograms = new AtomicReferenceArray<>(Timer.values().length);
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final Map<String, Metrics> children = new ConcurrentHashMap<>();
+
+    /**
+     * @param name: the key of the registry in the snapshot of its parent.
+     * @param parent: the registry that also receives the counts, or null.
+     */
+    Metrics(String name, Metrics parent) {
+        this.name = name;
+        this.parent = parent;
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        if (parent != null) {
+            parent.children.put(name, this);
+        }
+    }
+
+    public void increment(Counter counter) {
+        add(counter, 1);
+    }
+
+    public void add(Counter counter, long n) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.counters[counter.ordinal()].add(n);
+        }
+    }
+
+    public void record(Timer timer, long value) {
+        for (Metrics m = this; m != null; m = m.parent) {
+            m.histogram(timer).record(value);
+        }
+    }
+
+    /**
+     * @param timer
+     * @return the histogram of the timer, created on first use.
+     */
+    public Histogram histogram(Timer timer) {
+        Histogram histogram = histograms.get(timer.ordinal());
+        if (histogram == null) {
+            histograms.compareAndSet(timer.ordinal(), null, new Histogram());
+            histogram = histograms.get(timer.ordinal());
+        }
+        return histogram;
+    }
+
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public void gauge(String gaugeName, Gauge gauge) {
+        gauges.put(gaugeName, gauge);
+    }
+
+    /**
+     * Detaches the registry from its parent. Counts already added to the
+     * parent stay there.
+     */
+    public void remove() {
+        if (parent != null) {
+            parent.children.remove(name, this);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the counters, histograms and gauges by their lower case names
+     * and the snapshots of the child registries under "children".
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            out.put(counter.toString().toLowerCase(), get(counter));
+        }
+        for (Timer timer : Timer.values()) {
+            Histogram histogram = histograms.get(timer.ordinal());
+            if (histogram != null) {
+                out.put(timer.toString().toLowerCase(), histogram.snapshot());
+            }
+        }
+        for (Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            out.put(gauge.getKey(), gauge.getValue().value());
+        }
+        if (!children.isEmpty()) {
+            Map<String, Object> snapshots = new LinkedHashMap<>();
+            for (Metrics child : children.values()) {
+                snapshots.put(child.name, child.snapshot());
+            }
+            out.put("children", snapshots);
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Metrics[name=%s, bytesIn=%d, bytesOut=%d, piecesWritten=%d, hashFails=%d]",
+            name, get(Counter.BYTES_IN), get(Counter.BYTES_OUT), get(Counter.PIECES_WRITTEN), get(Counter.HASH_FAILS));
+    }
+}
\ No newline at end of file
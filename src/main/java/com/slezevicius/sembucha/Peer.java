@@ -7,10 +7,14 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.InvalidParameterException;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.zip.DataFormatException;
 
@@ -22,7 +26,11 @@ import org.apache.logging.log4j.Logger;
  * for one particular torrent. Its behaviour is determined by the
  * peer manager who owns it.
  */
-public class Peer extends Thread { 
+public class Peer extends Worker {
+    /**
+     * How long to wait for each read of the handshake in milliseconds.
+     */
+    static final int HANDSHAKE_TIMEOUT = 5000;
     private PeerManager peerManager;
     private InetAddress ip;
     private int port;
@@ -54,6 +62,22 @@ public class Peer extends Thread {
      */
     private volatile ConcurrentLinkedQueue<Integer> haveQueue = new ConcurrentLinkedQueue<>();
 
+    /**
+     * The rejectQueue holds Request objects for our requests the peer rejected (Fast Extension).
+     */
+    private final ConcurrentLinkedQueue<Request> rejectQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Pieces the peer allows us to request while it chokes us, and the ones we allow it.
+     */
+    private final Set<Integer> allowedFast = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> ourAllowedFast = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Pieces the peer suggested we download from it.
+     */
+    private final Set<Integer> suggested = ConcurrentHashMap.newKeySet();
+
     /**
      * The cancelList stores int arrays of form {idx, begin, length} where each element represents a cancelled piece.
      */
@@ -66,8 +90,43 @@ public class Peer extends Thread {
     private volatile int requestCount = 0;
     private volatile boolean receivedBitfield = false;
     private volatile boolean receivedFirstMessage = false;
+    private final PeerStats stats = new PeerStats();
+    private volatile Metrics metrics = new Metrics("peer", null);
+
+    /**
+     * The port the peer accepts connections on, which differs from port for
+     * incoming connections. -1 until the peer announces it.
+     */
+    private volatile int listenPort = -1;
+
+    /**
+     * The extended message id the peer receives ut_pex under, 0 if it does not support it.
+     */
+    private volatile int pexId = 0;
+
+    /**
+     * The extended message id the peer receives ut_metadata under, 0 if it does not support it.
+     */
+    private volatile int metadataId = 0;
+
+    /**
+     * Packed addresses of the peers received through ut_pex, drained by the peer manager.
+     */
+    private final ConcurrentLinkedQueue<Long> pexQueue = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Packed addresses that were announced to the peer through ut_pex and not dropped
+     * since. Only used by the peer manager.
+     */
+    private final Set<Long> pexSent = new HashSet<>();
+
+    /**
+     * The DHT port the peer sent in a port message, 0 once the peer manager took it.
+     */
+    private volatile int dhtPort = 0;
     private boolean LTEP = false;
     private boolean DHT = false;
+    private boolean fast = false;
     private byte[] infoHash;
     private Logger log;
 
@@ -85,12 +144,14 @@ public class Peer extends Thread {
         peerBitfield = new byte[peerManager.getBitfieldLength()];
         ip = pair.getLeft();
         port = pair.getRight();
+        listenPort = port;
         sock = new Socket();
         sock.connect(new InetSocketAddress(ip, port), 1000);
         //sock = new Socket(ip, port);
         out = new DataOutputStream(sock.getOutputStream());
         //in = new DataInputStream(sock.getInputStream());
         in = new BufferedInputStream(sock.getInputStream());
+        registerMetrics();
         log.trace("%s initialized", toString());
     }
 
@@ -101,10 +162,8 @@ public class Peer extends Thread {
      * @param sock
      * @throws IOException
      * @throws DataFormatException
-     * @throws InterruptedException
      */
-    Peer(Socket sock)
-            throws IOException, DataFormatException, InterruptedException {
+    Peer(Socket sock) throws IOException, DataFormatException {
         log = LogManager.getFormatterLogger(Peer.class);
         foundByPeerServer = true;
         ip = sock.getInetAddress();
@@ -132,6 +191,7 @@ public class Peer extends Thread {
         synchronized(this) {
             peerBitfield = new byte[peerManager.getBitfieldLength()];
         }
+        registerMetrics();
         log.trace("%s added peer manager", toString());
     }
 
@@ -149,6 +209,7 @@ public class Peer extends Thread {
             } else {
                 sendHandshake();
             }
+            sendOpeningMessages();
             log.trace("%s starting main loop", toString());
             while (true) {
                 Thread.sleep(50);
@@ -178,11 +239,19 @@ public class Peer extends Thread {
                     throw new IOException("EOF was reached");
                 }
                 log.debug("%s received message with id: %d", toString(), id);
-                if (id != 5) { //Needed in order to check whether a bitfield message is first if it is received.
+                //Needed in order to check whether a bitfield message is first if it is received.
+                //Extension messages may come before the bitfield.
+                if (id != 5 && id != FastExtension.HAVE_ALL && id != FastExtension.HAVE_NONE
+                    && id != Extensions.MESSAGE_ID) {
                     synchronized(this) {
                         receivedFirstMessage = true;
                     }
                 }
+                if (id >= FastExtension.SUGGEST && id <= FastExtension.ALLOWED_FAST && !fast) {
+                    log.fatal("%s sent Fast Extension message %d without negotiating it", toString(), id);
+                    shutdownSockets();
+                    return;
+                }
                 switch (id) {
                     case 0:
                         synchronized(this) {
@@ -222,6 +291,21 @@ public class Peer extends Thread {
                     case 9:
                         receivePort();
                         break;
+                    case FastExtension.SUGGEST:
+                        receiveFastIndex(suggested);
+                        break;
+                    case FastExtension.HAVE_ALL:
+                        receiveHaveAll(true);
+                        break;
+                    case FastExtension.HAVE_NONE:
+                        receiveHaveAll(false);
+                        break;
+                    case FastExtension.REJECT:
+                        receiveReject();
+                        break;
+                    case FastExtension.ALLOWED_FAST:
+                        receiveFastIndex(allowedFast);
+                        break;
                     case 20:
                         receiveExtension(payloadLength);
                         break;
@@ -285,6 +369,12 @@ public class Peer extends Thread {
                 case "port":
                     port();
                     break;
+                case "pex":
+                    pex(order.getRight());
+                    break;
+                case "reject":
+                    reject(order.getRight());
+                    break;
                 default:
                     log.fatal("%s unexpected order: %s", toString(), order.getLeft());
                     shutdownSockets();
@@ -312,6 +402,14 @@ public class Peer extends Thread {
         for (int i = 0; i < reserved; i++) {
             message[1 + pstr.length + i] = 0;
         }
+        //Extension protocol (BEP 10)
+        message[1 + pstr.length + 5] |= 0x10;
+        if (peerManager.getDhtPort() > 0) {
+            //DHT (BEP 5)
+            message[1 + pstr.length + 7] |= 0x01;
+        }
+        //Fast Extension (BEP 6)
+        message[1 + pstr.length + 7] |= 0x04;
         byte[] infoHash = peerManager.getInfoHash();
         for (int i = 0; i < infoHash.length; i++) {
             message[1 + pstr.length + reserved + i] = infoHash[i];
@@ -327,26 +425,31 @@ public class Peer extends Thread {
     
     /** 
      * Waits for and receives a bittorrent protocol handshake message from
-     * the peer. If it takes longer than 5 seconds to receive a handshake,
-     * an IOException is thrown.
+     * the peer. If it takes longer than HANDSHAKE_TIMEOUT milliseconds to
+     * receive a byte of the handshake, a SocketTimeoutException is thrown.
+     * The read timeout of the socket is restored afterwards.
      * @throws IOException
      * @throws DataFormatException: If the handshake received did not conform to standards.
-     * @throws InterruptedException: If the thread is interrupted while waiting 1
      */
-    private void receiveHandshake()
-            throws IOException, DataFormatException, InterruptedException{
-        //Handle EOF
+    private void receiveHandshake() throws IOException, DataFormatException {
         log.debug("%s waiting for handshake", toString());
-        Instant startTime = Instant.now();
-        while (true) {
-            if (!Instant.now().isBefore(startTime.plusSeconds(5))) {
-                throw new IOException(String.format("%s timeout peerInfofor handshake.", toString()));
-            }
-            if (in.available() > 0) {
-                break;
+        int previousTimeout = sock.getSoTimeout();
+        sock.setSoTimeout(HANDSHAKE_TIMEOUT);
+        try {
+            readHandshake();
+        } finally {
+            if (!sock.isClosed()) {
+                sock.setSoTimeout(previousTimeout);
             }
-            Thread.sleep(50);
         }
+    }
+
+    /**
+     * Reads the handshake message, blocking until it arrives.
+     * @throws IOException
+     * @throws DataFormatException
+     */
+    private void readHandshake() throws IOException, DataFormatException {
         int pstrlen = in.read();
         if (pstrlen == -1) {
             throw new IOException("EOF was reached");
@@ -412,6 +515,10 @@ public class Peer extends Thread {
             log.debug("%s DHT enabled", toString());
             DHT = true;
         }
+        if ((reserved[7] & 0x04) == 0x04) {
+            log.debug("%s Fast Extension enabled", toString());
+            fast = true;
+        }
     }
     
     /**
@@ -463,12 +570,28 @@ public class Peer extends Thread {
     }
     
     /** 
-     * Sends a bitfield message to the peer.
+     * Sends a bitfield message to the peer. With the Fast Extension, a
+     * HAVE_ALL or HAVE_NONE message is sent instead when it says the same.
      * bitfield: <len=0001+X><id=5><bitfield>
+     * have all: <len=0001><id=14>
+     * have none: <len=0001><id=15>
      * @throws IOException
      */
     private void bitfield() throws IOException {
         byte[] bitfield = peerManager.getBitfield();
+        if (fast) {
+            int count = 0;
+            for (int i = 0; i < bitfield.length; i++) {
+                count += Integer.bitCount(bitfield[i] & 0xFF);
+            }
+            if (count == 0) {
+                send(FastExtension.HAVE_NONE);
+                return;
+            } else if (count == peerManager.getPieceCount()) {
+                send(FastExtension.HAVE_ALL);
+                return;
+            }
+        }
         send((byte) 5, bitfield);
     }
     
@@ -493,6 +616,8 @@ public class Peer extends Thread {
             payload[i + 8] = lengthUint32[i];
         }
         send((byte) 6, payload);
+        stats.requestSent(idx, begin, System.currentTimeMillis());
+        metrics.increment(Metrics.Counter.BLOCKS_REQUESTED);
     }
 
     /** 
@@ -524,6 +649,9 @@ public class Peer extends Thread {
             payload[i + 8] = block[i];
         }
         send((byte) 7, payload);
+        stats.blockSent(block.length, System.currentTimeMillis());
+        metrics.increment(Metrics.Counter.BLOCKS_SENT);
+        metrics.add(Metrics.Counter.BYTES_OUT, block.length);
     }
 
     /** 
@@ -550,12 +678,120 @@ public class Peer extends Thread {
     }
 
     /** 
-     * Sends a port message.
+     * Rejects a request of the peer. Only sent if the Fast Extension is enabled.
+     * reject request: <len=0013><id=16><index><begin><length>
+     * @param args
+     * @throws IOException
+     */
+    private void reject(ArrayList<Object> args) throws IOException {
+        if (!fast) {
+            return;
+        }
+        Request req = (Request) args.get(0);
+        byte[] payload = new byte[12];
+        byte[] idxUint32 = intToUInt32(req.index);
+        byte[] beginUint32 = intToUInt32(req.begin);
+        byte[] lengthUint32 = intToUInt32(req.block.length);
+        for (int i = 0; i < 4; i++) {
+            payload[i] = idxUint32[i];
+            payload[i + 4] = beginUint32[i];
+            payload[i + 8] = lengthUint32[i];
+        }
+        send(FastExtension.REJECT, payload);
+    }
+
+    /** 
+     * Allows the peer to request a piece while we choke it.
+     * allowed fast: <len=0005><id=17><piece index>
+     * @param index
+     * @throws IOException
+     */
+    private void allowedFast(int index) throws IOException {
+        ourAllowedFast.add(index);
+        send(FastExtension.ALLOWED_FAST, intToUInt32(index));
+    }
+
+    /** 
+     * Sends the messages that follow the handshakes. The bitfield, or
+     * HAVE_ALL or HAVE_NONE, has to be the first message, so it goes out
+     * before the extension handshake and the port message.
+     * @throws IOException
+     */
+    private void sendOpeningMessages() throws IOException {
+        if (fast) {
+            //The Fast Extension requires that we state which pieces we have
+            bitfield();
+        }
+        if (LTEP) {
+            sendExtensionHandshake();
+        }
+        if (DHT && peerManager.getDhtPort() > 0) {
+            port();
+        }
+        if (fast) {
+            for (Integer index : peerManager.getAllowedFastSet(ip)) {
+                allowedFast(index);
+            }
+        }
+    }
+
+    /** 
+     * Sends a port message with the UDP port of our DHT node.
      * port: <len=0003><id=9><listen-port>
      * @throws IOException
      */
     private void port() throws IOException {
-        log.warn("%s port is not implemented.", toString());
+        int dhtPort = peerManager.getDhtPort();
+        if (dhtPort <= 0) {
+            return;
+        }
+        byte[] payload = {(byte) (dhtPort >> 8), (byte) dhtPort};
+        send((byte) 9, payload);
+    }
+
+    /** 
+     * Sends our extension handshake, announcing the extensions we support,
+     * our listening port and the size of the info dictionary we serve
+     * through ut_metadata.
+     * extended: <len=0002+X><id=20><extended id=0><bencoded dictionary>
+     * @throws IOException
+     */
+    private void sendExtensionHandshake() throws IOException {
+        Map<String, Object> extra = null;
+        int metadataSize = peerManager.getMetadataSize();
+        if (metadataSize > 0) {
+            extra = Collections.<String, Object>singletonMap("metadata_size", (long) metadataSize);
+        }
+        try {
+            sendExtended(Extensions.HANDSHAKE, Extensions.encodeHandshake(peerManager.getPort(), extra));
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /** 
+     * Sends a ut_pex message. Only sent if the peer supports ut_pex.
+     * @param args: the bencoded ut_pex payload as byte[].
+     * @throws IOException
+     */
+    private void pex(ArrayList<Object> args) throws IOException {
+        if (pexId == 0) {
+            return;
+        }
+        sendExtended((byte) pexId, (byte[]) args.get(0));
+    }
+
+    /** 
+     * Sends an extension protocol message.
+     * @param extendedId: the id the peer receives the extension under.
+     * @param payload
+     * @throws IOException
+     */
+    private void sendExtended(byte extendedId, byte[] payload) throws IOException {
+        byte[] message = new byte[1 + payload.length];
+        message[0] = extendedId;
+        System.arraycopy(payload, 0, message, 1, payload.length);
+        send(Extensions.MESSAGE_ID, message);
     }
 
     /** 
@@ -570,8 +806,10 @@ public class Peer extends Thread {
         message[2] = 0;
         message[3] = 1;
         message[4] = id;
-        out.write(message);
-        out.flush();
+        synchronized(out) {
+            out.write(message);
+            out.flush();
+        }
     }
 
     /** 
@@ -591,8 +829,10 @@ public class Peer extends Thread {
         for (int i = 0; i < payload.length; i++) {
             message[5 + i] = payload[i];
         }
-        out.write(message);
-        out.flush();
+        synchronized(out) {
+            out.write(message);
+            out.flush();
+        }
     }
 
     /** 
@@ -637,6 +877,82 @@ public class Peer extends Thread {
         haveQueue.add(idx);
     }
 
+    /** 
+     * Receives a HAVE_ALL or HAVE_NONE message, which takes the place of
+     * the bitfield message.
+     * have all: <len=0001><id=14>
+     * have none: <len=0001><id=15>
+     * @param all: true for HAVE_ALL.
+     * @throws SecurityException: If it is not the first message after the handshake.
+     */
+    private void receiveHaveAll(boolean all) throws SecurityException {
+        if (receivedFirstMessage) {
+            throw new SecurityException("The have all/none message is not the first message after the hanshake");
+        }
+        synchronized(this) {
+            receivedFirstMessage = true;
+            receivedBitfield = true;
+            if (all) {
+                int pieceCount = peerManager.getPieceCount();
+                for (int i = 0; i < pieceCount; i++) {
+                    peerBitfield[i/8] |= 128 >> (i % 8);
+                }
+            }
+        }
+    }
+
+    /** 
+     * Receives the rejection of one of our requests and adds it to the
+     * rejectQueue, so that the peer manager can request the block again.
+     * reject request: <len=0013><id=16><index><begin><length>
+     * @throws IOException
+     */
+    private void receiveReject() throws IOException {
+        int idx = readUInt32();
+        int begin = readUInt32();
+        int length = readUInt32();
+        stats.requestRejected(idx, begin);
+        metrics.increment(Metrics.Counter.BLOCKS_REJECTED);
+        rejectQueue.add(new Request(idx, begin, (byte[]) null));
+        synchronized(this) {
+            if (requestCount > 0) {
+                requestCount -= 1;
+            }
+        }
+    }
+
+    /** 
+     * Receives the piece index of a SUGGEST or ALLOWED_FAST message
+     * and adds it to the given set, which is capped at MAX_PIECES.
+     * suggest piece: <len=0005><id=13><piece index>
+     * allowed fast: <len=0005><id=17><piece index>
+     * @param set
+     * @throws IOException
+     */
+    private void receiveFastIndex(Set<Integer> set) throws IOException {
+        int idx = readUInt32();
+        if (idx >= 0 && set.size() < FastExtension.MAX_PIECES) {
+            set.add(idx);
+        }
+    }
+
+    /** 
+     * Reads a 32 bit big-endian integer.
+     * @return int
+     * @throws IOException
+     */
+    private int readUInt32() throws IOException {
+        int num = 0;
+        for (int i = 3; i >= 0; i--) {
+            int val = in.read();
+            if (val == -1) {
+                throw new IOException("EOF was reached");
+            }
+            num |= val << (8*i);
+        }
+        return num;
+    }
+
     /** 
      * Receives peer's bitfield. Checks whether it is the first message after
      * the handshake and checks whether it conforms with the torrent's spec.
@@ -735,6 +1051,12 @@ public class Peer extends Thread {
             }
             block[i] = (byte) val;
         }
+        long rtt = stats.blockReceived(idx, begin, block.length, System.currentTimeMillis());
+        metrics.increment(Metrics.Counter.BLOCKS_RECEIVED);
+        metrics.add(Metrics.Counter.BYTES_IN, block.length);
+        if (rtt >= 0) {
+            metrics.record(Metrics.Timer.REQUEST_RTT_MILLIS, rtt);
+        }
         Request piece = new Request(idx, begin, block);
         pieceQueue.add(piece);
         synchronized(this) {
@@ -782,36 +1104,104 @@ public class Peer extends Thread {
 
     /** 
      * Receives a port message from the peer that is used
-     * for the DHT extension.
+     * for the DHT extension. The port is kept until the
+     * peer manager hands it to our DHT node.
      * port: <len=0003><id=9><listen-port>
      * @throws IOException
      */
     private void receivePort() throws IOException {
-        for (int i = 0; i < 2; i++) {
-            if (in.read() == -1) {
+        int port = 0;
+        for (int i = 1; i >= 0; i--) {
+            int val = in.read();
+            if (val == -1) {
                 throw new IOException("EOF was reached");
             }
+            port += val << (8*i);
+        }
+        if (port > 0) {
+            dhtPort = port;
         }
     }
     
     /** 
      * Receives a bittorrent extension message and then deals
-     * with it based on the extendedId.
+     * with it based on the extendedId. Unknown extensions are skipped.
+     * extended: <len=0002+X><id=20><extended id><payload>
      * @param length
-     * @throws IOException
+     * @throws IOException: If the message is empty or longer than Extensions.MAX_MESSAGE_LENGTH.
      */
     private void receiveExtension(int length) throws IOException {
-        for (int i = 0; i < length; i++) {
-            if (in.read() == -1) {
+        if (length < 1) {
+            throw new IOException("Empty extension message");
+        } else if (length > Extensions.MAX_MESSAGE_LENGTH - 1) {
+            //The length comes from the peer, do not allocate whatever it claims
+            stats.error();
+            throw new IOException("Extension message of " + length + " bytes is too long");
+        }
+        int extendedId = in.read();
+        if (extendedId == -1) {
+            throw new IOException("EOF was reached");
+        }
+        byte[] payload = new byte[length - 1];
+        for (int i = 0; i < payload.length; i++) {
+            int val = in.read();
+            if (val == -1) {
                 throw new IOException("EOF was reached");
             }
+            payload[i] = (byte) val;
+        }
+        try {
+            if (extendedId == Extensions.HANDSHAKE) {
+                Map<String, Object> handshake = Extensions.decodeDict(payload);
+                Integer id = Extensions.readExtensionIds(handshake).get(Extensions.UT_PEX_NAME);
+                pexId = id == null ? 0 : id;
+                id = Extensions.readExtensionIds(handshake).get(Extensions.UT_METADATA_NAME);
+                metadataId = id == null ? 0 : id;
+                int announced = Extensions.readListenPort(handshake);
+                if (announced != -1) {
+                    listenPort = announced;
+                }
+                log.debug("%s extension handshake, ut_pex id %d", toString(), pexId);
+            } else if (extendedId == Extensions.UT_PEX) {
+                long[] added = Extensions.readPexAdded(Extensions.decodeDict(payload));
+                for (long key : added) {
+                    pexQueue.add(key);
+                }
+                log.debug("%s received %d peers through ut_pex", toString(), added.length);
+            } else if (extendedId == Extensions.UT_METADATA) {
+                receiveMetadata(payload);
+            } else {
+                log.debug("%s ignoring extension message %d", toString(), extendedId);
+            }
+        } catch (DataFormatException e) {
+            log.warn("%s sent a malformed extension message %d: %s", toString(), extendedId, e.getMessage());
+            stats.error();
         }
-        //byte extendedId = in.read();
-        byte extendedId = 0;
-        if (extendedId == 0) {
-            //Implement the extension hanshake
+    }
+
+    /** 
+     * Answers a ut_metadata request with the piece of the info dictionary
+     * or a reject if the piece does not exist. Other ut_metadata messages
+     * are ignored, we never request metadata over a full connection.
+     * @param payload
+     * @throws IOException
+     * @throws DataFormatException
+     */
+    private void receiveMetadata(byte[] payload) throws IOException, DataFormatException {
+        Pair<Map<String, Object>, byte[]> message = Extensions.decodeMetadata(payload);
+        long type = (Long) message.getLeft().get("msg_type");
+        long piece = (Long) message.getLeft().get("piece");
+        if (type != Extensions.METADATA_REQUEST || metadataId == 0) {
+            return;
+        }
+        byte[] data = piece >= 0 && piece <= Integer.MAX_VALUE ? peerManager.readMetadata((int) piece) : null;
+        int size = peerManager.getMetadataSize();
+        if (data == null) {
+            log.debug("%s rejecting metadata piece %d", toString(), piece);
+            sendExtended((byte) metadataId, Extensions.encodeMetadata(Extensions.METADATA_REJECT, (int) piece, 0, null));
         } else {
-            //Implement other extensions
+            log.debug("%s sending metadata piece %d", toString(), piece);
+            sendExtended((byte) metadataId, Extensions.encodeMetadata(Extensions.METADATA_DATA, (int) piece, size, data));
         }
     }
 
@@ -944,6 +1334,47 @@ public class Peer extends Thread {
         }
     }
 
+    /**
+     * @return the throughput, round trip time and error metrics of the connection.
+     */
+    public PeerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Creates the registry of the connection under the torrent's, with the
+     * current rates and round trip time of the connection as gauges.
+     */
+    private void registerMetrics() {
+        Metrics peerMetrics = new Metrics(ip.getHostAddress() + ":" + port, peerManager.getMetrics());
+        peerMetrics.gauge("download_rate", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return (long) stats.getDownloadRate(System.currentTimeMillis());
+            }
+        });
+        peerMetrics.gauge("upload_rate", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return (long) stats.getUploadRate(System.currentTimeMillis());
+            }
+        });
+        peerMetrics.gauge("rtt_millis", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return (long) stats.getRtt();
+            }
+        });
+        metrics = peerMetrics;
+    }
+
+    /**
+     * @return the registry of the connection, a child of the torrent's.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * @return boolean indicating whether the peer supports LTEP.
      */
@@ -951,12 +1382,85 @@ public class Peer extends Thread {
         return LTEP;
     }
 
+    /**
+     * @return the extended message id of ut_pex at the peer, 0 if unsupported.
+     */
+    public int getPexId() {
+        return pexId;
+    }
+
+    /**
+     * @return the port the peer listens on or -1 if unknown.
+     */
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    /**
+     * @return the next packed address received through ut_pex or null.
+     */
+    public Long getNewPexPeer() {
+        return pexQueue.poll();
+    }
+
+    /**
+     * @return the packed addresses announced to the peer through ut_pex.
+     */
+    public Set<Long> getPexSent() {
+        return pexSent;
+    }
+
     /**
      * @return boolean indicating whether the peer supports DHT.
      */
     public boolean getDHT() {
         return DHT;
     }
+
+    /**
+     * @return boolean indicating whether the Fast Extension is enabled.
+     */
+    public boolean getFast() {
+        return fast;
+    }
+
+    /**
+     * @return Request the peer rejected or null.
+     */
+    public Request getRejected() {
+        return rejectQueue.poll();
+    }
+
+    /**
+     * @return the pieces the peer allows us to request while it chokes us.
+     */
+    public Set<Integer> getAllowedFast() {
+        return allowedFast;
+    }
+
+    /**
+     * @return the pieces we allowed the peer to request while we choke it.
+     */
+    public Set<Integer> getOurAllowedFast() {
+        return ourAllowedFast;
+    }
+
+    /**
+     * @return the pieces the peer suggested, the peer manager removes the ones it requested.
+     */
+    public Set<Integer> getSuggested() {
+        return suggested;
+    }
+
+    /**
+     * Takes the DHT port the peer announced in a port message.
+     * @return the port or 0 if no new one was received.
+     */
+    public int takeDhtPort() {
+        int port = dhtPort;
+        dhtPort = 0;
+        return port;
+    }
     
     /** 
      * @return int
@@ -987,6 +1491,7 @@ public class Peer extends Thread {
      */
     @Override
     public String toString() {
-        return String.format("Peer[name=%s, ip=%s, port=%s]", peerManager.getFileName(), ip.toString(), String.valueOf(port));
+        String name = peerManager == null ? null : peerManager.getFileName();
+        return String.format("Peer[name=%s, ip=%s, port=%s]", name, ip.toString(), String.valueOf(port));
     }
 }
\ No newline at end of file
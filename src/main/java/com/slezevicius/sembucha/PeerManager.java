@@ -2,15 +2,20 @@ package com.slezevicius.sembucha;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -20,21 +25,98 @@ import org.apache.logging.log4j.Logger;
  * with the creation, destruction, and commanding of all the peers
  * that belong to a particular torrent.
  */
-public class PeerManager extends Thread {
+public class PeerManager extends Worker implements PeerPool.Listener, ConnectionBudget.Member {
     private final int BLOCKSIZE = 16384; //2^14
-    private final int MAXPEERS = 20;
     private final int MAXPIECES = 10;
+
+    /**
+     * Connection budget weights: a downloading torrent weighs between
+     * MIN_WEIGHT and MIN_WEIGHT + 1 depending on how much is missing,
+     * a seeding one SEED_WEIGHT divided by 1 + its upload ratio.
+     */
+    private static final double MIN_WEIGHT = 0.1;
+    private static final double SEED_WEIGHT = 0.25;
+
+    /**
+     * Every EVICTION_INTERVAL milliseconds the worst peer is disconnected if
+     * connectable candidates are waiting in the pool and the peer is idle,
+     * has MAX_ERRORS errors or scores below EVICTION_FRACTION of the median.
+     * A peer evicted with MAX_ERRORS errors is banned, any other evicted peer
+     * waits longer than after an ordinary disconnect before it is dialed again.
+     */
+    static final long EVICTION_INTERVAL = 30000;
+    static final int MAX_ERRORS = 3;
+    static final double EVICTION_FRACTION = 0.25;
+    private static final double IDLE_RATE = 1; //B/s
+
+    /**
+     * How often the connected peers are announced to peers supporting ut_pex.
+     */
+    static final long PEX_INTERVAL = 60000;
+
+    /**
+     * How often the DHT is searched for peers of the torrent.
+     */
+    static final long DHT_INTERVAL = 15*60*1000;
+
+    /**
+     * The STREAMING order picks the pieces within STREAM_WINDOW bytes, but
+     * at least MIN_STREAM_PIECES pieces, from the stream cursor first.
+     */
+    static final long STREAM_WINDOW = 16*1024*1024;
+    static final int MIN_STREAM_PIECES = 4;
     private Torrent tor;
+    private PeerPool peerPool;
+    private Dht dht;
+    private ConnectionBudget budget;
+    private volatile double weight = MIN_WEIGHT + 1;
+    private volatile int wanted = 0;
     private Set<Peer> peers;
+
+    /**
+     * Peers that were closed to give their slot back to the budget and
+     * have not been removed yet.
+     */
+    private Set<Peer> evicting;
+
+    /**
+     * The peers among the evicting ones that were disconnected for
+     * performing poorly rather than to give a connection back.
+     */
+    private Set<Peer> evicted;
     private Set<Peer> potentialBitfieldPeers;
     private Set<Peer> peersWithoutDownloads;
     private byte[] frequencyArray;
-    private List<Set<Integer>> rarenessList;
+
+    /**
+     * The pieces that can be requested, partitioned by their priority and
+     * then by how many peers have them. A piece with priority p had by f
+     * peers is in rarenessLists.get(p).get(f - 1). Skipped pieces are kept
+     * like the others but never picked, so they are in place once their
+     * priority changes.
+     */
+    private List<List<Set<Integer>>> rarenessLists;
+    private byte[] priorities;
+    private int priorityVersion = -1;
     private long lastPieceSize;
+    private int pieceCount;
     //private Map<Integer, Pair<Integer, Instant>> requestedPieces;
     private Map<Integer, Triplet<Integer, Peer, Instant>> requestedPieces;
     private Set<Integer> downloadedPieceSet;
+
+    /**
+     * All pieces below it are downloaded, where the SEQUENTIAL order starts looking.
+     */
+    private int firstMissing = 0;
+    private final Object wakeUp = new Object();
+    private volatile boolean newCandidates = false;
     private boolean keepRunning = true;
+
+    /**
+     * Whether every wanted piece is downloaded. Only the manager's thread
+     * changes it, the peers are still served but no pieces are requested.
+     */
+    private boolean complete = false;
     private Logger log;
 
     PeerManager(Torrent tor) {
@@ -42,16 +124,29 @@ public class PeerManager extends Thread {
         peers = new HashSet<>();
         potentialBitfieldPeers = new HashSet<>();
         peersWithoutDownloads = new HashSet<>();
-        log.debug("%d", tor.getPieces().length);
-        frequencyArray = new byte[tor.getPieces().length/20];
-        rarenessList = new ArrayList<>(MAXPEERS);
-        downloadedPieceSet = new HashSet<>();
+        evicting = new HashSet<>();
+        evicted = new HashSet<>();
+        pieceCount = tor.getPieceCount();
+        frequencyArray = new byte[pieceCount];
+        budget = tor.getConnectionBudget();
+        rarenessLists = new ArrayList<>();
+        for (int i = 0; i < Torrent.Priority.values().length; i++) {
+            rarenessLists.add(new ArrayList<Set<Integer>>(budget.getMaxPerMember()));
+        }
+        priorities = new byte[pieceCount];
+        Arrays.fill(priorities, (byte) Torrent.Priority.NORMAL.ordinal());
+        //Concurrent so peer threads can read it without the manager's monitor
+        downloadedPieceSet = ConcurrentHashMap.newKeySet();
         requestedPieces = new HashMap<>();
         lastPieceSize = tor.getLength()%tor.getPieceLength();
         if (lastPieceSize == 0) {
             lastPieceSize = tor.getPieceLength();
         }
         this.tor = tor;
+        peerPool = tor.getPeerPool();
+        peerPool.setListener(this);
+        dht = tor.getDht();
+        budget.register(this);
         log.trace("%s initialized", toString());
     }
 
@@ -60,17 +155,27 @@ public class PeerManager extends Thread {
     }
 
     /**
-     * The main loop for the peer manager's thread. It keeps
-     * checking whether any new peers have been added by the
-     * tracker and issues out orders to the peers.
+     * The main loop for the peer manager's thread. It connects to
+     * candidates from the peer pool and issues out orders to the peers.
+     * The loop wakes up early whenever the pool receives new candidates.
+     * It keeps running once the torrent is complete, so that the peers are
+     * still served and their slots released.
      */
     @Override
     public void run() {
         log.trace("%s in the main loop", toString());
         Instant timeSinceNoPeers = Instant.now();
+        Instant lastPoolCheck = Instant.now();
+        Instant lastEviction = Instant.now();
+        Instant lastPex = Instant.now();
+        Instant lastDht = Instant.EPOCH;
         while (true) {
             try {
-                Thread.sleep(50);
+                synchronized(wakeUp) {
+                    if (!newCandidates) {
+                        wakeUp.wait(50);
+                    }
+                }
             } catch (InterruptedException e) {
                 log.error(toString(), e);
                 return;
@@ -80,24 +185,45 @@ public class PeerManager extends Thread {
                     break;
                 }
             }
-            if (tor.isComplete()) {
-                log.info("%s downloaded file");
-                //Temporary while not including seeding
-                return;
+            if (tor.isComplete() != complete) {
+                complete = !complete;
+                if (complete) {
+                    log.info("%s downloaded the wanted pieces", toString());
+                } else {
+                    log.info("%s has pieces to download again", toString());
+                }
             }
-            if (tor.newPeers()) {
-                log.debug("%s updating peers", toString());
+            //Candidates whose backoff expires do not trigger a notification
+            if (newCandidates || Instant.now().isAfter(lastPoolCheck.plusSeconds(5))) {
+                newCandidates = false;
+                lastPoolCheck = Instant.now();
                 updatePeers();
-                tor.takenNewPeers();
+            }
+            if (Instant.now().isAfter(lastEviction.plusMillis(EVICTION_INTERVAL))) {
+                lastEviction = Instant.now();
+                evictWorst();
+            }
+            if (Instant.now().isAfter(lastPex.plusMillis(PEX_INTERVAL))) {
+                lastPex = Instant.now();
+                sendPex();
+            }
+            if (Instant.now().isAfter(lastDht.plusMillis(DHT_INTERVAL))) {
+                lastDht = Instant.now();
+                searchDht();
             }
             if (peers.size() == 0 && Instant.now().isAfter(timeSinceNoPeers.plusSeconds(60))) {
                 log.debug("%s requesting a new request to the tracker", toString());
                 tor.updateTracker();
+                lastDht = Instant.now();
+                searchDht();
                 timeSinceNoPeers = Instant.now();
             } else if (peers.size() > 0) {
                 timeSinceNoPeers = Instant.now();
             }
 
+            if (tor.getPriorityVersion() != priorityVersion) {
+                updatePriorities();
+            }
             updateRequestTimeouts();
             int[] haves = tor.getHaves();
             for (int i = 0; i < haves.length; i++) {
@@ -107,14 +233,24 @@ public class PeerManager extends Thread {
                     downloadedPieceSet.add(haves[i]);
                 }
             }
+            for (int index : tor.getFailedPieces()) {
+                synchronized(this) {
+                    redownloadPiece(index);
+                }
+            }
             synchronized(this) {
+                boolean removed = false;
                 Iterator<Peer> it = peers.iterator();
                 while (it.hasNext()) {
                     Peer peer = it.next();
                     if (!peer.isAlive()) {
                         removePeer(peer, it);
+                        removed = true;
                         continue;
                     }
+                    drainPex(peer);
+                    drainDhtPort(peer);
+                    updateRejected(peer);
                     if (potentialBitfieldPeers.contains(peer)) {
                         if (peer.hasReceivedBitfield()) {
                             log.debug("%s getting bitfield from %s", toString(), peer.toString());
@@ -124,6 +260,10 @@ public class PeerManager extends Thread {
                     }
                     updateOrder(peer, haves);
                 }
+                if (removed) {
+                    //The budget reads the demand, which must not count the peers that are gone
+                    updateDemand();
+                }
             }
         }
     }
@@ -137,15 +277,15 @@ public class PeerManager extends Thread {
                         int oldVal = frequencyArray[i*8 + j];
                         if (oldVal > 0) {
                             if (!downloadedPieceSet.contains(i*8 + j) && !requestedPieces.containsKey(i*8 + j)) {
-                                if (oldVal > rarenessList.size()) {
+                                if (oldVal > levelCount()) {
                                     log.warn("%s the frequencyArray val is higher than rarenessList size");
-                                    rarenessList.get(rarenessList.size()-1).remove(i*8 + j);
+                                    rarenessLevel(i*8 + j, levelCount()).remove(i*8 + j);
                                     frequencyArray[i*8 + j] = (byte) peers.size();
                                 } else {
-                                    rarenessList.get(oldVal-1).remove(i*8 + j);
+                                    rarenessLevel(i*8 + j, oldVal).remove(i*8 + j);
                                 }
                                 if (oldVal > 1) {
-                                    rarenessList.get(oldVal - 2).add(i*8 + j);
+                                    rarenessLevel(i*8 + j, oldVal - 1).add(i*8 + j);
                                 }
                             }
                         frequencyArray[i*8 + j] -= 1;
@@ -155,9 +295,23 @@ public class PeerManager extends Thread {
             }
         }
         log.debug("%s; Removing %s", toString(), peer.toString());
+        if (!evicted.remove(peer)) {
+            peerPool.disconnected(peer.getIp(), peer.getPort(), peer.getListenPort());
+        } else if (peer.getStats().getErrors() >= MAX_ERRORS) {
+            //A peer that keeps misbehaving is neither dialed again nor let back in
+            peerPool.ban(peer.getIp(), peer.getPort());
+            if (peer.getListenPort() > 0) {
+                peerPool.ban(peer.getIp(), peer.getListenPort());
+            }
+        } else {
+            peerPool.evicted(peer.getIp(), peer.getPort(), peer.getListenPort());
+        }
+        budget.release(this);
         it.remove();
         potentialBitfieldPeers.remove(peer);
         peersWithoutDownloads.remove(peer);
+        evicting.remove(peer);
+        peer.getMetrics().remove();
     }
 
     /**
@@ -169,9 +323,10 @@ public class PeerManager extends Thread {
             Map.Entry<Integer, Triplet<Integer, Peer, Instant>> req = it.next();
             if (!Instant.now().isBefore(req.getValue().getRight().plusSeconds(60))) {
                 log.debug("%s piece timed out at index %d", toString(), req.getKey().intValue());
+                req.getValue().getMiddle().getMetrics().increment(Metrics.Counter.PIECES_TIMED_OUT);
                 it.remove();
                 if (!downloadedPieceSet.contains(req.getKey())) {
-                    rarenessList.get(frequencyArray[req.getKey()]-1).add(req.getKey());
+                    rarenessLevel(req.getKey(), frequencyArray[req.getKey()]).add(req.getKey());
                     tor.timedOutPiece(req.getKey());
                     for (Peer peer : peers) {
                         peer.resetRequestCount(); //Needed because we do not know which peer requested which pieces.
@@ -199,10 +354,10 @@ public class PeerManager extends Thread {
                     int oldVal = frequencyArray[i*8 + j];
                     if (!downloadedPieceSet.contains(i*8 + j) && !requestedPieces.containsKey(i*8 + j)) {
                         if (oldVal > 0) {
-                            rarenessList.get(oldVal-1).remove(i*8 + j);
+                            rarenessLevel(i*8 + j, oldVal).remove(i*8 + j);
                         }
-                        if (oldVal < rarenessList.size()) {
-                            rarenessList.get(oldVal).add(i*8 + j);
+                        if (oldVal < levelCount()) {
+                            rarenessLevel(i*8 + j, oldVal + 1).add(i*8 + j);
                         } else {
                             log.warn("the frequency array value is higher than the number of peers");
                         }
@@ -215,43 +370,259 @@ public class PeerManager extends Thread {
     }
 
     /**
-     * Updates the peer list with any new peers. Keeps the peer
-     * count to 50 as a maximum and does not allow any duplicates.
+     * Connects to new candidates from the peer pool for as long as the
+     * connection budget grants slots. The pool makes sure that no candidate
+     * is handed out twice, so no duplicate checks are needed here. Before
+     * that, gives back the connections the budget wants reclaimed.
      */
     private synchronized void updatePeers() {
-        List<Pair<InetAddress, Integer>> newPeers = tor.getNewPeers();
-        for (Pair<InetAddress, Integer> pair : newPeers) {
-            if (peers.size() < MAXPEERS) {
-                boolean peerExists = false;
-                for (Peer peer : peers) {
-                    if (peer.getNetworkPair().equals(pair)) {
-                        log.debug("%s; %s is already in the peer list", toString(), peer.toString());
-                        peerExists = true;
-                        break;
-                    }
-                }
-                if (!peerExists) {
-                    try {
-                        log.debug("%s connecting to new peer[ip=%s, port=%d]", toString(), pair.getLeft().toString(), pair.getRight().intValue());
-                        Peer newPeer = new Peer(pair, this);
-                        newPeer.start();
-                        rarenessList.add(new HashSet<Integer>());
-                        peers.add(newPeer);
-                        potentialBitfieldPeers.add(newPeer);
-                        peersWithoutDownloads.add(newPeer);
-                    } catch (IOException e) {
-                        log.error("%s could not connect to the new peer[ip=%s, port=%d]", toString(), pair.getLeft().toString(), pair.getRight().intValue());
-                        log.error(e.getMessage(), e);
-                        continue;
-                    }
-                }
-            } else {
-                log.debug("%s Already got %d peers", toString(), MAXPEERS);
+        updateDemand();
+        reclaimExcess();
+        while (budget.tryAcquire(this)) {
+            List<PeerPool.Candidate> taken = peerPool.takeConnectable(1);
+            if (taken.isEmpty()) {
+                budget.release(this);
                 break;
             }
+            PeerPool.Candidate candidate = taken.get(0);
+            try {
+                log.debug("%s connecting to new %s", toString(), candidate.toString());
+                Peer newPeer = new Peer(candidate.getNetworkPair(), this);
+                newPeer.start();
+                addRarenessLevel();
+                peers.add(newPeer);
+                potentialBitfieldPeers.add(newPeer);
+                peersWithoutDownloads.add(newPeer);
+            } catch (IOException e) {
+                log.error("%s could not connect to the new %s", toString(), candidate.toString());
+                log.error(e.getMessage(), e);
+                budget.release(this);
+                peerPool.connectFailed(candidate);
+            }
         }
         log.debug("%s finished adding peers", toString());
     }
+
+    /**
+     * Recomputes the weight and the number of wanted connections which
+     * the connection budget reads.
+     */
+    private void updateDemand() {
+        if (tor.isComplete()) {
+            double ratio = (double) tor.getUploaded()/Math.max(1, tor.getLength());
+            weight = SEED_WEIGHT/(1 + ratio);
+        } else {
+            weight = MIN_WEIGHT + 1 - (double) downloadedPieceSet.size()/pieceCount;
+        }
+        int connected = peers.size() - evicting.size();
+        wanted = connected + peerPool.countConnectable(budget.getMaxPerMember() - connected);
+    }
+
+    /**
+     * Closes as many peers as the budget wants back, starting with the
+     * ones with the lowest score. They are removed from the peer list and
+     * release their slots once their threads have finished.
+     */
+    private void reclaimExcess() {
+        int excess = budget.getExcess(this) - evicting.size();
+        if (excess <= 0) {
+            return;
+        }
+        List<Peer> candidates = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (!evicting.contains(peer)) {
+                candidates.add(peer);
+            }
+        }
+        final long now = System.currentTimeMillis();
+        Collections.sort(candidates, new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return Double.compare(a.getStats().getScore(now), b.getStats().getScore(now));
+            }
+        });
+        for (int i = 0; i < excess && i < candidates.size(); i++) {
+            Peer peer = candidates.get(i);
+            log.debug("%s giving back the connection of %s", toString(), peer.toString());
+            evicting.add(peer);
+            peer.close();
+        }
+    }
+
+    /**
+     * Disconnects the worst performing peer if better candidates may be
+     * waiting in the pool, so that the slot goes to one of them.
+     */
+    private synchronized void evictWorst() {
+        if (!peerPool.hasConnectable()) {
+            return;
+        }
+        List<Peer> connected = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (!evicting.contains(peer)) {
+                connected.add(peer);
+            }
+        }
+        Peer worst = pickEviction(connected, System.currentTimeMillis());
+        if (worst != null) {
+            log.debug("%s evicting %s with %s", toString(), worst.toString(), worst.getStats().toString());
+            evicting.add(worst);
+            evicted.add(worst);
+            worst.close();
+        }
+    }
+
+    /**
+     * Picks the peer to disconnect among the ones past their grace period.
+     * @param peers
+     * @param now
+     * @return the worst peer if it is idle, has too many errors or scores far
+     * below the median, otherwise null.
+     */
+    static Peer pickEviction(List<Peer> peers, long now) {
+        List<Double> scores = new ArrayList<>();
+        Peer worst = null;
+        double worstScore = 0;
+        for (Peer peer : peers) {
+            PeerStats stats = peer.getStats();
+            if (!stats.isJudgeable(now)) {
+                continue;
+            }
+            if (stats.getErrors() >= MAX_ERRORS) {
+                return peer;
+            }
+            double score = stats.getScore(now);
+            scores.add(score);
+            if (worst == null || score < worstScore) {
+                worst = peer;
+                worstScore = score;
+            }
+        }
+        if (worst == null) {
+            return null;
+        }
+        Collections.sort(scores);
+        double median = scores.get(scores.size()/2);
+        PeerStats stats = worst.getStats();
+        boolean idle = stats.getDownloadRate(now) < IDLE_RATE && stats.getUploadRate(now) < IDLE_RATE;
+        if (idle || worstScore < EVICTION_FRACTION*median) {
+            return worst;
+        }
+        return null;
+    }
+
+    /**
+     * Moves the addresses the peer sent through ut_pex into the pool.
+     * @param peer
+     */
+    private void drainPex(Peer peer) {
+        Long key;
+        while ((key = peer.getNewPexPeer()) != null) {
+            Pair<InetAddress, Integer> addr = PeerPool.unpack(key);
+            peerPool.add(addr.getLeft(), addr.getRight(), PeerPool.Source.PEX);
+        }
+    }
+
+    /**
+     * Hands the DHT port the peer announced to our DHT node, which adds
+     * the peer's node to the routing table if it responds.
+     * @param peer
+     */
+    private void drainDhtPort(Peer peer) {
+        int port = peer.takeDhtPort();
+        if (port > 0 && dht != null) {
+            dht.addNode(new InetSocketAddress(peer.getIp(), port));
+        }
+    }
+
+    /**
+     * Starts a DHT lookup for peers of the torrent and announces us to the
+     * nodes closest to its info hash. Found peers go into the pool.
+     */
+    private void searchDht() {
+        if (dht == null) {
+            return;
+        }
+        log.debug("%s searching the DHT for peers", toString());
+        dht.getPeers(getInfoHash(), getPort(), new Dht.Listener() {
+            @Override
+            public void foundPeers(long[] found) {
+                for (long key : found) {
+                    Pair<InetAddress, Integer> addr = PeerPool.unpack(key);
+                    peerPool.add(addr.getLeft(), addr.getRight(), PeerPool.Source.DHT);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends every peer that supports ut_pex the connected peers it has not
+     * been told about yet and the ones that have disconnected since.
+     */
+    private synchronized void sendPex() {
+        Set<Long> current = new HashSet<>();
+        for (Peer peer : peers) {
+            if (peer.getListenPort() > 0 && !evicting.contains(peer)) {
+                long key = PeerPool.pack(peer.getIp(), peer.getListenPort());
+                if (key != -1) {
+                    current.add(key);
+                }
+            }
+        }
+        for (Peer peer : peers) {
+            if (peer.getPexId() == 0) {
+                continue;
+            }
+            long self = peer.getListenPort() > 0 ? PeerPool.pack(peer.getIp(), peer.getListenPort()) : -1;
+            Set<Long> sent = peer.getPexSent();
+            List<Long> added = new ArrayList<>();
+            List<Long> dropped = new ArrayList<>();
+            for (long key : current) {
+                if (added.size() < Extensions.MAX_PEX_PEERS && key != self && !sent.contains(key)) {
+                    added.add(key);
+                }
+            }
+            for (long key : sent) {
+                if (dropped.size() < Extensions.MAX_PEX_PEERS && !current.contains(key)) {
+                    dropped.add(key);
+                }
+            }
+            if (added.isEmpty() && dropped.isEmpty()) {
+                continue;
+            }
+            sent.addAll(added);
+            sent.removeAll(dropped);
+            try {
+                ArrayList<Object> arguments = new ArrayList<>();
+                arguments.add(Extensions.encodePex(added, dropped));
+                peer.sendMessage(new Pair<String, ArrayList<Object>>("pex", arguments));
+            } catch (DataFormatException e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public double getWeight() {
+        return weight;
+    }
+
+    @Override
+    public int getWanted() {
+        return wanted;
+    }
+
+    /**
+     * Called by the peer pool whenever new candidates arrive. Wakes up
+     * the main loop so that they get connected to without delay.
+     */
+    @Override
+    public void newCandidates() {
+        synchronized(wakeUp) {
+            newCandidates = true;
+            wakeUp.notify();
+        }
+    }
     
     /** 
      * Issues out new orders to every peer.
@@ -263,9 +634,10 @@ public class PeerManager extends Thread {
         //Create an endagme system with cancellation
         updateHaves(peer, haves); //Don't forget to update the rarest list
         updateReceivedPieces(peer);
-        if (tor.isDownloading() && !peer.getAmInterested()) {
+        boolean downloading = tor.isDownloading() && !complete;
+        if (downloading && !peer.getAmInterested()) {
             updateInterest(peer, true);
-        } else if (!tor.isDownloading() && peer.getAmInterested()) {
+        } else if (!downloading && peer.getAmInterested()) {
             updateInterest(peer, false);
         }
         if (tor.isUploading() && peer.getAmChocking()) {
@@ -275,10 +647,14 @@ public class PeerManager extends Thread {
         }
         if (peer.getPeerInterested() && !peer.getAmChocking()) {
             updatePeerPiece(peer);
+        } else if (peer.getFast() && peer.getAmChocking()) {
+            rejectRequests(peer);
         }
-        if (peer.getAmInterested() && !peer.getPeerChocking() && !peersWithoutDownloads.contains(peer)) {
+        //With the Fast Extension, the allowed fast pieces can be requested while choked
+        boolean mayRequest = !peer.getPeerChocking() || !peer.getAllowedFast().isEmpty();
+        if (downloading && peer.getAmInterested() && mayRequest && !peersWithoutDownloads.contains(peer)) {
             updateRequests(peer);
-            // if (availablePieceList.size()/tor.getPieces().length > 0.05) {
+            // if (availablePieceList.size()/pieceCount > 0.05) {
             //     updateRequests(peer);
             // } else {
             //     updateFinalRequests(peer);
@@ -303,19 +679,19 @@ public class PeerManager extends Thread {
             Integer idx = peer.getPeerHaves();
             if (idx == null) {
                 break;
-            } else if (idx >= tor.getPieces().length || idx < 0) {
+            } else if (idx >= pieceCount || idx < 0) {
                 log.debug("%s received an out of bounds index", toString());
                 continue;
             }
             log.debug("%s increasing frequencyArray at %d by 1 to %d", toString(), idx, frequencyArray[idx] + 1);
             int oldVal = frequencyArray[idx];
             if (!downloadedPieceSet.contains(idx) && !requestedPieces.containsKey(idx)) {
-                if (oldVal > 0 && rarenessList.get(oldVal-1).contains(idx)) {
-                    newPieceToDownload = true;
-                    rarenessList.get(oldVal - 1).remove(idx);
+                if (oldVal > 0 && rarenessLevel(idx, oldVal).contains(idx)) {
+                    newPieceToDownload |= priorities[idx] != Torrent.Priority.SKIP.ordinal();
+                    rarenessLevel(idx, oldVal).remove(idx);
                 }
-                if (oldVal < rarenessList.size()) {
-                    rarenessList.get(oldVal).add(idx);
+                if (oldVal < levelCount()) {
+                    rarenessLevel(idx, oldVal + 1).add(idx);
                 } else {
                     log.warn("the frequency array value is higher than the number of peers");
                 }
@@ -390,26 +766,89 @@ public class PeerManager extends Thread {
     
     /** 
      * Sends out one piece that was previously requested by a peer.
-     * Drops a request larger than 128KB or smaller than 8KB.
      * @param peer
      */
     private void updatePeerPiece(Peer peer) {
         Request req = peer.getRequest(); //Get the latest request
         if (req != null) {
-            //Check if I am willing to send a piece currently
-            if (req.block.length > 131072 || req.block.length < 8192) {
-                log.warn("%s received a request with unacceptable length", toString());
-                return;
+            sendPiece(peer, req);
+        }
+    }
+
+    /** 
+     * Sends the requested block to the peer.
+     * Drops a request larger than 128KB or smaller than 8KB.
+     * @param peer
+     * @param req
+     */
+    private void sendPiece(Peer peer, Request req) {
+        //Check if I am willing to send a piece currently
+        if (req.block.length > 131072 || req.block.length < 8192) {
+            log.warn("%s received a request with unacceptable length", toString());
+            reject(peer, req);
+            return;
+        }
+        int length = req.block.length;
+        tor.fillOutPiece(req);
+        if (req.block == null) {
+            log.debug("%s did not have the requested block", toString());
+            reject(peer, new Request(req.index, req.begin, length));
+            return;
+        }
+        ArrayList<Object> arguments = new ArrayList<>();
+        arguments.add(req);
+        log.debug("%s sending piece with idx %d, begin %d, length %d", toString(), req.index, req.begin, req.block.length);
+        peer.sendMessage(new Pair<String, ArrayList<Object>>("piece", arguments));
+    }
+
+    /** 
+     * Answers the requests of a peer we choke. With the Fast Extension every
+     * request gets an answer, so the ones outside of the allowed fast set we
+     * gave the peer are rejected instead of being left hanging.
+     * @param peer
+     */
+    private void rejectRequests(Peer peer) {
+        Request req;
+        while ((req = peer.getRequest()) != null) {
+            if (tor.isUploading() && peer.getOurAllowedFast().contains(req.index)) {
+                sendPiece(peer, req);
+            } else {
+                reject(peer, req);
             }
-            tor.fillOutPiece(req);
-            if (req.block == null) {
-                log.debug("%s did not have the requested block", toString());
-                return;
+        }
+    }
+
+    /** 
+     * Orders the peer to reject a request. Does nothing without the Fast Extension.
+     * @param peer
+     * @param req
+     */
+    private void reject(Peer peer, Request req) {
+        ArrayList<Object> arguments = new ArrayList<>();
+        arguments.add(req);
+        peer.sendMessage(new Pair<String, ArrayList<Object>>("reject", arguments));
+    }
+
+    /** 
+     * Makes the pieces of the blocks the peer rejected available again right
+     * away instead of waiting for the request timeout. Requests are tracked
+     * per piece, so the whole piece is requested again.
+     * @param peer
+     */
+    private void updateRejected(Peer peer) {
+        Request rejected;
+        while ((rejected = peer.getRejected()) != null) {
+            int index = rejected.index;
+            Triplet<Integer, Peer, Instant> req = requestedPieces.get(index);
+            if (req == null || req.getMiddle() != peer || downloadedPieceSet.contains(index)) {
+                continue;
             }
-            ArrayList<Object> arguments = new ArrayList<>();
-            arguments.add(req);
-            log.debug("%s sending piece with idx %d, begin %d, length %d", toString(), req.index, req.begin, req.block.length);
-            peer.sendMessage(new Pair<String, ArrayList<Object>>("piece", arguments));
+            log.debug("%s; %s rejected piece at index %d", toString(), peer.toString(), index);
+            requestedPieces.remove(index);
+            if (frequencyArray[index] > 0) {
+                rarenessLevel(index, frequencyArray[index]).add(index);
+            }
+            tor.timedOutPiece(index);
         }
     }
     
@@ -418,12 +857,21 @@ public class PeerManager extends Thread {
      * @param peer
      */
     private void updateRequests(Peer peer) {
+        if (tor.isDiskBacklogged()) {
+            //The pieces already requested are still accepted, nothing new is asked for until the disk catches up
+            log.debug("%s the disk is backlogged; not requesting from %s", toString(), peer.toString());
+            return;
+        }
         int requestCount = peer.getRequestCount();
         if (requestCount >= MAXPIECES) {
             log.debug("%s; %s already has requested %d pieces", toString(), peer.toString(), MAXPIECES);
             return;
         }
         int pieceLength = (int) tor.getPieceLength();
+        //While choked only whole allowed fast pieces are requested, never the following piece
+        boolean choked = peer.getPeerChocking();
+        //Without memory for new pieces, the blocks stop at the end of the piece
+        boolean bufferFull = tor.isPieceBufferFull();
         Integer reqIndex = getRandomRequestIndex(peer);
         if (reqIndex == null) {
             return;
@@ -434,21 +882,24 @@ public class PeerManager extends Thread {
             begin = requestedPiece.getLeft();
         } else {
             log.debug("%s removing %d from rarenessList", toString(), reqIndex);
-            rarenessList.get(frequencyArray[reqIndex] - 1).remove(reqIndex);
+            rarenessLevel(reqIndex, frequencyArray[reqIndex]).remove(reqIndex);
             begin = 0;
         }
         int length;
         boolean last = false;
         for (int i = 0; i < 10 - requestCount; i++) {
             if (begin + BLOCKSIZE >= pieceLength
-                && (reqIndex + 1 == tor.getPieces().length/20
+                && (choked
+                || bufferFull
+                || reqIndex + 1 == pieceCount
                 || frequencyArray[reqIndex + 1] == 0 
+                || priorities[reqIndex + 1] == Torrent.Priority.SKIP.ordinal()
                 || downloadedPieceSet.contains(reqIndex + 1)
                 || requestedPieces.get(reqIndex + 1) != null))
             {
                 length = pieceLength - begin;
                 last = true;
-            } else if ((reqIndex + 1 == tor.getPieces().length/20) && begin + BLOCKSIZE >= lastPieceSize) {
+            } else if ((reqIndex + 1 == pieceCount) && begin + BLOCKSIZE >= lastPieceSize) {
                 length = (int) (lastPieceSize - begin);
                 last = true;
             } else {
@@ -479,7 +930,7 @@ public class PeerManager extends Thread {
                         begin = requestedPiece.getLeft();
                     } else {
                         log.debug("%s removing %d from rarenessList", toString(), reqIndex);
-                        rarenessList.get(frequencyArray[reqIndex] - 1).remove(reqIndex);
+                        rarenessLevel(reqIndex, frequencyArray[reqIndex]).remove(reqIndex);
                         begin = 0;
                     }
                     last = false;
@@ -488,7 +939,7 @@ public class PeerManager extends Thread {
                 begin -= pieceLength;
                 reqIndex += 1;
                 log.debug("%s removing %d from rarenessList", toString(), reqIndex);
-                rarenessList.get(frequencyArray[reqIndex] - 1).remove(reqIndex);
+                rarenessLevel(reqIndex, frequencyArray[reqIndex]).remove(reqIndex);
             }
         }
         Triplet<Integer, Peer, Instant> req = new Triplet<>(begin, peer, Instant.now());
@@ -500,45 +951,197 @@ public class PeerManager extends Thread {
     }
     
     /** 
-     * Returns the index of a random available piece.
+     * Returns the index of a random available piece. Unless the torrent
+     * picks the rarest pieces, the pieces its order prefers come first,
+     * then the pieces the peer suggested. While the peer chokes us, only the pieces
+     * in its allowed fast set are considered. While the memory for pieces
+     * being downloaded is used up, a peer is only given a new piece once
+     * its started pieces have arrived.
      * Should not be called during the final download stage.
      * @return int
      */
     private Integer getRandomRequestIndex(Peer peer) {
+        boolean choked = peer.getPeerChocking();
+        Set<Integer> allowedFast = peer.getAllowedFast();
+        boolean started = false;
         for (Map.Entry<Integer, Triplet<Integer, Peer, Instant>> entry : requestedPieces.entrySet()) {
-            if (entry.getValue().getLeft() != -1 && entry.getValue().getMiddle() == peer) {
+            if (entry.getValue().getMiddle() != peer) {
+                continue;
+            }
+            if (entry.getValue().getLeft() != -1 && (!choked || allowedFast.contains(entry.getKey()))) {
                 return entry.getKey();
             }
+            started |= !downloadedPieceSet.contains(entry.getKey());
+        }
+        if (started && tor.isPieceBufferFull()) {
+            log.debug("%s; %s finishes its started pieces first", toString(), peer.toString());
+            return null;
         }
         byte[] peerBitfield = peer.getPeerBitfield();
-        for (Set<Integer> rarenessLevel : rarenessList) {
-            List<Integer> indexList = new ArrayList<Integer>(rarenessLevel); //This is really inefficient
-            Collections.shuffle(indexList);
-            for (Integer index : indexList) {
-                int bitfieldIndex = index/8;
-                int bitIndex = index%8;
-                if (((peerBitfield[bitfieldIndex] >>> (7-bitIndex)) & 0x01) == 1) {
-                    return index;
+        Integer ordered = getOrderedRequestIndex(peer, peerBitfield);
+        if (ordered != null) {
+            return ordered;
+        }
+        for (Iterator<Integer> it = peer.getSuggested().iterator(); it.hasNext();) {
+            Integer index = it.next();
+            if (choked && !allowedFast.contains(index)) {
+                continue;
+            }
+            it.remove();
+            if (index < pieceCount && isRequestable(index)
+                && ((peerBitfield[index/8] >>> (7 - index%8)) & 0x01) == 1) {
+                return index;
+            }
+        }
+        //Higher priorities first, skipped pieces never
+        for (int priority = rarenessLists.size() - 1; priority > Torrent.Priority.SKIP.ordinal(); priority--) {
+            for (Set<Integer> rarenessLevel : rarenessLists.get(priority)) {
+                List<Integer> indexList = new ArrayList<Integer>(rarenessLevel); //This is really inefficient
+                Collections.shuffle(indexList);
+                for (Integer index : indexList) {
+                    if (choked && !allowedFast.contains(index)) {
+                        continue;
+                    }
+                    int bitfieldIndex = index/8;
+                    int bitIndex = index%8;
+                    if (((peerBitfield[bitfieldIndex] >>> (7-bitIndex)) & 0x01) == 1) {
+                        return index;
+                    }
                 }
             }
         }
-        log.debug("%s; %s without downloads", toString(), peer.toString());
-        peersWithoutDownloads.add(peer);
+        if (!choked) {
+            //A choked peer may still have pieces once it unchokes us
+            log.debug("%s; %s without downloads", toString(), peer.toString());
+            peersWithoutDownloads.add(peer);
+        }
         return null;
     }
 
+    /**
+     * Picks the first requestable piece the peer has in the range the
+     * order of the torrent prefers: from the first missing piece on for
+     * SEQUENTIAL, the window ahead of the stream cursor for STREAMING.
+     * @param peer
+     * @param peerBitfield
+     * @return the index or null if the range has no piece for the peer.
+     */
+    private Integer getOrderedRequestIndex(Peer peer, byte[] peerBitfield) {
+        Torrent.Order order = tor.getOrder();
+        if (order == Torrent.Order.RAREST) {
+            return null;
+        }
+        while (firstMissing < pieceCount && downloadedPieceSet.contains(firstMissing)) {
+            firstMissing += 1;
+        }
+        int start = firstMissing;
+        int end = pieceCount;
+        if (order == Torrent.Order.STREAMING) {
+            start = Math.max(firstMissing, Math.min(tor.getStreamCursor(), pieceCount));
+            long window = Math.max(MIN_STREAM_PIECES, STREAM_WINDOW/tor.getPieceLength());
+            end = (int) Math.min(pieceCount, start + window);
+        }
+        boolean choked = peer.getPeerChocking();
+        Set<Integer> allowedFast = peer.getAllowedFast();
+        for (int index = start; index < end; index++) {
+            if (choked && !allowedFast.contains(index)) {
+                continue;
+            }
+            if (isRequestable(index) && ((peerBitfield[index/8] >>> (7 - index%8)) & 0x01) == 1) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param index
+     * @param frequency: the number of peers having the piece, at least 1.
+     * @return the set of pieces of the same priority as the piece had by as many peers.
+     */
+    private Set<Integer> rarenessLevel(int index, int frequency) {
+        return rarenessLists.get(priorities[index]).get(frequency - 1);
+    }
+
+    /**
+     * @return the number of rareness levels, one per peer.
+     */
+    private int levelCount() {
+        return rarenessLists.get(0).size();
+    }
+
+    private void addRarenessLevel() {
+        for (List<Set<Integer>> rarenessList : rarenessLists) {
+            rarenessList.add(new HashSet<Integer>());
+        }
+    }
+
+    /**
+     * @param index
+     * @return boolean indicating whether the piece is neither skipped, requested nor downloaded and a peer has it.
+     */
+    private boolean isRequestable(int index) {
+        int frequency = frequencyArray[index];
+        return frequency > 0 && frequency <= levelCount() && priorities[index] != Torrent.Priority.SKIP.ordinal()
+            && rarenessLevel(index, frequency).contains(index);
+    }
+
+    /**
+     * Moves the pieces whose priority the torrent changed to the rareness
+     * levels of their new priority.
+     */
+    private synchronized void updatePriorities() {
+        priorityVersion = tor.getPriorityVersion();
+        Torrent.Priority[] wanted = tor.getPriorities(pieceCount);
+        int changed = 0;
+        for (int index = 0; index < pieceCount; index++) {
+            byte priority = (byte) wanted[index].ordinal();
+            if (priority == priorities[index]) {
+                continue;
+            }
+            int frequency = frequencyArray[index];
+            boolean listed = frequency > 0 && frequency <= levelCount() && rarenessLevel(index, frequency).remove(index);
+            priorities[index] = priority;
+            if (listed) {
+                rarenessLevel(index, frequency).add(index);
+            }
+            changed += 1;
+        }
+        if (changed > 0) {
+            log.debug("%s changed the priority of %d pieces", toString(), changed);
+            //Pieces that were skipped may be wanted now, peers still to send their bitfield stay
+            peersWithoutDownloads.retainAll(potentialBitfieldPeers);
+        }
+    }
+
     /**
      * The file manager has determined that the piece at index
-     * was invalid and needs to be downloaded again. Adds the 
-     * index to availablePieceList and removes it from requestedPieces.
+     * was invalid and needs to be downloaded again. Removes the index from
+     * requestedPieces and adds it to its rareness level if a peer has it,
+     * otherwise it is added once a peer announces it.
      * @param index
      */
     public void redownloadPiece(Integer index) {
         log.debug("%s redownloading piece at index %d", toString(), index.intValue());
-        rarenessList.get(frequencyArray[index] - 1).add(index);
+        Triplet<Integer, Peer, Instant> req = requestedPieces.get(index);
+        if (req != null && req.getMiddle() != null) {
+            //A piece is only requested from one peer, so the corrupt data came from it
+            req.getMiddle().getStats().error();
+        }
         requestedPieces.remove(index);
+        //The hash is checked after the piece arrived, by then no peer may have it anymore
+        if (frequencyArray[index] > 0) {
+            rarenessLevel(index, frequencyArray[index]).add(index);
+        }
     }
     
+    /** 
+     * @return the registry of the torrent or null when testing without one.
+     */
+    public Metrics getMetrics() {
+        return tor == null ? null : tor.getMetrics();
+    }
+
     /** 
      * @return String
      */
@@ -546,6 +1149,68 @@ public class PeerManager extends Thread {
         return tor.getPeerId();
     }
 
+    /** 
+     * @return the port the client listens on for incoming peers.
+     */
+    public int getPort() {
+        return tor.getPort();
+    }
+
+    /** 
+     * @return the number of pieces of the torrent.
+     */
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    /** 
+     * Generates the pieces a peer at ip may request while we choke it. Only
+     * pieces we have are included and none while we are not uploading.
+     * Not synchronized, since the peer threads call it while starting up,
+     * without the manager's monitor.
+     * @param ip
+     * @return List<Integer>
+     */
+    public List<Integer> getAllowedFastSet(InetAddress ip) {
+        List<Integer> allowed = new ArrayList<>();
+        if (!tor.isUploading()) {
+            return allowed;
+        }
+        for (Integer index : FastExtension.allowedFastSet(getInfoHash(), ip, pieceCount, FastExtension.ALLOWED_FAST_COUNT)) {
+            if (downloadedPieceSet.contains(index)) {
+                allowed.add(index);
+            }
+        }
+        return allowed;
+    }
+
+    /** 
+     * @return the UDP port of our DHT node or -1 if the DHT is disabled.
+     */
+    public int getDhtPort() {
+        return dht == null ? -1 : dht.getPort();
+    }
+
+    /**
+     * @return the size of the info dictionary served through ut_metadata, -1 if it is unknown.
+     */
+    public int getMetadataSize() {
+        return tor.getInfoSize();
+    }
+
+    /**
+     * @param piece
+     * @return the ut_metadata piece of the info dictionary or null if there is no such piece.
+     */
+    public byte[] readMetadata(int piece) {
+        int size = tor.getInfoSize();
+        if (size <= 0 || piece >= Extensions.metadataPieceCount(size)) {
+            return null;
+        }
+        int offset = piece*Extensions.METADATA_PIECE_LENGTH;
+        return tor.readInfo(offset, Math.min(Extensions.METADATA_PIECE_LENGTH, size - offset));
+    }
+
     /**
      * @return byte[]
      */
@@ -554,9 +1219,23 @@ public class PeerManager extends Thread {
     }
     
     /** 
+     * Adds a peer that was received from the peer server. Peers that
+     * are banned or already connected, or for which the connection budget
+     * has no slot left, are dropped.
      * @param peer
      */
     public void addPeer(Peer peer) {
+            if (!peerPool.addIncoming(peer.getIp(), peer.getPort())) {
+                log.debug("Dropping duplicate or banned %s", peer.toString());
+                peer.shutdownSockets();
+                return;
+            }
+            if (!budget.tryAcquire(this)) {
+                log.debug("Dropping %s, no connection slot left", peer.toString());
+                peerPool.disconnected(peer.getIp(), peer.getPort(), peer.getListenPort());
+                peer.shutdownSockets();
+                return;
+            }
             log.debug("Adding new %s to the peer list", peer.toString());
             peer.introducePeerManager(this);
             peer.start();
@@ -564,7 +1243,7 @@ public class PeerManager extends Thread {
             peers.add(peer);
             potentialBitfieldPeers.add(peer);
             peersWithoutDownloads.add(peer);
-            rarenessList.add(new HashSet<Integer>());
+            addRarenessLevel();
         }
     }
     
@@ -580,7 +1259,7 @@ public class PeerManager extends Thread {
      * @return int
      */
     public int getBitfieldLength() {
-        return (int) Math.ceil((double) (tor.getPieces().length/20)/8);
+        return (int) Math.ceil((double) pieceCount/8);
     }
 
     public String getFileName() {
@@ -592,19 +1271,29 @@ public class PeerManager extends Thread {
      * ordering all peers to shutdown and eventually
      * shutting itself down.
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         log.trace("shutting down %s", toString());
-        keepRunning = false;
-        for (Peer peer : peers) {
-            peer.close();
+        List<Peer> closed;
+        synchronized(this) {
+            keepRunning = false;
+            peerPool.setListener(null);
+            budget.unregister(this);
+            for (Peer peer : peers) {
+                peer.close();
+                peerPool.disconnected(peer.getIp(), peer.getPort(), peer.getListenPort());
+            }
+            closed = new ArrayList<>(peers);
         }
-        for (Peer peer : peers) {
+        //Joined without the monitor, a peer thread may be waiting for it
+        for (Peer peer : closed) {
             try {
                 peer.join();
             } catch (InterruptedException e) {
                 log.error("%s interrupted while joining peer", toString());
                 log.error(e.getMessage(), e);
             }
+            //Detached once the thread has counted its last bytes, like a removed peer
+            peer.getMetrics().remove();
         }
         log.trace("%s successfuly shut down", toString());
     }
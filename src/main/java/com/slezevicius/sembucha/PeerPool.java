@@ -0,0 +1,473 @@
+package com.slezevicius.sembucha;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The pool of connection candidates for one torrent. Every known peer address
+ * is kept exactly once, keyed by its IPv4 address and port packed into a long,
+ * so duplicate checks do not need to look at the connected peers. The pool
+ * remembers where a candidate was learnt from, backs off candidates that could
+ * not be connected to and keeps banned candidates out. Instead of being polled,
+ * the pool informs its listener whenever a new candidate arrives.
+ *
+ * A peer that connected to us is registered under the port it connected
+ * from, which nobody listens on. Such a candidate is never dialed and is
+ * forgotten once the peer disconnects; if the peer announced its listening
+ * port, that address is kept instead. Since an incoming peer can reconnect
+ * from any port, incoming connections are refused from every address with
+ * a banned candidate.
+ */
+public class PeerPool {
+    /**
+     * Where a candidate was first learnt from.
+     */
+    public enum Source {
+        TRACKER,
+        INCOMING,
+        PEX,
+        DHT
+    }
+
+    /**
+     * Receives a callback whenever new candidates have been added to the pool.
+     */
+    public interface Listener {
+        void newCandidates();
+    }
+
+    private static final long BASE_BACKOFF = 30000; //ms
+    private static final long MAX_BACKOFF = 3600000; //ms
+    private static final long EVICTION_BACKOFF = 600000; //ms
+    private static final int MAX_FAILURES = 8;
+    private final ConcurrentHashMap<Long, Candidate> candidates;
+    private final Set<InetAddress> bannedIps = ConcurrentHashMap.newKeySet();
+    private volatile Listener listener;
+    private Logger log;
+
+    PeerPool() {
+        log = LogManager.getFormatterLogger(PeerPool.class);
+        candidates = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Packs an IPv4 address and a port into a single long in the form
+     * <ip:32><port:16>.
+     * @param ip
+     * @param port
+     * @return the packed key or -1 if the address is not an IPv4 address.
+     */
+    public static long pack(InetAddress ip, int port) {
+        if (!(ip instanceof Inet4Address)) {
+            return -1;
+        }
+        byte[] addr = ip.getAddress();
+        long key = 0;
+        for (int i = 0; i < 4; i++) {
+            key = (key << 8) | (addr[i] & 0xFF);
+        }
+        return (key << 16) | (port & 0xFFFF);
+    }
+
+    /**
+     * Reverses pack.
+     * @param key: a key created by pack.
+     * @return the address and the port.
+     */
+    public static Pair<InetAddress, Integer> unpack(long key) {
+        byte[] addr = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            addr[i] = (byte) (key >>> (40 - 8*i));
+        }
+        try {
+            return new Pair<InetAddress, Integer>(InetAddress.getByAddress(addr), (int) (key & 0xFFFF));
+        } catch (UnknownHostException e) {
+            //Never thrown for a four byte address
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Decodes the compact peer format, 4 bytes of IPv4 address followed
+     * by a 2 byte port for every peer.
+     * @param compact
+     * @return the packed keys of the peers.
+     * @throws DataFormatException: If the length is not a multiple of 6.
+     */
+    public static long[] decodeCompact(byte[] compact) throws DataFormatException {
+        if (compact.length % 6 != 0) {
+            throw new DataFormatException("Invalid length of compact peers " + compact.length);
+        }
+        long[] keys = new long[compact.length/6];
+        for (int i = 0; i < keys.length; i++) {
+            long key = 0;
+            for (int j = 0; j < 6; j++) {
+                key = (key << 8) | (compact[i*6 + j] & 0xFF);
+            }
+            keys[i] = key;
+        }
+        return keys;
+    }
+
+    /**
+     * Encodes packed keys in the compact peer format.
+     * @param keys
+     * @return byte[]
+     */
+    public static byte[] encodeCompact(Collection<Long> keys) {
+        byte[] out = new byte[keys.size()*6];
+        int i = 0;
+        for (long key : keys) {
+            for (int j = 0; j < 6; j++) {
+                out[i*6 + j] = (byte) (key >>> (40 - 8*j));
+            }
+            i += 1;
+        }
+        return out;
+    }
+
+    /**
+     * Adds a new candidate to the pool. Known candidates are left untouched.
+     * @param ip
+     * @param port
+     * @param source: where the candidate was learnt from.
+     * @return boolean indicating whether the candidate was new.
+     */
+    public boolean add(InetAddress ip, int port, Source source) {
+        long key = pack(ip, port);
+        if (key == -1) {
+            log.debug("%s ignoring non IPv4 candidate %s", toString(), ip.toString());
+            return false;
+        }
+        if (candidates.putIfAbsent(key, new Candidate(key, ip, port, source)) != null) {
+            return false;
+        }
+        Listener current = listener;
+        if (current != null) {
+            current.newCandidates();
+        }
+        return true;
+    }
+
+    /**
+     * Registers a peer that connected to us. The candidate is marked as
+     * connected straight away and is never handed out for dialing.
+     * @param ip
+     * @param port: the port the peer connected from.
+     * @return false if the address is banned or already connected.
+     */
+    public boolean addIncoming(InetAddress ip, int port) {
+        if (bannedIps.contains(ip)) {
+            return false;
+        }
+        long key = pack(ip, port);
+        if (key == -1) {
+            return true;
+        }
+        Candidate candidate = candidates.computeIfAbsent(key, k -> new Candidate(k, ip, port, Source.INCOMING, true));
+        synchronized(candidate) {
+            if (candidate.banned || candidate.connected) {
+                return false;
+            }
+            candidate.connected = true;
+            return true;
+        }
+    }
+
+    /**
+     * Takes up to max candidates which are not connected, not banned and whose
+     * backoff has expired. The returned candidates are marked as connected and
+     * must be given back through connectFailed or disconnected.
+     * @param max
+     * @return List<Candidate>
+     */
+    public List<Candidate> takeConnectable(int max) {
+        List<Candidate> out = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Candidate candidate : candidates.values()) {
+            if (out.size() >= max) {
+                break;
+            }
+            synchronized(candidate) {
+                if (candidate.isConnectable(now)) {
+                    candidate.connected = true;
+                    out.add(candidate);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return boolean indicating whether any candidate could be connected to right now.
+     */
+    public boolean hasConnectable() {
+        long now = System.currentTimeMillis();
+        for (Candidate candidate : candidates.values()) {
+            synchronized(candidate) {
+                if (candidate.isConnectable(now)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param max: the number to stop counting at.
+     * @return the number of candidates that could be connected to right now, at most max.
+     */
+    public int countConnectable(int max) {
+        int count = 0;
+        long now = System.currentTimeMillis();
+        for (Candidate candidate : candidates.values()) {
+            if (count >= max) {
+                break;
+            }
+            synchronized(candidate) {
+                if (candidate.isConnectable(now)) {
+                    count += 1;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Records a failed connection attempt. The next attempt is delayed
+     * exponentially and the candidate is forgotten after too many failures.
+     * @param candidate
+     */
+    public void connectFailed(Candidate candidate) {
+        synchronized(candidate) {
+            candidate.connected = false;
+            candidate.failures += 1;
+            if (candidate.failures >= MAX_FAILURES) {
+                candidates.remove(candidate.key, candidate);
+                return;
+            }
+            long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << (candidate.failures - 1));
+            candidate.nextAttempt = System.currentTimeMillis() + backoff;
+        }
+    }
+
+    /**
+     * Marks the candidate at the given address as no longer connected.
+     * @param ip
+     * @param port
+     */
+    public void disconnected(InetAddress ip, int port) {
+        disconnected(ip, port, -1);
+    }
+
+    /**
+     * Marks the candidate at the given address as no longer connected. A
+     * peer that connected to us is forgotten and, if it announced the port
+     * it listens on, that address is added to be dialed after the backoff.
+     * @param ip
+     * @param port
+     * @param listenPort: the port the peer announced, -1 if unknown.
+     */
+    public void disconnected(InetAddress ip, int port, int listenPort) {
+        release(ip, port, listenPort, false);
+    }
+
+    /**
+     * Marks the candidate at the given address as disconnected for
+     * performing poorly. Unlike an ordinary disconnect, the backoff starts
+     * at EVICTION_BACKOFF and doubles with every eviction of the address,
+     * so that an evicted peer does not take its slot back right away.
+     * @param ip
+     * @param port
+     * @param listenPort: the port the peer announced, -1 if unknown.
+     */
+    public void evicted(InetAddress ip, int port, int listenPort) {
+        release(ip, port, listenPort, true);
+    }
+
+    private void release(InetAddress ip, int port, int listenPort, boolean evicted) {
+        Candidate candidate = candidates.get(pack(ip, port));
+        if (candidate == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int evictions;
+        synchronized(candidate) {
+            candidate.connected = false;
+            candidate.failures = 0;
+            if (evicted) {
+                candidate.evictions += 1;
+            }
+            evictions = candidate.evictions;
+            candidate.nextAttempt = now + releaseBackoff(evictions);
+        }
+        if (!candidate.ephemeral) {
+            return;
+        }
+        candidates.remove(candidate.key, candidate);
+        long key = pack(ip, listenPort);
+        if (listenPort > 0 && key != -1) {
+            Candidate listening = new Candidate(key, ip, listenPort, Source.INCOMING, false);
+            listening.evictions = evictions;
+            listening.nextAttempt = now + releaseBackoff(evictions);
+            Candidate existing = candidates.putIfAbsent(key, listening);
+            if (existing != null && evicted) {
+                synchronized(existing) {
+                    existing.evictions = Math.max(existing.evictions, evictions);
+                    existing.nextAttempt = Math.max(existing.nextAttempt, now + releaseBackoff(existing.evictions));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param evictions: how often the address was evicted.
+     * @return the time in milliseconds to wait before dialing the address again.
+     */
+    private static long releaseBackoff(int evictions) {
+        if (evictions == 0) {
+            return BASE_BACKOFF;
+        }
+        return Math.min(MAX_BACKOFF, EVICTION_BACKOFF << Math.min(evictions - 1, 16));
+    }
+
+    /**
+     * Bans the address so that it is never handed out again. Incoming
+     * connections from its IP are refused from then on.
+     * @param ip
+     * @param port
+     */
+    public void ban(InetAddress ip, int port) {
+        long key = pack(ip, port);
+        if (key == -1) {
+            return;
+        }
+        bannedIps.add(ip);
+        Candidate candidate = candidates.computeIfAbsent(key, k -> new Candidate(k, ip, port, Source.INCOMING, false));
+        synchronized(candidate) {
+            candidate.banned = true;
+        }
+        log.debug("%s banned %s:%d", toString(), ip.toString(), port);
+    }
+
+    /**
+     * @param ip
+     * @param port
+     * @return boolean indicating whether the address is banned.
+     */
+    public boolean isBanned(InetAddress ip, int port) {
+        Candidate candidate = candidates.get(pack(ip, port));
+        if (candidate == null) {
+            return false;
+        }
+        synchronized(candidate) {
+            return candidate.banned;
+        }
+    }
+
+    /**
+     * @param ip
+     * @param port
+     * @return boolean indicating whether the address is in the pool.
+     */
+    public boolean contains(InetAddress ip, int port) {
+        return candidates.containsKey(pack(ip, port));
+    }
+
+    public int size() {
+        return candidates.size();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PeerPool[size=%d]", candidates.size());
+    }
+
+    /**
+     * A single known peer address together with its connection history.
+     * All mutable fields are guarded by the candidate's monitor.
+     */
+    public static class Candidate {
+        private final long key;
+        private final InetAddress ip;
+        private final int port;
+        private final Source source;
+        private final boolean ephemeral;
+        private int failures = 0;
+        private int evictions = 0;
+        private long nextAttempt = 0;
+        private boolean connected = false;
+        private boolean banned = false;
+
+        Candidate(long key, InetAddress ip, int port, Source source) {
+            this(key, ip, port, source, false);
+        }
+
+        /**
+         * @param key
+         * @param ip
+         * @param port
+         * @param source
+         * @param ephemeral: whether the port is the one a peer connected to us from.
+         */
+        Candidate(long key, InetAddress ip, int port, Source source, boolean ephemeral) {
+            this.key = key;
+            this.ip = ip;
+            this.port = port;
+            this.source = source;
+            this.ephemeral = ephemeral;
+        }
+
+        /**
+         * Must be called while holding the candidate's monitor.
+         * @param now
+         * @return boolean indicating whether the candidate may be dialed now.
+         */
+        private boolean isConnectable(long now) {
+            return !ephemeral && !connected && !banned && nextAttempt <= now;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        public InetAddress getIp() {
+            return ip;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public Source getSource() {
+            return source;
+        }
+
+        public synchronized int getFailures() {
+            return failures;
+        }
+
+        public Pair<InetAddress, Integer> getNetworkPair() {
+            return new Pair<InetAddress, Integer>(ip, port);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Candidate[ip=%s, port=%d, source=%s]", ip.toString(), port, source);
+        }
+    }
+}
\ No newline at end of file
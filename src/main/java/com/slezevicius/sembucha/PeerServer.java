@@ -1,8 +1,20 @@
 package com.slezevicius.sembucha;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.DataFormatException;
 
 import org.apache.logging.log4j.LogManager;
@@ -10,13 +22,42 @@ import org.apache.logging.log4j.Logger;
 
 /**
  * PeerServer continously listens for new incoming connections from other peers.
- * Upon receiving a new peer and deciding what torrent it belongs to, it informs
- * the torrent manager about the peer.
+ * The accept loop itself never reads from a socket: every accepted socket is
+ * checked against the per-IP limits and handed to a bounded pool of handshake
+ * workers, so a slow connector cannot hold up the connections behind it.
+ * Connections that exceed the limits or do not fit into the handshake queue
+ * are reset right away. Upon receiving the handshake and deciding what torrent
+ * the peer belongs to, it informs the torrent manager about the peer.
  */
-public class PeerServer extends Thread {
+public class PeerServer extends Worker {
+    static final int HANDSHAKE_WORKERS = 8;
+    static final int HANDSHAKE_QUEUE = 64;
+
+    /**
+     * Upper bound on the whole handshake, on top of the per-read timeout of Peer.
+     */
+    static final int HANDSHAKE_DEADLINE = 10000;
+
+    /**
+     * At most MAX_PENDING_PER_IP handshakes from the same address at a time and
+     * at most MAX_ACCEPTS_PER_IP accepted connections per RATE_WINDOW milliseconds.
+     */
+    static final int MAX_PENDING_PER_IP = 2;
+    static final int MAX_ACCEPTS_PER_IP = 10;
+    static final long RATE_WINDOW = 10000;
+    private static final int RATE_TABLE_LIMIT = 4096;
     private ServerSocket server;
     private TorrentManager torrentManager;
     private volatile boolean run;
+    private final ThreadPoolExecutor handshakers;
+    private final ScheduledThreadPoolExecutor deadlines;
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> pending = new ConcurrentHashMap<>();
+
+    /**
+     * recentAccepts maps an address to {window start, accepted connections in the window}.
+     * It is only touched by the accept loop.
+     */
+    private final ConcurrentHashMap<InetAddress, long[]> recentAccepts = new ConcurrentHashMap<>();
     private Logger log;
 
     /**
@@ -25,22 +66,35 @@ public class PeerServer extends Thread {
      */
     PeerServer(TorrentManager torrentManager) throws IOException {
         log = LogManager.getFormatterLogger(PeerServer.class);
-        this.server = new ServerSocket(torrentManager.getPort());
+        this.server = new ServerSocket(torrentManager.getPort(), HANDSHAKE_QUEUE);
         this.torrentManager = torrentManager;
         this.run = true;
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                return Worker.newThread(task, "PeerServer-handshake-" + count.incrementAndGet());
+            }
+        };
+        handshakers = new ThreadPoolExecutor(HANDSHAKE_WORKERS, HANDSHAKE_WORKERS, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(HANDSHAKE_QUEUE), factory, new ThreadPoolExecutor.AbortPolicy());
+        handshakers.allowCoreThreadTimeOut(true);
+        deadlines = new ScheduledThreadPoolExecutor(1, factory);
+        deadlines.setRemoveOnCancelPolicy(true);
         log.trace("PeerServer initialized");
     }
 
     /**
-     * Continously listens for new incoming connections and deals
-     * with newly connected peers. Once the origin of peer is determined
-     * it informs torrent manager to add the peer to the needed peer manager.
+     * Continously accepts new incoming connections and hands them to the
+     * handshake workers. Once the origin of a peer is determined the worker
+     * informs the torrent manager to add the peer to the needed peer manager.
      */
     @Override
     public void run() {
         log.trace("PeerServer in the main loop");
-        while (true) {
-            try {
+        try {
+            while (true) {
                 synchronized(this) {
                     if (!run) {
                         log.trace("Shutting down peer server from run");
@@ -48,24 +102,140 @@ public class PeerServer extends Thread {
                         return;
                     }
                 }
-                Socket sock = server.accept();
+                Socket sock;
                 try {
-                    Peer peer = new Peer(sock);
-                    torrentManager.receivedPeer(peer);
-                } catch (IOException | DataFormatException | InterruptedException e) {
+                    sock = server.accept();
+                } catch (IOException e) {
+                    synchronized(this) {
+                        if (!run) {
+                            log.trace("Server socket is closed");
+                            return;
+                        }
+                    }
                     log.error(e.getMessage(), e);
+                    return;
                 }
-            } catch (IOException e) {
-                synchronized(this) {
-                    if (!run) {
-                        log.trace("Server socket is closed");
-                        return;
+                dispatch(sock);
+            }
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        } finally {
+            handshakers.shutdownNow();
+            deadlines.shutdownNow();
+        }
+    }
+
+    /**
+     * Applies the per-IP limits and queues the handshake of the socket,
+     * dropping the connection if it is over a limit or the queue is full.
+     * @param sock
+     */
+    private void dispatch(final Socket sock) {
+        final InetAddress ip = sock.getInetAddress();
+        if (!allowAccept(ip, System.currentTimeMillis())) {
+            log.debug("Dropping connection from %s, too many connections in the rate window", ip);
+            drop(sock);
+            return;
+        }
+        final AtomicInteger count = pending.computeIfAbsent(ip, k -> new AtomicInteger());
+        if (count.incrementAndGet() > MAX_PENDING_PER_IP) {
+            log.debug("Dropping connection from %s, too many pending handshakes", ip);
+            release(ip, count);
+            drop(sock);
+            return;
+        }
+        try {
+            handshakers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handshake(sock);
+                    } finally {
+                        release(ip, count);
                     }
                 }
-                log.error(e.getMessage(), e);
-                return;
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Dropping connection from %s, the handshake queue is full", ip);
+            release(ip, count);
+            drop(sock);
+        }
+    }
+
+    /**
+     * Receives the handshake of an accepted socket and passes the peer to
+     * the torrent manager. The socket is closed if the handshake does not
+     * complete within HANDSHAKE_DEADLINE.
+     * @param sock
+     */
+    private void handshake(final Socket sock) {
+        ScheduledFuture<?> deadline = deadlines.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drop(sock);
+            }
+        }, HANDSHAKE_DEADLINE, TimeUnit.MILLISECONDS);
+        Peer peer;
+        try {
+            peer = new Peer(sock);
+        } catch (IOException | DataFormatException e) {
+            log.debug("Handshake with %s failed: %s", sock.getInetAddress(), e.getMessage());
+            drop(sock);
+            return;
+        } finally {
+            deadline.cancel(false);
+        }
+        torrentManager.receivedPeer(peer);
+    }
+
+    /**
+     * Counts an accepted connection from ip against its rate window.
+     * @param ip
+     * @param now: the current time in milliseconds.
+     * @return boolean indicating whether the connection is within the limit.
+     */
+    boolean allowAccept(InetAddress ip, long now) {
+        if (recentAccepts.size() > RATE_TABLE_LIMIT) {
+            Iterator<Map.Entry<InetAddress, long[]>> it = recentAccepts.entrySet().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().getValue()[0] >= RATE_WINDOW) {
+                    it.remove();
+                }
             }
         }
+        long[] window = recentAccepts.get(ip);
+        if (window == null || now - window[0] >= RATE_WINDOW) {
+            recentAccepts.put(ip, new long[] {now, 1});
+            return true;
+        }
+        window[1] += 1;
+        return window[1] <= MAX_ACCEPTS_PER_IP;
+    }
+
+    private void release(InetAddress ip, AtomicInteger count) {
+        if (count.decrementAndGet() <= 0) {
+            pending.remove(ip, count);
+        }
+    }
+
+    /**
+     * Resets the connection without waiting for a graceful close.
+     * @param sock
+     */
+    private void drop(Socket sock) {
+        try {
+            sock.setSoLinger(true, 0);
+            sock.close();
+        } catch (IOException e) {
+            log.trace("Could not close %s: %s", sock.getInetAddress(), e.getMessage());
+        }
+    }
+
+    /**
+     * @return the port the server is listening on.
+     */
+    public int getLocalPort() {
+        return server.getLocalPort();
     }
 
     /**
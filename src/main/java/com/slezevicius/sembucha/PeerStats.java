@@ -0,0 +1,199 @@
+package com.slezevicius.sembucha;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Rolling quality metrics of a single peer connection: download and upload
+ * throughput, the round trip time of block requests and the number of
+ * errors attributed to the peer. Throughput is an exponentially weighted
+ * rate with a time constant of RATE_WINDOW, so it needs no periodic sampling
+ * and decays on its own while the peer is idle. The round trip time is
+ * smoothed like TCP's SRTT.
+ */
+public class PeerStats {
+    static final double RATE_WINDOW = 20000; //ms
+    private static final double RTT_GAIN = 0.125;
+    private static final int MAX_OUTSTANDING = 512;
+    private static final long OUTSTANDING_TIMEOUT = 60000; //ms
+
+    /**
+     * Peers are not judged by their throughput before this many milliseconds.
+     */
+    static final long GRACE_PERIOD = 60000;
+    private final long connectedAt;
+    private double downAccumulator = 0;
+    private long downUpdated;
+    private double upAccumulator = 0;
+    private long upUpdated;
+    private long downloaded = 0;
+    private long uploaded = 0;
+    private double rtt = -1;
+    private int errors = 0;
+    private long lastBlock;
+
+    /**
+     * Send times of the outstanding requests keyed by index << 32 | begin.
+     */
+    private final Map<Long, Long> outstanding = new HashMap<>();
+
+    PeerStats() {
+        this(System.currentTimeMillis());
+    }
+
+    PeerStats(long now) {
+        connectedAt = now;
+        downUpdated = now;
+        upUpdated = now;
+        lastBlock = now;
+    }
+
+    private static long key(int index, int begin) {
+        return ((long) index << 32) | (begin & 0xFFFFFFFFL);
+    }
+
+    private static double decay(long elapsed) {
+        return elapsed <= 0 ? 1 : Math.exp(-elapsed/RATE_WINDOW);
+    }
+
+    /**
+     * Records that a block was requested from the peer.
+     * @param index
+     * @param begin
+     * @param now
+     */
+    public synchronized void requestSent(int index, int begin, long now) {
+        if (outstanding.size() >= MAX_OUTSTANDING) {
+            Iterator<Long> it = outstanding.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next() >= OUTSTANDING_TIMEOUT) {
+                    it.remove();
+                }
+            }
+            if (outstanding.size() >= MAX_OUTSTANDING) {
+                return;
+            }
+        }
+        outstanding.put(key(index, begin), now);
+    }
+
+    /**
+     * Forgets a request the peer rejected.
+     * @param index
+     * @param begin
+     */
+    public synchronized void requestRejected(int index, int begin) {
+        outstanding.remove(key(index, begin));
+    }
+
+    /**
+     * Records a block received from the peer and, if it was requested,
+     * a round trip time sample.
+     * @param index
+     * @param begin
+     * @param length: the number of bytes in the block.
+     * @param now
+     * @return the round trip time of the block in milliseconds or -1 if it was not requested.
+     */
+    public synchronized long blockReceived(int index, int begin, int length, long now) {
+        downAccumulator = downAccumulator*decay(now - downUpdated) + length;
+        downUpdated = now;
+        downloaded += length;
+        lastBlock = now;
+        Long sentAt = outstanding.remove(key(index, begin));
+        if (sentAt == null) {
+            return -1;
+        }
+        double sample = now - sentAt;
+        rtt = rtt < 0 ? sample : (1 - RTT_GAIN)*rtt + RTT_GAIN*sample;
+        return now - sentAt;
+    }
+
+    /**
+     * Records a block uploaded to the peer.
+     * @param length
+     * @param now
+     */
+    public synchronized void blockSent(int length, long now) {
+        upAccumulator = upAccumulator*decay(now - upUpdated) + length;
+        upUpdated = now;
+        uploaded += length;
+    }
+
+    /**
+     * Records a misbehaviour of the peer such as a block of a corrupt piece.
+     */
+    public synchronized void error() {
+        errors += 1;
+    }
+
+    /**
+     * @param now
+     * @return the download rate in bytes per second.
+     */
+    public synchronized double getDownloadRate(long now) {
+        return downAccumulator*decay(now - downUpdated)*1000/RATE_WINDOW;
+    }
+
+    /**
+     * @param now
+     * @return the upload rate in bytes per second.
+     */
+    public synchronized double getUploadRate(long now) {
+        return upAccumulator*decay(now - upUpdated)*1000/RATE_WINDOW;
+    }
+
+    /**
+     * @return the smoothed round trip time of requests in milliseconds or -1 if unknown.
+     */
+    public synchronized double getRtt() {
+        return rtt;
+    }
+
+    public synchronized int getErrors() {
+        return errors;
+    }
+
+    public synchronized long getDownloaded() {
+        return downloaded;
+    }
+
+    public synchronized long getUploaded() {
+        return uploaded;
+    }
+
+    /**
+     * @param now
+     * @return milliseconds since the last block was received, or since connecting.
+     */
+    public synchronized long getIdleTime(long now) {
+        return now - lastBlock;
+    }
+
+    /**
+     * @param now
+     * @return boolean indicating whether the peer is past its grace period.
+     */
+    public boolean isJudgeable(long now) {
+        return now - connectedAt >= GRACE_PERIOD;
+    }
+
+    /**
+     * How useful the connection is: the download rate plus half of the upload
+     * rate, halved for every error.
+     * @param now
+     * @return the score, higher is better.
+     */
+    public synchronized double getScore(long now) {
+        double score = getDownloadRate(now) + getUploadRate(now)/2;
+        return score/(1L << Math.min(errors, 30));
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = System.currentTimeMillis();
+        return String.format("PeerStats[down=%.0f, up=%.0f, rtt=%.0f, errors=%d]",
+            getDownloadRate(now), getUploadRate(now), rtt, errors);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,127 @@
+package com.slezevicius.sembucha;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A cache of whole pieces read from disk for uploading, shared by all
+ * torrents. Entries are keyed by their owner, the file manager of the
+ * torrent, and the piece index. The cache is bounded by the total size of
+ * the cached pieces and evicts the least recently used pieces first. All
+ * methods are guarded by the cache's monitor.
+ */
+public class PieceCache {
+    static final long DEFAULT_CAPACITY = 32*1024*1024;
+    private final long capacity;
+    private final LinkedHashMap<Pair<Object, Integer>, byte[]> pieces = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private Logger log;
+
+    /**
+     * @param capacity: the most bytes of pieces to keep, 0 disables the cache.
+     */
+    PieceCache(long capacity) {
+        log = LogManager.getFormatterLogger(PieceCache.class);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reads cache.bytes from the settings.
+     * @param settings
+     */
+    PieceCache(Settings settings) {
+        this(Math.max(0, settings.getLong("cache.bytes", DEFAULT_CAPACITY)));
+    }
+
+    /**
+     * Looks a piece up and counts the hit or miss.
+     * @param owner
+     * @param index
+     * @return the cached piece, which must not be modified, or null.
+     */
+    public synchronized byte[] get(Object owner, int index) {
+        byte[] piece = pieces.get(new Pair<Object, Integer>(owner, index));
+        if (piece == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return piece;
+    }
+
+    /**
+     * Adds a piece, evicting the least recently used pieces until it fits.
+     * Pieces larger than the whole cache are not added.
+     * @param owner
+     * @param index
+     * @param piece
+     */
+    public synchronized void put(Object owner, int index, byte[] piece) {
+        if (piece.length > capacity) {
+            return;
+        }
+        byte[] previous = pieces.put(new Pair<Object, Integer>(owner, index), piece);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += piece.length;
+        Iterator<byte[]> it = pieces.values().iterator();
+        while (size > capacity) {
+            size -= it.next().length;
+            it.remove();
+            evictions += 1;
+        }
+    }
+
+    /**
+     * Drops every piece of an owner, for when its file is closed.
+     * @param owner
+     */
+    public synchronized void invalidate(Object owner) {
+        for (Iterator<Map.Entry<Pair<Object, Integer>, byte[]>> it = pieces.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Pair<Object, Integer>, byte[]> entry = it.next();
+            if (entry.getKey().getLeft() == owner) {
+                size -= entry.getValue().length;
+                it.remove();
+            }
+        }
+        log.trace("%s invalidated %s", toString(), owner.toString());
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the share of lookups that were hits, 0 before the first lookup.
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits/lookups;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("PieceCache[size=%d, capacity=%d, hits=%d, misses=%d, evictions=%d]",
+            size, capacity, hits, misses, evictions);
+    }
+}
\ No newline at end of file
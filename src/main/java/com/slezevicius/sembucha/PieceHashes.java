@@ -0,0 +1,82 @@
+package com.slezevicius.sembucha;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+/**
+ * The table of SHA-1 piece hashes of a torrent. The hashes are kept in the
+ * buffer they were parsed from, which may be a slice of a memory-mapped
+ * metainfo file, so loading a torrent does not copy them onto the heap.
+ * Verifying a piece compares the digest in place without any copies.
+ */
+public class PieceHashes {
+    public static final int HASH_LENGTH = 20;
+    private final ByteBuffer hashes;
+    private final int count;
+
+    /**
+     * @param hashes: the concatenated hashes from the position to the limit.
+     * @throws DataFormatException: If the length is not a multiple of 20.
+     */
+    PieceHashes(ByteBuffer hashes) throws DataFormatException {
+        if (hashes.remaining() % HASH_LENGTH != 0) {
+            throw new DataFormatException("The length of pieces must be a multiple of " + HASH_LENGTH);
+        }
+        this.hashes = hashes.slice().asReadOnlyBuffer();
+        this.count = this.hashes.capacity()/HASH_LENGTH;
+    }
+
+    /**
+     * Wraps an array of concatenated hashes without copying it.
+     * @param hashes
+     * @return PieceHashes
+     * @throws DataFormatException
+     */
+    public static PieceHashes wrap(byte[] hashes) throws DataFormatException {
+        return new PieceHashes(ByteBuffer.wrap(hashes));
+    }
+
+    /**
+     * @return the number of pieces in the torrent.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Compares the expected hash of a piece with a digest in place.
+     * @param index: the piece index.
+     * @param digest: the SHA-1 digest of the received piece.
+     * @return boolean indicating whether they are equal.
+     */
+    public boolean matches(int index, byte[] digest) {
+        if (index < 0 || index >= count || digest.length != HASH_LENGTH) {
+            return false;
+        }
+        int offset = index*HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (hashes.get(offset + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param index
+     * @return a copy of the expected hash of the piece at index.
+     */
+    public byte[] get(int index) {
+        byte[] out = new byte[HASH_LENGTH];
+        int offset = index*HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            out[i] = hashes.get(offset + i);
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PieceHashes[count=%d, direct=%b]", count, hashes.isDirect());
+    }
+}
\ No newline at end of file
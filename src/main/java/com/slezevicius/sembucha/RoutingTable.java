@@ -0,0 +1,298 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+/**
+ * The Kademlia routing table of our DHT node. Nodes are kept in 160
+ * k-buckets, bucket i holding the nodes whose id shares exactly i leading
+ * bits with ours, so the table knows many nodes close to us and few far
+ * away. Each bucket holds at most K nodes ordered from least to most
+ * recently seen. A full bucket only takes a new node in place of one that
+ * has stopped responding.
+ */
+public class RoutingTable {
+    public static final int K = 8;
+    public static final int ID_LENGTH = 20;
+
+    /**
+     * A node that has not been seen for STALE milliseconds is questionable
+     * and gets pinged, one that failed MAX_FAILURES queries in a row is bad.
+     */
+    static final long STALE = 15*60*1000;
+    static final int MAX_FAILURES = 3;
+
+    /**
+     * A known DHT node.
+     */
+    public static class Node {
+        private final byte[] id;
+        private InetSocketAddress address;
+        private long lastSeen;
+        private int failures = 0;
+
+        Node(byte[] id, InetSocketAddress address, long lastSeen) {
+            this.id = id.clone();
+            this.address = address;
+            this.lastSeen = lastSeen;
+        }
+
+        public byte[] getId() {
+            return id.clone();
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Node[id=%s, address=%s]", Metainfo.bytesToHex(id), address.toString());
+        }
+    }
+
+    private final byte[] self;
+    private final List<LinkedList<Node>> buckets;
+
+    /**
+     * @param self: our 20 byte node id.
+     */
+    RoutingTable(byte[] self) {
+        if (self.length != ID_LENGTH) {
+            throw new IllegalArgumentException("A node id must be " + ID_LENGTH + " bytes long");
+        }
+        this.self = self.clone();
+        buckets = new ArrayList<>(ID_LENGTH*8);
+        for (int i = 0; i < ID_LENGTH*8; i++) {
+            buckets.add(new LinkedList<Node>());
+        }
+    }
+
+    /**
+     * @return an empty table with a random node id.
+     */
+    public static RoutingTable random() {
+        byte[] id = new byte[ID_LENGTH];
+        new SecureRandom().nextBytes(id);
+        return new RoutingTable(id);
+    }
+
+    /**
+     * Compares the XOR distances of a and b to the target.
+     * @param a
+     * @param b
+     * @param target
+     * @return a negative number if a is closer, a positive one if b is closer.
+     */
+    public static int compareDistance(byte[] a, byte[] b, byte[] target) {
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int diff = ((a[i] ^ target[i]) & 0xFF) - ((b[i] ^ target[i]) & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param id
+     * @return the number of leading bits id shares with our id, -1 if it is our id.
+     */
+    int bucketIndex(byte[] id) {
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int diff = (id[i] ^ self[i]) & 0xFF;
+            if (diff != 0) {
+                return i*8 + Integer.numberOfLeadingZeros(diff) - 24;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Records that a node has responded or sent us a query. Known nodes
+     * become the most recently seen of their bucket, new nodes are added
+     * if their bucket has room or holds a bad node.
+     * @param id
+     * @param address
+     * @param now
+     * @return boolean indicating whether the node is in the table.
+     */
+    public synchronized boolean seen(byte[] id, InetSocketAddress address, long now) {
+        int index = bucketIndex(id);
+        if (index == -1) {
+            return false;
+        }
+        LinkedList<Node> bucket = buckets.get(index);
+        for (Iterator<Node> it = bucket.iterator(); it.hasNext();) {
+            Node node = it.next();
+            if (Arrays.equals(node.id, id)) {
+                it.remove();
+                node.address = address;
+                node.lastSeen = now;
+                node.failures = 0;
+                bucket.addLast(node);
+                return true;
+            }
+        }
+        if (bucket.size() >= K) {
+            Node bad = null;
+            for (Node node : bucket) {
+                if (node.failures >= MAX_FAILURES) {
+                    bad = node;
+                    break;
+                }
+            }
+            if (bad == null) {
+                return false;
+            }
+            bucket.remove(bad);
+        }
+        bucket.addLast(new Node(id, address, now));
+        return true;
+    }
+
+    /**
+     * Records that a query to the node at address went unanswered.
+     * @param address
+     */
+    public synchronized void failed(InetSocketAddress address) {
+        for (LinkedList<Node> bucket : buckets) {
+            for (Node node : bucket) {
+                if (node.address.equals(address)) {
+                    node.failures += 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param target
+     * @param count
+     * @return up to count good nodes ordered by their distance to the target.
+     */
+    public synchronized List<Node> closest(final byte[] target, int count) {
+        List<Node> nodes = new ArrayList<>();
+        for (LinkedList<Node> bucket : buckets) {
+            for (Node node : bucket) {
+                if (node.failures < MAX_FAILURES) {
+                    nodes.add(node);
+                }
+            }
+        }
+        Collections.sort(nodes, new Comparator<Node>() {
+            @Override
+            public int compare(Node a, Node b) {
+                return compareDistance(a.id, b.id, target);
+            }
+        });
+        return new ArrayList<>(nodes.subList(0, Math.min(count, nodes.size())));
+    }
+
+    /**
+     * @param now
+     * @return the nodes that have not been seen for STALE milliseconds.
+     */
+    public synchronized List<Node> getQuestionable(long now) {
+        List<Node> nodes = new ArrayList<>();
+        for (LinkedList<Node> bucket : buckets) {
+            for (Node node : bucket) {
+                if (now - node.lastSeen > STALE) {
+                    nodes.add(node);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * @return the number of nodes in the table.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (LinkedList<Node> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return a copy of our node id.
+     */
+    public byte[] getId() {
+        return self.clone();
+    }
+
+    /**
+     * Writes our id and the good nodes to the file as a bencoded dictionary,
+     * so that the node does not have to bootstrap again after a restart.
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        List<Node> nodes = closest(self, Integer.MAX_VALUE);
+        LinkedHashMap<String, Object> dict = new LinkedHashMap<>();
+        dict.put("id", self);
+        dict.put("nodes", Krpc.encodeNodes(nodes));
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(Bencoding.encode(dict));
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file.getPath());
+        }
+    }
+
+    /**
+     * Loads a table written by save. Loaded nodes count as just seen, the
+     * ones that no longer respond are replaced over time.
+     * @param file
+     * @param now
+     * @return RoutingTable
+     * @throws IOException
+     * @throws DataFormatException: If the file is malformed.
+     */
+    public static RoutingTable load(File file, long now) throws IOException, DataFormatException {
+        Map<String, Object> dict = Extensions.decodeDict(Files.readAllBytes(file.toPath()));
+        Object id = dict.get("id");
+        if (!(id instanceof byte[]) || ((byte[]) id).length != ID_LENGTH) {
+            throw new DataFormatException("The routing table has no valid node id");
+        }
+        RoutingTable table = new RoutingTable((byte[]) id);
+        Object nodes = dict.get("nodes");
+        if (nodes instanceof byte[]) {
+            for (Node node : Krpc.decodeNodes((byte[]) nodes, now)) {
+                table.seen(node.id, node.address, now);
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RoutingTable[id=%s, size=%d]", Metainfo.bytesToHex(self), size());
+    }
+}
\ No newline at end of file
@@ -0,0 +1,123 @@
+package com.slezevicius.sembucha;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Client wide settings read from sembucha.properties in the Sembucha
+ * directory. Every setting has a default, so the file is optional and may
+ * contain only the keys that should differ from the defaults.
+ */
+public class Settings {
+    private final Properties properties;
+    private Logger log;
+
+    Settings(Properties properties) {
+        log = LogManager.getFormatterLogger(Settings.class);
+        this.properties = properties;
+    }
+
+    Settings() {
+        this(new Properties());
+    }
+
+    /**
+     * Loads the settings from the given file. A missing file results in
+     * the default settings.
+     * @param file
+     * @return Settings
+     * @throws IOException: If the file exists but cannot be read.
+     */
+    public static Settings load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.isFile()) {
+            try (FileInputStream fis = new FileInputStream(file)) {
+                properties.load(fis);
+            }
+        }
+        return new Settings(properties);
+    }
+
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /**
+     * @param key
+     * @param defaultValue
+     * @return the setting as an int, or defaultValue if it is missing or malformed.
+     */
+    public int getInt(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Setting %s=%s is not an integer, using %d", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param key
+     * @param defaultValue
+     * @return the setting as a long, or defaultValue if it is missing or malformed.
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Setting %s=%s is not an integer, using %d", key, value, defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * @return the thread mode given by the threads setting, platform or virtual.
+     */
+    public Worker.Mode getThreadMode() {
+        String value = getString("threads", "platform");
+        if (value.equalsIgnoreCase("virtual")) {
+            return Worker.Mode.VIRTUAL;
+        } else if (!value.equalsIgnoreCase("platform")) {
+            log.warn("Unknown thread mode %s, using platform threads", value);
+        }
+        return Worker.Mode.PLATFORM;
+    }
+
+    /**
+     * @return the file allocation mode given by the disk.allocation setting, none, sparse or full.
+     */
+    public DiskIo.Allocation getAllocation() {
+        String value = getString("disk.allocation", "sparse");
+        for (DiskIo.Allocation allocation : DiskIo.Allocation.values()) {
+            if (value.equalsIgnoreCase(allocation.toString())) {
+                return allocation;
+            }
+        }
+        log.warn("Unknown allocation mode %s, using sparse files", value);
+        return DiskIo.Allocation.SPARSE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Settings[properties=%s]", properties.toString());
+    }
+}
\ No newline at end of file
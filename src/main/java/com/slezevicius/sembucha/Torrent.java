@@ -2,10 +2,16 @@ package com.slezevicius.sembucha;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.zip.DataFormatException;
 
 import org.apache.logging.log4j.LogManager;
@@ -17,18 +23,80 @@ import org.apache.logging.log4j.Logger;
  * a communication intermediary amongst its controlled classes.
  */
 public class Torrent {
+    /**
+     * Files with this suffix contain a magnet link instead of metainfo.
+     */
+    static final String MAGNET_SUFFIX = ".magnet";
+
+    /**
+     * The number of bytes left reported to the tracker while the size of a
+     * magnet link's torrent is unknown, so that we are not taken for a seed.
+     */
+    static final long UNKNOWN_LEFT = 1;
+
+    /**
+     * The order in which pieces are picked. RAREST picks the rarest pieces
+     * first, SEQUENTIAL the first missing pieces, and STREAMING the pieces
+     * in a window ahead of the stream cursor before falling back to rarest
+     * first outside of it.
+     */
+    public enum Order {
+        RAREST,
+        SEQUENTIAL,
+        STREAMING
+    }
+
+    /**
+     * The download priority of a piece. Higher priorities are picked first
+     * and skipped pieces are never requested.
+     */
+    public enum Priority {
+        SKIP,
+        LOW,
+        NORMAL,
+        HIGH
+    }
     private TorrentManager torrentManager;
-    private Metainfo metainfo;
-    private Tracker tracker;
-    private FileManager fileManager;
-    private PeerManager peerManager;
+    private volatile Metainfo metainfo;
+    private MagnetLink magnet;
+    private volatile Tracker tracker;
+    private volatile FileManager fileManager;
+    private volatile PeerManager peerManager;
+    private MetadataFetcher fetcher;
+    private volatile Thread checker;
+    private volatile boolean running = false;
+    private volatile Order order = Order.RAREST;
+    private volatile int streamCursor = 0;
+
+    /**
+     * Piece ranges with their priority, first and last index inclusive. A
+     * later range overrides an earlier one and pieces in no range have the
+     * NORMAL priority. The version changes with every update so that the
+     * peer manager knows when to apply them.
+     */
+    private List<Triplet<Integer, Integer, Priority>> priorityRanges = new ArrayList<>();
+    private volatile int priorityVersion = 0;
+    private PeerPool peerPool;
+    private Metrics metrics = new Metrics("torrent", null);
     private File saveFile;
     private File torrentFile;
+
+    /**
+     * The bitfield of the file when the torrent was last stopped, with the
+     * length and modification time the file had then, so that resuming does
+     * not check every piece again unless the file changed meanwhile.
+     */
+    private byte[] verifiedBitfield;
+    private File verifiedFile;
+    private long verifiedLength;
+    private long verifiedModified;
     private Logger log;
 
 
     /**
-     * Initializes all the controlled classes.
+     * Initializes all the controlled classes. A file ending in MAGNET_SUFFIX
+     * holds a magnet link, whose info dictionary is fetched from peers
+     * when the torrent starts running.
      * @param torrentManager
      * @param torrentFile
      * @param saveFile
@@ -41,7 +109,14 @@ public class Torrent {
         this.torrentManager = torrentManager;
         this.saveFile = saveFile;
         this.torrentFile = torrentFile;
-        metainfo = new Metainfo(torrentFile);
+        if (torrentFile.getName().endsWith(MAGNET_SUFFIX)) {
+            magnet = MagnetLink.parse(new String(Files.readAllBytes(torrentFile.toPath()), StandardCharsets.UTF_8));
+            metainfo = new Metainfo(magnet);
+        } else {
+            metainfo = new Metainfo(torrentFile);
+        }
+        peerPool = new PeerPool();
+        metrics = new Metrics(torrentFile.getName(), torrentManager.getMetrics());
         log.trace("%s initialized", toString());
     }
 
@@ -49,44 +124,195 @@ public class Torrent {
         //Empty constructor for testing
     }
 
-    void startRunning() throws DataFormatException, URISyntaxException , IOException {
+    /**
+     * Starts the tracker and either the file and peer managers or, for a
+     * magnet link whose info dictionary is not known yet, the metadata
+     * fetcher which starts them once the dictionary arrives.
+     * @throws DataFormatException
+     * @throws URISyntaxException
+     * @throws IOException
+     */
+    synchronized void startRunning() throws DataFormatException, URISyntaxException , IOException {
         log.info("Starting to run %s", toString());
-        fileManager = new FileManager(this, Paths.get(saveFile.toString(), metainfo.getName()).toFile());
-        tracker = new Tracker(metainfo, this);
-        tracker.start();
+        running = true;
+        if (metainfo.getAnnounce() != null) {
+            tracker = new Tracker(metainfo, this);
+            tracker.start();
+        }
+        if (metainfo.hasInfo()) {
+            openFiles();
+            return;
+        }
+        fetcher = new MetadataFetcher(getInfoHash(), getPeerId(), getPort(), peerPool, getDht(),
+            new MetadataFetcher.Listener() {
+                @Override
+                public void metadataFetched(byte[] info) {
+                    startDownloading(info);
+                }
+            });
+        fetcher.start();
+    }
+
+    /**
+     * Builds the metainfo from the fetched info dictionary and starts the
+     * file and peer managers, unless the torrent was stopped meanwhile.
+     * @param info: the verified info dictionary.
+     */
+    private synchronized void startDownloading(byte[] info) {
+        if (!running) {
+            return;
+        }
+        try {
+            metainfo = new Metainfo(magnet, info);
+            log.info("Fetched the info dictionary of %s", toString());
+            filesOpened(new FileManager(this, Paths.get(saveFile.toString(), metainfo.getName()).toFile()));
+        } catch (DataFormatException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Opens the file and starts the peer manager. A file that was verified
+     * when the torrent was stopped and has not changed since is taken as it
+     * was. Otherwise every piece in it is checked and it is allocated, which
+     * can take minutes for a large file, so that happens on a thread of its
+     * own rather than on the caller's, the queue's. Must be called while
+     * holding the torrent's monitor.
+     */
+    private void openFiles() {
+        final File file = Paths.get(saveFile.toString(), metainfo.getName()).toFile();
+        byte[] verified = verifiedBitfield;
+        verifiedBitfield = null;
+        if (verified != null && file.equals(verifiedFile) && file.length() == verifiedLength
+                && file.lastModified() == verifiedModified) {
+            filesOpened(new FileManager(this, file, verified));
+            return;
+        }
+        fileManager = null;
+        peerManager = null;
+        checker = Worker.newThread(new Runnable() {
+            @Override
+            public void run() {
+                FileManager files;
+                try {
+                    files = new FileManager(Torrent.this, file);
+                } catch (RuntimeException e) {
+                    log.error("%s could not open %s", Torrent.this.toString(), file.toString());
+                    log.error(e.getMessage(), e);
+                    synchronized(Torrent.this) {
+                        if (checker == Thread.currentThread()) {
+                            checker = null;
+                        }
+                    }
+                    return;
+                }
+                synchronized(Torrent.this) {
+                    //A check that was overtaken by a stop or a newer start is discarded
+                    if (running && checker == Thread.currentThread()) {
+                        checker = null;
+                        filesOpened(files);
+                        return;
+                    }
+                }
+                files.shutdown();
+            }
+        }, "FileCheck-" + getName());
+        checker.start();
+    }
+
+    /**
+     * Starts the peer manager on the opened file. Must be called while
+     * holding the torrent's monitor.
+     * @param files: the opened file manager
+     */
+    private void filesOpened(FileManager files) {
+        fileManager = files;
         peerManager = new PeerManager(this);
         peerManager.start();
     }
 
+    /**
+     * @return boolean indicating whether the pieces already in the file are being checked.
+     */
+    public boolean isChecking() {
+        return checker != null;
+    }
+
     void changeDownloadPath(File downloadPath) {
 
     }
     
     /** 
-     * Checks whether the tracker has any new peer information.
-     * @return boolean
+     * Returns the pool of connection candidates which is filled by the
+     * tracker and by incoming connections.
+     * @return PeerPool
+     */
+    public PeerPool getPeerPool() {
+        return peerPool;
+    }
+
+    /** 
+     * @return the connection budget shared by all torrents.
+     */
+    public ConnectionBudget getConnectionBudget() {
+        return torrentManager.getConnectionBudget();
+    }
+
+    /** 
+     * @return the DHT node of the client or null if the DHT is disabled.
+     */
+    public Dht getDht() {
+        return torrentManager.getDht();
+    }
+
+    /** 
+     * @return the disk workers shared by all torrents.
+     */
+    public DiskIo getDiskIo() {
+        return torrentManager.getDiskIo();
+    }
+
+    /** 
+     * @return the cache of pieces read for uploading, shared by all torrents.
+     */
+    public PieceCache getPieceCache() {
+        return torrentManager.getPieceCache();
+    }
+
+    /** 
+     * @return the registry of the torrent, the parent of those of its peers.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** 
+     * @return boolean indicating whether requesting should pause until the disk catches up.
      */
-    public boolean newPeers() {
-        return tracker.newPeers();
+    public boolean isDiskBacklogged() {
+        return getDiskIo().isBacklogged();
     }
 
     /** 
-     * Returns the new peer information from the tracker.
-     * @return ArrayList<Pair<InetAddress, Integer>>
+     * @return boolean indicating whether a new piece would have to be written to file block by block.
      */
-    public List<Pair<InetAddress, Integer>> getNewPeers() {
-        return tracker.getNewPeers();
+    public boolean isPieceBufferFull() {
+        return fileManager.isBufferFull();
     }
 
-    public void redownloadPiece(int index) {
-        peerManager.redownloadPiece(index);
+    /** 
+     * @return the pieces that failed the hash check or could not be written.
+     */
+    public int[] getFailedPieces() {
+        return fileManager.getFailedPieces();
     }
 
     /**
      * @return boolean indicating whether the downloading process is complete.
      */
     public boolean isComplete() {
-        return fileManager.isComplete();
+        FileManager files = fileManager;
+        return files != null && files.isComplete();
     }
 
     public void timedOutPiece(Integer index) {
@@ -111,19 +337,13 @@ public class Torrent {
         return fileManager.getHaves();
     }
 
-    /**
-     * Informs the tracker that the new peers have been taken.
-     */
-    public void takenNewPeers() {
-        tracker.takenNewPeers();
-    }
-
     /** 
      * Asks the file manager how many bytes of data have been downloaded.
      * @return int
      */
     public int getDownloaded() {
-        return fileManager.getDownloaded();
+        FileManager files = fileManager;
+        return files == null ? 0 : files.getDownloaded();
     }
 
     /** 
@@ -131,7 +351,19 @@ public class Torrent {
      * @return int
      */
     public int getUploaded() {
-        return fileManager.getUploaded();
+        FileManager files = fileManager;
+        return files == null ? 0 : files.getUploaded();
+    }
+
+    /** 
+     * @return the number of bytes left to download as reported to the tracker.
+     */
+    public long getLeft() {
+        Metainfo current = metainfo;
+        if (!current.hasInfo()) {
+            return UNKNOWN_LEFT;
+        }
+        return current.getLength() - getDownloaded();
     }
 
     /** 
@@ -191,11 +423,21 @@ public class Torrent {
      * @return an int indicating the number of bytes needed to represnt a bitfield.
      */
     public int getBitfieldLength() {
-        return (int) ((metainfo.getPieces().length/20)/8 + 1);
+        return (int) (metainfo.getPieceCount()/8 + 1);
     }
 
-    public byte[] getPieces() {
-        return metainfo.getPieces();
+    /** 
+     * @return the number of pieces in the torrent.
+     */
+    public int getPieceCount() {
+        return metainfo.getPieceCount();
+    }
+
+    /** 
+     * @return the table of expected piece hashes.
+     */
+    public PieceHashes getPieceHashes() {
+        return metainfo.getPieceHashes();
     }
 
     /** 
@@ -208,6 +450,23 @@ public class Torrent {
     public long getLength() {
         return metainfo.getLength();
     }
+
+    /** 
+     * @return the size of the bencoded info dictionary or -1 if it is not known yet.
+     */
+    public int getInfoSize() {
+        Metainfo current = metainfo;
+        return current.hasInfo() ? current.getInfoSize() : -1;
+    }
+
+    /** 
+     * @param offset
+     * @param length
+     * @return a part of the bencoded info dictionary.
+     */
+    public byte[] readInfo(int offset, int length) {
+        return metainfo.readInfo(offset, length);
+    }
     
     /** 
      * Adds a peer to the peer manager that was received from the
@@ -215,11 +474,20 @@ public class Torrent {
      * @param peer
      */
     public void addPeer(Peer peer) {
-        peerManager.addPeer(peer);
+        PeerManager peers = peerManager;
+        if (peers == null) {
+            //The metadata fetcher makes its own connections
+            peer.shutdownSockets();
+            return;
+        }
+        peers.addPeer(peer);
     }
 
     public void updateTracker() {
-        tracker.updateTracker();
+        Tracker current = tracker;
+        if (current != null) {
+            current.updateTracker();
+        }
     }
 
     public String getName() {
@@ -230,9 +498,115 @@ public class Torrent {
         return torrentFile.getName();
     }
 
+    public Order getOrder() {
+        return order;
+    }
+
+    public void setOrder(Order order) {
+        if (this.order != order) {
+            log.info("%s picking pieces in %s order", toString(), order.toString().toLowerCase());
+        }
+        this.order = order;
+    }
+
+    /**
+     * Replaces the piece priorities. Nothing changes if the ranges are the
+     * same as before.
+     * @param ranges: the first and last piece index of each range and its priority.
+     */
+    public synchronized void setPriorities(List<Triplet<Integer, Integer, Priority>> ranges) {
+        if (ranges.equals(priorityRanges)) {
+            return;
+        }
+        priorityRanges = new ArrayList<>(ranges);
+        priorityVersion += 1;
+    }
+
+    /**
+     * Gives a range of pieces a priority on top of the current priorities.
+     * @param first
+     * @param last: inclusive.
+     * @param priority
+     */
+    public synchronized void setPriority(int first, int last, Priority priority) {
+        priorityRanges.add(new Triplet<>(first, last, priority));
+        priorityVersion += 1;
+    }
+
+    public int getPriorityVersion() {
+        return priorityVersion;
+    }
+
+    /**
+     * @param pieceCount
+     * @return the priority of every piece.
+     */
+    public synchronized Priority[] getPriorities(int pieceCount) {
+        Priority[] priorities = new Priority[pieceCount];
+        Arrays.fill(priorities, Priority.NORMAL);
+        for (Triplet<Integer, Integer, Priority> range : priorityRanges) {
+            for (int i = Math.max(0, range.getLeft()); i <= Math.min(pieceCount - 1, range.getMiddle()); i++) {
+                priorities[i] = range.getRight();
+            }
+        }
+        return priorities;
+    }
+
+    /**
+     * @return the piece a stream reads from, which the STREAMING order picks ahead of.
+     */
+    public int getStreamCursor() {
+        return streamCursor;
+    }
+
+    public void setStreamCursor(int index) {
+        streamCursor = index;
+    }
+
+    /**
+     * Opens a stream of the torrent's data which blocks until the pieces
+     * it reads are verified and moves the stream cursor along.
+     * @param position: where in the torrent's data to start.
+     * @return InputStream
+     * @throws IOException: If the torrent is not downloading yet.
+     */
+    public InputStream openStream(long position) throws IOException {
+        FileManager current = fileManager;
+        if (current == null) {
+            throw new IOException(toString() + " is not downloading");
+        }
+        return current.openStream(position);
+    }
+
     public File getSaveFile() {
         return saveFile;
     }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the progress, settings and metrics of the torrent, including
+     * those of its connected peers, for the control endpoint.
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        Metainfo current = metainfo;
+        status.put("file", getTorrentFileName());
+        status.put("name", current.getName());
+        status.put("infoHash", getHexInfoHash());
+        status.put("running", running);
+        status.put("complete", isComplete());
+        status.put("length", current.hasInfo() ? current.getLength() : null);
+        status.put("downloaded", getDownloaded());
+        status.put("uploaded", getUploaded());
+        status.put("left", current.hasInfo() ? getLeft() : null);
+        status.put("order", order.toString().toLowerCase());
+        status.put("savePath", saveFile.getPath());
+        status.put("metrics", metrics.snapshot());
+        return status;
+    }
     
     /** 
      * Graciously shuts down the Torrent object. It also orders
@@ -241,11 +615,40 @@ public class Torrent {
      */
     public void shutdown() throws InterruptedException {
         log.trace("shutting down %s", toString());
-        tracker.shutdown();
-        peerManager.shutdown();
-        fileManager.shutdown();
-        tracker.join();
-        peerManager.join();
+        MetadataFetcher currentFetcher;
+        synchronized(this) {
+            running = false;
+            currentFetcher = fetcher;
+            fetcher = null;
+            checker = null;
+        }
+        //The fetcher calls back into the torrent, so it is joined without holding the lock
+        if (currentFetcher != null) {
+            currentFetcher.shutdown();
+            currentFetcher.join();
+        }
+        if (tracker != null) {
+            tracker.shutdown();
+        }
+        if (peerManager != null) {
+            peerManager.shutdown();
+        }
+        FileManager files = fileManager;
+        if (files != null) {
+            files.shutdown();
+            synchronized(this) {
+                verifiedBitfield = files.getBitfield().clone();
+                verifiedFile = files.getSaveFile();
+                verifiedLength = verifiedFile.length();
+                verifiedModified = verifiedFile.lastModified();
+            }
+        }
+        if (tracker != null) {
+            tracker.join();
+        }
+        if (peerManager != null) {
+            peerManager.join();
+        }
     }
 
     @Override
@@ -2,9 +2,19 @@ package com.slezevicius.sembucha;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.SocketException;
 import java.net.URISyntaxException;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.DataFormatException;
 
 import org.apache.logging.log4j.LogManager;
@@ -16,12 +26,36 @@ import org.apache.logging.log4j.Logger;
  * shutdown, it shuts down all the currently active Torrent instances.
  */
 public class TorrentManager {
+    /**
+     * The routers a DHT node without any known nodes bootstraps from.
+     */
+    static final String DHT_ROUTERS = "router.bittorrent.com:6881,dht.transmissionbt.com:6881";
     /**
      * torrents variable keeps track of what torrent file corresponds to what
      * Torrent instance.
      */
-    private HashMap<File, Pair<Torrent, String>> torrents;
+    private ConcurrentHashMap<File, Pair<Torrent, String>> torrents = new ConcurrentHashMap<>();
+
+    /**
+     * The torrents.properties value last applied for each torrent file name,
+     * so that only the entries that changed are applied again.
+     */
+    private Map<String, String> states = new ConcurrentHashMap<>();
+
+    /**
+     * The running torrents indexed by info hash, used to route incoming peers.
+     * Written by the thread that starts and stops torrents and read by the
+     * handshake workers of the peer server.
+     */
+    private ConcurrentHashMap<InfoHash, Torrent> running = new ConcurrentHashMap<>();
     private PeerServer peerServer;
+    private ControlServer controlServer;
+    private TorrentQueue queue;
+    private ConnectionBudget connectionBudget;
+    private DiskIo diskIo;
+    private PieceCache pieceCache;
+    private Metrics metrics = new Metrics("client", null);
+    private Dht dht;
     private File torrentDir;
     private int port;
     private String peerId;
@@ -33,55 +67,232 @@ public class TorrentManager {
      * @param savePath:    the path where to save all the downloaded files.
      * @param port:        the port which is used for listening to new peers.
      * @param peerId:      the peerId for the torrent client
+     * @param settings:    the client settings, used for the queue, connection limits, disk and DHT.
      * @throws IOException: thrown if the peer server could not start up.
      */
-    TorrentManager(String torrentPath, int port, String peerId) throws IOException {
+    TorrentManager(String torrentPath, int port, String peerId, Settings settings) throws IOException {
         log = LogManager.getFormatterLogger(TorrentManager.class);
         log.trace("Initializing the torrent manager");
         torrentDir = new File(torrentPath);
-        peerServer = new PeerServer(this);
-        peerServer.start();
-        torrents = new HashMap<>();
         this.port = port;
         this.peerId = peerId;
+        connectionBudget = new ConnectionBudget(settings);
+        diskIo = new DiskIo(settings);
+        pieceCache = new PieceCache(settings);
+        metrics.gauge("disk_queued_bytes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return diskIo.getQueuedBytes();
+            }
+        });
+        metrics.gauge("disk_buffered_bytes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return diskIo.getBufferedBytes();
+            }
+        });
+        metrics.gauge("cache_bytes", new Metrics.Gauge() {
+            @Override
+            public long value() {
+                return pieceCache.getSize();
+            }
+        });
+        if (settings.getBoolean("dht.enabled", true)) {
+            startDht(settings);
+        }
+        queue = new TorrentQueue(new TorrentQueue.Control() {
+            @Override
+            public void start(Torrent tor) throws DataFormatException, URISyntaxException, IOException {
+                tor.startRunning();
+                started(tor);
+            }
+
+            @Override
+            public void stop(Torrent tor) throws InterruptedException {
+                stopped(tor);
+                tor.shutdown();
+            }
+        }, settings);
+        queue.start();
+        peerServer = new PeerServer(this);
+        peerServer.start();
+        if (settings.getBoolean("control.enabled", true)) {
+            startControlServer(settings.getInt("control.port", ControlServer.DEFAULT_PORT));
+        }
         log.trace("Finished initializing the torrent manager");
     }
 
     TorrentManager() {
         // For testing
+        log = LogManager.getFormatterLogger(TorrentManager.class);
+    }
+
+    /**
+     * Starts the DHT node. Its routing table is kept in dht.dat next to
+     * the torrents directory. The client keeps running without the DHT if
+     * the UDP port cannot be bound.
+     * @param settings
+     */
+    private void startDht(Settings settings) {
+        List<String> routers = new ArrayList<>();
+        for (String router : settings.getString("dht.routers", DHT_ROUTERS).split(",")) {
+            if (!router.trim().isEmpty()) {
+                routers.add(router.trim());
+            }
+        }
+        File stateFile = new File(torrentDir.getAbsoluteFile().getParentFile(), "dht.dat");
+        try {
+            dht = Dht.open(settings.getInt("dht.port", port), stateFile, routers);
+            dht.start();
+            log.info("Started the DHT node on UDP port %d", dht.getPort());
+        } catch (SocketException e) {
+            log.warn("Could not start the DHT node: %s", e.getMessage());
+            dht = null;
+        }
     }
 
-    public void updateFile(String fileName, String state) {
+    /**
+     * Starts the local control endpoint with a new token in control.token
+     * next to the torrents directory. The client keeps running without it
+     * if the port cannot be bound.
+     * @param controlPort
+     */
+    private void startControlServer(int controlPort) {
+        File tokenFile = new File(torrentDir.getAbsoluteFile().getParentFile(), "control.token");
+        try {
+            String token = ControlServer.writeToken(tokenFile);
+            controlServer = new ControlServer(new ControlServer.Control() {
+                @Override
+                public List<Map<String, Object>> getStatus() {
+                    return TorrentManager.this.getStatus();
+                }
+
+                @Override
+                public Map<String, Object> getMetrics() {
+                    return metrics.snapshot();
+                }
+
+                @Override
+                public boolean add(String fileName, String downloadPath) {
+                    return addFile(fileName, new File(downloadPath));
+                }
+
+                @Override
+                public boolean setRunning(String fileName, boolean run) {
+                    return TorrentManager.this.setRunning(fileName, run);
+                }
+
+                @Override
+                public boolean setPriorities(String fileName, String ranges) {
+                    return setPieceRanges(fileName, ranges);
+                }
+
+                @Override
+                public boolean remove(String fileName) {
+                    return forgetFile(fileName);
+                }
+            }, controlPort, token);
+            controlServer.start();
+        } catch (IOException e) {
+            log.warn("Could not start the control endpoint: %s", e.getMessage());
+            controlServer = null;
+        }
+    }
+
+    /**
+     * Applies the entries of torrents.properties that changed since they
+     * were last applied, either from the file or through the control
+     * endpoint, and removes the torrents that are no longer listed.
+     * @param properties
+     */
+    public synchronized void updateFiles(Properties properties) {
+        for (String fileName : properties.stringPropertyNames()) {
+            String state = properties.getProperty(fileName);
+            if (!state.equals(states.get(fileName))) {
+                log.trace("Updating file %s", fileName);
+                updateFile(fileName, state);
+            }
+        }
+        for (Iterator<String> it = states.keySet().iterator(); it.hasNext();) {
+            String fileName = it.next();
+            if (properties.getProperty(fileName) == null) {
+                log.trace("Removing file %s", fileName);
+                it.remove();
+                removeFile(fileName);
+            }
+        }
+    }
+
+    /**
+     * Applies the state of a torrent file from torrents.properties. The state
+     * is "run" or "stop", optionally followed by ":priority" for running
+     * torrents, ":rarest", ":sequential" or ":streaming" for the piece
+     * order and any number of ":priority=first-last" piece ranges, where
+     * the priority is skip, low, normal or high, then a comma and the
+     * download path.
+     * @param fileName
+     * @param state
+     */
+    public synchronized void updateFile(String fileName, String state) {
+        if (state.indexOf(',') == -1) {
+            log.warn("Invalid entry written to torrents.properties: %s=%s", fileName, state);
+            return;
+        }
         String run = state.substring(0, state.indexOf(','));
         File downloadPath = new File(state.substring(state.indexOf(',') + 1));
         File file = new File(torrentDir.getAbsolutePath() + "/" + fileName);
+        int priority = 0;
+        Torrent.Order order = Torrent.Order.RAREST;
+        List<Triplet<Integer, Integer, Torrent.Priority>> ranges = new ArrayList<>();
+        String[] options = run.split(":");
+        run = options[0];
+        for (int i = 1; i < options.length; i++) {
+            if (options[i].contains("=")) {
+                Triplet<Integer, Integer, Torrent.Priority> range = parseRange(options[i]);
+                if (range != null) {
+                    ranges.add(range);
+                }
+                continue;
+            }
+            Torrent.Order named = null;
+            for (Torrent.Order o : Torrent.Order.values()) {
+                if (o.toString().equalsIgnoreCase(options[i])) {
+                    named = o;
+                }
+            }
+            if (named != null) {
+                order = named;
+                continue;
+            }
+            try {
+                priority = Integer.parseInt(options[i]);
+            } catch (NumberFormatException e) {
+                log.warn("Invalid priority written to torrents.properties: %s", options[i]);
+            }
+        }
+        if (!run.equals("run") && !run.equals("stop")) {
+            log.warn("Invalid state written to torrents.properties: %s", run);
+            return;
+        }
         if (torrents.containsKey(file)) {
             Torrent tor = torrents.get(file).getLeft();
+            tor.setOrder(order);
+            tor.setPriorities(ranges);
             if (!torrents.get(file).getRight().equals(run)) {
                 log.info("Changing state of %s from %s to %s", tor.toString(), torrents.get(file).getRight(), state);
-                switch (run) {
-                    case "run":
-                        try {
-                            tor.startRunning();
-                        } catch (DataFormatException | URISyntaxException | IOException e) {
-                            log.error(e.getMessage(), e);
-                            return;
-                        }
-                        break;
-                    case "stop":
-                        try {
-                            tor.shutdown();
-                        } catch (InterruptedException e) {
-                            log.error(e.getMessage(), e);
-                            return;
-                        }
-                        break;
-                    default:
-                        log.warn("Invalid state written to sembucha.properties: %s", run);
-                        return;
+            }
+            if (run.equals("run")) {
+                queue.add(tor, priority);
+            } else {
+                try {
+                    queue.remove(tor);
+                } catch (InterruptedException e) {
+                    log.error(e.getMessage(), e);
+                    return;
                 }
-                torrents.put(file, new Pair<>(tor, run));
             }
+            torrents.put(file, new Pair<>(tor, run));
+            states.put(fileName, state);
             if (!torrents.get(file).getLeft().getSaveFile().equals(downloadPath)) {
                 log.info("Changing download path of %s to %s", tor.toString(), downloadPath);
                 tor.changeDownloadPath(downloadPath);
@@ -89,55 +300,253 @@ public class TorrentManager {
         } else {
             try {
                 Torrent tor = new Torrent(this, file, downloadPath);
-                switch (run) {
-                    case "run":
-                        tor.startRunning();
-                        break;
-                    case "stop":
-                        break;
-                    default:
-                        log.warn("Invalid state written to sembucha.properties: %s", run);
-                        return;
-                }
+                tor.setOrder(order);
+                tor.setPriorities(ranges);
                 torrents.put(file, new Pair<>(tor, run));
+                states.put(fileName, state);
+                if (run.equals("run")) {
+                    queue.add(tor, priority);
+                }
             } catch (DataFormatException | URISyntaxException | IOException e) {
                 log.error(e.getMessage(), e);
+                return;
             }
             log.info("Added new torrent %s", file.getName());
         }
     }
 
-    public void removeFile(String fileName) {
+    /**
+     * @param option: priority=first-last or priority=index.
+     * @return the piece range or null if the option is invalid.
+     */
+    private Triplet<Integer, Integer, Torrent.Priority> parseRange(String option) {
+        String name = option.substring(0, option.indexOf('='));
+        String range = option.substring(option.indexOf('=') + 1);
+        for (Torrent.Priority priority : Torrent.Priority.values()) {
+            if (!priority.toString().equalsIgnoreCase(name)) {
+                continue;
+            }
+            try {
+                int dash = range.indexOf('-');
+                if (dash == -1) {
+                    int index = Integer.parseInt(range);
+                    return new Triplet<>(index, index, priority);
+                }
+                return new Triplet<>(Integer.parseInt(range.substring(0, dash)),
+                    Integer.parseInt(range.substring(dash + 1)), priority);
+            } catch (NumberFormatException e) {
+                break;
+            }
+        }
+        log.warn("Invalid piece priority written to torrents.properties: %s", option);
+        return null;
+    }
+
+    public synchronized void removeFile(String fileName) {
+        states.remove(fileName);
         File file = new File(torrentDir.getAbsolutePath() + "/" + fileName);
         if (torrents.containsKey(file)) {
             log.info("Removing %s from torrents", fileName);
             Torrent tor = torrents.get(file).getLeft();
             try {
-                if (torrents.get(file).getRight().equals("run")) {
-                    tor.shutdown();
-                }
+                queue.remove(tor);
             } catch (InterruptedException e) {
                 log.error(e.getMessage(), e);
             }
             torrents.remove(file);
+            tor.getMetrics().remove();
         } else {
             log.info("Requested to remove %s and it did not exist", fileName);
         }
     }
 
+    /**
+     * Adds a torrent file that was copied to the torrents directory and
+     * starts running it, as if a run entry was added to torrents.properties.
+     * @param fileName
+     * @param downloadPath
+     * @return boolean indicating whether the torrent was added, false if it already exists.
+     */
+    public synchronized boolean addFile(String fileName, File downloadPath) {
+        if (states.containsKey(fileName)) {
+            return false;
+        }
+        if (!new File(torrentDir, fileName).isFile()) {
+            throw new IllegalArgumentException(fileName + " is not in the torrents directory");
+        }
+        updateFile(fileName, "run," + downloadPath.getPath());
+        if (!states.containsKey(fileName)) {
+            throw new IllegalArgumentException(fileName + " could not be read");
+        }
+        saveState(fileName);
+        return true;
+    }
+
+    /**
+     * Runs or stops a torrent, keeping its other options.
+     * @param fileName
+     * @param run
+     * @return boolean indicating whether the torrent exists.
+     */
+    public synchronized boolean setRunning(String fileName, boolean run) {
+        String state = states.get(fileName);
+        if (state == null) {
+            return false;
+        }
+        String head = state.substring(0, state.indexOf(','));
+        int colon = head.indexOf(':');
+        String options = colon == -1 ? "" : head.substring(colon);
+        updateFile(fileName, (run ? "run" : "stop") + options + state.substring(state.indexOf(',')));
+        saveState(fileName);
+        return true;
+    }
+
+    /**
+     * Replaces the piece priority ranges of a torrent, keeping its other options.
+     * @param fileName
+     * @param ranges: the ranges as written in torrents.properties, for example
+     *                high=0-9:skip=500-599, or empty to clear them.
+     * @return boolean indicating whether the torrent exists.
+     */
+    public synchronized boolean setPieceRanges(String fileName, String ranges) {
+        String state = states.get(fileName);
+        if (state == null) {
+            return false;
+        }
+        StringBuilder head = new StringBuilder();
+        for (String option : state.substring(0, state.indexOf(',')).split(":")) {
+            if (!option.contains("=")) {
+                head.append(head.length() == 0 ? "" : ":").append(option);
+            }
+        }
+        for (String range : ranges.split(":")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            if (!range.contains("=") || parseRange(range) == null) {
+                throw new IllegalArgumentException("invalid piece range " + range);
+            }
+            head.append(':').append(range);
+        }
+        updateFile(fileName, head + state.substring(state.indexOf(',')));
+        saveState(fileName);
+        return true;
+    }
+
+    /**
+     * Removes a torrent and its entry in torrents.properties. The torrent
+     * file itself stays in the torrents directory.
+     * @param fileName
+     * @return boolean indicating whether the torrent existed.
+     */
+    public synchronized boolean forgetFile(String fileName) {
+        if (!states.containsKey(fileName)) {
+            return false;
+        }
+        removeFile(fileName);
+        saveState(fileName);
+        return true;
+    }
+
+    /**
+     * Writes the applied state of one torrent to torrents.properties next to
+     * the torrents directory, replacing the file in one move. Only the line
+     * of that torrent changes; the others are kept as they are, including
+     * entries that could not be applied, like one whose torrent file is not
+     * copied yet. The file event this causes applies nothing new.
+     * @param fileName
+     */
+    private void saveState(String fileName) {
+        File propertiesFile = new File(torrentDir.getAbsoluteFile().getParentFile(), "torrents.properties");
+        File temp = new File(propertiesFile.getPath() + ".tmp");
+        String state = states.get(fileName);
+        List<String> lines = new ArrayList<>();
+        boolean written = false;
+        try {
+            //Properties are read as ISO-8859-1, which also keeps the other lines byte for byte
+            if (propertiesFile.exists()) {
+                for (String line : Files.readAllLines(propertiesFile.toPath(), StandardCharsets.ISO_8859_1)) {
+                    if (!fileName.equals(keyOf(line))) {
+                        lines.add(line);
+                    } else if (state != null && !written) {
+                        lines.add(fileName + "=" + state);
+                        written = true;
+                    }
+                }
+            }
+            if (state != null && !written) {
+                lines.add(fileName + "=" + state);
+            }
+            try (PrintWriter writer = new PrintWriter(temp, StandardCharsets.ISO_8859_1.name())) {
+                for (String line : lines) {
+                    writer.print(line + "\n");
+                }
+            }
+            Files.move(temp.toPath(), propertiesFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Could not write %s: %s", propertiesFile.toString(), e.getMessage());
+        }
+    }
+
+    /**
+     * @param line: a line of a properties file.
+     * @return the key of the line or null if it is blank or a comment.
+     */
+    static String keyOf(String line) {
+        Properties single = new Properties();
+        try {
+            single.load(new StringReader(line));
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+        return single.isEmpty() ? null : single.stringPropertyNames().iterator().next();
+    }
+
+    /**
+     * @return the status of every torrent with its torrents.properties state.
+     */
+    public List<Map<String, Object>> getStatus() {
+        List<Map<String, Object>> status = new ArrayList<>();
+        for (Pair<Torrent, String> entry : torrents.values()) {
+            Map<String, Object> torrent = entry.getLeft().getStatus();
+            torrent.put("state", entry.getRight());
+            status.add(torrent);
+        }
+        return status;
+    }
+
+    /**
+     * Adds a torrent that has started running to the info hash index.
+     * @param tor
+     */
+    void started(Torrent tor) {
+        Torrent previous = running.putIfAbsent(new InfoHash(tor.getInfoHash()), tor);
+        if (previous != null && previous != tor) {
+            log.warn("%s has the same info hash as the running %s, incoming peers go to the latter",
+                tor.toString(), previous.toString());
+        }
+    }
+
+    /**
+     * Removes a torrent that is about to stop from the info hash index,
+     * so no more incoming peers are routed to it.
+     * @param tor
+     */
+    void stopped(Torrent tor) {
+        running.remove(new InfoHash(tor.getInfoHash()), tor);
+    }
 
     /**
-     * Finds the Torrent instance which deals with the given peer's
+     * Finds the running Torrent instance which deals with the given peer's
      * torrent file and then orders it to add it to its peer manager.
      * @param peer
      */
     public void receivedPeer(Peer peer) {
         log.debug("Received a new %s from the peer server", peer.toString());
-        for (Pair<Torrent, String> pair : torrents.values()) {
-            if (Arrays.equals(pair.getLeft().getInfoHash(), peer.getInfoHash())) {
-                pair.getLeft().addPeer(peer);
-                return;
-            }
+        Torrent tor = running.get(new InfoHash(peer.getInfoHash()));
+        if (tor != null) {
+            tor.addPeer(peer);
+            return;
         }
         log.warn("Could not find a matching torrent for the peer %s with infohash %s",
             peer.toString(), Metainfo.bytesToHex(peer.getInfoHash()));
@@ -158,6 +567,41 @@ public class TorrentManager {
         return port;
     }
 
+    /** 
+     * @return the connection budget shared by all peer managers.
+     */
+    public ConnectionBudget getConnectionBudget() {
+        return connectionBudget;
+    }
+
+    /** 
+     * @return the disk workers shared by all file managers.
+     */
+    public DiskIo getDiskIo() {
+        return diskIo;
+    }
+
+    /** 
+     * @return the cache of pieces read for uploading.
+     */
+    public PieceCache getPieceCache() {
+        return pieceCache;
+    }
+
+    /** 
+     * @return the registry of the client, the parent of those of the torrents.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** 
+     * @return the DHT node or null if the DHT is disabled.
+     */
+    public Dht getDht() {
+        return dht;
+    }
+
     /** 
      * Graciously shuts down the torrent manager, its peer server, and
      * all the torrent instances it has started.
@@ -166,9 +610,19 @@ public class TorrentManager {
      */
     public void shutdown() throws InterruptedException {
         log.trace("Shutting down torrent manager");
+        if (controlServer != null) {
+            controlServer.shutdown();
+        }
         peerServer.shutdown();
-        for (Pair<Torrent, String> pair : torrents.values()) {
-            pair.getLeft().shutdown();
+        queue.shutdown();
+        queue.join();
+        //The file managers have waited for their pieces, whatever is left is abandoned
+        diskIo.shutdown(FileManager.SHUTDOWN_TIMEOUT);
+        log.info("Upload reads: %s", pieceCache.toString());
+        log.info("Totals: %s", metrics.toString());
+        if (dht != null) {
+            dht.shutdown();
+            dht.join();
         }
         peerServer.join();
         log.trace("Successfully shut down the torrent manager");
@@ -0,0 +1,339 @@
+package com.slezevicius.sembucha;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides which of the torrents the user wants running are actually active.
+ * At most maxDownloads incomplete and maxSeeds complete torrents run at a
+ * time, and never more than maxActive in total. The rest wait in the queue
+ * ordered by priority (higher first) and then by the time they were queued.
+ *
+ * Every TICK milliseconds the throughput of the active torrents is measured.
+ * A torrent that has been slower than slowRate bytes per second for slowTime
+ * milliseconds is paused and put at the back of its priority when another
+ * torrent of the same kind is waiting for a slot, so the slot goes to a
+ * torrent that may make better use of it. A paused torrent is resumed like
+ * any other queued torrent once a slot frees up. A seeding torrent whose
+ * skipped pieces are wanted again goes back to the downloading slots.
+ */
+public class TorrentQueue extends Worker {
+    static final long TICK = 5000;
+
+    /**
+     * Starts and stops torrents on behalf of the queue.
+     */
+    public interface Control {
+        void start(Torrent tor) throws DataFormatException, URISyntaxException, IOException;
+        void stop(Torrent tor) throws InterruptedException;
+    }
+
+    public enum State {
+        QUEUED,
+        DOWNLOADING,
+        SEEDING
+    }
+
+    private static class Entry {
+        private final Torrent tor;
+        private int priority;
+        private long sequence;
+        private State state = State.QUEUED;
+        private boolean complete = false;
+        private long lastBytes;
+        private long lastTick;
+        private long fastSince;
+        private long pausedAt = Long.MIN_VALUE/2;
+        private double rate;
+
+        Entry(Torrent tor, int priority, long sequence) {
+            this.tor = tor;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Control control;
+    private final int maxDownloads;
+    private final int maxSeeds;
+    private final int maxActive;
+    private final long slowRate;
+    private final long slowTime;
+    private final LinkedHashMap<Torrent, Entry> entries = new LinkedHashMap<>();
+    private long sequence = 0;
+    private volatile boolean keepRunning = true;
+    private Logger log;
+
+    /**
+     * @param control: starts and stops the torrents.
+     * @param maxDownloads: the number of incomplete torrents that may run at once.
+     * @param maxSeeds: the number of complete torrents that may run at once.
+     * @param maxActive: the number of torrents that may run at once.
+     * @param slowRate: throughput in bytes per second below which a torrent is slow.
+     * @param slowTime: how long in milliseconds a torrent has to be slow to be paused.
+     */
+    TorrentQueue(Control control, int maxDownloads, int maxSeeds, int maxActive, long slowRate, long slowTime) {
+        log = LogManager.getFormatterLogger(TorrentQueue.class);
+        this.control = control;
+        this.maxDownloads = maxDownloads;
+        this.maxSeeds = maxSeeds;
+        this.maxActive = maxActive;
+        this.slowRate = slowRate;
+        this.slowTime = slowTime;
+    }
+
+    /**
+     * @param control
+     * @param settings: queue.downloads, queue.seeds, queue.active,
+     *                  queue.slowRate (bytes/s) and queue.slowTime (seconds).
+     */
+    TorrentQueue(Control control, Settings settings) {
+        this(control,
+            settings.getInt("queue.downloads", 5),
+            settings.getInt("queue.seeds", 5),
+            settings.getInt("queue.active", 8),
+            settings.getLong("queue.slowRate", 2048),
+            settings.getLong("queue.slowTime", 120)*1000);
+    }
+
+    @Override
+    public void run() {
+        log.trace("TorrentQueue in the main loop");
+        while (keepRunning) {
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                if (!keepRunning) {
+                    break;
+                }
+            }
+            tick(System.currentTimeMillis());
+        }
+        log.trace("TorrentQueue finished its main loop");
+    }
+
+    /**
+     * Queues a torrent the user wants running and starts it if there is a slot.
+     * Changes the priority if the torrent is already in the queue.
+     * @param tor
+     * @param priority
+     */
+    public synchronized void add(Torrent tor, int priority) {
+        Entry entry = entries.get(tor);
+        if (entry != null) {
+            entry.priority = priority;
+        } else {
+            entries.put(tor, new Entry(tor, priority, sequence++));
+        }
+        schedule(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes a torrent from the queue, stopping it if it is active,
+     * and gives its slot to the next queued torrent.
+     * @param tor
+     * @throws InterruptedException
+     */
+    public synchronized void remove(Torrent tor) throws InterruptedException {
+        Entry entry = entries.remove(tor);
+        if (entry != null && entry.state != State.QUEUED) {
+            control.stop(tor);
+        }
+        schedule(System.currentTimeMillis());
+    }
+
+    /**
+     * @param tor
+     * @return the state of the torrent in the queue or null if it is not queued.
+     */
+    public synchronized State getState(Torrent tor) {
+        Entry entry = entries.get(tor);
+        return entry == null ? null : entry.state;
+    }
+
+    /**
+     * @param tor
+     * @return the throughput in bytes per second measured at the last tick.
+     */
+    public synchronized double getRate(Torrent tor) {
+        Entry entry = entries.get(tor);
+        return entry == null ? 0 : entry.rate;
+    }
+
+    /**
+     * Measures the throughput of the active torrents, moves finished
+     * downloads to the seeding slots, pauses slow torrents that block
+     * waiting ones and fills the free slots.
+     * @param now: the current time in milliseconds.
+     */
+    synchronized void tick(long now) {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.state == State.QUEUED) {
+                continue;
+            }
+            long bytes = transferred(entry.tor);
+            long elapsed = now - entry.lastTick;
+            if (elapsed > 0) {
+                entry.rate = (bytes - entry.lastBytes)*1000.0/elapsed;
+            }
+            entry.lastBytes = bytes;
+            entry.lastTick = now;
+            //A torrent still checking its file has not had a chance to transfer anything
+            if (entry.rate >= slowRate || entry.tor.isChecking()) {
+                entry.fastSince = now;
+            }
+            if (entry.state == State.DOWNLOADING && entry.tor.isComplete()) {
+                log.info("%s finished downloading", entry.tor.toString());
+                entry.complete = true;
+                entry.state = State.SEEDING;
+                if (count(State.SEEDING) > maxSeeds) {
+                    pause(entry, now);
+                }
+            } else if (entry.state == State.SEEDING && !entry.tor.isChecking() && !entry.tor.isComplete()) {
+                //Pieces that were skipped are wanted again
+                log.info("%s has pieces to download again", entry.tor.toString());
+                entry.complete = false;
+                entry.state = State.DOWNLOADING;
+                entry.fastSince = now;
+                if (count(State.DOWNLOADING) > maxDownloads) {
+                    pause(entry, now);
+                }
+            }
+        }
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            if (entry.state != State.QUEUED && now - entry.fastSince >= slowTime
+                    && isWaiting(entry.complete, entry.priority, now)) {
+                log.info("Pausing %s, %.0f B/s for %d s", entry.tor.toString(), entry.rate, (now - entry.fastSince)/1000);
+                pause(entry, now);
+                schedule(now);
+            }
+        }
+        schedule(now);
+    }
+
+    /**
+     * Starts queued torrents in order while there are free slots.
+     * @param now
+     */
+    private void schedule(long now) {
+        List<Entry> queued = new ArrayList<>();
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.QUEUED) {
+                queued.add(entry);
+            }
+        }
+        Collections.sort(queued, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.priority != b.priority) {
+                    return Integer.compare(b.priority, a.priority);
+                }
+                return Long.compare(a.sequence, b.sequence);
+            }
+        });
+        for (Entry entry : queued) {
+            if (count(State.DOWNLOADING) + count(State.SEEDING) >= maxActive) {
+                return;
+            }
+            State target = entry.complete ? State.SEEDING : State.DOWNLOADING;
+            if (count(target) >= (entry.complete ? maxSeeds : maxDownloads)) {
+                continue;
+            }
+            try {
+                control.start(entry.tor);
+            } catch (DataFormatException | URISyntaxException | IOException e) {
+                log.error("Could not start %s: %s", entry.tor.toString(), e.getMessage());
+                entries.remove(entry.tor);
+                continue;
+            }
+            entry.state = target;
+            entry.lastBytes = transferred(entry.tor);
+            entry.lastTick = now;
+            entry.fastSince = now;
+            entry.rate = 0;
+            log.info("Started %s as %s", entry.tor.toString(), target.toString().toLowerCase());
+        }
+    }
+
+    /**
+     * Stops an active torrent and puts it at the back of its priority.
+     * @param entry
+     * @param now
+     */
+    private void pause(Entry entry, long now) {
+        try {
+            control.stop(entry.tor);
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while pausing %s", entry.tor.toString());
+        }
+        entry.state = State.QUEUED;
+        entry.sequence = sequence++;
+        entry.pausedAt = now;
+        entry.rate = 0;
+    }
+
+    /**
+     * Torrents that were paused less than slowTime ago do not count, so two
+     * slow torrents do not keep replacing each other.
+     * @param complete: the kind of torrent.
+     * @param priority: the lowest priority to consider.
+     * @param now
+     * @return boolean indicating whether a queued torrent of the kind waits for a slot.
+     */
+    private boolean isWaiting(boolean complete, int priority, long now) {
+        for (Entry entry : entries.values()) {
+            if (entry.state == State.QUEUED && entry.complete == complete
+                    && entry.priority >= priority && now - entry.pausedAt >= slowTime) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int count(State state) {
+        int count = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.state == state) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    private long transferred(Torrent tor) {
+        return (long) tor.getDownloaded() + tor.getUploaded();
+    }
+
+    /**
+     * Stops the queue and every torrent it has started.
+     */
+    public synchronized void shutdown() {
+        keepRunning = false;
+        interrupt();
+        for (Entry entry : entries.values()) {
+            if (entry.state != State.QUEUED) {
+                try {
+                    control.stop(entry.tor);
+                } catch (InterruptedException e) {
+                    log.warn("Interrupted while stopping %s", entry.tor.toString());
+                }
+                entry.state = State.QUEUED;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TorrentQueue[downloading=%d, seeding=%d, queued=%d]",
+            count(State.DOWNLOADING), count(State.SEEDING), count(State.QUEUED));
+    }
+}
\ No newline at end of file
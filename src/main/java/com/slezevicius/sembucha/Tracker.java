@@ -5,10 +5,9 @@ import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.zip.DataFormatException;
 
@@ -24,18 +23,17 @@ import org.apache.logging.log4j.Logger;
 /**
  * Tracker object that deals with the bittorrent tracker for
  * a particular torrent file. Keeps updating the tracker
- * with the required interval time. Allows other classes
- * to get updates on the current known peers.
+ * with the required interval time. Every peer received from
+ * the tracker is handed to the torrent's peer pool.
  */
-public class Tracker extends Thread {
+public class Tracker extends Worker {
     private Metainfo metainfo;
     private Torrent torrent;
     private long interval;
     private String trackerId;
     private long complete;
     private long incomplete;
-    private volatile List<Pair<InetAddress, Integer>> peers;
-    private volatile boolean receivedNewPeers = false;
+    private PeerPool peerPool;
     private volatile boolean keepRunning = true;
     private Logger log;
 
@@ -43,6 +41,7 @@ public class Tracker extends Thread {
         log = LogManager.getFormatterLogger(Tracker.class);
         this.metainfo = metainfo;
         this.torrent = torrent;
+        this.peerPool = torrent.getPeerPool();
         log.trace("Initialized %s", toString());
     }
 
@@ -51,9 +50,6 @@ public class Tracker extends Thread {
         try {
             send("");
             log.debug("%s sent update", toString());
-            synchronized(this) {
-                receivedNewPeers = true;
-            }
         } catch (IOException | DataFormatException | URISyntaxException e) {
             log.error(e.getMessage(), e);
         }
@@ -68,18 +64,12 @@ public class Tracker extends Thread {
         log.trace("%s in the main loop", toString());
         try {
             send("started");
-            synchronized(this) {
-                receivedNewPeers = true;
-            }
             log.debug("%s sent started", toString());
             log.debug("%s will sleep for %d seconds", toString(), interval);
             Thread.sleep(interval * 1000);
             while (keepRunning) {
                 send("");
                 log.debug("%s sent update", toString());
-                synchronized(this) {
-                    receivedNewPeers = true;
-                }
                 log.debug("%s will sleep for %d seconds", toString(), interval);
                 Thread.sleep(interval * 1000);
             }
@@ -113,154 +103,200 @@ public class Tracker extends Thread {
      * @throws IOException
      */
     private void send(String event) throws URISyntaxException, DataFormatException, IOException {
-        String trackerURI = buildTrackerURL(event);
-        byte[] responseContent = sendRequest(trackerURI);
-        Bencoding b = new Bencoding(responseContent);
-        Object responseObject = b.decode();
-        updateFields(responseObject);
+        Metrics metrics = torrent.getMetrics();
+        long start = System.currentTimeMillis();
+        boolean sent = false;
+        try {
+            String trackerURI = buildTrackerURL(event);
+            byte[] responseContent = sendRequest(trackerURI);
+            updateFields(new BencodeParser(ByteBuffer.wrap(responseContent)));
+            sent = true;
+        } finally {
+            metrics.increment(Metrics.Counter.ANNOUNCES);
+            if (!sent) {
+                metrics.increment(Metrics.Counter.ANNOUNCE_FAILURES);
+            }
+            metrics.record(Metrics.Timer.ANNOUNCE_MILLIS, System.currentTimeMillis() - start);
+        }
     }
     
     /** 
-     * Updates the tracker fields from the decoded tracker response.
-     * @param responseObject
+     * Updates the tracker fields while streaming through the tracker response.
+     * The peers are only handed to the peer pool once the whole response has
+     * been validated.
+     * @param parser
      * @throws DataFormatException: If the response did not follow the tracker protocol properly.
      */
-    private void updateFields(Object responseObject) throws DataFormatException {
-        if (responseObject instanceof LinkedHashMap) {
-            LinkedHashMap<String, Object> responseDict = (LinkedHashMap<String, Object>) responseObject;
-            if (responseDict.containsKey("failure reason")) {
-                if (responseDict.get("failure reason") instanceof byte[]) {
-                    String failure = new String((byte[]) responseDict.get("failure reason"));
-                    throw new DataFormatException(String.format("%s failure: %s", toString(), failure));
-                } else {
-                    throw new DataFormatException(String.format("%s failure reason type is not byte string", toString()));
-                }
-            }
-            if (responseDict.containsKey("warning message")) {
-                if (responseDict.get("warning message") instanceof byte[]) {
-                    String warning = new String((byte[]) responseDict.get("warning message"));
-                    throw new DataFormatException(String.format("%s warning: %s", toString(), warning));
-                } else {
-                    log.warn("%s: warning message type is not byte string", toString());
-                }
-            }
-            if (responseDict.containsKey("interval")) {
-                if (responseDict.get("interval") instanceof Long) {
-                    interval = (long) responseDict.get("interval");
-                } else {
-                    throw new DataFormatException(String.format("%s interval value is not of type int", toString()));
-                }
-            } else {
-                throw new DataFormatException(String.format("%s interval key not in the dict", toString()));
-            }
-            if (responseDict.containsKey("complete")) {
-                if (responseDict.get("complete") instanceof Long) {
-                    complete = (long) responseDict.get("complete");
-                } else {
-                    throw new DataFormatException(String.format("%s complete value is not of type int", toString()));
-                }
-            } else {
-                log.warn("%s complete key not in the dict", toString());
-            }
-            if (responseDict.containsKey("incomplete")) {
-                if (responseDict.get("incomplete") instanceof Long) {
-                    incomplete = (long) responseDict.get("incomplete");
-                } else {
-                    throw new DataFormatException(String.format("%s incomplete value is not of type int", toString()));
-                }
-            } else {
-                log.warn("%s incomplete key not in the dict");
-            }
-            if (responseDict.containsKey("peers")) {
-                if (responseDict.get("peers") instanceof ArrayList) {
-                    //List model of peers
-                    synchronized(this) {
-                        updatePeers((ArrayList<Object>) responseDict.get("peers"));
+    private void updateFields(BencodeParser parser) throws DataFormatException {
+        if (parser.next() != BencodeParser.Token.DICT) {
+            throw new DataFormatException(String.format("%s the response from the tracker must be a dictionary.", toString()));
+        }
+        String failure = null;
+        String warning = null;
+        long newInterval = -1;
+        ByteBuffer compactPeers = null;
+        List<Pair<InetAddress, Integer>> listPeers = null;
+        while (parser.next() != BencodeParser.Token.END) {
+            String keyName = parser.getStringValue();
+            switch (keyName) {
+                case "failure reason":
+                    if (parser.next() != BencodeParser.Token.STRING) {
+                        throw new DataFormatException(String.format("%s failure reason type is not byte string", toString()));
                     }
-                } else if (responseDict.get("peers") instanceof byte[]) {
-                    //Compact model of peers
-                    synchronized(this) {
-                        updatePeers((byte[]) responseDict.get("peers"));
+                    failure = parser.getStringValue();
+                    break;
+                case "warning message":
+                    if (parser.peek() == BencodeParser.Token.STRING) {
+                        parser.next();
+                        warning = parser.getStringValue();
+                    } else {
+                        log.warn("%s: warning message type is not byte string", toString());
+                        parser.skipValue();
                     }
-                } else {
-                    throw new DataFormatException(String.format("%s peers is of an invalid type", toString()));
-                }
-            } else {
-                throw new DataFormatException(String.format("%s peers key not in the dict", toString()));
+                    break;
+                case "interval":
+                    if (parser.next() != BencodeParser.Token.INTEGER) {
+                        throw new DataFormatException(String.format("%s interval value is not of type int", toString()));
+                    }
+                    newInterval = parser.getLong();
+                    break;
+                case "complete":
+                    if (parser.next() != BencodeParser.Token.INTEGER) {
+                        throw new DataFormatException(String.format("%s complete value is not of type int", toString()));
+                    }
+                    complete = parser.getLong();
+                    break;
+                case "incomplete":
+                    if (parser.next() != BencodeParser.Token.INTEGER) {
+                        throw new DataFormatException(String.format("%s incomplete value is not of type int", toString()));
+                    }
+                    incomplete = parser.getLong();
+                    break;
+                case "tracker id":
+                    if (parser.peek() == BencodeParser.Token.STRING) {
+                        parser.next();
+                        trackerId = parser.getStringValue();
+                    } else {
+                        parser.skipValue();
+                    }
+                    break;
+                case "peers":
+                    BencodeParser.Token token = parser.next();
+                    if (token == BencodeParser.Token.STRING) {
+                        //Compact model of peers
+                        compactPeers = parser.getString();
+                    } else if (token == BencodeParser.Token.LIST) {
+                        //List model of peers
+                        listPeers = parsePeerList(parser);
+                    } else {
+                        throw new DataFormatException(String.format("%s peers is of an invalid type", toString()));
+                    }
+                    break;
+                default:
+                    parser.skipValue();
+            }
+        }
+        if (failure != null) {
+            throw new DataFormatException(String.format("%s failure: %s", toString(), failure));
+        }
+        if (warning != null) {
+            throw new DataFormatException(String.format("%s warning: %s", toString(), warning));
+        }
+        if (newInterval == -1) {
+            throw new DataFormatException(String.format("%s interval key not in the dict", toString()));
+        }
+        interval = newInterval;
+        if (compactPeers != null) {
+            updatePeers(compactPeers);
+        } else if (listPeers != null) {
+            for (Pair<InetAddress, Integer> pair : listPeers) {
+                peerPool.add(pair.getLeft(), pair.getRight(), PeerPool.Source.TRACKER);
             }
         } else {
-            throw new DataFormatException(String.format("%s the response from the tracker must be a dictionary.", toString()));
+            throw new DataFormatException(String.format("%s peers key not in the dict", toString()));
         }
     }
 
     /** 
-     * Updates the peer fields from the compact peer representation.
-     * @param peerBytes
+     * Adds the peers from the compact peer representation to the peer pool.
+     * @param peerBytes: a slice over the compact peer string.
      * @throws DataFormatException
      */
-    private void updatePeers(byte[] peerBytes) throws DataFormatException {
-        if (peerBytes.length % 6 != 0) {
+    private void updatePeers(ByteBuffer peerBytes) throws DataFormatException {
+        if (peerBytes.remaining() % 6 != 0) {
             throw new DataFormatException(String.format("%s invalid length of peer byte array", toString()));
         }
-        peers = new ArrayList<>();
-        int i = 0;
-        while (i < peerBytes.length) {
+        int added = 0;
+        byte[] addr = new byte[4];
+        while (peerBytes.remaining() > 0) {
+            peerBytes.get(addr);
+            int port = peerBytes.getShort() & 0xFFFF;
             InetAddress ip;
             try {
-                ip = InetAddress.getByAddress(Arrays.copyOfRange(peerBytes, i, i + 4));
+                ip = InetAddress.getByAddress(addr);
             } catch (UnknownHostException e) {
                 log.error(e.getMessage(), e);
                 continue;
             }
-            int port = (peerBytes[i + 4] & 0xFF)*256 + (peerBytes[i + 4 +1] & 0xFF);
-            peers.add(new Pair<InetAddress, Integer>(ip, port));
-            i += 6;
+            if (peerPool.add(ip, port, PeerPool.Source.TRACKER)) {
+                added += 1;
+            }
         }
+        log.debug("%s added %d new peers to the pool", toString(), added);
     }
     
     /** 
-     * Updates the peer fields from the dictionary peer representation.
-     * @param peerList
+     * Parses the dictionary peer representation.
+     * @param parser: a parser positioned right after the start of the peer list.
+     * @return List<Pair<InetAddress, Integer>>
      * @throws DataFormatException
      */
-    private void updatePeers(ArrayList<Object> peerList) throws DataFormatException {
-        peers = new ArrayList<>();
-        for (Object obj : peerList) {
-            if (obj instanceof HashMap) {
-                HashMap<String, Object> dict = (HashMap<String, Object>) obj;
-                InetAddress ip;
-                int port;
-                if (!dict.containsKey("peer id")) {
-                    throw new DataFormatException(String.format("%s the dict in the peer list has to contain the key peer id", toString()));
-                }
-                if (dict.containsKey("ip")) {
-                    if (dict.get("ip") instanceof byte[]) {
-                        try {
-                            ip = InetAddress.getByName(new String((byte[]) dict.get("ip")));
-                        } catch (UnknownHostException e) {
-                            log.error(e.getMessage(), e);
-                            continue;
+    private List<Pair<InetAddress, Integer>> parsePeerList(BencodeParser parser) throws DataFormatException {
+        List<Pair<InetAddress, Integer>> out = new ArrayList<>();
+        for (BencodeParser.Token token = parser.next(); token != BencodeParser.Token.END; token = parser.next()) {
+            if (token != BencodeParser.Token.DICT) {
+                throw new DataFormatException(String.format("%s an element of the peer list is not of type dict", toString()));
+            }
+            String host = null;
+            long port = -1;
+            boolean foundPeerId = false;
+            while (parser.next() != BencodeParser.Token.END) {
+                String keyName = parser.getStringValue();
+                switch (keyName) {
+                    case "peer id":
+                        foundPeerId = true;
+                        parser.skipValue();
+                        break;
+                    case "ip":
+                        if (parser.next() != BencodeParser.Token.STRING) {
+                            throw new DataFormatException(String.format("%s the provided ip address in peer list is not of type byte string", toString()));
                         }
-                    } else {
-                        throw new DataFormatException(String.format("%s the provided ip address in peer list is not of type byte string", toString()));
-                    }
-                } else {
-                    throw new DataFormatException(String.format("%s the dict in the peer list has to contain the key ip", toString()));
-                }
-                if (dict.containsKey("port")) {
-                    if (dict.get("port") instanceof Long) {
-                        port = (int) dict.get("port");
-                    } else {
-                        throw new DataFormatException(String.format("%s the provided port in peer list is not of type int", toString()));
-                    }
-                } else {
-                    throw new DataFormatException(String.format("%s the dict in the peer list has to contain the key port", toString()));
+                        host = parser.getStringValue();
+                        break;
+                    case "port":
+                        if (parser.next() != BencodeParser.Token.INTEGER) {
+                            throw new DataFormatException(String.format("%s the provided port in peer list is not of type int", toString()));
+                        }
+                        port = parser.getLong();
+                        break;
+                    default:
+                        parser.skipValue();
                 }
-                peers.add(new Pair<InetAddress, Integer>(ip, port));
-            } else {
-                throw new DataFormatException(String.format("%s an element of the peer list is not of type dict", toString()));
+            }
+            if (!foundPeerId) {
+                throw new DataFormatException(String.format("%s the dict in the peer list has to contain the key peer id", toString()));
+            } else if (host == null) {
+                throw new DataFormatException(String.format("%s the dict in the peer list has to contain the key ip", toString()));
+            } else if (port == -1) {
+                throw new DataFormatException(String.format("%s the dict in the peer list has to contain the key port", toString()));
+            }
+            try {
+                out.add(new Pair<InetAddress, Integer>(InetAddress.getByName(host), (int) port));
+            } catch (UnknownHostException e) {
+                log.error(e.getMessage(), e);
             }
         }
+        return out;
     }
     
     /** 
@@ -282,7 +318,7 @@ public class Tracker extends Thread {
         url.append("&downloaded=");
         url.append(String.valueOf(torrent.getDownloaded()));
         url.append("&left=");
-        url.append(String.valueOf(metainfo.getLength() - torrent.getDownloaded()));
+        url.append(String.valueOf(torrent.getLeft()));
         url.append("&compact=1");
         url.append("&event=");
         url.append(event);
@@ -372,27 +408,6 @@ public class Tracker extends Thread {
         return incomplete;
     }
 
-    /**
-     * @return boolean whether new peers have been received.
-     */
-    public synchronized boolean newPeers() {
-        return receivedNewPeers;
-    }
-
-    /**
-     * Sets the receivedNewPeers to false once the new peers have been taken.
-     */
-    public synchronized void takenNewPeers() {
-        receivedNewPeers = false;
-    }
-
-    /**
-     * @return List<Pair<InetAddress, Integer>>
-     */
-    public synchronized List<Pair<InetAddress, Integer>> getNewPeers() {
-        return peers;
-    }
-
     /**
      * Graciously shuts down the tracker.
      */
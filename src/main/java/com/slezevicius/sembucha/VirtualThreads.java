@@ -0,0 +1,19 @@
+package com.slezevicius.sembucha;
+
+/**
+ * Access to virtual threads. This is the Java 8 version which reports them as
+ * unsupported; the Multi-Release jar carries a Java 21 version of this class
+ * under META-INF/versions/21 that creates real virtual threads.
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static Thread newThread(Runnable task, String name) {
+        throw new UnsupportedOperationException("Virtual threads require Java 21");
+    }
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+package com.slezevicius.sembucha;
+
+/**
+ * Base class of the long running tasks of the client: peer connections,
+ * peer managers, trackers and the peer server. The task itself is only a
+ * Runnable; the thread it runs on is created by start() according to the
+ * current thread mode, which is either a platform thread or, on Java 21 and
+ * newer, a virtual thread. The methods mirror the ones of Thread so the
+ * owners of a worker do not need to know which kind of thread it runs on.
+ */
+public abstract class Worker implements Runnable {
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private static volatile Mode mode = Mode.PLATFORM;
+    private volatile Thread thread;
+
+    /**
+     * Sets the kind of threads that workers started from now on run on.
+     * Falls back to platform threads if virtual threads are not available.
+     * @param newMode
+     * @return the mode that is actually used.
+     */
+    public static Mode setMode(Mode newMode) {
+        if (newMode == Mode.VIRTUAL && !VirtualThreads.isSupported()) {
+            mode = Mode.PLATFORM;
+        } else {
+            mode = newMode;
+        }
+        return mode;
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Creates an unstarted thread for the task in the current thread mode.
+     * @param task
+     * @param name
+     * @return Thread
+     */
+    public static Thread newThread(Runnable task, String name) {
+        if (mode == Mode.VIRTUAL) {
+            return VirtualThreads.newThread(task, name);
+        }
+        return new Thread(task, name);
+    }
+
+    /**
+     * Starts running the worker on a new thread.
+     * @throws IllegalThreadStateException: If the worker was already started.
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            throw new IllegalThreadStateException(toString() + " was already started");
+        }
+        thread = newThread(this, getClass().getSimpleName());
+        thread.start();
+    }
+
+    /**
+     * @return boolean indicating whether the worker was started and has not finished yet.
+     */
+    public boolean isAlive() {
+        Thread t = thread;
+        return t != null && t.isAlive();
+    }
+
+    /**
+     * Waits for the worker to finish. Returns immediately if it was never started.
+     * @throws InterruptedException
+     */
+    public void join() throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.join();
+        }
+    }
+
+    /**
+     * Waits at most millis milliseconds for the worker to finish.
+     * @param millis
+     * @throws InterruptedException
+     */
+    public void join(long millis) throws InterruptedException {
+        Thread t = thread;
+        if (t != null) {
+            t.join(millis);
+        }
+    }
+
+    /**
+     * Interrupts the thread of the worker if it was started.
+     */
+    public void interrupt() {
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+package com.slezevicius.sembucha;
+
+/**
+ * Access to virtual threads. This version is compiled with --release 21 into
+ * META-INF/versions/21 of the Multi-Release jar and is picked up instead of
+ * the Java 8 fallback when the client runs on Java 21 or newer.
+ */
+final class VirtualThreads {
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return true;
+    }
+
+    static Thread newThread(Runnable task, String name) {
+        return Thread.ofVirtual().name(name).unstarted(task);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,88 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class BencodeParserTest {
+    private final String metainfo = "d8:announce9:localhost4:infod6:lengthi-42e4:name4:test6:pieces3:abce7:comment2:hie";
+
+    private BencodeParser parser(String input) {
+        return new BencodeParser(ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void testTokens() {
+        try {
+            BencodeParser parser = parser("d3:keyli12e4:spamee");
+            assertEquals(BencodeParser.Token.DICT, parser.next());
+            assertEquals(BencodeParser.Token.STRING, parser.next());
+            assertTrue(parser.isKey());
+            assertEquals("key", parser.getStringValue());
+            assertEquals(BencodeParser.Token.LIST, parser.next());
+            assertEquals(BencodeParser.Token.INTEGER, parser.next());
+            assertEquals(12, parser.getLong());
+            assertEquals(BencodeParser.Token.STRING, parser.next());
+            assertEquals(4, parser.getString().remaining());
+            assertTrue(parser.stringEquals("spam".getBytes()));
+            assertEquals(BencodeParser.Token.END, parser.next());
+            assertEquals(BencodeParser.Token.END, parser.next());
+            assertEquals(BencodeParser.Token.EOF, parser.next());
+        } catch (DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testInfoSpan() {
+        try {
+            BencodeParser parser = parser(metainfo);
+            parser.skipValue();
+            String info = metainfo.substring(parser.getInfoStart(), parser.getInfoEnd());
+            assertEquals("d6:lengthi-42e4:name4:test6:pieces3:abce", info);
+        } catch (DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testMalformed() {
+        assertThrows(DataFormatException.class, () -> parser("d3:key").skipValue());
+        assertThrows(DataFormatException.class, () -> parser("i12").next());
+        assertThrows(DataFormatException.class, () -> parser("10:abc").next());
+        assertThrows(DataFormatException.class, () -> parser("di1ei2ee").skipValue());
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i <= BencodeParser.MAX_DEPTH; i++) {
+            deep.append('l');
+        }
+        assertThrows(DataFormatException.class, () -> parser(deep.toString()).skipValue());
+    }
+
+    @Test
+    void testBencodingTree() {
+        try {
+            Bencoding b = new Bencoding("ld1:ai1eed1:b0:ee");
+            Object obj = b.decode();
+            assertTrue(obj instanceof ArrayList);
+            ArrayList<Object> list = (ArrayList<Object>) obj;
+            assertEquals(2, list.size());
+            assertEquals(1L, ((LinkedHashMap<String, Object>) list.get(0)).get("a"));
+            assertArrayEquals(new byte[0], (byte[]) ((LinkedHashMap<String, Object>) list.get(1)).get("b"));
+        } catch (DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
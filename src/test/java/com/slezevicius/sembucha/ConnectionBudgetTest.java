@@ -0,0 +1,95 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ConnectionBudgetTest {
+    private ConnectionBudget budget;
+    private TestingMember a;
+    private TestingMember b;
+
+    @BeforeEach
+    void init() {
+        budget = new ConnectionBudget(10, 8);
+        a = new TestingMember(3, 10);
+        b = new TestingMember(1, 10);
+        budget.register(a);
+        budget.register(b);
+    }
+
+    @Test
+    void testQuotasFollowWeights() {
+        assertEquals(10, budget.getQuota(a) + budget.getQuota(b));
+        assertTrue(budget.getQuota(a) > 2*budget.getQuota(b));
+        //Slots that b cannot use go to a, up to the per member limit
+        b.wanted = 1;
+        budget.rebalance();
+        assertEquals(1, budget.getQuota(b));
+        assertEquals(8, budget.getQuota(a));
+    }
+
+    @Test
+    void testAcquireRespectsReservations() {
+        b.wanted = 2;
+        budget.rebalance();
+        for (int i = 0; i < 8; i++) {
+            assertTrue(budget.tryAcquire(a));
+        }
+        //The per member limit stops a, the rest is reserved for b
+        assertFalse(budget.tryAcquire(a));
+        assertTrue(budget.tryAcquire(b));
+        assertTrue(budget.tryAcquire(b));
+        assertEquals(10, budget.getUsed());
+        assertFalse(budget.tryAcquire(b));
+        budget.release(a);
+        assertEquals(9, budget.getUsed());
+    }
+
+    @Test
+    void testBorrowAndReclaim() {
+        budget = new ConnectionBudget(10, 10);
+        budget.register(a);
+        budget.register(b);
+        b.wanted = 0;
+        budget.rebalance();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.tryAcquire(a));
+        }
+        assertEquals(0, budget.getExcess(a));
+        //b finds peers and a has to give back the share of b
+        b.wanted = 10;
+        budget.rebalance();
+        int excess = budget.getExcess(a);
+        assertEquals(budget.getQuota(b), excess);
+        assertTrue(excess > 0);
+        budget.unregister(a);
+        assertEquals(0, budget.getUsed());
+    }
+
+    private class TestingMember implements ConnectionBudget.Member {
+        public double weight;
+        public int wanted;
+
+        TestingMember(double weight, int wanted) {
+            this.weight = weight;
+            this.wanted = wanted;
+        }
+
+        @Override
+        public double getWeight() {
+            return weight;
+        }
+
+        @Override
+        public int getWanted() {
+            return wanted;
+        }
+    }
+}
\ No newline at end of file
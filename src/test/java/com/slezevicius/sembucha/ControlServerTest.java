@@ -0,0 +1,230 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ControlServerTest {
+    private static final String TOKEN = "0123456789abcdef";
+    private final List<String> calls = new ArrayList<>();
+    private ControlServer server;
+
+    private class TestingControl implements ControlServer.Control {
+        @Override
+        public List<Map<String, Object>> getStatus() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("file", "a.torrent");
+            status.put("running", true);
+            status.put("downloaded", 16384);
+            List<Map<String, Object>> all = new ArrayList<>();
+            all.add(status);
+            return all;
+        }
+
+        @Override
+        public Map<String, Object> getMetrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("bytes_in", 42L);
+            return metrics;
+        }
+
+        @Override
+        public boolean add(String fileName, String downloadPath) {
+            calls.add("add " + fileName + " " + downloadPath);
+            return !fileName.equals("a.torrent");
+        }
+
+        @Override
+        public boolean setRunning(String fileName, boolean run) {
+            calls.add((run ? "resume " : "pause ") + fileName);
+            return fileName.equals("a.torrent");
+        }
+
+        @Override
+        public boolean setPriorities(String fileName, String ranges) {
+            if (ranges.contains("bad")) {
+                throw new IllegalArgumentException("invalid piece range " + ranges);
+            }
+            calls.add("priority " + fileName + " " + ranges);
+            return fileName.equals("a.torrent");
+        }
+
+        @Override
+        public boolean remove(String fileName) {
+            calls.add("remove " + fileName);
+            return fileName.equals("a.torrent");
+        }
+    }
+
+    @BeforeAll
+    void init() throws IOException {
+        server = new ControlServer(new TestingControl(), 0, TOKEN);
+        server.start();
+    }
+
+    @AfterAll
+    void stop() {
+        server.shutdown();
+    }
+
+    /**
+     * @return the status code and the body of the response.
+     */
+    private Pair<Integer, String> request(String method, String path) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty(ControlServer.TOKEN_HEADER, TOKEN);
+        int code = connection.getResponseCode();
+        InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            body.write(buf, 0, n);
+        }
+        in.close();
+        connection.disconnect();
+        return new Pair<>(code, new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends a request by hand, since HttpURLConnection does not allow
+     * setting the Host and Origin headers.
+     * @param headers: the header lines after the request line.
+     * @return the status code.
+     */
+    private int rawRequest(String method, String path, String headers) throws IOException {
+        try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            OutputStream out = sock.getOutputStream();
+            out.write((method + " " + path + " HTTP/1.1\r\n" + headers + "Connection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream(), StandardCharsets.US_ASCII));
+            return Integer.parseInt(in.readLine().split(" ")[1]);
+        }
+    }
+
+    @Test
+    void testStatus() {
+        try {
+            assertTrue(server.getAddress().isLoopbackAddress());
+            Pair<Integer, String> response = request("GET", "/torrents");
+            assertEquals(200, response.getLeft());
+            assertEquals("{\"torrents\":[{\"file\":\"a.torrent\",\"running\":true,\"downloaded\":16384}]}", response.getRight());
+            assertEquals("{\"file\":\"a.torrent\",\"running\":true,\"downloaded\":16384}", request("GET", "/torrents/a.torrent").getRight());
+            assertEquals(404, request("GET", "/torrents/b.torrent").getLeft());
+            assertEquals("{\"bytes_in\":42}", request("GET", "/metrics").getRight());
+            assertEquals(404, request("GET", "/nothing").getLeft());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testCommands() {
+        try {
+            calls.clear();
+            assertEquals(200, request("POST", "/torrents/a.torrent/pause").getLeft());
+            assertEquals(200, request("POST", "/torrents/a.torrent/resume").getLeft());
+            assertEquals(404, request("POST", "/torrents/b.torrent/pause").getLeft());
+            assertEquals(200, request("POST", "/torrents/a.torrent/priority?ranges=high%3D0-9%3Askip%3D50").getLeft());
+            Pair<Integer, String> bad = request("POST", "/torrents/a.torrent/priority?ranges=bad");
+            assertEquals(400, bad.getLeft());
+            assertEquals("{\"error\":\"invalid piece range bad\"}", bad.getRight());
+            assertEquals(200, request("POST", "/torrents/b.torrent?path=%2Ftmp%2Fdown").getLeft());
+            assertEquals(409, request("POST", "/torrents/a.torrent?path=%2Ftmp").getLeft());
+            assertEquals(400, request("POST", "/torrents/c.torrent").getLeft());
+            assertEquals(200, request("DELETE", "/torrents/a.torrent").getLeft());
+            assertEquals(Arrays.asList("pause a.torrent", "resume a.torrent", "pause b.torrent",
+                "priority a.torrent high=0-9:skip=50", "add b.torrent /tmp/down", "add a.torrent /tmp",
+                "remove a.torrent"), calls);
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testRefused() {
+        try {
+            calls.clear();
+            String host = "Host: 127.0.0.1:" + server.getPort() + "\r\n";
+            String token = ControlServer.TOKEN_HEADER + ": " + TOKEN + "\r\n";
+            assertEquals(200, rawRequest("GET", "/metrics", host + token));
+            assertEquals(401, rawRequest("GET", "/torrents", host));
+            assertEquals(401, rawRequest("POST", "/torrents/a.torrent/pause", host + ControlServer.TOKEN_HEADER + ": wrong\r\n"));
+            //A web page, even one whose name rebinds to the loopback address
+            assertEquals(403, rawRequest("POST", "/torrents/a.torrent/pause", host + token + "Origin: http://example.com\r\n"));
+            assertEquals(403, rawRequest("GET", "/torrents", "Host: example.com:" + server.getPort() + "\r\n" + token));
+            assertTrue(calls.isEmpty());
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testLoopbackHost() {
+        assertTrue(ControlServer.isLoopbackHost("127.0.0.1:6880"));
+        assertTrue(ControlServer.isLoopbackHost("localhost"));
+        assertTrue(ControlServer.isLoopbackHost("[::1]:6880"));
+        assertFalse(ControlServer.isLoopbackHost("127.0.0.1.example.com"));
+        assertFalse(ControlServer.isLoopbackHost("[::2]:6880"));
+        assertFalse(ControlServer.isLoopbackHost(null));
+    }
+
+    @Test
+    void testWriteToken() {
+        try {
+            File file = File.createTempFile("control", ".token");
+            file.deleteOnExit();
+            String token = ControlServer.writeToken(file);
+            assertEquals(32, token.length());
+            assertEquals(token, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            assertFalse(token.equals(ControlServer.writeToken(file)));
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+            }
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testJson() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("text", "a \"quoted\"\n\\ \u0001");
+        value.put("list", Arrays.asList(1, 2.5, null, false));
+        value.put("nan", Double.NaN);
+        assertEquals("{\"text\":\"a \\\"quoted\\\"\\n\\\\ \\u0001\",\"list\":[1,2.5,null,false],\"nan\":null}",
+            ControlServer.toJson(value));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,189 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class DhtTest {
+    private final InetAddress localhost = InetAddress.getLoopbackAddress();
+    private final List<Dht> nodes = new ArrayList<>();
+
+    private Dht startNode(List<String> routers) throws IOException {
+        Dht node = new Dht(new InetSocketAddress(localhost, 0), RoutingTable.random(), null, routers);
+        node.start();
+        nodes.add(node);
+        return node;
+    }
+
+    @AfterEach
+    void stopNodes() throws InterruptedException {
+        for (Dht node : nodes) {
+            node.shutdown();
+        }
+        for (Dht node : nodes) {
+            node.join(1000);
+        }
+        nodes.clear();
+    }
+
+    @Test
+    void testLookupFindsAnnouncedPeer() {
+        try {
+            Dht router = startNode(Collections.<String>emptyList());
+            List<String> routers = Collections.singletonList("127.0.0.1:" + router.getPort());
+            for (int i = 0; i < 11; i++) {
+                startNode(routers);
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (nodes.get(nodes.size() - 1).getRoutingTable().size() < RoutingTable.K) {
+                assertTrue(System.currentTimeMillis() < deadline, "The routing table was not filled");
+                Thread.sleep(50);
+            }
+            byte[] infoHash = RoutingTable.random().getId();
+            nodes.get(3).getPeers(infoHash, 7777, null);
+            final Set<Long> found = ConcurrentHashMap.newKeySet();
+            Dht.Listener listener = new Dht.Listener() {
+                @Override
+                public void foundPeers(long[] peers) {
+                    for (long peer : peers) {
+                        found.add(peer);
+                    }
+                }
+            };
+            //The announce is sent at the end of the first lookup, so search until it arrived
+            while (found.isEmpty()) {
+                assertTrue(System.currentTimeMillis() < deadline, "The announced peer was not found");
+                nodes.get(9).getPeers(infoHash, 0, listener);
+                Thread.sleep(200);
+            }
+            assertEquals(Collections.singleton(PeerPool.pack(localhost, 7777)), found);
+        } catch (IOException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testAnnounceNeedsToken() {
+        try (DatagramSocket client = new DatagramSocket(new InetSocketAddress(localhost, 0))) {
+            Dht node = startNode(Collections.<String>emptyList());
+            client.setSoTimeout(2000);
+            InetSocketAddress address = new InetSocketAddress(localhost, node.getPort());
+            byte[] infoHash = RoutingTable.random().getId();
+            LinkedHashMap<String, Object> args = new LinkedHashMap<>();
+            args.put("id", RoutingTable.random().getId());
+            args.put("info_hash", infoHash);
+            Map<String, Object> response = exchange(client, address, Krpc.query(new byte[] {0, 1}, Krpc.GET_PEERS, args));
+            assertEquals("r", Krpc.getString(response, "y"));
+            byte[] token = Krpc.getBytes(Krpc.getDict(response, "r"), "token");
+
+            args.put("port", 7777L);
+            args.put("token", new byte[] {1, 2, 3});
+            response = exchange(client, address, Krpc.query(new byte[] {0, 2}, Krpc.ANNOUNCE_PEER, args));
+            assertEquals("e", Krpc.getString(response, "y"));
+            args.put("token", token);
+            response = exchange(client, address, Krpc.query(new byte[] {0, 3}, Krpc.ANNOUNCE_PEER, args));
+            assertEquals("r", Krpc.getString(response, "y"));
+
+            args.remove("port");
+            args.remove("token");
+            response = exchange(client, address, Krpc.query(new byte[] {0, 4}, Krpc.GET_PEERS, args));
+            List<?> values = (List<?>) Krpc.getDict(response, "r").get("values");
+            assertEquals(1, values.size());
+            assertEquals(PeerPool.pack(localhost, 7777), PeerPool.decodeCompact((byte[]) values.get(0))[0]);
+        } catch (IOException | DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testMalformedNodesFailTheQuery() {
+        try (DatagramSocket fake = new DatagramSocket(new InetSocketAddress(localhost, 0))) {
+            fake.setSoTimeout(5000);
+            byte[] fakeId = RoutingTable.random().getId();
+            Dht honest = startNode(Collections.<String>emptyList());
+            RoutingTable.Node honestNode = new RoutingTable.Node(honest.getRoutingTable().getId(),
+                new InetSocketAddress(localhost, honest.getPort()), System.currentTimeMillis());
+            //The fake router introduces the honest node to the searching one
+            Dht node = startNode(Collections.singletonList("127.0.0.1:" + fake.getLocalPort()));
+            DatagramPacket query = receive(fake);
+            LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+            values.put("id", fakeId);
+            values.put("nodes", Krpc.encodeNodes(Collections.singletonList(honestNode)));
+            reply(fake, query, values);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (node.getRoutingTable().size() < 2) {
+                assertTrue(System.currentTimeMillis() < deadline, "The routing table was not filled");
+                Thread.sleep(50);
+            }
+            byte[] infoHash = RoutingTable.random().getId();
+            node.getPeers(infoHash, 7777, null);
+            do {
+                query = receive(fake);
+            } while (!Krpc.getString(Krpc.decode(query.getData(), query.getLength()), "q").equals(Krpc.GET_PEERS));
+            //Answered after the honest node, with a node list that cannot be decoded
+            Thread.sleep(300);
+            values.put("nodes", new byte[] {1, 2, 3, 4, 5});
+            values.put("token", new byte[] {1, 2, 3});
+            reply(fake, query, values);
+            //The lookup still finishes and announces to the honest node
+            try (DatagramSocket client = new DatagramSocket(new InetSocketAddress(localhost, 0))) {
+                client.setSoTimeout(2000);
+                LinkedHashMap<String, Object> args = new LinkedHashMap<>();
+                args.put("id", RoutingTable.random().getId());
+                args.put("info_hash", infoHash);
+                while (true) {
+                    Map<String, Object> response = exchange(client, new InetSocketAddress(localhost, honest.getPort()),
+                        Krpc.query(new byte[] {0, 1}, Krpc.GET_PEERS, args));
+                    if (Krpc.getDict(response, "r").get("values") != null) {
+                        break;
+                    }
+                    assertTrue(System.currentTimeMillis() < deadline, "The lookup did not finish");
+                    Thread.sleep(100);
+                }
+            }
+        } catch (IOException | DataFormatException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private DatagramPacket receive(DatagramSocket socket) throws IOException {
+        byte[] buf = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        socket.receive(packet);
+        return packet;
+    }
+
+    private void reply(DatagramSocket socket, DatagramPacket query, Map<String, Object> values) throws IOException, DataFormatException {
+        byte[] transaction = Krpc.getBytes(Krpc.decode(query.getData(), query.getLength()), "t");
+        byte[] response = Krpc.response(transaction, values);
+        socket.send(new DatagramPacket(response, response.length, query.getSocketAddress()));
+    }
+
+    private Map<String, Object> exchange(DatagramSocket client, InetSocketAddress address, byte[] query) throws IOException, DataFormatException {
+        client.send(new DatagramPacket(query, query.length, address));
+        byte[] buf = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+        client.receive(packet);
+        return Krpc.decode(buf, packet.getLength());
+    }
+}
\ No newline at end of file
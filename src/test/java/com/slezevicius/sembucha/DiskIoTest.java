@@ -0,0 +1,388 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class DiskIoTest {
+    private final int pieceLength = 16384;
+
+    static class TestingTorrent extends Torrent {
+        private final DiskIo diskIo;
+        private final PieceCache pieceCache;
+        private final byte[] data;
+        private final int pieceLength;
+        private final byte[] hashes;
+
+        TestingTorrent(DiskIo diskIo, PieceCache pieceCache, byte[] data, int pieceLength) throws NoSuchAlgorithmException {
+            this.diskIo = diskIo;
+            this.pieceCache = pieceCache;
+            this.data = data;
+            this.pieceLength = pieceLength;
+            hashes = new byte[getPieceCount()*20];
+            for (int i = 0; i < getPieceCount(); i++) {
+                byte[] piece = Arrays.copyOfRange(data, i*pieceLength, Math.min(data.length, (i + 1)*pieceLength));
+                System.arraycopy(MessageDigest.getInstance("SHA-1").digest(piece), 0, hashes, i*20, 20);
+            }
+        }
+
+        @Override
+        public DiskIo getDiskIo() {
+            return diskIo;
+        }
+
+        @Override
+        public PieceCache getPieceCache() {
+            return pieceCache;
+        }
+
+        @Override
+        public long getPieceLength() {
+            return pieceLength;
+        }
+
+        @Override
+        public long getLength() {
+            return data.length;
+        }
+
+        @Override
+        public int getPieceCount() {
+            return (data.length + pieceLength - 1)/pieceLength;
+        }
+
+        @Override
+        public int getBitfieldLength() {
+            return getPieceCount()/8 + 1;
+        }
+
+        @Override
+        public PieceHashes getPieceHashes() {
+            try {
+                return PieceHashes.wrap(hashes);
+            } catch (DataFormatException e) {
+                fail(e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public String getTorrentFileName() {
+            return "test.torrent";
+        }
+    }
+
+    @Test
+    void testBacklog() {
+        DiskIo diskIo = new DiskIo(1, 100);
+        diskIo.queued(60);
+        assertFalse(diskIo.isBacklogged());
+        diskIo.queued(60);
+        assertTrue(diskIo.isBacklogged());
+        diskIo.done(60);
+        assertFalse(diskIo.isBacklogged());
+        assertEquals(60, diskIo.getQueuedBytes());
+    }
+
+    @Test
+    void testBufferBudget() {
+        DiskIo diskIo = new DiskIo(1, 100, 100);
+        assertTrue(diskIo.reserve(60));
+        assertFalse(diskIo.reserve(60));
+        assertTrue(diskIo.isBufferFull(60));
+        assertFalse(diskIo.isBufferFull(40));
+        diskIo.release(60);
+        assertTrue(diskIo.reserve(100));
+        assertEquals(100, diskIo.getBufferedBytes());
+    }
+
+    @Test
+    void testWriteBehind() {
+        try {
+            DiskIo diskIo = new DiskIo(1, 4*pieceLength);
+            byte[] data = new byte[8*pieceLength - 1000];
+            new Random(5).nextBytes(data);
+            TestingTorrent tor = new TestingTorrent(diskIo, new PieceCache(0), data, pieceLength);
+            File saveFile = File.createTempFile("diskio", ".part");
+            saveFile.delete();
+            saveFile.deleteOnExit();
+            FileManager fileManager = new FileManager(tor, saveFile);
+
+            //Hold the only worker so that the pieces pile up behind it
+            final CountDownLatch latch = new CountDownLatch(1);
+            diskIo.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            //One corrupt piece among them
+            byte[] corrupt = Arrays.copyOfRange(data, 5*pieceLength, 6*pieceLength);
+            corrupt[0] ^= 1;
+            for (int i = 0; i < tor.getPieceCount(); i++) {
+                byte[] piece = i == 5 ? corrupt : Arrays.copyOfRange(data, i*pieceLength, Math.min(data.length, (i + 1)*pieceLength));
+                fileManager.receivedPiece(new Request(i, 0, piece));
+            }
+            assertTrue(diskIo.isBacklogged());
+            assertEquals(0, fileManager.getHaves().length);
+            latch.countDown();
+            fileManager.shutdown();
+
+            assertEquals(0, diskIo.getQueuedBytes());
+            assertArrayEquals(new int[] {5}, fileManager.getFailedPieces());
+            assertEquals(7, fileManager.getHaves().length);
+            assertEquals(7, tor.getMetrics().get(Metrics.Counter.PIECES_WRITTEN));
+            assertEquals(1, tor.getMetrics().get(Metrics.Counter.HASH_FAILS));
+            assertEquals(data.length - pieceLength, fileManager.getDownloaded());
+            byte[] written = Files.readAllBytes(saveFile.toPath());
+            assertEquals(data.length, written.length);
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 5*pieceLength), Arrays.copyOfRange(written, 0, 5*pieceLength));
+            assertArrayEquals(Arrays.copyOfRange(data, 6*pieceLength, data.length),
+                Arrays.copyOfRange(written, 6*pieceLength, data.length));
+            diskIo.shutdown(1000);
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testSpillToFile() {
+        try {
+            //Only one piece fits the memory budget
+            DiskIo diskIo = new DiskIo(1, 64*pieceLength, pieceLength);
+            byte[] data = new byte[3*pieceLength - 1000];
+            new Random(7).nextBytes(data);
+            TestingTorrent tor = new TestingTorrent(diskIo, new PieceCache(0), data, pieceLength);
+            File saveFile = File.createTempFile("diskio", ".part");
+            saveFile.delete();
+            saveFile.deleteOnExit();
+            FileManager fileManager = new FileManager(tor, saveFile);
+            int half = pieceLength/2;
+            for (int i = 0; i < 3; i++) {
+                byte[] block = Arrays.copyOfRange(data, i*pieceLength, i*pieceLength + half);
+                if (i == 1) {
+                    block[0] ^= 1;
+                }
+                fileManager.receivedPiece(new Request(i, 0, block));
+            }
+            assertEquals(pieceLength, diskIo.getBufferedBytes());
+            assertTrue(fileManager.isBufferFull());
+            for (int i = 0; i < 3; i++) {
+                byte[] block = Arrays.copyOfRange(data, i*pieceLength + half, Math.min(data.length, (i + 1)*pieceLength));
+                fileManager.receivedPiece(new Request(i, half, block));
+            }
+            assertFalse(fileManager.isBufferFull());
+            fileManager.shutdown();
+
+            assertEquals(0, diskIo.getBufferedBytes());
+            assertEquals(0, diskIo.getQueuedBytes());
+            assertArrayEquals(new int[] {1}, fileManager.getFailedPieces());
+            assertEquals(2, fileManager.getHaves().length);
+            assertEquals(1, tor.getMetrics().get(Metrics.Counter.HASH_FAILS));
+            assertEquals(2, tor.getMetrics().histogram(Metrics.Timer.PIECE_DOWNLOAD_MILLIS).getCount());
+            assertEquals(data.length - pieceLength, fileManager.getDownloaded());
+            byte[] written = Files.readAllBytes(saveFile.toPath());
+            assertArrayEquals(Arrays.copyOfRange(data, 0, pieceLength), Arrays.copyOfRange(written, 0, pieceLength));
+            assertArrayEquals(Arrays.copyOfRange(data, 2*pieceLength, data.length),
+                Arrays.copyOfRange(written, 2*pieceLength, data.length));
+            diskIo.shutdown(1000);
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testBlocksOutOfOrder() {
+        try {
+            int blocks = 8;
+            int length = blocks*pieceLength;
+            byte[] data = new byte[4*length - 1000];
+            new Random(9).nextBytes(data);
+            //The first two pieces are kept in memory, the others go to the file
+            DiskIo diskIo = new DiskIo(1, 64*length, 2*length);
+            TestingTorrent tor = new TestingTorrent(diskIo, new PieceCache(0), data, length);
+            File saveFile = File.createTempFile("diskio", ".part");
+            saveFile.delete();
+            saveFile.deleteOnExit();
+            FileManager fileManager = new FileManager(tor, saveFile);
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < blocks; i++) {
+                order.add(i);
+            }
+            Collections.shuffle(order, new Random(1));
+            for (int block : order) {
+                for (int i = 0; i < 4; i++) {
+                    int begin = i*length + block*pieceLength;
+                    fileManager.receivedPiece(new Request(i, block*pieceLength,
+                        Arrays.copyOfRange(data, begin, Math.min(data.length, begin + pieceLength))));
+                }
+            }
+            fileManager.shutdown();
+            assertEquals(0, fileManager.getFailedPieces().length);
+            assertEquals(4, fileManager.getHaves().length);
+            assertArrayEquals(data, Files.readAllBytes(saveFile.toPath()));
+            diskIo.shutdown(1000);
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testAllocation() {
+        try {
+            byte[] data = new byte[3*pieceLength - 1000];
+            new Random(13).nextBytes(data);
+            for (DiskIo.Allocation allocation : DiskIo.Allocation.values()) {
+                DiskIo diskIo = new DiskIo(1, 64*pieceLength, 64*pieceLength, allocation);
+                TestingTorrent tor = new TestingTorrent(diskIo, new PieceCache(0), data, pieceLength);
+                File saveFile = File.createTempFile("diskio", ".part");
+                saveFile.delete();
+                saveFile.deleteOnExit();
+                FileManager fileManager = new FileManager(tor, saveFile);
+                assertEquals(allocation == DiskIo.Allocation.NONE ? 0 : data.length, saveFile.length(), allocation.toString());
+                fileManager.shutdown();
+                //A partial download is kept when the file is allocated again
+                byte[] head = Arrays.copyOfRange(data, 0, pieceLength + 100);
+                Files.write(saveFile.toPath(), head);
+                fileManager = new FileManager(tor, saveFile);
+                assertEquals(1, fileManager.getHaves().length);
+                fileManager.shutdown();
+                byte[] written = Files.readAllBytes(saveFile.toPath());
+                assertArrayEquals(head, Arrays.copyOfRange(written, 0, head.length));
+                assertEquals(allocation == DiskIo.Allocation.NONE ? head.length : data.length, written.length);
+                diskIo.shutdown(1000);
+            }
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testCompleteWithSkipped() {
+        try {
+            byte[] data = new byte[3*pieceLength - 1000];
+            new Random(19).nextBytes(data);
+            DiskIo diskIo = new DiskIo(1, 64*pieceLength);
+            TestingTorrent tor = new TestingTorrent(diskIo, new PieceCache(0), data, pieceLength);
+            File saveFile = File.createTempFile("diskio", ".part");
+            saveFile.deleteOnExit();
+            //Only the first two pieces are in the file
+            Files.write(saveFile.toPath(), Arrays.copyOfRange(data, 0, 2*pieceLength));
+            FileManager fileManager = new FileManager(tor, saveFile);
+            assertFalse(fileManager.isComplete());
+            tor.setPriority(2, 2, Torrent.Priority.SKIP);
+            assertTrue(fileManager.isComplete());
+            tor.setPriority(2, 2, Torrent.Priority.LOW);
+            assertFalse(fileManager.isComplete());
+            fileManager.shutdown();
+            diskIo.shutdown(1000);
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testReopenVerified() {
+        try {
+            byte[] data = new byte[3*pieceLength - 1000];
+            new Random(17).nextBytes(data);
+            DiskIo diskIo = new DiskIo(1, 64*pieceLength);
+            TestingTorrent tor = new TestingTorrent(diskIo, new PieceCache(0), data, pieceLength);
+            File saveFile = File.createTempFile("diskio", ".part");
+            saveFile.deleteOnExit();
+            //The file does not match the hashes, so only a trusted bitfield marks pieces as had
+            Files.write(saveFile.toPath(), new byte[data.length]);
+            FileManager fileManager = new FileManager(tor, saveFile);
+            assertEquals(0, fileManager.getHaves().length);
+            fileManager.shutdown();
+            byte[] verified = new byte[tor.getBitfieldLength()];
+            verified[0] = (byte) 0b10100000;
+            fileManager = new FileManager(tor, saveFile, verified);
+            int[] haves = fileManager.getHaves();
+            Arrays.sort(haves);
+            assertArrayEquals(new int[] {0, 2}, haves);
+            assertEquals(pieceLength + data.length - 2*pieceLength, fileManager.getDownloaded());
+            assertArrayEquals(verified, fileManager.getBitfield());
+            fileManager.shutdown();
+            diskIo.shutdown(1000);
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testStream() {
+        try {
+            DiskIo diskIo = new DiskIo(1, 64*pieceLength);
+            final byte[] data = new byte[6*pieceLength - 1000];
+            new Random(15).nextBytes(data);
+            final TestingTorrent tor = new TestingTorrent(diskIo, new PieceCache(0), data, pieceLength);
+            File saveFile = File.createTempFile("diskio", ".part");
+            saveFile.delete();
+            saveFile.deleteOnExit();
+            final FileManager fileManager = new FileManager(tor, saveFile);
+            InputStream stream = fileManager.openStream(pieceLength + 10);
+            assertEquals(1, tor.getStreamCursor());
+            assertEquals(0, stream.available());
+            //The pieces arrive in reverse while the stream waits for them
+            Thread downloader = new Thread(() -> {
+                for (int i = tor.getPieceCount() - 1; i >= 0; i--) {
+                    fileManager.receivedPiece(new Request(i, 0,
+                        Arrays.copyOfRange(data, i*pieceLength, Math.min(data.length, (i + 1)*pieceLength))));
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+            downloader.start();
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buf = new byte[5000];
+            int n;
+            while ((n = stream.read(buf, 0, buf.length)) != -1) {
+                read.write(buf, 0, n);
+            }
+            downloader.join();
+            assertArrayEquals(Arrays.copyOfRange(data, pieceLength + 10, data.length), read.toByteArray());
+            assertEquals(tor.getPieceCount() - 1, tor.getStreamCursor());
+            fileManager.shutdown();
+            assertThrows(IOException.class, () -> fileManager.openStream(0).read());
+            diskIo.shutdown(1000);
+        } catch (IOException | NoSuchAlgorithmException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
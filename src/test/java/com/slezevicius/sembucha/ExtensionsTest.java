@@ -0,0 +1,101 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class ExtensionsTest {
+    @Test
+    void testHandshake() {
+        try {
+            byte[] payload = Extensions.encodeHandshake(6881, null);
+            String encoded = new String(payload, StandardCharsets.UTF_8);
+            assertEquals("d1:md11:ut_metadatai2e6:ut_pexi1ee1:pi6881e1:v12:Sembucha 0.1e", encoded);
+            Map<String, Object> handshake = Extensions.decodeDict(payload);
+            assertEquals(Integer.valueOf(Extensions.UT_PEX), Extensions.readExtensionIds(handshake).get("ut_pex"));
+            assertEquals(6881, Extensions.readListenPort(handshake));
+            //Disabled extensions are left out
+            Map<String, Object> other = Extensions.decodeDict("d1:md6:ut_pexi0e11:ut_metadatai3eee".getBytes());
+            assertEquals(Collections.singletonMap("ut_metadata", 3), Extensions.readExtensionIds(other));
+            assertEquals(-1, Extensions.readListenPort(other));
+        } catch (DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testCompact() {
+        try {
+            InetAddress ip = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 2});
+            long key = PeerPool.pack(ip, 51413);
+            Pair<InetAddress, Integer> unpacked = PeerPool.unpack(key);
+            assertEquals(ip, unpacked.getLeft());
+            assertEquals(51413, unpacked.getRight().intValue());
+            byte[] compact = PeerPool.encodeCompact(Arrays.asList(key));
+            assertArrayEquals(new byte[] {(byte) 192, (byte) 168, 1, 2, (byte) 0xC8, (byte) 0xD5}, compact);
+            assertArrayEquals(new long[] {key}, PeerPool.decodeCompact(compact));
+            assertThrows(DataFormatException.class, () -> PeerPool.decodeCompact(new byte[7]));
+        } catch (UnknownHostException | DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testPex() {
+        try {
+            List<Long> added = new ArrayList<>();
+            for (int i = 0; i < 60; i++) {
+                added.add(PeerPool.pack(InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i}), 6881));
+            }
+            List<Long> dropped = Arrays.asList(PeerPool.pack(InetAddress.getByName("127.0.0.1"), 7000));
+            Map<String, Object> message = Extensions.decodeDict(Extensions.encodePex(added, dropped));
+            assertEquals(60, ((byte[]) message.get("added.f")).length);
+            long[] received = Extensions.readPexAdded(message);
+            //Anything beyond the limit of BEP 11 is ignored
+            assertEquals(Extensions.MAX_PEX_PEERS, received.length);
+            assertEquals(added.get(0).longValue(), received[0]);
+            assertTrue(Extensions.readPexAdded(Extensions.decodeDict("de".getBytes())).length == 0);
+        } catch (UnknownHostException | DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testMetadata() {
+        try {
+            byte[] request = Extensions.encodeMetadata(Extensions.METADATA_REQUEST, 3, 0, null);
+            assertEquals("d8:msg_typei0e5:piecei3ee", new String(request, StandardCharsets.UTF_8));
+            byte[] data = "some info bytes".getBytes(StandardCharsets.UTF_8);
+            Pair<Map<String, Object>, byte[]> message = Extensions.decodeMetadata(
+                Extensions.encodeMetadata(Extensions.METADATA_DATA, 1, 16399, data));
+            assertEquals(Long.valueOf(Extensions.METADATA_DATA), message.getLeft().get("msg_type"));
+            assertEquals(Long.valueOf(1), message.getLeft().get("piece"));
+            assertEquals(Long.valueOf(16399), message.getLeft().get("total_size"));
+            assertArrayEquals(data, message.getRight());
+            assertThrows(DataFormatException.class, () -> Extensions.decodeMetadata("d5:piecei0ee".getBytes()));
+            assertEquals(2, Extensions.metadataPieceCount(16399));
+            assertEquals(1, Extensions.metadataPieceCount(Extensions.METADATA_PIECE_LENGTH));
+            assertEquals(16399, Extensions.readMetadataSize(Extensions.decodeDict("d13:metadata_sizei16399ee".getBytes())));
+            assertEquals(-1, Extensions.readMetadataSize(Extensions.decodeDict("d13:metadata_sizei-1ee".getBytes())));
+        } catch (DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,38 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class FastExtensionTest {
+    @Test
+    void testAllowedFastSet() {
+        //The test vectors of BEP 6
+        byte[] infoHash = new byte[20];
+        Arrays.fill(infoHash, (byte) 0xAA);
+        try {
+            InetAddress ip = InetAddress.getByName("80.4.4.200");
+            assertEquals(Arrays.asList(1059, 431, 808, 1217, 287, 376, 1188),
+                FastExtension.allowedFastSet(infoHash, ip, 1313, 7));
+            assertEquals(Arrays.asList(1059, 431, 808, 1217, 287, 376, 1188, 353, 508),
+                FastExtension.allowedFastSet(infoHash, ip, 1313, 9));
+            //Only the /24 network matters
+            assertEquals(FastExtension.allowedFastSet(infoHash, ip, 1313, 9),
+                FastExtension.allowedFastSet(infoHash, InetAddress.getByName("80.4.4.1"), 1313, 9));
+            assertEquals(new HashSet<>(Arrays.asList(0, 1, 2)),
+                new HashSet<>(FastExtension.allowedFastSet(infoHash, ip, 3, 10)));
+            assertEquals(0, FastExtension.allowedFastSet(infoHash, InetAddress.getByName("::1"), 1313, 9).size());
+        } catch (UnknownHostException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
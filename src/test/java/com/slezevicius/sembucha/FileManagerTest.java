@@ -18,6 +18,7 @@ import java.util.Map;
 import java.util.Random;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.junit.jupiter.api.AfterEach;
@@ -413,7 +414,14 @@ public class FileManagerTest {
                 method.invoke(fileManager, req);
                 i += blockSize;
             }
-            assertEquals(3, tor.redownloadPiece);
+            //The hash is checked by a disk worker
+            long deadline = System.currentTimeMillis() + 5000;
+            int[] failed = fileManager.getFailedPieces();
+            while (failed.length == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                failed = fileManager.getFailedPieces();
+            }
+            assertArrayEquals(new int[] {3}, failed);
         } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException e) {
             e.printStackTrace();
             fail(e.getMessage());
@@ -421,7 +429,7 @@ public class FileManagerTest {
             e.printStackTrace();
             e.getCause().printStackTrace();
             fail(e.getMessage());
-        } catch (NoSuchAlgorithmException e) {
+        } catch (NoSuchAlgorithmException | InterruptedException e) {
             e.printStackTrace();
             fail(e.getMessage());
         }
@@ -431,7 +439,8 @@ public class FileManagerTest {
         public int pieceLength;
         public byte[] pieces;
         public int bitfieldLength;
-        public int redownloadPiece = -1;
+        public DiskIo diskIo = new DiskIo(1, 64*1024*1024);
+        public PieceCache pieceCache = new PieceCache(0);
 
         @Override
         public long getPieceLength() {
@@ -439,8 +448,18 @@ public class FileManagerTest {
         }
 
         @Override
-        public byte[] getPieces() {
-            return pieces;
+        public int getPieceCount() {
+            return pieces.length/20;
+        }
+
+        @Override
+        public PieceHashes getPieceHashes() {
+            try {
+                return PieceHashes.wrap(Arrays.copyOfRange(pieces, 0, getPieceCount()*20));
+            } catch (DataFormatException e) {
+                fail(e.getMessage());
+                return null;
+            }
         }
 
         @Override
@@ -449,8 +468,13 @@ public class FileManagerTest {
         }
 
         @Override
-        public void redownloadPiece(int index) {
-            redownloadPiece = index;
+        public DiskIo getDiskIo() {
+            return diskIo;
+        }
+
+        @Override
+        public PieceCache getPieceCache() {
+            return pieceCache;
         }
 
     }
@@ -0,0 +1,50 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class MagnetLinkTest {
+    private final String hex = "C12FE1C06BBA254A9DC9F519B335AA7C1367A88A";
+    //The same hash in base32
+    private final String base32 = "YEX6DQDLXISUVHOJ6UM3GNNKPQJWPKEK";
+
+    @Test
+    void testParse() {
+        try {
+            MagnetLink magnet = MagnetLink.parse("magnet:?xt=urn:btih:" + hex.toLowerCase()
+                + "&dn=Some+file%20name&tr=udp%3A%2F%2Ftracker%3A80&tr=http%3A%2F%2Fother%2Fannounce"
+                + "&tr=udp%3A%2F%2Ftracker%3A80");
+            assertEquals(hex, Metainfo.bytesToHex(magnet.getInfoHash()));
+            assertEquals("Some file name", magnet.getName());
+            assertEquals(Arrays.asList("udp://tracker:80", "http://other/announce"), magnet.getTrackers());
+
+            MagnetLink other = MagnetLink.parse("  MAGNET:?xt=urn:btih:" + base32 + "\n");
+            assertArrayEquals(magnet.getInfoHash(), other.getInfoHash());
+            assertNull(other.getName());
+            assertEquals(0, other.getTrackers().size());
+        } catch (DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(DataFormatException.class, () -> MagnetLink.parse("http://example.com"));
+        assertThrows(DataFormatException.class, () -> MagnetLink.parse("magnet:?dn=name"));
+        assertThrows(DataFormatException.class, () -> MagnetLink.parse("magnet:?xt=urn:btih:" + hex.substring(2)));
+        assertThrows(DataFormatException.class, () -> MagnetLink.parse("magnet:?xt=urn:btih:" + hex.replace('C', 'G')));
+        assertThrows(DataFormatException.class, () -> MagnetLink.parse("magnet:?xt=urn:btih:" + base32.replace('Y', '1')));
+        assertThrows(DataFormatException.class, () -> MagnetLink.parse("magnet:?xt=urn:btih:" + hex + "&dn=%4"));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,216 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class MetadataFetcherTest {
+    private final InetAddress localhost = InetAddress.getLoopbackAddress();
+    private final List<Seed> seeds = new ArrayList<>();
+    private final List<MetadataFetcher> fetchers = new ArrayList<>();
+    private byte[] info;
+    private byte[] infoHash;
+
+    /**
+     * A peer which only answers ut_metadata requests, each after a short
+     * delay so that the fetcher has to spread its requests.
+     */
+    private class Seed extends Thread {
+        private final ServerSocket server;
+        private final byte[] served;
+        private final AtomicInteger pieces = new AtomicInteger();
+
+        Seed(byte[] served) throws IOException {
+            this.served = served;
+            server = new ServerSocket(0, 5, localhost);
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (!server.isClosed()) {
+                try (Socket sock = server.accept()) {
+                    serve(sock);
+                } catch (IOException | DataFormatException | InterruptedException e) {
+                    //The fetcher closed the connection
+                }
+            }
+        }
+
+        private void serve(Socket sock) throws IOException, DataFormatException, InterruptedException {
+            DataInputStream in = new DataInputStream(sock.getInputStream());
+            DataOutputStream out = new DataOutputStream(sock.getOutputStream());
+            byte[] handshake = new byte[68];
+            in.readFully(handshake);
+            handshake[25] = 0x10;
+            out.write(handshake);
+            byte[] ours = ("d1:md11:ut_metadatai3ee13:metadata_sizei" + served.length + "ee").getBytes(StandardCharsets.UTF_8);
+            send(out, Extensions.HANDSHAKE, ours);
+            while (true) {
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                if (message[0] != Extensions.MESSAGE_ID || message[1] != 3) {
+                    continue;
+                }
+                byte[] payload = new byte[message.length - 2];
+                System.arraycopy(message, 2, payload, 0, payload.length);
+                int piece = (int) (long) (Long) Extensions.decodeMetadata(payload).getLeft().get("piece");
+                int offset = piece*Extensions.METADATA_PIECE_LENGTH;
+                byte[] data = new byte[Math.min(Extensions.METADATA_PIECE_LENGTH, served.length - offset)];
+                System.arraycopy(served, offset, data, 0, data.length);
+                Thread.sleep(50);
+                send(out, Extensions.UT_METADATA, Extensions.encodeMetadata(Extensions.METADATA_DATA, piece, served.length, data));
+                pieces.incrementAndGet();
+            }
+        }
+
+        private void send(DataOutputStream out, byte extendedId, byte[] payload) throws IOException {
+            out.writeInt(2 + payload.length);
+            out.writeByte(Extensions.MESSAGE_ID);
+            out.writeByte(extendedId);
+            out.write(payload);
+            out.flush();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+    }
+
+    @BeforeAll
+    void init() throws NoSuchAlgorithmException {
+        //Three ut_metadata pieces, the last one shorter
+        byte[] hashes = new byte[2000*20];
+        new Random(3).nextBytes(hashes);
+        String head = "d6:lengthi2000000e4:name4:test12:piece lengthi1000e6:pieces" + hashes.length + ":";
+        info = new byte[head.length() + hashes.length + 1];
+        System.arraycopy(head.getBytes(StandardCharsets.UTF_8), 0, info, 0, head.length());
+        System.arraycopy(hashes, 0, info, head.length(), hashes.length);
+        info[info.length - 1] = 'e';
+        infoHash = MessageDigest.getInstance("SHA-1").digest(info);
+    }
+
+    @AfterEach
+    void stop() throws IOException, InterruptedException {
+        for (MetadataFetcher fetcher : fetchers) {
+            fetcher.shutdown();
+            fetcher.join(2000);
+        }
+        for (Seed seed : seeds) {
+            seed.server.close();
+        }
+        fetchers.clear();
+        seeds.clear();
+    }
+
+    private MetadataFetcher startFetcher(PeerPool pool, final BlockingQueue<byte[]> fetched) {
+        MetadataFetcher fetcher = new MetadataFetcher(infoHash, "-SB0001-123456789012", 6881, pool, null,
+            new MetadataFetcher.Listener() {
+                @Override
+                public void metadataFetched(byte[] fetchedInfo) {
+                    fetched.add(fetchedInfo);
+                }
+            });
+        fetcher.start();
+        fetchers.add(fetcher);
+        return fetcher;
+    }
+
+    private Seed startSeed(byte[] served) throws IOException {
+        Seed seed = new Seed(served);
+        seeds.add(seed);
+        return seed;
+    }
+
+    @Test
+    void testFetchFromSeveralPeers() {
+        try {
+            PeerPool pool = new PeerPool();
+            Seed first = startSeed(info);
+            Seed second = startSeed(info);
+            pool.add(localhost, first.getPort(), PeerPool.Source.TRACKER);
+            pool.add(localhost, second.getPort(), PeerPool.Source.TRACKER);
+            BlockingQueue<byte[]> fetched = new ArrayBlockingQueue<>(1);
+            startFetcher(pool, fetched);
+            byte[] result = fetched.poll(10, TimeUnit.SECONDS);
+            assertNotNull(result, "The info dictionary was not fetched");
+            assertArrayEquals(info, result);
+            assertEquals(3, Extensions.metadataPieceCount(info.length));
+            assertTrue(first.pieces.get() > 0 && second.pieces.get() > 0, "The pieces were not fetched in parallel");
+        } catch (IOException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testBadMetadataIsRejected() {
+        try {
+            PeerPool pool = new PeerPool();
+            byte[] bad = info.clone();
+            bad[100] ^= 1;
+            Seed liar = startSeed(bad);
+            pool.add(localhost, liar.getPort(), PeerPool.Source.TRACKER);
+            BlockingQueue<byte[]> fetched = new ArrayBlockingQueue<>(1);
+            startFetcher(pool, fetched);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!pool.isBanned(localhost, liar.getPort())) {
+                assertTrue(System.currentTimeMillis() < deadline, "The liar was not banned");
+                Thread.sleep(50);
+            }
+            assertNull(fetched.poll());
+            Seed honest = startSeed(info);
+            pool.add(localhost, honest.getPort(), PeerPool.Source.DHT);
+            assertArrayEquals(info, fetched.poll(10, TimeUnit.SECONDS));
+        } catch (IOException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testWrongSizeIsForgotten() {
+        MetadataFetcher fetcher = new MetadataFetcher(infoHash, "-SB0001-123456789012", 6881, new PeerPool(), null, null);
+        MetadataFetcher.Connection liar = fetcher.new Connection(
+            new PeerPool.Candidate(PeerPool.pack(localhost, 6882), localhost, 6882, PeerPool.Source.TRACKER));
+        MetadataFetcher.Connection honest = fetcher.new Connection(
+            new PeerPool.Candidate(PeerPool.pack(localhost, 6883), localhost, 6883, PeerPool.Source.TRACKER));
+        assertTrue(fetcher.setSize(liar, info.length + 1));
+        assertFalse(fetcher.setSize(honest, info.length));
+        //The first peer leaves without sending a piece, its size goes with it
+        fetcher.release(liar);
+        assertTrue(fetcher.setSize(honest, info.length));
+        assertEquals(0, fetcher.nextPiece(honest));
+        assertFalse(fetcher.setSize(liar, info.length + 1));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,146 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class MetainfoTest {
+    //The keys of the info dict are deliberately not sorted
+    private final String info = "d4:name4:test12:piece lengthi32768e6:lengthi65536e6:pieces40:"
+        + "0123456789012345678901234567890123456789e";
+    private final String content = "d8:announce16:http://localhost4:info" + info + "7:comment2:hie";
+    private File torrentFile;
+
+    @BeforeEach
+    void init() {
+        try {
+            torrentFile = File.createTempFile("metainfo", ".torrent");
+            FileOutputStream out = new FileOutputStream(torrentFile);
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            out.close();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @AfterEach
+    void destr() {
+        torrentFile.delete();
+    }
+
+    @Test
+    void testInfoHashCoversRawSpan() {
+        try {
+            byte[] expected = MessageDigest.getInstance("SHA-1").digest(info.getBytes(StandardCharsets.UTF_8));
+            Metainfo metainfo = new Metainfo(torrentFile);
+            assertArrayEquals(expected, metainfo.getInfoHash());
+            assertEquals("test", metainfo.getName());
+            assertEquals(32768, metainfo.getPieceLength());
+            assertEquals(65536, metainfo.getLength());
+            assertEquals("http://localhost", metainfo.getAnnounce());
+            assertEquals("hi", metainfo.getComment());
+        } catch (DataFormatException | IOException | NoSuchAlgorithmException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testReadInfoHashAndPieceCount() {
+        try {
+            Pair<byte[], Integer> summary = Metainfo.readInfoHashAndPieceCount(torrentFile);
+            assertArrayEquals(new Metainfo(torrentFile).getInfoHash(), summary.getLeft());
+            assertEquals(2, summary.getRight().intValue());
+        } catch (DataFormatException | IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testPieceHashes() {
+        try {
+            PieceHashes hashes = new Metainfo(torrentFile).getPieceHashes();
+            assertEquals(2, hashes.count());
+            assertTrue(hashes.matches(1, "01234567890123456789".getBytes(StandardCharsets.UTF_8)));
+            assertFalse(hashes.matches(1, "x1234567890123456789".getBytes(StandardCharsets.UTF_8)));
+            assertFalse(hashes.matches(2, "01234567890123456789".getBytes(StandardCharsets.UTF_8)));
+        } catch (DataFormatException | IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testMappedLoading() {
+        try {
+            int pieceCount = 250000;
+            byte[] pieces = new byte[pieceCount*20];
+            new Random(7).nextBytes(pieces);
+            File large = File.createTempFile("metainfo", ".torrent");
+            FileOutputStream out = new FileOutputStream(large);
+            out.write(("d8:announce16:http://localhost4:infod6:lengthi" + ((long) pieceCount*16384)
+                + "e4:name4:test12:piece lengthi16384e6:pieces" + pieces.length + ":").getBytes(StandardCharsets.UTF_8));
+            out.write(pieces);
+            out.write("ee".getBytes(StandardCharsets.UTF_8));
+            out.close();
+            Metainfo metainfo = new Metainfo(large);
+            assertEquals(pieceCount, metainfo.getPieceCount());
+            assertTrue(metainfo.getPieceHashes().matches(pieceCount - 1,
+                Arrays.copyOfRange(pieces, pieces.length - 20, pieces.length)));
+            large.delete();
+        } catch (DataFormatException | IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testMagnetInfo() {
+        try {
+            byte[] infoBytes = info.getBytes(StandardCharsets.UTF_8);
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(infoBytes);
+            MagnetLink magnet = MagnetLink.parse("magnet:?xt=urn:btih:" + Metainfo.bytesToHex(hash)
+                + "&dn=display&tr=http%3A%2F%2Fa&tr=http%3A%2F%2Fb");
+            Metainfo partial = new Metainfo(magnet);
+            assertFalse(partial.hasInfo());
+            assertEquals("display", partial.getName());
+            assertEquals("http://a", partial.getAnnounce());
+            assertEquals(2, partial.getAnnounceList().size());
+
+            Metainfo metainfo = new Metainfo(magnet, infoBytes);
+            assertTrue(metainfo.hasInfo());
+            assertArrayEquals(hash, metainfo.getInfoHash());
+            assertEquals("test", metainfo.getName());
+            assertEquals(65536, metainfo.getLength());
+            assertEquals(2, metainfo.getPieceCount());
+            assertArrayEquals(Arrays.copyOfRange(infoBytes, 4, 10), metainfo.readInfo(4, 6));
+            //The info dictionary of a metainfo file is served as it is
+            Metainfo fromFile = new Metainfo(torrentFile);
+            assertEquals(infoBytes.length, fromFile.getInfoSize());
+            assertArrayEquals(infoBytes, fromFile.readInfo(0, infoBytes.length));
+
+            byte[] tampered = infoBytes.clone();
+            tampered[tampered.length - 2] = 'x';
+            assertThrows(DataFormatException.class, () -> new Metainfo(magnet, tampered));
+        } catch (DataFormatException | IOException | NoSuchAlgorithmException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
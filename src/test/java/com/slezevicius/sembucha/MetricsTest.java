@@ -0,0 +1,75 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class MetricsTest {
+    @Test
+    void testBuckets() {
+        for (long value = 0; value < 100000; value++) {
+            long lowest = Histogram.lowest(Histogram.bucket(value));
+            assertTrue(lowest <= value && value - lowest <= value/16, String.valueOf(value));
+        }
+        assertEquals(Histogram.bucket(1L << 39) + 15, Histogram.bucket((1L << 40) - 1));
+    }
+
+    @Test
+    void testPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Map<String, Object> snapshot = histogram.snapshot();
+        assertEquals(1000L, snapshot.get("count"));
+        assertEquals(500.5, (double) snapshot.get("mean"), 0.001);
+        assertEquals(1L, snapshot.get("min"));
+        long p50 = (long) snapshot.get("p50");
+        long p99 = (long) snapshot.get("p99");
+        assertTrue(p50 > 500*15/16 && p50 <= 500, String.valueOf(p50));
+        assertTrue(p99 > 990*15/16 && p99 <= 990, String.valueOf(p99));
+        assertTrue((long) snapshot.get("max") <= 1000);
+    }
+
+    @Test
+    void testCountsReachTheParents() {
+        Metrics client = new Metrics("client", null);
+        Metrics torrent = new Metrics("test.torrent", client);
+        Metrics first = new Metrics("127.0.0.1:6881", torrent);
+        Metrics second = new Metrics("127.0.0.1:6882", torrent);
+        first.add(Metrics.Counter.BYTES_IN, 16384);
+        second.add(Metrics.Counter.BYTES_IN, 16384);
+        second.record(Metrics.Timer.REQUEST_RTT_MILLIS, 200);
+        assertEquals(16384, first.get(Metrics.Counter.BYTES_IN));
+        assertEquals(32768, torrent.get(Metrics.Counter.BYTES_IN));
+        assertEquals(32768, client.get(Metrics.Counter.BYTES_IN));
+        assertEquals(1, client.histogram(Metrics.Timer.REQUEST_RTT_MILLIS).getCount());
+        assertEquals(0, first.histogram(Metrics.Timer.REQUEST_RTT_MILLIS).getCount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testSnapshot() {
+        Metrics client = new Metrics("client", null);
+        Metrics torrent = new Metrics("test.torrent", client);
+        client.gauge("cache_bytes", () -> 42);
+        torrent.increment(Metrics.Counter.HASH_FAILS);
+        Map<String, Object> snapshot = client.snapshot();
+        assertEquals(1L, snapshot.get("hash_fails"));
+        assertEquals(42L, snapshot.get("cache_bytes"));
+        assertNull(snapshot.get("announce_millis"));
+        Map<String, Object> children = (Map<String, Object>) snapshot.get("children");
+        assertEquals(1L, ((Map<String, Object>) children.get("test.torrent")).get("hash_fails"));
+        torrent.remove();
+        assertFalse(client.snapshot().containsKey("children"));
+        assertEquals(1, client.get(Metrics.Counter.HASH_FAILS));
+    }
+}
\ No newline at end of file
@@ -109,10 +109,8 @@ public class PeerManagerTest {
             }
             assertEquals(10, peers.size());
 
-            List<Pair<InetAddress, Integer>> newPeers = new ArrayList<>();
-            newPeers.add(new Pair<InetAddress, Integer>(InetAddress.getByName("localhost"), peerPort));
+            tor.peerPool.add(InetAddress.getByName("localhost"), peerPort, PeerPool.Source.TRACKER);
             peer.port = peerPort;
-            tor.newPeers = newPeers;
             tor.infoHash = infoHash;
             tor.peerId = peerId;
             Method method = cls.getDeclaredMethod("updatePeers");
@@ -186,10 +184,8 @@ public class PeerManagerTest {
             peers.add(newPeer);
             assertEquals(11, peers.size());
 
-            List<Pair<InetAddress, Integer>> newPeers = new ArrayList<>();
-            newPeers.add(new Pair<InetAddress, Integer>(InetAddress.getByName("localhost"), peerPort));
+            tor.peerPool.add(InetAddress.getByName("localhost"), peerPort, PeerPool.Source.TRACKER);
             peer.port = peerPort;
-            tor.newPeers = newPeers;
             tor.infoHash = infoHash;
             tor.peerId = peerId;
             Method method = cls.getDeclaredMethod("updatePeers");
@@ -253,10 +249,8 @@ public class PeerManagerTest {
             }
             assertEquals(50, peers.size());
 
-            List<Pair<InetAddress, Integer>> newPeers = new ArrayList<>();
-            newPeers.add(new Pair<InetAddress, Integer>(InetAddress.getByName("localhost"), peerPort));
+            tor.peerPool.add(InetAddress.getByName("localhost"), peerPort, PeerPool.Source.TRACKER);
             peer.port = peerPort;
-            tor.newPeers = newPeers;
             tor.infoHash = infoHash;
             tor.peerId = peerId;
             Method method = cls.getDeclaredMethod("updatePeers");
@@ -798,16 +792,42 @@ public class PeerManagerTest {
         public byte[] peerId;
         public byte[] infoHash;
         public byte[] pieces;
-        public List<Pair<InetAddress, Integer>> newPeers;
+        public PeerPool peerPool = new PeerPool();
+        public ConnectionBudget connectionBudget = new ConnectionBudget(200, 20);
 
         @Override
-        public byte[] getPieces() {
-            return pieces;
+        public ConnectionBudget getConnectionBudget() {
+            return connectionBudget;
         }
 
         @Override
-        public List<Pair<InetAddress, Integer>> getNewPeers() {
-            return newPeers;
+        public Dht getDht() {
+            return null;
+        }
+
+        @Override
+        public int getInfoSize() {
+            return -1;
+        }
+
+        @Override
+        public boolean isDiskBacklogged() {
+            return false;
+        }
+
+        @Override
+        public boolean isPieceBufferFull() {
+            return false;
+        }
+
+        @Override
+        public int getPieceCount() {
+            return pieces.length/20;
+        }
+
+        @Override
+        public PeerPool getPeerPool() {
+            return peerPool;
         }
 
         @Override
@@ -0,0 +1,155 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class PeerPoolTest {
+    private PeerPool pool;
+    private int notifications;
+
+    @BeforeEach
+    void init() {
+        pool = new PeerPool();
+        notifications = 0;
+        pool.setListener(new PeerPool.Listener() {
+            @Override
+            public void newCandidates() {
+                notifications += 1;
+            }
+        });
+    }
+
+    @Test
+    void testPack() {
+        try {
+            InetAddress ip = InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) 200});
+            assertEquals((0x0A0000C8L << 16) | 6881, PeerPool.pack(ip, 6881));
+            assertEquals(-1, PeerPool.pack(InetAddress.getByName("::1"), 6881));
+        } catch (UnknownHostException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testAddDeduplicates() {
+        try {
+            InetAddress ip = InetAddress.getByName("127.0.0.1");
+            assertTrue(pool.add(ip, 6881, PeerPool.Source.TRACKER));
+            assertFalse(pool.add(ip, 6881, PeerPool.Source.PEX));
+            assertTrue(pool.add(ip, 6882, PeerPool.Source.TRACKER));
+            assertEquals(2, pool.size());
+            assertEquals(2, notifications);
+        } catch (UnknownHostException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testTakeConnectable() {
+        try {
+            InetAddress ip = InetAddress.getByName("127.0.0.1");
+            for (int i = 0; i < 5; i++) {
+                pool.add(ip, 7000 + i, PeerPool.Source.TRACKER);
+            }
+            List<PeerPool.Candidate> first = pool.takeConnectable(3);
+            assertEquals(3, first.size());
+            List<PeerPool.Candidate> second = pool.takeConnectable(10);
+            assertEquals(2, second.size());
+            assertFalse(pool.hasConnectable());
+            //A failed candidate is backed off and not handed out again right away
+            pool.connectFailed(first.get(0));
+            assertEquals(1, first.get(0).getFailures());
+            assertEquals(0, pool.takeConnectable(10).size());
+        } catch (UnknownHostException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testIncomingAndBan() {
+        try {
+            InetAddress ip = InetAddress.getByName("127.0.0.1");
+            assertTrue(pool.addIncoming(ip, 50000));
+            assertFalse(pool.addIncoming(ip, 50000));
+            pool.disconnected(ip, 50000);
+            pool.ban(ip, 50000);
+            assertTrue(pool.isBanned(ip, 50000));
+            assertFalse(pool.addIncoming(ip, 50000));
+            assertEquals(0, pool.takeConnectable(10).size());
+        } catch (UnknownHostException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testIncomingIsNotDialed() {
+        try {
+            InetAddress ip = InetAddress.getByName("127.0.0.1");
+            assertTrue(pool.addIncoming(ip, 50000));
+            assertTrue(pool.addIncoming(ip, 50001));
+            //The port a peer connected from is forgotten
+            pool.disconnected(ip, 50001);
+            assertFalse(pool.contains(ip, 50001));
+            //If it announced its listening port, that is kept instead, after the backoff
+            pool.disconnected(ip, 50000, 6881);
+            assertFalse(pool.hasConnectable());
+            assertEquals(0, pool.countConnectable(10));
+            assertFalse(pool.contains(ip, 50000));
+            assertTrue(pool.contains(ip, 6881));
+            assertEquals(1, pool.size());
+            //A banned peer cannot come back from another port
+            pool.ban(ip, 6881);
+            assertFalse(pool.addIncoming(ip, 50002));
+            assertEquals(0, pool.takeConnectable(10).size());
+        } catch (UnknownHostException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testEvictionBackoff() {
+        try {
+            InetAddress ip = InetAddress.getByName("127.0.0.1");
+            Field candidatesField = PeerPool.class.getDeclaredField("candidates");
+            candidatesField.setAccessible(true);
+            Map<Long, PeerPool.Candidate> candidates = (Map<Long, PeerPool.Candidate>) candidatesField.get(pool);
+            Field nextAttemptField = PeerPool.Candidate.class.getDeclaredField("nextAttempt");
+            nextAttemptField.setAccessible(true);
+            assertTrue(pool.add(ip, 6881, PeerPool.Source.TRACKER));
+            PeerPool.Candidate candidate = candidates.get(PeerPool.pack(ip, 6881));
+            pool.takeConnectable(1);
+            pool.disconnected(ip, 6881);
+            long wait = nextAttemptField.getLong(candidate) - System.currentTimeMillis();
+            assertTrue(wait > 0 && wait <= 30000, Long.toString(wait));
+            //Every eviction doubles the wait, which starts far above an ordinary disconnect
+            pool.evicted(ip, 6881, -1);
+            wait = nextAttemptField.getLong(candidate) - System.currentTimeMillis();
+            assertTrue(wait > 590000 && wait <= 600000, Long.toString(wait));
+            pool.evicted(ip, 6881, -1);
+            wait = nextAttemptField.getLong(candidate) - System.currentTimeMillis();
+            assertTrue(wait > 1190000 && wait <= 1200000, Long.toString(wait));
+            //An evicted incoming peer keeps its backoff on the port it listens on
+            assertTrue(pool.addIncoming(ip, 50000));
+            pool.evicted(ip, 50000, 6882);
+            wait = nextAttemptField.getLong(candidates.get(PeerPool.pack(ip, 6882))) - System.currentTimeMillis();
+            assertTrue(wait > 590000 && wait <= 600000, Long.toString(wait));
+            assertEquals(0, pool.countConnectable(10));
+        } catch (UnknownHostException | NoSuchFieldException | IllegalAccessException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,138 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class PeerServerTest {
+    private TestingTorrentManager torrentManager;
+    private PeerServer server;
+
+    @BeforeEach
+    void init() {
+        try {
+            torrentManager = new TestingTorrentManager();
+            server = new PeerServer(torrentManager);
+            server.start();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @AfterEach
+    void close() {
+        try {
+            server.shutdown();
+            server.join();
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        return new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    private byte[] handshake(byte fill) {
+        byte[] message = new byte[68];
+        message[0] = 19;
+        byte[] pstr = "BitTorrent protocol".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(pstr, 0, message, 1, pstr.length);
+        for (int i = 28; i < 48; i++) {
+            message[i] = fill;
+        }
+        return message;
+    }
+
+    @Test
+    void testSlowHandshakeDoesNotBlock() {
+        try (Socket slow = connect(); Socket fast = connect()) {
+            OutputStream out = slow.getOutputStream();
+            out.write(19);
+            out.flush();
+            fast.getOutputStream().write(handshake((byte) 7));
+            Peer peer = torrentManager.received.poll(2, TimeUnit.SECONDS);
+            assertNotNull(peer);
+            byte[] expected = new byte[20];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = 7;
+            }
+            assertArrayEquals(expected, peer.getInfoHash());
+            peer.shutdownSockets();
+        } catch (IOException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testPendingLimitPerIp() {
+        Socket[] slow = new Socket[PeerServer.MAX_PENDING_PER_IP];
+        try {
+            for (int i = 0; i < slow.length; i++) {
+                slow[i] = connect();
+            }
+            //Give the accept loop time to hand the slow sockets to the workers
+            Thread.sleep(200);
+            try (Socket extra = connect()) {
+                extra.setSoTimeout(2000);
+                try {
+                    assertEquals(-1, extra.getInputStream().read());
+                } catch (SocketTimeoutException e) {
+                    fail("The connection over the limit was not dropped");
+                } catch (SocketException e) {
+                    //Reset by the server
+                }
+            }
+            assertTrue(torrentManager.received.isEmpty());
+            for (Socket sock : slow) {
+                sock.close();
+            }
+        } catch (IOException | InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testAcceptRate() {
+        try {
+            InetAddress ip = InetAddress.getByName("10.0.0.1");
+            for (int i = 0; i < PeerServer.MAX_ACCEPTS_PER_IP; i++) {
+                assertTrue(server.allowAccept(ip, 1000));
+            }
+            assertFalse(server.allowAccept(ip, 1000 + PeerServer.RATE_WINDOW - 1));
+            assertTrue(server.allowAccept(InetAddress.getByName("10.0.0.2"), 1000));
+            assertTrue(server.allowAccept(ip, 1000 + PeerServer.RATE_WINDOW));
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private class TestingTorrentManager extends TorrentManager {
+        public LinkedBlockingQueue<Peer> received = new LinkedBlockingQueue<>();
+
+        @Override
+        public void receivedPeer(Peer peer) {
+            received.add(peer);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class PeerStatsTest {
+    @Test
+    void testRateDecays() {
+        PeerStats stats = new PeerStats(0);
+        for (int i = 1; i <= 100; i++) {
+            stats.blockReceived(i, 0, 16384, i*100);
+        }
+        double rate = stats.getDownloadRate(10000);
+        //10 blocks per second over half the window
+        assertTrue(rate > 0.3*163840 && rate < 163840, String.valueOf(rate));
+        assertTrue(stats.getDownloadRate(10000 + (long) PeerStats.RATE_WINDOW) < rate/2);
+        assertEquals(100*16384, stats.getDownloaded());
+    }
+
+    @Test
+    void testRtt() {
+        PeerStats stats = new PeerStats(0);
+        assertEquals(-1, stats.getRtt());
+        stats.requestSent(1, 0, 1000);
+        stats.blockReceived(1, 0, 16384, 1200);
+        assertEquals(200, stats.getRtt(), 0.001);
+        stats.requestSent(1, 16384, 2000);
+        stats.blockReceived(1, 16384, 16384, 2600);
+        assertEquals(0.875*200 + 0.125*600, stats.getRtt(), 0.001);
+        //Unrequested blocks do not produce samples
+        stats.blockReceived(2, 0, 16384, 3000);
+        assertEquals(0.875*200 + 0.125*600, stats.getRtt(), 0.001);
+    }
+
+    @Test
+    void testErrorsLowerTheScore() {
+        PeerStats stats = new PeerStats(0);
+        stats.blockReceived(1, 0, 16384, 100);
+        double score = stats.getScore(100);
+        stats.error();
+        assertEquals(score/2, stats.getScore(100), 0.001);
+    }
+
+    @Test
+    void testPickEviction() {
+        long begin = System.currentTimeMillis();
+        long judged = begin + PeerStats.GRACE_PERIOD + 5000;
+        List<Peer> peers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            peers.add(new Peer());
+        }
+        //A peer that has just connected is never evicted
+        assertNull(PeerManager.pickEviction(peers, begin));
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 20; j++) {
+                peers.get(i).getStats().blockReceived(j, 0, 16384, judged - 2000 + j*100);
+            }
+        }
+        //The fourth peer has sent nothing and is idle
+        assertSame(peers.get(3), PeerManager.pickEviction(peers, judged));
+        peers.remove(3);
+        //Comparable peers are left alone
+        assertNull(PeerManager.pickEviction(peers, judged));
+        for (int i = 0; i < PeerManager.MAX_ERRORS; i++) {
+            peers.get(1).getStats().error();
+        }
+        assertSame(peers.get(1), PeerManager.pickEviction(peers, judged));
+    }
+}
\ No newline at end of file
@@ -1,11 +1,16 @@
 package com.slezevicius.sembucha;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
 public class PeerTest {
     public class TestingPeerManager extends PeerManager {
         private String peerId;
         private byte[] infoHash;
         private byte[] bitfield;
         private int bitfieldLength;
+        private int dhtPort = -1;
 
         public void setPeerId(String peerId) {
             this.peerId = peerId;
@@ -15,6 +20,10 @@ public class PeerTest {
             this.infoHash = infoHash;
         }
 
+        public void setDhtPort(int dhtPort) {
+            this.dhtPort = dhtPort;
+        }
+
         public void setBitfield(byte[] bitfield) {
             this.bitfield = bitfield;
             this.bitfieldLength = bitfield.length;
@@ -40,6 +49,21 @@ public class PeerTest {
             return bitfieldLength;
         }
 
+        @Override
+        public String getFileName() {
+            return "test";
+        }
+
+        @Override
+        public int getDhtPort() {
+            return dhtPort;
+        }
+
+        @Override
+        public List<Integer> getAllowedFastSet(InetAddress ip) {
+            return new ArrayList<>();
+        }
+
         @Override
         public void shutdown() {
 
@@ -125,9 +125,11 @@ public class PeerTestPair extends PeerTest {
 
     @Test
     void testSendHandshake() {
+        //The extension protocol and Fast Extension bits are set in the handshakes we send
+        byte[] sentReserved = {0, 0, 0, 0, 0, 0x10, 0, 0x04};
         byte[] handshakeMessage = ArrayUtils.addAll(
             pstrlen, ArrayUtils.addAll(pstr, ArrayUtils.addAll(
-                reserved, ArrayUtils.addAll(
+                sentReserved, ArrayUtils.addAll(
                     infoHash, peerId))));
         try {
             Class cls = Class.forName("com.slezevicius.sembucha.Peer");
@@ -527,6 +529,42 @@ public class PeerTestPair extends PeerTest {
         }
     }
 
+    @Test
+    void testSendOpeningMessagesBitfieldFirst() {
+        //With the Fast Extension, the bitfield has to come before the port message
+        int dhtPort = 6881;
+        byte[] messageInfo = {0, 0, 0, (byte) (1 + bitfield.length), 5};
+        byte[] portMessage = {0, 0, 0, 3, 9, (byte) (dhtPort >> 8), (byte) dhtPort};
+        byte[] expected = ArrayUtils.addAll(ArrayUtils.addAll(messageInfo, bitfield), portMessage);
+        try {
+            Field manager = Peer.class.getDeclaredField("peerManager");
+            manager.setAccessible(true);
+            ((TestingPeerManager) manager.get(peer)).setDhtPort(dhtPort);
+            for (String name : new String[] {"fast", "DHT"}) {
+                Field field = Peer.class.getDeclaredField(name);
+                field.setAccessible(true);
+                field.setBoolean(peer, true);
+            }
+            Method method = Peer.class.getDeclaredMethod("sendOpeningMessages");
+            method.setAccessible(true);
+            method.invoke(peer);
+            byte[] resp = new byte[expected.length];
+            assertTimeout(Duration.ofMillis(200), () -> {
+                debuggerIn.readFully(resp);
+            });
+            assertTrue(debuggerIn.available() == 0);
+            assertTrue(Arrays.equals(resp, expected));
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+            fail("Could not set up the test");
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+            fail(e.getCause().getClass() + ": " + e.getCause().getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(e.getMessage());
+        }
+    }
+
     @Test
     void testSendRequest() {
         int idx = 2131231212;
@@ -1006,4 +1044,22 @@ public class PeerTestPair extends PeerTest {
     @Test
     void testReceiveExtension() {
     }
+
+    @Test
+    void testReceiveExtensionTooLong() {
+        try {
+            //Rejected before anything is read, the claimed length must not be allocated
+            Method method = Peer.class.getDeclaredMethod("receiveExtension", int.class);
+            method.setAccessible(true);
+            try {
+                method.invoke(peer, Integer.MAX_VALUE - 1);
+                fail("An extension message longer than the limit was accepted");
+            } catch (InvocationTargetException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+            assertEquals(1, peer.getStats().getErrors());
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            fail("Could not set up the test");
+        }
+    }
 }
\ No newline at end of file
@@ -126,7 +126,7 @@ public class PeerTestSocket extends PeerTest {
             byte[] peerBitfield = (byte[]) peerBitfieldField.get(peer);
             assertEquals(peerManager.getBitfieldLength(), peerBitfield.length);
             sock.close();
-        } catch (IOException | DataFormatException | InterruptedException e) {
+        } catch (IOException | DataFormatException e) {
             e.printStackTrace();
             fail("Error was thrown; check the stack trace.");
         } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
@@ -145,9 +145,11 @@ public class PeerTestSocket extends PeerTest {
             Field socketField = cls.getDeclaredField("out");
             socketField.setAccessible(true);
             socketField.set(peer, new DataOutputStream( sock.getOutputStream()));
+            //The extension protocol and Fast Extension bits are set in the handshakes we send
+            byte[] sentReserved = {0, 0, 0, 0, 0, 0x10, 0, 0x04};
             byte[] handshakeMessage = ArrayUtils.addAll(
                 pstrlen, ArrayUtils.addAll(pstr, ArrayUtils.addAll(
-                    reserved, ArrayUtils.addAll(
+                    sentReserved, ArrayUtils.addAll(
                         infoHash, peerId))));
             Method method = cls.getDeclaredMethod("sendHandshake");
             method.setAccessible(true);
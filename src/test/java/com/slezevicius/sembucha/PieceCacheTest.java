@@ -0,0 +1,85 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class PieceCacheTest {
+    private final Object owner = new Object();
+
+    @Test
+    void testLeastRecentlyUsedEviction() {
+        PieceCache cache = new PieceCache(100);
+        cache.put(owner, 0, new byte[40]);
+        cache.put(owner, 1, new byte[40]);
+        assertNotNull(cache.get(owner, 0));
+        //Piece 1 is now the least recently used one
+        cache.put(owner, 2, new byte[40]);
+        assertNull(cache.get(owner, 1));
+        assertNotNull(cache.get(owner, 0));
+        assertNotNull(cache.get(owner, 2));
+        assertEquals(80, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRate());
+        //Too large to ever fit
+        cache.put(owner, 3, new byte[101]);
+        assertNull(cache.get(owner, 3));
+        Object other = new Object();
+        cache.put(other, 0, new byte[10]);
+        cache.invalidate(owner);
+        assertEquals(10, cache.getSize());
+        assertNotNull(cache.get(other, 0));
+        assertNull(new PieceCache(0).get(owner, 0));
+    }
+
+    @Test
+    void testReadAhead() {
+        try {
+            int pieceLength = 4*16384;
+            byte[] data = new byte[3*pieceLength - 5000];
+            new Random(11).nextBytes(data);
+            File saveFile = File.createTempFile("cache", ".part");
+            saveFile.deleteOnExit();
+            Files.write(saveFile.toPath(), data);
+            PieceCache cache = new PieceCache(10*pieceLength);
+            DiskIoTest.TestingTorrent tor = new DiskIoTest.TestingTorrent(new DiskIo(1, pieceLength), cache, data, pieceLength);
+            FileManager fileManager = new FileManager(tor, saveFile);
+            //Ten peers download the first piece block by block
+            for (int peer = 0; peer < 10; peer++) {
+                for (int begin = 0; begin < pieceLength; begin += 16384) {
+                    Request req = new Request(0, begin, new byte[16384]);
+                    fileManager.fillOutPiece(req);
+                    assertArrayEquals(Arrays.copyOfRange(data, begin, begin + 16384), req.block);
+                }
+            }
+            //The first block is read alone, the second one reads the rest of the piece
+            assertEquals(2, fileManager.getDiskReads());
+            assertEquals(38, cache.getHits());
+            //A lone block of the shorter last piece is read directly
+            Request req = new Request(2, 16384, new byte[1000]);
+            fileManager.fillOutPiece(req);
+            assertArrayEquals(Arrays.copyOfRange(data, 2*pieceLength + 16384, 2*pieceLength + 17384), req.block);
+            assertEquals(3, fileManager.getDiskReads());
+            fileManager.shutdown();
+            assertEquals(0, cache.getSize());
+        } catch (IOException | NoSuchAlgorithmException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
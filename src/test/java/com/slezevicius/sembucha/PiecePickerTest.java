@@ -0,0 +1,177 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class PiecePickerTest {
+    private final int pieceCount = 16;
+    private final int pieceLength = 16384;
+
+    class TestingTorrent extends Torrent {
+        private PeerPool peerPool = new PeerPool();
+        private ConnectionBudget connectionBudget = new ConnectionBudget(200, 20);
+
+        @Override
+        public ConnectionBudget getConnectionBudget() {
+            return connectionBudget;
+        }
+
+        @Override
+        public PeerPool getPeerPool() {
+            return peerPool;
+        }
+
+        @Override
+        public Dht getDht() {
+            return null;
+        }
+
+        @Override
+        public boolean isPieceBufferFull() {
+            return false;
+        }
+
+        @Override
+        public int getPieceCount() {
+            return pieceCount;
+        }
+
+        @Override
+        public long getPieceLength() {
+            return pieceLength;
+        }
+
+        @Override
+        public long getLength() {
+            return (long) pieceCount*pieceLength;
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+    }
+
+    class TestingPeer extends Peer {
+        @Override
+        public synchronized byte[] getPeerBitfield() {
+            return new byte[] {(byte) 0xff, (byte) 0xff, 0};
+        }
+
+        @Override
+        public synchronized boolean getPeerChocking() {
+            return false;
+        }
+    }
+
+    @Test
+    void testPriorities() {
+        try {
+            TestingTorrent tor = new TestingTorrent();
+            tor.setPriority(0, 3, Torrent.Priority.SKIP);
+            tor.setPriority(8, 9, Torrent.Priority.HIGH);
+            tor.setPriority(12, 15, Torrent.Priority.LOW);
+            PeerManager peerManager = new PeerManager(tor);
+            Peer peer = new TestingPeer();
+            Field ipField = Peer.class.getDeclaredField("ip");
+            ipField.setAccessible(true);
+            ipField.set(peer, InetAddress.getLoopbackAddress());
+            Class<?> cls = Class.forName("com.slezevicius.sembucha.PeerManager");
+            Method addRarenessLevel = cls.getDeclaredMethod("addRarenessLevel");
+            addRarenessLevel.setAccessible(true);
+            addRarenessLevel.invoke(peerManager);
+            Method updatePriorities = cls.getDeclaredMethod("updatePriorities");
+            updatePriorities.setAccessible(true);
+            updatePriorities.invoke(peerManager);
+            Method updateBitfield = cls.getDeclaredMethod("updateBitfield", Peer.class);
+            updateBitfield.setAccessible(true);
+            updateBitfield.invoke(peerManager, peer);
+            Method getRandomRequestIndex = cls.getDeclaredMethod("getRandomRequestIndex", Peer.class);
+            getRandomRequestIndex.setAccessible(true);
+            Field rarenessListsField = cls.getDeclaredField("rarenessLists");
+            rarenessListsField.setAccessible(true);
+            List<List<Set<Integer>>> rarenessLists = (List<List<Set<Integer>>>) rarenessListsField.get(peerManager);
+            //Picking a piece takes it out of the rareness levels like a request does
+            Integer[] picked = new Integer[pieceCount - 4];
+            for (int i = 0; i < picked.length; i++) {
+                picked[i] = (Integer) getRandomRequestIndex.invoke(peerManager, peer);
+                for (List<Set<Integer>> rarenessList : rarenessLists) {
+                    for (Set<Integer> rarenessLevel : rarenessList) {
+                        rarenessLevel.remove(picked[i]);
+                    }
+                }
+            }
+            assertNull(getRandomRequestIndex.invoke(peerManager, peer));
+            assertEquals(new HashSet<>(Arrays.asList(8, 9)), new HashSet<>(Arrays.asList(picked).subList(0, 2)));
+            assertEquals(new HashSet<>(Arrays.asList(4, 5, 6, 7, 10, 11)),
+                new HashSet<>(Arrays.asList(picked).subList(2, 8)));
+            assertEquals(new HashSet<>(Arrays.asList(12, 13, 14, 15)),
+                new HashSet<>(Arrays.asList(picked).subList(8, 12)));
+            for (Integer index : picked) {
+                assertTrue(index >= 4, "the skipped piece " + index + " was picked");
+            }
+        } catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException | IllegalAccessException e) {
+            fail(e.getMessage());
+        } catch (InvocationTargetException e) {
+            fail(e.getCause().toString());
+        }
+    }
+
+    @Test
+    void testFailedPieceWithoutPeer() {
+        try {
+            TestingTorrent tor = new TestingTorrent();
+            PeerManager peerManager = new PeerManager(tor);
+            Peer sender = new TestingPeer();
+            Field ipField = Peer.class.getDeclaredField("ip");
+            ipField.setAccessible(true);
+            ipField.set(sender, InetAddress.getLoopbackAddress());
+            Class<?> cls = Class.forName("com.slezevicius.sembucha.PeerManager");
+            Method addRarenessLevel = cls.getDeclaredMethod("addRarenessLevel");
+            addRarenessLevel.setAccessible(true);
+            addRarenessLevel.invoke(peerManager);
+            Field requestedPiecesField = cls.getDeclaredField("requestedPieces");
+            requestedPiecesField.setAccessible(true);
+            Map<Integer, Triplet<Integer, Peer, Instant>> requestedPieces =
+                (Map<Integer, Triplet<Integer, Peer, Instant>>) requestedPiecesField.get(peerManager);
+            Field rarenessListsField = cls.getDeclaredField("rarenessLists");
+            rarenessListsField.setAccessible(true);
+            List<List<Set<Integer>>> rarenessLists = (List<List<Set<Integer>>>) rarenessListsField.get(peerManager);
+            //The piece failed its hash after the peer that sent it was removed
+            requestedPieces.put(5, new Triplet<>(-1, sender, Instant.now()));
+            peerManager.redownloadPiece(5);
+            assertFalse(requestedPieces.containsKey(5));
+            assertEquals(1, sender.getStats().getErrors());
+            //It is picked again once another peer has it
+            Peer other = new TestingPeer();
+            ipField.set(other, InetAddress.getLoopbackAddress());
+            Method updateBitfield = cls.getDeclaredMethod("updateBitfield", Peer.class);
+            updateBitfield.setAccessible(true);
+            updateBitfield.invoke(peerManager, other);
+            assertTrue(rarenessLists.get(Torrent.Priority.NORMAL.ordinal()).get(0).contains(5));
+        } catch (ClassNotFoundException | NoSuchMethodException | NoSuchFieldException | IllegalAccessException e) {
+            fail(e.getMessage());
+        } catch (InvocationTargetException e) {
+            fail(e.getCause().toString());
+        }
+    }
+}
\ No newline at end of file
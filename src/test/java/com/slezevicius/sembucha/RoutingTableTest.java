@@ -0,0 +1,100 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class RoutingTableTest {
+    private final byte[] self = new byte[RoutingTable.ID_LENGTH];
+
+    private byte[] id(int first, int last) {
+        byte[] id = new byte[RoutingTable.ID_LENGTH];
+        id[0] = (byte) first;
+        id[RoutingTable.ID_LENGTH - 1] = (byte) last;
+        return id;
+    }
+
+    private InetSocketAddress address(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    @Test
+    void testBucketIndex() {
+        RoutingTable table = new RoutingTable(self);
+        assertEquals(0, table.bucketIndex(id(0x80, 0)));
+        assertEquals(7, table.bucketIndex(id(0x01, 0)));
+        assertEquals(159, table.bucketIndex(id(0, 1)));
+        assertEquals(-1, table.bucketIndex(self));
+    }
+
+    @Test
+    void testFullBucket() {
+        RoutingTable table = new RoutingTable(self);
+        //All of these share no leading bits with our id and go to bucket 0
+        for (int i = 0; i < RoutingTable.K; i++) {
+            assertTrue(table.seen(id(0x80, i), address(7000 + i), 0));
+        }
+        assertFalse(table.seen(id(0x80, 100), address(7100), 0));
+        assertFalse(table.seen(self, address(7101), 0));
+        assertEquals(RoutingTable.K, table.size());
+        //A node that stopped responding makes room
+        for (int i = 0; i < RoutingTable.MAX_FAILURES; i++) {
+            table.failed(address(7003));
+        }
+        assertTrue(table.seen(id(0x80, 100), address(7100), 0));
+        assertEquals(RoutingTable.K, table.size());
+    }
+
+    @Test
+    void testClosest() {
+        RoutingTable table = new RoutingTable(self);
+        table.seen(id(0x40, 0), address(7000), 0);
+        table.seen(id(0x01, 0), address(7001), 0);
+        table.seen(id(0x03, 0), address(7002), 0);
+        table.seen(id(0x80, 0), address(7003), 0);
+        List<RoutingTable.Node> closest = table.closest(id(0x02, 0), 3);
+        assertEquals(3, closest.size());
+        assertArrayEquals(id(0x03, 0), closest.get(0).getId());
+        assertArrayEquals(id(0x01, 0), closest.get(1).getId());
+        assertArrayEquals(id(0x40, 0), closest.get(2).getId());
+        assertEquals(0, table.getQuestionable(RoutingTable.STALE).size());
+        assertEquals(4, table.getQuestionable(RoutingTable.STALE + 1).size());
+    }
+
+    @Test
+    void testSaveLoad() {
+        try {
+            RoutingTable table = RoutingTable.random();
+            byte[] other = table.getId();
+            other[0] ^= 0x80;
+            table.seen(other, address(7000), 0);
+            File file = File.createTempFile("dht", ".dat");
+            file.deleteOnExit();
+            table.save(file);
+            RoutingTable loaded = RoutingTable.load(file, 1000);
+            assertArrayEquals(table.getId(), loaded.getId());
+            assertEquals(1, loaded.size());
+            assertEquals(address(7000), loaded.closest(other, 1).get(0).getAddress());
+            Files.write(file.toPath(), "d2:id3:abce".getBytes());
+            assertThrows(DataFormatException.class, () -> RoutingTable.load(file, 0));
+        } catch (IOException | DataFormatException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
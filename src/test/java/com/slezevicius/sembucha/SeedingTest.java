@@ -0,0 +1,204 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class SeedingTest {
+    class TestingTorrent extends Torrent {
+        private PeerPool peerPool = new PeerPool();
+        private ConnectionBudget connectionBudget = new ConnectionBudget(10, 5);
+        private volatile boolean complete = true;
+
+        @Override
+        public ConnectionBudget getConnectionBudget() {
+            return connectionBudget;
+        }
+
+        @Override
+        public PeerPool getPeerPool() {
+            return peerPool;
+        }
+
+        @Override
+        public Dht getDht() {
+            return null;
+        }
+
+        @Override
+        public int getPieceCount() {
+            return 16;
+        }
+
+        @Override
+        public long getPieceLength() {
+            return 16384;
+        }
+
+        @Override
+        public long getLength() {
+            return 16*16384;
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public int[] getHaves() {
+            return new int[0];
+        }
+
+        @Override
+        public int[] getFailedPieces() {
+            return new int[0];
+        }
+
+        @Override
+        public int getUploaded() {
+            return 0;
+        }
+    }
+
+    /**
+     * A peer whose thread idles until it is closed and which records the
+     * orders of the peer manager instead of sending them.
+     */
+    class TestingPeer extends Peer {
+        private final ConcurrentLinkedQueue<String> orders = new ConcurrentLinkedQueue<>();
+        private volatile boolean interested = true;
+        private volatile boolean open = true;
+
+        TestingPeer() {
+            try {
+                Field ipField = Peer.class.getDeclaredField("ip");
+                ipField.setAccessible(true);
+                ipField.set(this, InetAddress.getLoopbackAddress());
+            } catch (NoSuchFieldException | IllegalAccessException e) {
+                fail(e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (open) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            open = false;
+        }
+
+        @Override
+        public void sendMessage(Pair<String, ArrayList<Object>> order) {
+            orders.add(order.getLeft());
+            if (order.getLeft().equals("not interested")) {
+                interested = false;
+            }
+        }
+
+        @Override
+        public synchronized boolean getAmInterested() {
+            return interested;
+        }
+
+        @Override
+        public synchronized byte[] getPeerBitfield() {
+            return new byte[3];
+        }
+    }
+
+    /**
+     * Adds the peer to the manager as if it had connected.
+     * @param peerManager
+     * @param peer
+     */
+    private void addPeer(PeerManager peerManager, Peer peer) {
+        try {
+            Field peersField = PeerManager.class.getDeclaredField("peers");
+            peersField.setAccessible(true);
+            synchronized(peerManager) {
+                ((Set<Peer>) peersField.get(peerManager)).add(peer);
+            }
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testKeepsServingWhenComplete() {
+        try {
+            TestingTorrent tor = new TestingTorrent();
+            PeerManager peerManager = new PeerManager(tor);
+            TestingPeer peer = new TestingPeer();
+            peer.start();
+            addPeer(peerManager, peer);
+            peerManager.start();
+            Thread.sleep(300);
+            //The manager still runs and tells the peer it wants nothing from it
+            assertTrue(peerManager.isAlive());
+            List<String> orders = new ArrayList<>(peer.orders);
+            assertTrue(orders.contains("not interested"), orders.toString());
+            assertFalse(orders.contains("request"), orders.toString());
+            peerManager.shutdown();
+            peerManager.join(1000);
+            assertFalse(peerManager.isAlive());
+            assertFalse(peer.isAlive());
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testCompleteReleasesSlots() {
+        try {
+            TestingTorrent tor = new TestingTorrent();
+            ConnectionBudget budget = tor.getConnectionBudget();
+            PeerManager peerManager = new PeerManager(tor);
+            //A peer whose thread has already ended still holds its slot
+            assertTrue(budget.tryAcquire(peerManager));
+            addPeer(peerManager, new TestingPeer());
+            Field newCandidatesField = PeerManager.class.getDeclaredField("newCandidates");
+            newCandidatesField.setAccessible(true);
+            newCandidatesField.set(peerManager, true);
+            peerManager.start();
+            Thread.sleep(300);
+            assertTrue(peerManager.isAlive());
+            assertEquals(0, budget.getUsed(peerManager));
+            assertEquals(0, budget.getUsed());
+            //A seed weighs less than any download, so the others get its share
+            assertTrue(peerManager.getWeight() < 1, Double.toString(peerManager.getWeight()));
+            assertEquals(0, peerManager.getWanted());
+            peerManager.shutdown();
+            peerManager.join(1000);
+            assertFalse(peerManager.isAlive());
+        } catch (InterruptedException | NoSuchFieldException | IllegalAccessException e) {
+            fail(e.getMessage());
+        }
+    }
+}
\ No newline at end of file
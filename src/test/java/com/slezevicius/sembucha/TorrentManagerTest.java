@@ -1,37 +1,188 @@
 package com.slezevicius.sembucha;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.logging.LogManager;
-import java.util.logging.Logger;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
-import com.slezevicius.sembucha.TorrentManager;
-
-import org.junit.jupiter.api.BeforeAll;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
 
+@TestInstance(Lifecycle.PER_CLASS)
 public class TorrentManagerTest {
-    Logger log;
-    TorrentManager torrentManager;
+    private byte[] hash(int seed) {
+        byte[] hash = new byte[InfoHash.LENGTH];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (seed + i);
+        }
+        return hash;
+    }
+
+    @Test
+    void testInfoHash() {
+        byte[] bytes = hash(1);
+        InfoHash a = new InfoHash(bytes);
+        bytes[19] = 0;
+        assertEquals(new InfoHash(hash(1)), a);
+        assertEquals(new InfoHash(hash(1)).hashCode(), a.hashCode());
+        assertNotEquals(new InfoHash(bytes), a);
+        assertThrows(IllegalArgumentException.class, () -> new InfoHash(new byte[19]));
+    }
+
+    @Test
+    void testRouting() {
+        TorrentManager torrentManager = new TorrentManager();
+        TestingTorrent first = new TestingTorrent(hash(1));
+        TestingTorrent second = new TestingTorrent(hash(2));
+        torrentManager.started(first);
+        torrentManager.started(second);
+
+        TestingPeer peer = new TestingPeer(hash(2));
+        torrentManager.receivedPeer(peer);
+        assertEquals(0, first.added.size());
+        assertEquals(1, second.added.size());
+
+        torrentManager.stopped(second);
+        TestingPeer late = new TestingPeer(hash(2));
+        torrentManager.receivedPeer(late);
+        assertEquals(1, second.added.size());
+        assertTrue(late.closed);
 
-    @BeforeAll
-    void initiAll() {
-        log = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+        //A torrent that is not indexed cannot remove the mapping of another one
+        torrentManager.stopped(new TestingTorrent(hash(1)));
+        torrentManager.receivedPeer(new TestingPeer(hash(1)));
+        assertEquals(1, first.added.size());
+    }
+
+    @Test
+    void testPriorities() {
+        TestingTorrent tor = new TestingTorrent(hash(1));
+        int version = tor.getPriorityVersion();
+        List<Triplet<Integer, Integer, Torrent.Priority>> ranges = new ArrayList<>();
+        ranges.add(new Triplet<>(2, 5, Torrent.Priority.SKIP));
+        ranges.add(new Triplet<>(4, 20, Torrent.Priority.HIGH));
+        tor.setPriorities(ranges);
+        assertNotEquals(version, tor.getPriorityVersion());
+        version = tor.getPriorityVersion();
+        //The same ranges again do not count as a change
+        tor.setPriorities(new ArrayList<>(ranges));
+        assertEquals(version, tor.getPriorityVersion());
+        tor.setPriority(0, 0, Torrent.Priority.LOW);
+        assertArrayEquals(new Torrent.Priority[] {Torrent.Priority.LOW, Torrent.Priority.NORMAL,
+            Torrent.Priority.SKIP, Torrent.Priority.SKIP, Torrent.Priority.HIGH, Torrent.Priority.HIGH},
+            tor.getPriorities(6));
+    }
+
+    @Test
+    void testSaveStateKeepsOtherLines() {
         try {
-            String configPath = System.getProperty("user.dir") + "/log.properies";
-            FileInputStream configFile = new FileInputStream(configPath);
-            LogManager.getLogManager().readConfiguration(configFile);
+            File dir = Files.createTempDirectory("sembucha").toFile();
+            File torrentDir = new File(dir, "Torrents");
+            File propertiesFile = new File(dir, "torrents.properties");
+            //A torrent file that is not copied yet and a typo were never applied
+            Files.write(propertiesFile.toPath(), Arrays.asList("#comment", "pending.torrent=run,/tmp",
+                "a.torrent=run,/old", "typo.torrent=rnu,/tmp"), StandardCharsets.ISO_8859_1);
+            TorrentManager torrentManager = new TorrentManager();
+            Field dirField = TorrentManager.class.getDeclaredField("torrentDir");
+            dirField.setAccessible(true);
+            dirField.set(torrentManager, torrentDir);
+            Field statesField = TorrentManager.class.getDeclaredField("states");
+            statesField.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            Map<String, String> states = (Map<String, String>) statesField.get(torrentManager);
+            Method saveState = TorrentManager.class.getDeclaredMethod("saveState", String.class);
+            saveState.setAccessible(true);
+
+            states.put("a.torrent", "stop,/tmp/down");
+            saveState.invoke(torrentManager, "a.torrent");
+            assertEquals(Arrays.asList("#comment", "pending.torrent=run,/tmp", "a.torrent=stop,/tmp/down",
+                "typo.torrent=rnu,/tmp"), Files.readAllLines(propertiesFile.toPath(), StandardCharsets.ISO_8859_1));
+            states.put("b.torrent", "run,/tmp");
+            saveState.invoke(torrentManager, "b.torrent");
+            states.remove("a.torrent");
+            saveState.invoke(torrentManager, "a.torrent");
+            assertEquals(Arrays.asList("#comment", "pending.torrent=run,/tmp", "typo.torrent=rnu,/tmp",
+                "b.torrent=run,/tmp"), Files.readAllLines(propertiesFile.toPath(), StandardCharsets.ISO_8859_1));
+            propertiesFile.delete();
+            dir.delete();
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+            fail("Could not set up the test");
+        } catch (InvocationTargetException e) {
+            fail(e.getCause().getClass() + ": " + e.getCause().getMessage());
         } catch (IOException e) {
-            throw new RuntimeException(e.getMessage());
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testKeyOf() {
+        assertEquals("a.torrent", TorrentManager.keyOf("a.torrent=run,/tmp"));
+        assertEquals("a.torrent", TorrentManager.keyOf("  a.torrent : run,/tmp"));
+        assertNull(TorrentManager.keyOf("# a.torrent=run,/tmp"));
+        assertNull(TorrentManager.keyOf(""));
+    }
+
+    private class TestingTorrent extends Torrent {
+        private byte[] infoHash;
+        public List<Peer> added = new ArrayList<>();
+
+        TestingTorrent(byte[] infoHash) {
+            this.infoHash = infoHash;
+        }
+
+        @Override
+        public byte[] getInfoHash() {
+            return infoHash;
+        }
+
+        @Override
+        public void addPeer(Peer peer) {
+            added.add(peer);
         }
 
+        @Override
+        public String toString() {
+            return "TestingTorrent";
+        }
     }
 
-    @BeforeEach
-    void init() {
-        log.info("Starting test");
+    private class TestingPeer extends Peer {
+        private byte[] infoHash;
+        public boolean closed = false;
+
+        TestingPeer(byte[] infoHash) {
+            this.infoHash = infoHash;
+        }
+
+        @Override
+        public byte[] getInfoHash() {
+            return infoHash;
+        }
+
+        @Override
+        public void shutdownSockets() {
+            closed = true;
+        }
+
+        @Override
+        public String toString() {
+            return "TestingPeer";
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class TorrentQueueTest {
+    private List<Torrent> active;
+    private TorrentQueue queue;
+
+    @BeforeEach
+    void init() {
+        active = new ArrayList<>();
+        TorrentQueue.Control control = new TorrentQueue.Control() {
+            @Override
+            public void start(Torrent tor) {
+                active.add(tor);
+            }
+
+            @Override
+            public void stop(Torrent tor) {
+                active.remove(tor);
+            }
+        };
+        //Two downloads, one seed, three in total, slow below 1000 B/s for 10 s
+        queue = new TorrentQueue(control, 2, 1, 3, 1000, 10000);
+    }
+
+    @Test
+    void testSlotsAndPriority() {
+        TestingTorrent a = new TestingTorrent("a");
+        TestingTorrent b = new TestingTorrent("b");
+        TestingTorrent c = new TestingTorrent("c");
+        queue.add(a, 0);
+        queue.add(b, 0);
+        queue.add(c, 5);
+        assertEquals(2, active.size());
+        assertEquals(TorrentQueue.State.QUEUED, queue.getState(c));
+        //The higher priority torrent gets the next free slot
+        TestingTorrent d = new TestingTorrent("d");
+        queue.add(d, 0);
+        try {
+            queue.remove(a);
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+        assertEquals(TorrentQueue.State.DOWNLOADING, queue.getState(c));
+        assertEquals(TorrentQueue.State.QUEUED, queue.getState(d));
+        assertNull(queue.getState(a));
+    }
+
+    @Test
+    void testCompletedMovesToSeeding() {
+        TestingTorrent a = new TestingTorrent("a");
+        TestingTorrent b = new TestingTorrent("b");
+        TestingTorrent c = new TestingTorrent("c");
+        queue.add(a, 0);
+        queue.add(b, 0);
+        queue.add(c, 0);
+        a.complete = true;
+        queue.tick(1000);
+        assertEquals(TorrentQueue.State.SEEDING, queue.getState(a));
+        assertEquals(TorrentQueue.State.DOWNLOADING, queue.getState(c));
+        //Only one seeding slot, the second finished torrent has to wait
+        b.complete = true;
+        queue.tick(2000);
+        assertEquals(TorrentQueue.State.QUEUED, queue.getState(b));
+        assertEquals(2, active.size());
+    }
+
+    @Test
+    void testUnskippedGoesBackToDownloading() {
+        TestingTorrent a = new TestingTorrent("a");
+        TestingTorrent b = new TestingTorrent("b");
+        TestingTorrent c = new TestingTorrent("c");
+        queue.add(a, 0);
+        a.complete = true;
+        queue.tick(1000);
+        assertEquals(TorrentQueue.State.SEEDING, queue.getState(a));
+        //A skipped range of a is wanted again while a download slot is free
+        a.complete = false;
+        queue.tick(2000);
+        assertEquals(TorrentQueue.State.DOWNLOADING, queue.getState(a));
+        a.complete = true;
+        queue.tick(3000);
+        assertEquals(TorrentQueue.State.SEEDING, queue.getState(a));
+        //Without a free download slot it waits in the queue
+        queue.add(b, 0);
+        queue.add(c, 0);
+        a.complete = false;
+        queue.tick(4000);
+        assertEquals(TorrentQueue.State.QUEUED, queue.getState(a));
+        assertEquals(2, active.size());
+        assertFalse(active.contains(a));
+    }
+
+    @Test
+    void testSlowTorrentIsPaused() {
+        TestingTorrent fast = new TestingTorrent("fast");
+        TestingTorrent slow = new TestingTorrent("slow");
+        TestingTorrent waiting = new TestingTorrent("waiting");
+        queue.add(fast, 0);
+        queue.add(slow, 0);
+        queue.add(waiting, 0);
+        long start = System.currentTimeMillis();
+        for (int i = 1; i <= 3; i++) {
+            fast.downloaded += 50000;
+            slow.downloaded += 100;
+            queue.tick(start + i*5000);
+        }
+        assertEquals(TorrentQueue.State.DOWNLOADING, queue.getState(fast));
+        assertEquals(TorrentQueue.State.QUEUED, queue.getState(slow));
+        assertEquals(TorrentQueue.State.DOWNLOADING, queue.getState(waiting));
+        assertEquals(10000.0, queue.getRate(fast), 0.1);
+        //The paused torrent stays queued while the active ones are fast
+        for (int i = 4; i <= 8; i++) {
+            fast.downloaded += 50000;
+            waiting.downloaded += 50000;
+            queue.tick(start + i*5000);
+        }
+        assertEquals(TorrentQueue.State.QUEUED, queue.getState(slow));
+        //and takes the slot of a torrent that has become slow
+        for (int i = 9; i <= 11; i++) {
+            fast.downloaded += 50000;
+            queue.tick(start + i*5000);
+        }
+        assertEquals(TorrentQueue.State.DOWNLOADING, queue.getState(slow));
+        assertEquals(TorrentQueue.State.QUEUED, queue.getState(waiting));
+    }
+
+    private class TestingTorrent extends Torrent {
+        private String name;
+        public int downloaded = 0;
+        public boolean complete = false;
+
+        TestingTorrent(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int getDownloaded() {
+            return downloaded;
+        }
+
+        @Override
+        public int getUploaded() {
+            return 0;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,87 @@
+package com.slezevicius.sembucha;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.junit.jupiter.api.TestInstance.Lifecycle;
+
+@TestInstance(Lifecycle.PER_CLASS)
+public class WorkerTest {
+    private class Latched extends Worker {
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                //Interrupted on purpose
+            }
+        }
+    }
+
+    @AfterEach
+    void resetMode() {
+        Worker.setMode(Worker.Mode.PLATFORM);
+    }
+
+    @Test
+    void testLifecycle() {
+        try {
+            Latched worker = new Latched();
+            assertFalse(worker.isAlive());
+            worker.join();
+            worker.start();
+            assertTrue(worker.isAlive());
+            assertThrows(IllegalThreadStateException.class, () -> worker.start());
+            worker.release.countDown();
+            worker.join();
+            assertFalse(worker.isAlive());
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testInterrupt() {
+        try {
+            Latched worker = new Latched();
+            worker.start();
+            worker.interrupt();
+            worker.join(1000);
+            assertFalse(worker.isAlive());
+        } catch (InterruptedException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    @Test
+    void testVirtualMode() {
+        Worker.Mode mode = Worker.setMode(Worker.Mode.VIRTUAL);
+        if (VirtualThreads.isSupported()) {
+            assertEquals(Worker.Mode.VIRTUAL, mode);
+        } else {
+            assertEquals(Worker.Mode.PLATFORM, mode);
+        }
+        assertEquals(mode, Worker.getMode());
+    }
+
+    @Test
+    void testThreadModeSetting() {
+        Properties properties = new Properties();
+        assertEquals(Worker.Mode.PLATFORM, new Settings(properties).getThreadMode());
+        properties.setProperty("threads", "Virtual");
+        assertEquals(Worker.Mode.VIRTUAL, new Settings(properties).getThreadMode());
+        properties.setProperty("threads", "green");
+        assertEquals(Worker.Mode.PLATFORM, new Settings(properties).getThreadMode());
+    }
+}
\ No newline at end of file